@@ -4,6 +4,7 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.openchat.messaging.server.internal.GcmRequestEntity;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -39,6 +40,22 @@ public class Message {
     return objectMapper.writeValueAsString(requestEntity);
   }
 
+  List<String> getRegistrationIds() {
+    return registrationIds;
+  }
+
+  /**
+   * Everything but the destination, so messages that would send the same
+   * payload can share one multicast request.
+   */
+  List<Object> getPayloadKey() {
+    return Arrays.asList(collapseKey, ttl, delayWhileIdle, data, priority);
+  }
+
+  Message withRegistrationIds(List<String> registrationIds) {
+    return new Message(collapseKey, ttl, delayWhileIdle, data, registrationIds, priority);
+  }
+
   
   public static Builder newBuilder() {
     return new Builder();
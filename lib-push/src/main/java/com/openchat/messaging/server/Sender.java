@@ -3,7 +3,11 @@ package com.openchat.messaging.server;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.SettableFuture;
 import com.nurkiewicz.asyncretry.AsyncRetryExecutor;
 import com.nurkiewicz.asyncretry.RetryContext;
@@ -13,7 +17,6 @@ import com.openchat.messaging.server.internal.GcmResponseEntity;
 import com.openchat.messaging.server.internal.GcmResponseListEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.concurrent.FutureCallback;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
@@ -21,9 +24,13 @@ import org.apache.http.impl.nio.client.HttpAsyncClients;
 import org.apache.http.util.EntityUtils;
 
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 
@@ -31,10 +38,22 @@ public class Sender {
 
   private static final String PRODUCTION_URL = "https://android.googleapis.com/gcm/send";
 
+  /**
+   * The most registration ids GCM accepts in a single multicast request.
+   */
+  public static final int MAX_MULTICAST_SIZE = 1000;
+
   private final CloseableHttpAsyncClient client;
   private final String                   authorizationHeader;
   private final RetryExecutor            executor;
+  private final ScheduledExecutorService scheduler;
   private final String                   url;
+  private final int                      batchSize;
+  private final long                     batchDelayMillis;
+
+  private final Map<List<Object>, Batch> batches = new HashMap<>();
+
+  private boolean stopped = false;
 
   
   public Sender(String apiKey) {
@@ -48,14 +67,22 @@ public class Sender {
 
   @VisibleForTesting
   public Sender(String apiKey, int retryCount, String url) {
-    ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    this(newBuilder(apiKey).withRetryCount(retryCount).withUrl(url));
+  }
 
-    this.url                 = url;
-    this.authorizationHeader = String.format("key=%s", apiKey);
+  private Sender(Builder builder) {
+    this.scheduler           = Executors.newSingleThreadScheduledExecutor();
+    this.url                 = builder.url;
+    this.authorizationHeader = String.format("key=%s", builder.apiKey);
+    this.batchSize           = builder.batchSize;
+    this.batchDelayMillis    = builder.batchDelayMillis;
+
+    final long keepAliveMillis = builder.keepAliveMillis;
 
     this.client = HttpAsyncClients.custom()
-                                  .setMaxConnTotal(100)
-                                  .setMaxConnPerRoute(10)
+                                  .setMaxConnTotal(builder.maxConnections)
+                                  .setMaxConnPerRoute(builder.maxConnectionsPerRoute)
+                                  .setKeepAliveStrategy((response, context) -> keepAliveMillis)
                                   .build();
 
     this.executor = new AsyncRetryExecutor(scheduler).retryOn(ServerFailedException.class)
@@ -64,41 +91,249 @@ public class Sender {
                                                      .withExponentialBackoff(100, 2.0)
                                                      .withUniformJitter()
                                                      .withMaxDelay(4000)
-                                                     .withMaxRetries(retryCount);
+                                                     .withMaxRetries(builder.retryCount);
 
     this.client.start();
   }
 
   
+  public static Builder newBuilder(String apiKey) {
+    return new Builder(apiKey);
+  }
+
+  
   public ListenableFuture<Result> send(Message message) {
     return send(message, null);
   }
 
   
   public ListenableFuture<Result> send(final Message message, final Object requestContext) {
-    return executor.getFutureWithRetry(new RetryCallable<ListenableFuture<Result>>() {
+    synchronized (batches) {
+      if (stopped) {
+        return Futures.immediateFailedFuture(new ServerFailedException("Sender stopped"));
+      }
+    }
+
+    if (batchSize > 1 && message.getRegistrationIds().size() == 1) {
+      return enqueue(message, requestContext);
+    }
+
+    return Futures.transform(post(message), new Function<List<GcmResponseEntity>, Result>() {
       @Override
-      public ListenableFuture<Result> call(RetryContext context) throws Exception {
-        SettableFuture<Result> future  = SettableFuture.create();
-        HttpPost               request = new HttpPost(url);
+      public Result apply(List<GcmResponseEntity> responseList) {
+        return toResult(requestContext, responseList.get(0));
+      }
+    }, MoreExecutors.directExecutor());
+  }
+
+  
+  public void stop() throws IOException {
+    List<Batch> pending;
+
+    synchronized (batches) {
+      stopped = true;
+      pending = new LinkedList<>(batches.values());
+      batches.clear();
+    }
+
+    for (Batch batch : pending) {
+      for (PendingResult result : batch.pending) {
+        result.future.setException(new ServerFailedException("Sender stopped"));
+      }
+    }
+
+    this.scheduler.shutdown();
+    this.client.close();
+  }
+
+  private ListenableFuture<Result> enqueue(Message message, Object requestContext) {
+    PendingResult pending = new PendingResult(message.getRegistrationIds().get(0), requestContext);
+    List<Object>  key     = message.getPayloadKey();
+    Batch         full    = null;
+
+    synchronized (batches) {
+      if (stopped) {
+        return Futures.immediateFailedFuture(new ServerFailedException("Sender stopped"));
+      }
+
+      Batch batch = batches.get(key);
+
+      if (batch == null) {
+        batch = new Batch(message);
+        batches.put(key, batch);
+        scheduleFlush(key, batch);
+      }
+
+      batch.pending.add(pending);
+
+      if (batch.pending.size() >= batchSize) {
+        batches.remove(key);
+        full = batch;
+      }
+    }
+
+    if (full != null) {
+      flush(full);
+    }
+
+    return pending.future;
+  }
+
+  private void scheduleFlush(final List<Object> key, final Batch batch) {
+    scheduler.schedule(new Runnable() {
+      @Override
+      public void run() {
+        boolean expired;
+
+        synchronized (batches) {
+          expired = batches.remove(key, batch);
+        }
+
+        if (expired) {
+          flush(batch);
+        }
+      }
+    }, batchDelayMillis, TimeUnit.MILLISECONDS);
+  }
+
+  private void flush(final Batch batch) {
+    List<String> registrationIds = new LinkedList<>();
+
+    for (PendingResult pending : batch.pending) {
+      registrationIds.add(pending.registrationId);
+    }
+
+    Futures.addCallback(post(batch.message.withRegistrationIds(registrationIds)), new FutureCallback<List<GcmResponseEntity>>() {
+      @Override
+      public void onSuccess(List<GcmResponseEntity> responseList) {
+        if (responseList.size() != batch.pending.size()) {
+          onFailure(new IOException("Expected " + batch.pending.size() + " results, got " + responseList.size()));
+          return;
+        }
+
+        int index = 0;
+
+        for (PendingResult pending : batch.pending) {
+          pending.future.set(toResult(pending.requestContext, responseList.get(index++)));
+        }
+      }
+
+      @Override
+      public void onFailure(Throwable throwable) {
+        for (PendingResult pending : batch.pending) {
+          pending.future.setException(throwable);
+        }
+      }
+    }, MoreExecutors.directExecutor());
+  }
+
+  private ListenableFuture<List<GcmResponseEntity>> post(final Message message) {
+    return executor.getFutureWithRetry(new RetryCallable<ListenableFuture<List<GcmResponseEntity>>>() {
+      @Override
+      public ListenableFuture<List<GcmResponseEntity>> call(RetryContext context) throws Exception {
+        SettableFuture<List<GcmResponseEntity>> future  = SettableFuture.create();
+        HttpPost                                request = new HttpPost(url);
 
         request.setHeader("Authorization", authorizationHeader);
         request.setEntity(new StringEntity(message.serialize(),
                                            ContentType.parse("application/json")));
 
-        client.execute(request, new ResponseHandler(future, requestContext));
+        client.execute(request, new ResponseHandler(future));
 
         return future;
       }
     });
   }
 
-  
-  public void stop() throws IOException {
-    this.client.close();
+  private static Result toResult(Object requestContext, GcmResponseEntity responseEntity) {
+    return new Result(requestContext,
+                      responseEntity.getCanonicalRegistrationId(),
+                      responseEntity.getMessageId(),
+                      responseEntity.getError());
+  }
+
+  public static class Builder {
+
+    private final String apiKey;
+
+    private int    retryCount             = 10;
+    private String url                    = PRODUCTION_URL;
+    private int    maxConnections         = 100;
+    private int    maxConnectionsPerRoute = 10;
+    private long   keepAliveMillis        = TimeUnit.MINUTES.toMillis(1);
+    private int    batchSize              = 1;
+    private long   batchDelayMillis       = 0;
+
+    private Builder(String apiKey) {
+      this.apiKey = apiKey;
+    }
+
+    
+    public Builder withRetryCount(int retryCount) {
+      this.retryCount = retryCount;
+      return this;
+    }
+
+    
+    public Builder withUrl(String url) {
+      this.url = url;
+      return this;
+    }
+
+    
+    public Builder withMaxConnections(int maxConnections, int maxConnectionsPerRoute) {
+      this.maxConnections         = maxConnections;
+      this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+      return this;
+    }
+
+    
+    public Builder withKeepAlive(long keepAliveMillis) {
+      this.keepAliveMillis = keepAliveMillis;
+      return this;
+    }
+
+    /**
+     * Group messages with identical payloads into multicast requests of up to
+     * batchSize registration ids, holding each for at most batchDelayMillis.
+     */
+    public Builder withBatching(int batchSize, long batchDelayMillis) {
+      if (batchSize < 1 || batchSize > MAX_MULTICAST_SIZE) {
+        throw new IllegalArgumentException("Batch size must be between 1 and " + MAX_MULTICAST_SIZE);
+      }
+
+      this.batchSize        = batchSize;
+      this.batchDelayMillis = batchDelayMillis;
+      return this;
+    }
+
+    
+    public Sender build() {
+      return new Sender(this);
+    }
   }
 
-  private static final class ResponseHandler implements FutureCallback<HttpResponse> {
+  private static final class Batch {
+    private final Message             message;
+    private final List<PendingResult> pending = new LinkedList<>();
+
+    private Batch(Message message) {
+      this.message = message;
+    }
+  }
+
+  private static final class PendingResult {
+    private final String                 registrationId;
+    private final Object                 requestContext;
+    private final SettableFuture<Result> future = SettableFuture.create();
+
+    private PendingResult(String registrationId, Object requestContext) {
+      this.registrationId = registrationId;
+      this.requestContext = requestContext;
+    }
+  }
+
+  private static final class ResponseHandler implements org.apache.http.concurrent.FutureCallback<HttpResponse> {
 
     private static final ObjectMapper objectMapper = new ObjectMapper();
 
@@ -106,12 +341,10 @@ public class Sender {
       objectMapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
     }
 
-    private final SettableFuture<Result> future;
-    private final Object                 requestContext;
+    private final SettableFuture<List<GcmResponseEntity>> future;
 
-    public ResponseHandler(SettableFuture<Result> future, Object requestContext) {
-      this.future         = future;
-      this.requestContext = requestContext;
+    public ResponseHandler(SettableFuture<List<GcmResponseEntity>> future) {
+      this.future = future;
     }
 
     @Override
@@ -141,7 +374,7 @@ public class Sender {
       future.setException(new ServerFailedException("Canceled!"));
     }
 
-    private Result parseResult(String body) throws IOException {
+    private List<GcmResponseEntity> parseResult(String body) throws IOException {
       List<GcmResponseEntity> responseList = objectMapper.readValue(body, GcmResponseListEntity.class)
                                                          .getResults();
 
@@ -149,12 +382,7 @@ public class Sender {
         throw new IOException("Empty response list!");
       }
 
-      GcmResponseEntity responseEntity = responseList.get(0);
-
-      return new Result(this.requestContext,
-                        responseEntity.getCanonicalRegistrationId(),
-                        responseEntity.getMessageId(),
-                        responseEntity.getError());
+      return responseList;
     }
   }
 }
@@ -0,0 +1,169 @@
+package com.openchat.messaging.server;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SenderTest {
+
+  private static final ObjectMapper objectMapper = new ObjectMapper();
+
+  private final List<String> requests = new CopyOnWriteArrayList<>();
+
+  private volatile String response;
+
+  private HttpServer server;
+  private Sender     sender;
+
+  @Before
+  public void setup() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/gcm/send", exchange -> {
+      requests.add(read(exchange.getRequestBody()));
+
+      byte[] body = response.getBytes(StandardCharsets.UTF_8);
+
+      exchange.getResponseHeaders().add("Content-Type", "application/json");
+      exchange.sendResponseHeaders(200, body.length);
+
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(body);
+      }
+    });
+    server.start();
+
+    sender = Sender.newBuilder("apikey")
+                   .withUrl("http://localhost:" + server.getAddress().getPort() + "/gcm/send")
+                   .withRetryCount(0)
+                   .withBatching(3, TimeUnit.MINUTES.toMillis(1))
+                   .build();
+  }
+
+  @After
+  public void teardown() throws IOException {
+    sender.stop();
+    server.stop(0);
+  }
+
+  @Test
+  public void testBatchResultsMapToRequestContexts() throws Exception {
+    response = "{\"results\": [{\"message_id\": \"1\"}," +
+                              "{\"error\": \"NotRegistered\"}," +
+                              "{\"message_id\": \"3\", \"registration_id\": \"canonical\"}]}";
+
+    ListenableFuture<Result> first  = sender.send(message("a"), "context-a");
+    ListenableFuture<Result> second = sender.send(message("b"), "context-b");
+    ListenableFuture<Result> third  = sender.send(message("c"), "context-c");
+
+    Result firstResult  = first.get(10, TimeUnit.SECONDS);
+    Result secondResult = second.get(10, TimeUnit.SECONDS);
+    Result thirdResult  = third.get(10, TimeUnit.SECONDS);
+
+    assertEquals(1, requests.size());
+
+    JsonNode registrationIds = objectMapper.readTree(requests.get(0)).get("registration_ids");
+
+    assertEquals(3, registrationIds.size());
+    assertEquals("a", registrationIds.get(0).asText());
+    assertEquals("b", registrationIds.get(1).asText());
+    assertEquals("c", registrationIds.get(2).asText());
+
+    assertEquals("context-a", firstResult.getContext());
+    assertTrue(firstResult.isSuccess());
+    assertEquals("1", firstResult.getMessageId());
+    assertFalse(firstResult.hasCanonicalRegistrationId());
+
+    assertEquals("context-b", secondResult.getContext());
+    assertFalse(secondResult.isSuccess());
+    assertTrue(secondResult.isUnregistered());
+    assertNull(secondResult.getMessageId());
+
+    assertEquals("context-c", thirdResult.getContext());
+    assertTrue(thirdResult.isSuccess());
+    assertEquals("3", thirdResult.getMessageId());
+    assertEquals("canonical", thirdResult.getCanonicalRegistrationId());
+  }
+
+  @Test
+  public void testBatchResultCountMismatchFailsEveryMessage() throws Exception {
+    response = "{\"results\": [{\"message_id\": \"1\"}, {\"message_id\": \"2\"}]}";
+
+    ListenableFuture<Result> first  = sender.send(message("a"), "context-a");
+    ListenableFuture<Result> second = sender.send(message("b"), "context-b");
+    ListenableFuture<Result> third  = sender.send(message("c"), "context-c");
+
+    assertFailedWith(first, IOException.class);
+    assertFailedWith(second, IOException.class);
+    assertFailedWith(third, IOException.class);
+  }
+
+  @Test
+  public void testStopFailsPendingBatch() throws Exception {
+    ListenableFuture<Result> pending = sender.send(message("a"), "context-a");
+
+    sender.stop();
+
+    assertFailedWith(pending, ServerFailedException.class);
+    assertTrue(requests.isEmpty());
+  }
+
+  @Test
+  public void testSendAfterStopIsRejected() throws Exception {
+    sender.stop();
+
+    assertFailedWith(sender.send(message("a"), "context-a"), ServerFailedException.class);
+    assertFailedWith(sender.send(Message.newBuilder().withDestination("b").build()), ServerFailedException.class);
+    assertTrue(requests.isEmpty());
+  }
+
+  private static Message message(String registrationId) {
+    return Message.newBuilder()
+                  .withDestination(registrationId)
+                  .withDataPart("notification", "")
+                  .build();
+  }
+
+  private static void assertFailedWith(ListenableFuture<Result> future, Class<? extends Throwable> type)
+      throws Exception
+  {
+    try {
+      future.get(10, TimeUnit.SECONDS);
+      fail("Expected " + type.getSimpleName());
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause().toString(), type.isInstance(e.getCause()));
+    }
+  }
+
+  private static String read(InputStream in) throws IOException {
+    ByteArrayOutputStream out    = new ByteArrayOutputStream();
+    byte[]                buffer = new byte[4096];
+    int                   read;
+
+    while ((read = in.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+    }
+
+    return new String(out.toByteArray(), StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,80 @@
+package com.openchat.dispatch.redis;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.SecureRandom;
+
+@State(Scope.Thread)
+public class PubSubReplyReaderBenchmark {
+
+  @Param({"100", "10000"})
+  private int channelCount;
+
+  @Param({"256", "4096"})
+  private int payloadSize;
+
+  private PubSubReplyReader streamReader;
+  private PubSubReplyReader bufferReader;
+
+  @Setup
+  public void setup() throws IOException {
+    byte[] replies = createReplies(channelCount, payloadSize);
+
+    streamReader = new StreamPubSubReplyReader(new BufferedInputStream(new ReplayChannel(replies)));
+    bufferReader = new BufferPubSubReplyReader(new ReplayChannel(replies), 64 * 1024, 64 * 1024);
+  }
+
+  @Benchmark
+  public PubSubReply readStream() throws IOException {
+    return streamReader.read();
+  }
+
+  @Benchmark
+  public PubSubReply readBuffer() throws IOException {
+    return bufferReader.read();
+  }
+
+  private static byte[] createReplies(int channelCount, int payloadSize) throws IOException {
+    ByteArrayOutputStream replies = new ByteArrayOutputStream();
+    byte[]                payload = new byte[payloadSize];
+
+    new SecureRandom().nextBytes(payload);
+
+    for (int i=0;i<channelCount;i++) {
+      byte[] channel = ("+1415555" + String.format("%04d", i) + ":1").getBytes();
+
+      writeHeader(replies, '*', 3);
+      writeString(replies, PubSubReply.SUBSCRIBE_TYPE);
+      writeString(replies, channel);
+      writeHeader(replies, ':', i + 1);
+
+      for (int j=0;j<10;j++) {
+        writeHeader(replies, '*', 3);
+        writeString(replies, PubSubReply.MESSAGE_TYPE);
+        writeString(replies, channel);
+        writeString(replies, payload);
+      }
+    }
+
+    return replies.toByteArray();
+  }
+
+  private static void writeString(ByteArrayOutputStream output, byte[] value) throws IOException {
+    writeHeader(output, '$', value.length);
+    output.write(value);
+    output.write(new byte[] {'\r', '\n'});
+  }
+
+  private static void writeHeader(ByteArrayOutputStream output, char type, int value) throws IOException {
+    output.write(type);
+    output.write(String.valueOf(value).getBytes());
+    output.write(new byte[] {'\r', '\n'});
+  }
+}
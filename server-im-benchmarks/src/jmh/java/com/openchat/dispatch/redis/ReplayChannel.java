@@ -0,0 +1,52 @@
+package com.openchat.dispatch.redis;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+public class ReplayChannel extends InputStream implements ReadableByteChannel {
+
+  private final byte[] data;
+  private       int    offset;
+
+  public ReplayChannel(byte[] data) {
+    this.data = data;
+  }
+
+  @Override
+  public int read(ByteBuffer destination) {
+    int count = Math.min(destination.remaining(), data.length - offset);
+
+    destination.put(data, offset, count);
+    advance(count);
+
+    return count;
+  }
+
+  @Override
+  public int read(byte[] destination, int destinationOffset, int length) {
+    int count = Math.min(length, data.length - offset);
+
+    System.arraycopy(data, offset, destination, destinationOffset, count);
+    advance(count);
+
+    return count;
+  }
+
+  @Override
+  public int read() {
+    int value = data[offset] & 0xff;
+    advance(1);
+
+    return value;
+  }
+
+  @Override
+  public boolean isOpen() {
+    return true;
+  }
+
+  private void advance(int count) {
+    offset = (offset + count) % data.length;
+  }
+}
@@ -0,0 +1,91 @@
+package com.openchat.messaging.server;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.sun.net.httpserver.HttpServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executors;
+
+/**
+ * Sends notifications through a local stub of the GCM endpoint, which answers
+ * every registration id in a request with a success result.
+ */
+@State(Scope.Benchmark)
+public class SenderBenchmark {
+
+  private static final int MESSAGES = 1000;
+
+  private static final ObjectMapper objectMapper = new ObjectMapper();
+
+  @Param({"1", "100", "1000"})
+  private int batchSize;
+
+  private HttpServer server;
+  private Sender     sender;
+
+  @Setup
+  public void setup() throws Exception {
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.setExecutor(Executors.newFixedThreadPool(16));
+    server.createContext("/gcm/send", exchange -> {
+      JsonNode      request  = objectMapper.readTree(exchange.getRequestBody());
+      StringBuilder response = new StringBuilder("{\"results\":[");
+      int           count    = request.get("registration_ids").size();
+
+      for (int i=0;i<count;i++) {
+        if (i > 0) response.append(',');
+        response.append("{\"message_id\":\"").append(i).append("\"}");
+      }
+
+      byte[] body = response.append("]}").toString().getBytes();
+
+      exchange.sendResponseHeaders(200, body.length);
+
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(body);
+      }
+    });
+    server.start();
+
+    sender = Sender.newBuilder("benchmark")
+                   .withUrl("http://127.0.0.1:" + server.getAddress().getPort() + "/gcm/send")
+                   .withMaxConnections(100, 100)
+                   .withBatching(batchSize, 5)
+                   .build();
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    sender.stop();
+    server.stop(0);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(MESSAGES)
+  public List<Result> send() throws Exception {
+    List<ListenableFuture<Result>> futures = new LinkedList<>();
+
+    for (int i=0;i<MESSAGES;i++) {
+      futures.add(sender.send(Message.newBuilder()
+                                     .withDestination("registration" + i)
+                                     .withPriority("high")
+                                     .withDataPart("notification", "")
+                                     .build(), i));
+    }
+
+    return Futures.allAsList(futures).get();
+  }
+}
@@ -0,0 +1,44 @@
+package com.openchat.secureim.auth;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+@State(Scope.Thread)
+public class AuthenticationCredentialsBenchmark {
+
+  private static final String TOKEN = "c2VjcmV0YXV0aGVudGljYXRpb250b2tlbg";
+
+  private AuthenticationCredentials credentials;
+  private AuthenticationCredentials currentCredentials;
+
+  @Setup
+  public void setup() {
+    AuthenticationCredentials created        = new AuthenticationCredentials(TOKEN);
+    AuthenticationCredentials createdCurrent = new AuthenticationCredentials(TOKEN, AuthenticationCredentials.Algorithm.CURRENT);
+
+    credentials        = new AuthenticationCredentials(created.getHashedAuthenticationToken(), created.getSalt());
+    currentCredentials = new AuthenticationCredentials(createdCurrent.getHashedAuthenticationToken(), createdCurrent.getSalt());
+  }
+
+  @Benchmark
+  public boolean verifyValid() {
+    return credentials.verify(TOKEN);
+  }
+
+  @Benchmark
+  public boolean verifyInvalid() {
+    return credentials.verify("invalid");
+  }
+
+  @Benchmark
+  public boolean verifyCurrentValid() {
+    return currentCredentials.verify(TOKEN);
+  }
+
+  @Benchmark
+  public boolean verifyCurrentInvalid() {
+    return currentCredentials.verify("invalid");
+  }
+}
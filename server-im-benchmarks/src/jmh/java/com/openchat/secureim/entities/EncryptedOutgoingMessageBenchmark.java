@@ -0,0 +1,53 @@
+package com.openchat.secureim.entities;
+
+import com.google.protobuf.ByteString;
+import com.openchat.secureim.entities.MessageProtos.Envelope;
+import com.openchat.secureim.util.Base64;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.security.SecureRandom;
+
+@State(Scope.Thread)
+public class EncryptedOutgoingMessageBenchmark {
+
+  @Param({"256", "4096"})
+  private int contentSize;
+
+  private Envelope              envelope;
+  private String                signalingKey;
+  private OutgoingMessageCipher cipher;
+
+  @Setup
+  public void setup() throws CryptoEncodingException {
+    SecureRandom random  = new SecureRandom();
+    byte[]       content = new byte[contentSize];
+    byte[]       key     = new byte[52];
+
+    random.nextBytes(content);
+    random.nextBytes(key);
+
+    envelope     = Envelope.newBuilder()
+                           .setType(Envelope.Type.CIPHERTEXT)
+                           .setSource("+14152222222")
+                           .setSourceDevice(1)
+                           .setTimestamp(System.currentTimeMillis())
+                           .setContent(ByteString.copyFrom(content))
+                           .build();
+    signalingKey = Base64.encodeBytes(key);
+    cipher       = new OutgoingMessageCipher(signalingKey);
+  }
+
+  @Benchmark
+  public byte[] encrypt() throws CryptoEncodingException {
+    return new EncryptedOutgoingMessage(envelope, signalingKey).toByteArray();
+  }
+
+  @Benchmark
+  public byte[] encryptWithCipher() throws CryptoEncodingException {
+    return new EncryptedOutgoingMessage(envelope, cipher).toByteArray();
+  }
+}
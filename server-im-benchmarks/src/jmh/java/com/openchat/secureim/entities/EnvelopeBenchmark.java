@@ -0,0 +1,50 @@
+package com.openchat.secureim.entities;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.openchat.secureim.entities.MessageProtos.Envelope;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.security.SecureRandom;
+
+@State(Scope.Thread)
+public class EnvelopeBenchmark {
+
+  @Param({"256", "4096"})
+  private int contentSize;
+
+  private byte[] content;
+  private byte[] serialized;
+
+  @Setup
+  public void setup() {
+    content = new byte[contentSize];
+    new SecureRandom().nextBytes(content);
+
+    serialized = build().toByteArray();
+  }
+
+  @Benchmark
+  public byte[] buildAndSerialize() {
+    return build().toByteArray();
+  }
+
+  @Benchmark
+  public Envelope parse() throws InvalidProtocolBufferException {
+    return Envelope.parseFrom(serialized);
+  }
+
+  private Envelope build() {
+    return Envelope.newBuilder()
+                   .setType(Envelope.Type.CIPHERTEXT)
+                   .setSource("+14152222222")
+                   .setSourceDevice(1)
+                   .setTimestamp(System.currentTimeMillis())
+                   .setContent(ByteString.copyFrom(content))
+                   .build();
+  }
+}
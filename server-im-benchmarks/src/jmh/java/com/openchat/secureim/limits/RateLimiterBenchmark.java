@@ -0,0 +1,68 @@
+package com.openchat.secureim.limits;
+
+import com.openchat.secureim.controllers.RateLimitExceededException;
+import com.openchat.secureim.redis.BenchmarkRedis;
+import com.openchat.secureim.redis.LuaScript;
+import com.openchat.secureim.redis.ReplicatedJedisPool;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Measures a rate limit check end to end, including the round trip to Redis
+ * and the leaky bucket script.  Requires a Redis server, see {@link BenchmarkRedis}.
+ */
+@State(Scope.Benchmark)
+public class RateLimiterBenchmark {
+
+  @Param({"0", "10"})
+  private int prefetch;
+
+  @Param({"1", "1000"})
+  private int keys;
+
+  private ReplicatedJedisPool jedisPool;
+  private RateLimiter         rateLimiter;
+
+  @Setup
+  public void setup() throws Exception {
+    jedisPool = BenchmarkRedis.getJedisPool();
+
+    LuaScript validateScript = RateLimiter.createValidateScript(jedisPool);
+
+    if (prefetch > 0) {
+      rateLimiter = new PrefetchingRateLimiter(jedisPool, validateScript, "benchmark", Integer.MAX_VALUE / 2,
+                                               Integer.MAX_VALUE / 2, prefetch, 1000, false);
+    } else {
+      rateLimiter = new RateLimiter(jedisPool, validateScript, "benchmark", Integer.MAX_VALUE / 2,
+                                    Integer.MAX_VALUE / 2);
+    }
+
+    clear();
+  }
+
+  @TearDown
+  public void tearDown() {
+    clear();
+  }
+
+  @Benchmark
+  public void validate() throws RateLimitExceededException {
+    rateLimiter.validate(getKey(ThreadLocalRandom.current().nextInt(keys)));
+  }
+
+  private void clear() {
+    for (int i=0;i<keys;i++) {
+      rateLimiter.clear(getKey(i));
+    }
+  }
+
+  private static String getKey(int index) {
+    return "+1415" + index;
+  }
+}
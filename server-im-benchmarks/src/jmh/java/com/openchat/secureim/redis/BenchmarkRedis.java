@@ -0,0 +1,38 @@
+package com.openchat.secureim.redis;
+
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.UnknownHostException;
+import java.util.Collections;
+
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.Protocol;
+
+/**
+ * The Redis instance used by benchmarks that exercise Lua operations.  Defaults
+ * to a local server; override with -PredisUrl=redis://host:port.
+ *
+ * Benchmarks run in their own database index (-PredisDatabase, 15 by default)
+ * and only ever delete the keys they created.  A server that isn't on the
+ * loopback interface is refused unless -PredisAllowRemote=true is also given.
+ */
+public class BenchmarkRedis {
+
+  public static ReplicatedJedisPool getJedisPool() throws URISyntaxException, UnknownHostException {
+    URI     url         = new URI(System.getProperty("benchmark.redis.url", "redis://localhost:6379"));
+    int     database    = Integer.getInteger("benchmark.redis.database", 15);
+    boolean allowRemote = Boolean.getBoolean("benchmark.redis.allowRemote");
+
+    if (!allowRemote && !InetAddress.getByName(url.getHost()).isLoopbackAddress()) {
+      throw new IllegalStateException("Refusing to run benchmarks against non-local Redis " + url +
+                                      ", set -PredisAllowRemote=true to override");
+    }
+
+    JedisPool pool = new JedisPool(new JedisPoolConfig(), url.getHost(), url.getPort(),
+                                   Protocol.DEFAULT_TIMEOUT, null, database);
+
+    return new ReplicatedJedisPool(pool, Collections.singletonList(pool));
+  }
+}
@@ -0,0 +1,86 @@
+package com.openchat.secureim.storage;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.openchat.secureim.entities.SignedPreKey;
+import com.openchat.secureim.util.SystemMapper;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+@State(Scope.Thread)
+public class AccountCodecBenchmark {
+
+  @Param({"1", "5"})
+  private int deviceCount;
+
+  private final ObjectMapper mapper = SystemMapper.getMapper();
+  private final AccountCodec codec  = new AccountCodec(true);
+
+  private Account account;
+  private byte[]  json;
+  private byte[]  binary;
+
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  public static class EncodedSize {
+    public long jsonBytes;
+    public long binaryBytes;
+  }
+
+  @Setup
+  public void setup() throws IOException {
+    Set<Device> devices = new HashSet<>();
+
+    for (int i=1;i<=deviceCount;i++) {
+      devices.add(new Device(i, "device" + i, "aGFzaGVkYXV0aHRva2VuaGFzaGVkYXV0aHRva2Vu", "c2FsdHNhbHQ=",
+                             "c2lnbmFsaW5na2V5c2lnbmFsaW5na2V5c2lnbmFsaW5na2V5c2lnbmFsaW5na2V5c2lnbmFsaW5na2V5",
+                             "APA91bHun4MxP5egoKMwt2KZFBaFUH-1RYqx", null, null, false, 12345 + i,
+                             new SignedPreKey(i, "BcCs2vQy5IkRIdgqDqiRM8ldhWVWtHHmK4BTMSOALvJm",
+                                              "Wj9pOsx6tJAd3umrD3iQDBXoxL0RSI2q4OS2VDE6kF9bWY8VC9JAf5gDWnQZtkiRkNZOaJ3wbvH3WomeHqPkAw"),
+                             System.currentTimeMillis(), System.currentTimeMillis(), true, true, "OWA"));
+    }
+
+    account = new Account("+14152222222", devices);
+    account.setIdentityKey("BcCs2vQy5IkRIdgqDqiRM8ldhWVWtHHmK4BTMSOALvJmBcCs2vQy5IkRIdgq");
+    account.setName("ZW5jcnlwdGVkbmFtZWVuY3J5cHRlZG5hbWU=");
+
+    json   = mapper.writeValueAsBytes(account);
+    binary = codec.encode(account);
+  }
+
+  @Benchmark
+  public byte[] encodeJson(EncodedSize size) throws IOException {
+    byte[] encoded = mapper.writeValueAsBytes(account);
+    size.jsonBytes += encoded.length;
+    return encoded;
+  }
+
+  @Benchmark
+  public byte[] encodeBinary(EncodedSize size) {
+    byte[] encoded = codec.encode(account);
+    size.binaryBytes += encoded.length;
+    return encoded;
+  }
+
+  @Benchmark
+  public Account decodeJson() throws IOException {
+    return mapper.readValue(json, Account.class);
+  }
+
+  @Benchmark
+  public Account decodeBinary() throws IOException {
+    return codec.decode(binary);
+  }
+
+  @Benchmark
+  public Account decodeLegacyJsonEntry() throws IOException {
+    return codec.decode(json);
+  }
+}
@@ -0,0 +1,79 @@
+package com.openchat.secureim.storage;
+
+import com.google.protobuf.ByteString;
+import com.openchat.secureim.entities.MessageProtos.Envelope;
+import com.openchat.secureim.entities.OutgoingMessageEntity;
+import com.openchat.secureim.redis.BenchmarkRedis;
+import com.openchat.secureim.redis.ReplicatedJedisPool;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.security.SecureRandom;
+import java.util.List;
+
+/**
+ * Measures the message cache's Lua operations against a real Redis server,
+ * see {@link BenchmarkRedis}.  The persisters aren't started, so nothing is
+ * moved to the database while the benchmark runs.
+ */
+@State(Scope.Thread)
+public class MessagesCacheBenchmark {
+
+  private static final String DESTINATION = "+14151111111";
+
+  @Param({"256", "4096"})
+  private int contentSize;
+
+  private ReplicatedJedisPool jedisPool;
+  private MessagesCache       messagesCache;
+  private Envelope            envelope;
+
+  @Setup
+  public void setup() throws Exception {
+    jedisPool     = BenchmarkRedis.getJedisPool();
+    messagesCache = new MessagesCache(jedisPool, null, null, 60, false, 100, 0);
+    messagesCache.start();
+    messagesCache.clear(DESTINATION);
+
+    byte[] content = new byte[contentSize];
+    new SecureRandom().nextBytes(content);
+
+    envelope = Envelope.newBuilder()
+                       .setType(Envelope.Type.CIPHERTEXT)
+                       .setSource("+14152222222")
+                       .setSourceDevice(1)
+                       .setTimestamp(System.currentTimeMillis())
+                       .setContent(ByteString.copyFrom(content))
+                       .build();
+
+    for (int i=0;i<100;i++) {
+      messagesCache.insert(DESTINATION, 2, envelope);
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    messagesCache.clear(DESTINATION);
+    messagesCache.stop();
+  }
+
+  @Benchmark
+  public List<OutgoingMessageEntity> get() {
+    return messagesCache.get(DESTINATION, 2, 100);
+  }
+
+  @Benchmark
+  public void insertAndRemove() {
+    messagesCache.insert(DESTINATION, 1, envelope);
+
+    List<OutgoingMessageEntity> messages = messagesCache.get(DESTINATION, 1, 1);
+
+    for (OutgoingMessageEntity message : messages) {
+      messagesCache.remove(DESTINATION, 1, message.getId());
+    }
+  }
+}
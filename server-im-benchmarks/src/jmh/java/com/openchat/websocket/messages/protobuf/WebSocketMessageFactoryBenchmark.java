@@ -0,0 +1,51 @@
+package com.openchat.websocket.messages.protobuf;
+
+import com.google.common.base.Optional;
+import com.openchat.websocket.messages.InvalidMessageException;
+import com.openchat.websocket.messages.WebSocketMessage;
+import com.openchat.websocket.messages.WebSocketMessageFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.security.SecureRandom;
+import java.util.Collections;
+
+@State(Scope.Thread)
+public class WebSocketMessageFactoryBenchmark {
+
+  @Param({"256", "4096"})
+  private int bodySize;
+
+  private final WebSocketMessageFactory factory = new ProtobufWebSocketMessageFactory();
+
+  private byte[] request;
+  private byte[] response;
+
+  @Setup
+  public void setup() {
+    byte[] body = new byte[bodySize];
+    new SecureRandom().nextBytes(body);
+
+    request  = factory.createRequest(Optional.of(1L), "PUT", "/v1/messages/+14152222222",
+                                     Collections.singletonList("Content-Type:application/json"),
+                                     Optional.of(body)).toByteArray();
+    response = factory.createResponse(1L, 200, "OK", null, Optional.<byte[]>absent()).toByteArray();
+  }
+
+  @Benchmark
+  public WebSocketMessage parseRequest() throws InvalidMessageException {
+    WebSocketMessage message = factory.parseMessage(request, 0, request.length);
+    message.getRequestMessage();
+    return message;
+  }
+
+  @Benchmark
+  public WebSocketMessage parseResponse() throws InvalidMessageException {
+    WebSocketMessage message = factory.parseMessage(response, 0, response.length);
+    message.getResponseMessage();
+    return message;
+  }
+}
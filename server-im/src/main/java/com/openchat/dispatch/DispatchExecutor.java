@@ -0,0 +1,106 @@
+package com.openchat.dispatch;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs tasks on a fixed set of single-threaded lanes, chosen by channel name,
+ * so tasks for one channel run in order.
+ *
+ * Messages are offered to a lane, which holds at most queueSize of them.  A
+ * full lane refuses the offer straight away, and the caller decides what to
+ * do with the message, so a slow lane never holds up a pub/sub reader.
+ * Subscription callbacks are always queued, since losing one would leave a
+ * channel in the wrong state; there's one of those per subscription change,
+ * so a lane holds at most queueSize messages plus those.
+ */
+public class DispatchExecutor {
+
+  private final ExecutorService[] workers;
+  private final Semaphore[]       permits;
+  private final AtomicLong        overflows = new AtomicLong();
+
+  public DispatchExecutor(int threads, int queueSize) {
+    this.workers = new ExecutorService[threads];
+    this.permits = new Semaphore[threads];
+
+    ThreadFactory threadFactory = new DispatchThreadFactory();
+
+    for (int i=0;i<threads;i++) {
+      this.workers[i] = Executors.newSingleThreadExecutor(threadFactory);
+      this.permits[i] = new Semaphore(queueSize);
+    }
+  }
+
+  /**
+   * Queues a task on the channel's lane, however full it is.
+   */
+  public void execute(String channel, Runnable task) {
+    workers[getLane(channel)].execute(task);
+  }
+
+  /**
+   * Queues a task on the channel's lane if it has room.
+   *
+   * @return false if the lane is full, in which case the task won't run.
+   */
+  public boolean offer(String channel, final Runnable task) {
+    int             index  = getLane(channel);
+    final Semaphore permit = permits[index];
+
+    if (!permit.tryAcquire()) {
+      overflows.incrementAndGet();
+      return false;
+    }
+
+    try {
+      workers[index].execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            task.run();
+          } finally {
+            permit.release();
+          }
+        }
+      });
+    } catch (Throwable t) {
+      permit.release();
+      throw new RuntimeException(t);
+    }
+
+    return true;
+  }
+
+  /**
+   * @return the number of offers refused because their lane was full.
+   */
+  public long getOverflowCount() {
+    return overflows.get();
+  }
+
+  private int getLane(String channel) {
+    return (channel.hashCode() & Integer.MAX_VALUE) % workers.length;
+  }
+
+  public void shutdown() {
+    for (ExecutorService worker : workers) {
+      worker.shutdown();
+    }
+  }
+
+  private static class DispatchThreadFactory implements ThreadFactory {
+    private final AtomicInteger count = new AtomicInteger(0);
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, "DispatchExecutor-" + count.getAndIncrement());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
@@ -8,100 +8,154 @@ import com.openchat.dispatch.redis.PubSubConnection;
 import com.openchat.dispatch.redis.PubSubReply;
 
 import java.io.IOException;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
 
-public class DispatchManager extends Thread {
+public class DispatchManager {
 
-  private final Logger                       logger        = LoggerFactory.getLogger(DispatchManager.class);
-  private final Executor                     executor      = Executors.newCachedThreadPool();
-  private final Map<String, DispatchChannel> subscriptions = new ConcurrentHashMap<>();
+  private static final int MAX_FLUSH_SIZE = 1000;
+
+  private final Logger                                 logger        = LoggerFactory.getLogger(DispatchManager.class);
+  private final ConcurrentMap<String, DispatchChannel> subscriptions = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, DispatchChannel> local         = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, Runnable>        disconnects   = new ConcurrentHashMap<>();
 
   private final Optional<DispatchChannel>    deadLetterChannel;
   private final RedisPubSubConnectionFactory redisPubSubConnectionFactory;
+  private final DispatchExecutor             executor;
+  private final DispatchShard[]              shards;
 
-  private          PubSubConnection pubSubConnection;
-  private volatile boolean          running;
+  private volatile boolean running;
 
   public DispatchManager(RedisPubSubConnectionFactory redisPubSubConnectionFactory,
-                         Optional<DispatchChannel> deadLetterChannel)
+                         Optional<DispatchChannel> deadLetterChannel,
+                         int connections, int threads, int queueSize)
   {
     this.redisPubSubConnectionFactory = redisPubSubConnectionFactory;
     this.deadLetterChannel            = deadLetterChannel;
+    this.executor                     = new DispatchExecutor(threads, queueSize);
+    this.shards                       = new DispatchShard[connections];
+
+    for (int i=0;i<shards.length;i++) {
+      shards[i] = new DispatchShard(i);
+    }
   }
 
-  @Override
   public void start() {
-    this.pubSubConnection = redisPubSubConnectionFactory.connect();
-    this.running          = true;
-    super.start();
+    this.running = true;
+
+    for (DispatchShard shard : shards) {
+      shard.start();
+    }
   }
 
   public void shutdown() {
     this.running = false;
-    this.pubSubConnection.close();
+
+    for (DispatchShard shard : shards) {
+      shard.shutdown();
+    }
+
+    executor.shutdown();
   }
 
-  public synchronized void subscribe(String name, DispatchChannel dispatchChannel) {
-    Optional<DispatchChannel> previous = Optional.fromNullable(subscriptions.get(name));
-    subscriptions.put(name, dispatchChannel);
+  public void subscribe(String name, DispatchChannel dispatchChannel) {
+    Optional<DispatchChannel> previous = Optional.fromNullable(subscriptions.put(name, dispatchChannel));
+    getShard(name).update(name);
+
+    if (previous.isPresent()) {
+      dispatchUnsubscription(name, previous.get());
+    }
+  }
 
-    try {
-      pubSubConnection.subscribe(name);
-    } catch (IOException e) {
-      logger.warn("Subscription error", e);
+  public boolean unsubscribe(String name, DispatchChannel channel) {
+    if (subscriptions.remove(name, channel)) {
+      getShard(name).update(name);
+      dispatchUnsubscription(name, channel);
+      return true;
     }
 
+    return false;
+  }
+
+  /**
+   * Runs the listener, on the channel's dispatch thread, whenever the redis
+   * connection carrying the named channel drops.  Anything published to it
+   * until it's resubscribed is lost; {@link DispatchChannel#onDispatchSubscribed}
+   * follows once it's back.
+   */
+  public void addDisconnectListener(String name, Runnable listener) {
+    disconnects.put(name, listener);
+  }
+
+  public void removeDisconnectListener(String name) {
+    disconnects.remove(name);
+  }
+
+  /**
+   * Registers a channel that only receives messages handed to it through
+   * {@link #dispatchLocal}, without subscribing to it on redis.
+   */
+  public void subscribeLocal(String name, DispatchChannel dispatchChannel) {
+    Optional<DispatchChannel> previous = Optional.fromNullable(local.put(name, dispatchChannel));
+    dispatchSubscription(name, dispatchChannel);
+
     if (previous.isPresent()) {
       dispatchUnsubscription(name, previous.get());
     }
   }
 
-  public synchronized void unsubscribe(String name, DispatchChannel channel) {
-    Optional<DispatchChannel> subscription = Optional.fromNullable(subscriptions.get(name));
+  public boolean unsubscribeLocal(String name, DispatchChannel channel) {
+    if (local.remove(name, channel)) {
+      dispatchUnsubscription(name, channel);
+      return true;
+    }
 
-    if (subscription.isPresent() && subscription.get() == channel) {
-      subscriptions.remove(name);
+    return false;
+  }
 
-      try {
-        pubSubConnection.unsubscribe(name);
-      } catch (IOException e) {
-        logger.warn("Unsubscribe error", e);
-      }
+  /**
+   * Dispatches a message to this process's subscriber for a channel, exactly as
+   * if it had arrived from redis.
+   *
+   * @return false if there's no such subscriber here.
+   */
+  public boolean dispatchLocal(String name, byte[] message) {
+    DispatchChannel channel = subscriptions.get(name);
+
+    if (channel == null) {
+      channel = local.get(name);
+    }
 
-      dispatchUnsubscription(name, subscription.get());
+    if (channel == null) {
+      return false;
     }
+
+    dispatchMessage(name, channel, message);
+    return true;
+  }
+
+  /**
+   * @return the number of messages that found their lane full and went to the
+   *         dead letter channel, see {@link DispatchExecutor}.
+   */
+  public long getOverflowCount() {
+    return executor.getOverflowCount();
   }
 
   public boolean hasSubscription(String name) {
-    return subscriptions.containsKey(name);
-  }
-  
-  @Override
-  public void run() {
-    while (running) {
-      try {
-        PubSubReply reply = pubSubConnection.read();
-
-        switch (reply.getType()) {
-          case UNSUBSCRIBE:                             break;
-          case SUBSCRIBE:   dispatchSubscribe(reply);   break;
-          case MESSAGE:     dispatchMessage(reply);     break;
-          default:          throw new AssertionError("Unknown pubsub reply type! " + reply.getType());
-        }
-      } catch (IOException e) {
-        logger.warn("***** PubSub Connection Error *****", e);
-        if (running) {
-          this.pubSubConnection.close();
-          this.pubSubConnection = redisPubSubConnectionFactory.connect();
-          resubscribeAll();
-        }
-      }
-    }
+    return subscriptions.containsKey(name) || local.containsKey(name);
+  }
 
-    logger.warn("DispatchManager Shutting Down...");
+  private DispatchShard getShard(String name) {
+    return shards[(name.hashCode() & Integer.MAX_VALUE) % shards.length];
   }
 
   private void dispatchSubscribe(final PubSubReply reply) {
@@ -126,34 +180,31 @@ public class DispatchManager extends Thread {
     }
   }
 
-  private void resubscribeAll() {
-    new Thread() {
-      @Override
-      public void run() {
-        synchronized (DispatchManager.this) {
-          try {
-            for (String name : subscriptions.keySet()) {
-              pubSubConnection.subscribe(name);
-            }
-          } catch (IOException e) {
-            logger.warn("***** RESUBSCRIPTION ERROR *****", e);
-          }
-        }
-      }
-    }.start();
-  }
-
+  /**
+   * If the channel's lane is full, the message goes straight to the dead letter
+   * channel, on this thread, to be stored for the device to fetch later.  The
+   * dead letter channel is expected to hand it off rather than do slow work
+   * here, since this is usually a pub/sub reader.
+   */
   private void dispatchMessage(final String name, final DispatchChannel channel, final byte[] message) {
-    executor.execute(new Runnable() {
+    boolean queued = executor.offer(name, new Runnable() {
       @Override
       public void run() {
         channel.onDispatchMessage(name, message);
       }
     });
+
+    if (!queued) {
+      if (deadLetterChannel.isPresent()) {
+        deadLetterChannel.get().onDispatchMessage(name, message);
+      } else {
+        logger.warn("Dispatch queue full, dropping message for " + name);
+      }
+    }
   }
 
   private void dispatchSubscription(final String name, final DispatchChannel channel) {
-    executor.execute(new Runnable() {
+    executor.execute(name, new Runnable() {
       @Override
       public void run() {
         channel.onDispatchSubscribed(name);
@@ -162,11 +213,112 @@ public class DispatchManager extends Thread {
   }
 
   private void dispatchUnsubscription(final String name, final DispatchChannel channel) {
-    executor.execute(new Runnable() {
+    executor.execute(name, new Runnable() {
       @Override
       public void run() {
         channel.onDispatchUnsubscribed(name);
       }
     });
   }
+
+  private class DispatchShard extends Thread {
+
+    private final BlockingQueue<String> pending = new LinkedBlockingQueue<>();
+    private final Thread                writer;
+
+    private volatile PubSubConnection pubSubConnection;
+
+    DispatchShard(int index) {
+      super(DispatchManager.class.getSimpleName() + "-" + index);
+      this.writer = new Thread(DispatchManager.class.getSimpleName() + "-Writer-" + index) {
+        @Override
+        public void run() {
+          flushPending();
+        }
+      };
+    }
+
+    @Override
+    public void start() {
+      this.pubSubConnection = redisPubSubConnectionFactory.connect();
+      super.start();
+      writer.start();
+    }
+
+    void shutdown() {
+      this.pubSubConnection.close();
+      this.writer.interrupt();
+    }
+
+    void update(String name) {
+      pending.add(name);
+    }
+
+    @Override
+    public void run() {
+      while (running) {
+        try {
+          PubSubReply reply = pubSubConnection.read();
+
+          switch (reply.getType()) {
+            case UNSUBSCRIBE:                             break;
+            case SUBSCRIBE:   dispatchSubscribe(reply);   break;
+            case MESSAGE:     dispatchMessage(reply);     break;
+            default:          throw new AssertionError("Unknown pubsub reply type! " + reply.getType());
+          }
+        } catch (IOException e) {
+          logger.warn("***** PubSub Connection Error *****", e);
+          if (running) {
+            dispatchDisconnected();
+            this.pubSubConnection.close();
+            this.pubSubConnection = redisPubSubConnectionFactory.connect();
+            resubscribeAll();
+          }
+        }
+      }
+
+      logger.warn("DispatchManager Shutting Down...");
+    }
+
+    private void dispatchDisconnected() {
+      for (Map.Entry<String, Runnable> listener : disconnects.entrySet()) {
+        if (getShard(listener.getKey()) == this) {
+          executor.execute(listener.getKey(), listener.getValue());
+        }
+      }
+    }
+
+    private void resubscribeAll() {
+      for (String name : subscriptions.keySet()) {
+        if (getShard(name) == this) {
+          update(name);
+        }
+      }
+    }
+
+    private void flushPending() {
+      while (running) {
+        try {
+          List<String> drained = new LinkedList<>();
+          drained.add(pending.take());
+          pending.drainTo(drained, MAX_FLUSH_SIZE - 1);
+
+          Set<String>  names       = new LinkedHashSet<>(drained);
+          List<String> subscribe   = new LinkedList<>();
+          List<String> unsubscribe = new LinkedList<>();
+
+          for (String name : names) {
+            if (subscriptions.containsKey(name)) subscribe.add(name);
+            else                                 unsubscribe.add(name);
+          }
+
+          pubSubConnection.update(subscribe, unsubscribe);
+        } catch (IOException e) {
+          logger.warn("Subscription update error", e);
+        } catch (InterruptedException e) {
+          logger.warn("Subscription writer interrupted", e);
+        }
+      }
+    }
+  }
 }
@@ -0,0 +1,60 @@
+package com.openchat.dispatch.io;
+
+import java.nio.ByteBuffer;
+
+public class ChannelNameCache {
+
+  private final byte[][] keys;
+  private final String[] values;
+  private final int      mask;
+
+  public ChannelNameCache(int capacity) {
+    int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+
+    this.keys   = new byte[size][];
+    this.values = new String[size];
+    this.mask   = size - 1;
+  }
+
+  public String get(ByteBuffer buffer, int offset, int length) {
+    int    index = hash(buffer, offset, length) & mask;
+    byte[] key   = keys[index];
+
+    if (key != null && matches(key, buffer, offset, length)) {
+      return values[index];
+    }
+
+    byte[] bytes = new byte[length];
+
+    for (int i=0;i<length;i++) {
+      bytes[i] = buffer.get(offset + i);
+    }
+
+    String value = new String(bytes);
+
+    keys[index]   = bytes;
+    values[index] = value;
+
+    return value;
+  }
+
+  private static int hash(ByteBuffer buffer, int offset, int length) {
+    int hash = 1;
+
+    for (int i=0;i<length;i++) {
+      hash = 31 * hash + buffer.get(offset + i);
+    }
+
+    return hash ^ (hash >>> 16);
+  }
+
+  private static boolean matches(byte[] key, ByteBuffer buffer, int offset, int length) {
+    if (key.length != length) return false;
+
+    for (int i=0;i<length;i++) {
+      if (key[i] != buffer.get(offset + i)) return false;
+    }
+
+    return true;
+  }
+}
@@ -0,0 +1,143 @@
+package com.openchat.dispatch.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+public class RedisByteChannelReader {
+
+  private static final byte CR = 0x0D;
+  private static final byte LF = 0x0A;
+
+  private final ReadableByteChannel channel;
+  private final ByteBuffer          buffer;
+
+  public RedisByteChannelReader(ReadableByteChannel channel, int bufferSize) {
+    this.channel = channel;
+    this.buffer  = ByteBuffer.allocateDirect(bufferSize);
+    this.buffer.flip();
+  }
+
+  public int readArrayHeader() throws IOException {
+    return (int)readNumber('*');
+  }
+
+  public int readStringHeader() throws IOException {
+    return (int)readNumber('$');
+  }
+
+  public long readInteger() throws IOException {
+    return readNumber(':');
+  }
+
+  public String readString(ChannelNameCache cache) throws IOException {
+    int length = readStringHeader();
+
+    if (length < 0) {
+      throw new IOException("Unexpected null string reply");
+    }
+
+    if (length + 2 > buffer.capacity()) {
+      return new String(readFully(length));
+    }
+
+    require(length + 2);
+
+    int    position = buffer.position();
+    String value    = cache.get(buffer, position, length);
+
+    buffer.position(position + length);
+    readCrLf();
+
+    return value;
+  }
+
+  public byte[] readString() throws IOException {
+    int length = readStringHeader();
+
+    if (length < 0) {
+      throw new IOException("Unexpected null string reply");
+    }
+
+    return readFully(length);
+  }
+
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  private byte[] readFully(int length) throws IOException {
+    byte[] result = new byte[length];
+    int    offset = 0;
+
+    while (offset < length) {
+      if (!buffer.hasRemaining()) fill();
+
+      int count = Math.min(buffer.remaining(), length - offset);
+      buffer.get(result, offset, count);
+      offset += count;
+    }
+
+    readCrLf();
+    return result;
+  }
+
+  private long readNumber(char type) throws IOException {
+    byte header = readByte();
+
+    if (header != type) {
+      throw new IOException("Invalid reply header, expected " + type + " but got " + (char)header);
+    }
+
+    boolean negative = false;
+    long    value    = 0;
+    byte    current  = readByte();
+
+    if (current == '-') {
+      negative = true;
+      current  = readByte();
+    }
+
+    while (current != CR) {
+      if (current < '0' || current > '9') {
+        throw new IOException("Invalid number in reply header: " + (char)current);
+      }
+
+      value   = value * 10 + (current - '0');
+      current = readByte();
+    }
+
+    if (readByte() != LF) {
+      throw new IOException("Reply header not terminated by CRLF");
+    }
+
+    return negative ? -value : value;
+  }
+
+  private void readCrLf() throws IOException {
+    if (readByte() != CR || readByte() != LF) {
+      throw new IOException("Reply not terminated by CRLF");
+    }
+  }
+
+  private byte readByte() throws IOException {
+    if (!buffer.hasRemaining()) fill();
+    return buffer.get();
+  }
+
+  private void require(int length) throws IOException {
+    while (buffer.remaining() < length) fill();
+  }
+
+  private void fill() throws IOException {
+    buffer.compact();
+
+    try {
+      if (channel.read(buffer) < 0) {
+        throw new IOException("Stream closed!");
+      }
+    } finally {
+      buffer.flip();
+    }
+  }
+}
@@ -0,0 +1,60 @@
+package com.openchat.dispatch.redis;
+
+import com.google.common.base.Optional;
+import com.openchat.dispatch.io.ChannelNameCache;
+import com.openchat.dispatch.io.RedisByteChannelReader;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+
+public class BufferPubSubReplyReader implements PubSubReplyReader {
+
+  private static final String SUBSCRIBE_TYPE   = new String(PubSubReply.SUBSCRIBE_TYPE);
+  private static final String UNSUBSCRIBE_TYPE = new String(PubSubReply.UNSUBSCRIBE_TYPE);
+  private static final String MESSAGE_TYPE     = new String(PubSubReply.MESSAGE_TYPE);
+
+  private final RedisByteChannelReader reader;
+  private final ChannelNameCache       replyTypes;
+  private final ChannelNameCache       channelNames;
+
+  public BufferPubSubReplyReader(ReadableByteChannel channel, int bufferSize, int channelCacheSize) {
+    this.reader       = new RedisByteChannelReader(channel, bufferSize);
+    this.replyTypes   = new ChannelNameCache(16);
+    this.channelNames = new ChannelNameCache(channelCacheSize);
+  }
+
+  @Override
+  public PubSubReply read() throws IOException {
+    int elementCount = reader.readArrayHeader();
+
+    if (elementCount != 3) {
+      throw new IOException("Received array reply header with strange count: " + elementCount);
+    }
+
+    String replyType = reader.readString(replyTypes);
+
+    if      (MESSAGE_TYPE.equals(replyType))     return readMessageReply();
+    else if (SUBSCRIBE_TYPE.equals(replyType))   return readSubscriptionReply(PubSubReply.Type.SUBSCRIBE);
+    else if (UNSUBSCRIBE_TYPE.equals(replyType)) return readSubscriptionReply(PubSubReply.Type.UNSUBSCRIBE);
+    else throw new IOException("Unknown reply type: " + replyType);
+  }
+
+  @Override
+  public void close() throws IOException {
+    reader.close();
+  }
+
+  private PubSubReply readMessageReply() throws IOException {
+    String channelName = reader.readString(channelNames);
+    byte[] message     = reader.readString();
+
+    return new PubSubReply(PubSubReply.Type.MESSAGE, channelName, Optional.of(message));
+  }
+
+  private PubSubReply readSubscriptionReply(PubSubReply.Type type) throws IOException {
+    String channelName = reader.readString(channelNames);
+    reader.readInteger();
+
+    return new PubSubReply(type, channelName, Optional.<byte[]>absent());
+  }
+}
@@ -1,119 +1,109 @@
 package com.openchat.dispatch.redis;
 
-import com.google.common.base.Optional;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import com.openchat.dispatch.io.RedisInputStream;
-import com.openchat.dispatch.redis.protocol.ArrayReplyHeader;
-import com.openchat.dispatch.redis.protocol.IntReply;
-import com.openchat.dispatch.redis.protocol.StringReplyHeader;
 import com.openchat.dispatch.util.Util;
 
-import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.net.Socket;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Collection;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class PubSubConnection {
 
   private final Logger logger = LoggerFactory.getLogger(PubSubConnection.class);
 
-  private static final byte[] UNSUBSCRIBE_TYPE    = {'u', 'n', 's', 'u', 'b', 's', 'c', 'r', 'i', 'b', 'e'     };
-  private static final byte[] SUBSCRIBE_TYPE      = {'s', 'u', 'b', 's', 'c', 'r', 'i', 'b', 'e'               };
-  private static final byte[] MESSAGE_TYPE        = {'m', 'e', 's', 's', 'a', 'g', 'e'                         };
+  private static final int READ_BUFFER_SIZE   = 64 * 1024;
+  private static final int CHANNEL_CACHE_SIZE = 64 * 1024;
 
   private static final byte[] SUBSCRIBE_COMMAND   = {'S', 'U', 'B', 'S', 'C', 'R', 'I', 'B', 'E', ' '          };
   private static final byte[] UNSUBSCRIBE_COMMAND = {'U', 'N', 'S', 'U', 'B', 'S', 'C', 'R', 'I', 'B', 'E', ' '};
   private static final byte[] CRLF                = {'\r', '\n'                                                };
 
-  private final OutputStream     outputStream;
-  private final RedisInputStream inputStream;
-  private final Socket           socket;
-  private final AtomicBoolean    closed;
+  private static final byte[] SUBSCRIBE_NAME      = {'S', 'U', 'B', 'S', 'C', 'R', 'I', 'B', 'E'               };
+  private static final byte[] UNSUBSCRIBE_NAME    = {'U', 'N', 'S', 'U', 'B', 'S', 'C', 'R', 'I', 'B', 'E'     };
 
-  public PubSubConnection(Socket socket) throws IOException {
-    this.socket       = socket;
-    this.outputStream = socket.getOutputStream();
-    this.inputStream  = new RedisInputStream(new BufferedInputStream(socket.getInputStream()));
-    this.closed       = new AtomicBoolean(false);
+  private final SocketChannel     channel;
+  private final PubSubReplyReader replyReader;
+  private final AtomicBoolean     closed;
+
+  public PubSubConnection(SocketChannel channel) throws IOException {
+    this.channel     = channel;
+    this.replyReader = new BufferPubSubReplyReader(channel, READ_BUFFER_SIZE, CHANNEL_CACHE_SIZE);
+    this.closed      = new AtomicBoolean(false);
   }
 
   public void subscribe(String channelName) throws IOException {
     if (closed.get()) throw new IOException("Connection closed!");
 
     byte[] command = Util.combine(SUBSCRIBE_COMMAND, channelName.getBytes(), CRLF);
-    outputStream.write(command);
+    write(command);
   }
 
   public void unsubscribe(String channelName) throws IOException {
     if (closed.get()) throw new IOException("Connection closed!");
 
     byte[] command = Util.combine(UNSUBSCRIBE_COMMAND, channelName.getBytes(), CRLF);
-    outputStream.write(command);
+    write(command);
   }
 
-  public PubSubReply read() throws IOException {
+  public void update(Collection<String> subscribe, Collection<String> unsubscribe) throws IOException {
     if (closed.get()) throw new IOException("Connection closed!");
 
-    ArrayReplyHeader replyHeader = new ArrayReplyHeader(inputStream.readLine());
+    ByteArrayOutputStream command = new ByteArrayOutputStream();
 
-    if (replyHeader.getElementCount() != 3) {
-      throw new IOException("Received array reply header with strange count: " + replyHeader.getElementCount());
-    }
+    if (!subscribe.isEmpty())   writeCommand(command, SUBSCRIBE_NAME, subscribe);
+    if (!unsubscribe.isEmpty()) writeCommand(command, UNSUBSCRIBE_NAME, unsubscribe);
 
-    StringReplyHeader replyTypeHeader = new StringReplyHeader(inputStream.readLine());
-    byte[]            replyType       = inputStream.readFully(replyTypeHeader.getStringLength());
-    inputStream.readLine();
+    if (command.size() > 0) {
+      write(command.toByteArray());
+    }
+  }
 
-    if      (Arrays.equals(SUBSCRIBE_TYPE, replyType))   return readSubscribeReply();
-    else if (Arrays.equals(UNSUBSCRIBE_TYPE, replyType)) return readUnsubscribeReply();
-    else if (Arrays.equals(MESSAGE_TYPE, replyType))     return readMessageReply();
-    else throw new IOException("Unknown reply type: " + new String(replyType));
+  public PubSubReply read() throws IOException {
+    if (closed.get()) throw new IOException("Connection closed!");
+    return replyReader.read();
   }
 
   public void close() {
     try {
       this.closed.set(true);
-      this.inputStream.close();
-      this.outputStream.close();
-      this.socket.close();
+      this.replyReader.close();
+      this.channel.close();
     } catch (IOException e) {
       logger.warn("Exception while closing", e);
     }
   }
 
-  private PubSubReply readMessageReply() throws IOException {
-    StringReplyHeader channelNameHeader = new StringReplyHeader(inputStream.readLine());
-    byte[]            channelName       = inputStream.readFully(channelNameHeader.getStringLength());
-    inputStream.readLine();
+  private void write(byte[] command) throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(command);
 
-    StringReplyHeader messageHeader = new StringReplyHeader(inputStream.readLine());
-    byte[]            message       = inputStream.readFully(messageHeader.getStringLength());
-    inputStream.readLine();
-
-    return new PubSubReply(PubSubReply.Type.MESSAGE, new String(channelName), Optional.of(message));
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
   }
 
-  private PubSubReply readUnsubscribeReply() throws IOException {
-    String channelName = readSubscriptionReply();
-    return new PubSubReply(PubSubReply.Type.UNSUBSCRIBE, channelName, Optional.<byte[]>absent());
-  }
+  private void writeCommand(ByteArrayOutputStream command, byte[] name, Collection<String> arguments) throws IOException {
+    writeHeader(command, '*', arguments.size() + 1);
+    writeBulkString(command, name);
 
-  private PubSubReply readSubscribeReply() throws IOException {
-    String channelName = readSubscriptionReply();
-    return new PubSubReply(PubSubReply.Type.SUBSCRIBE, channelName, Optional.<byte[]>absent());
+    for (String argument : arguments) {
+      writeBulkString(command, argument.getBytes());
+    }
   }
 
-  private String readSubscriptionReply() throws IOException {
-    StringReplyHeader channelNameHeader = new StringReplyHeader(inputStream.readLine());
-    byte[]            channelName       = inputStream.readFully(channelNameHeader.getStringLength());
-    inputStream.readLine();
-
-    IntReply subscriptionCount = new IntReply(inputStream.readLine());
+  private void writeBulkString(ByteArrayOutputStream command, byte[] value) throws IOException {
+    writeHeader(command, '$', value.length);
+    command.write(value);
+    command.write(CRLF);
+  }
 
-    return new String(channelName);
+  private void writeHeader(ByteArrayOutputStream command, char type, int value) throws IOException {
+    command.write(type);
+    command.write(String.valueOf(value).getBytes());
+    command.write(CRLF);
   }
 
 }
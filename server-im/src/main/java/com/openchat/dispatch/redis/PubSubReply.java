@@ -4,6 +4,10 @@ import com.google.common.base.Optional;
 
 public class PubSubReply {
 
+  static final byte[] UNSUBSCRIBE_TYPE = {'u', 'n', 's', 'u', 'b', 's', 'c', 'r', 'i', 'b', 'e'};
+  static final byte[] SUBSCRIBE_TYPE   = {'s', 'u', 'b', 's', 'c', 'r', 'i', 'b', 'e'          };
+  static final byte[] MESSAGE_TYPE     = {'m', 'e', 's', 's', 'a', 'g', 'e'                    };
+
   public enum Type {
     MESSAGE,
     SUBSCRIBE,
@@ -0,0 +1,8 @@
+package com.openchat.dispatch.redis;
+
+import java.io.IOException;
+
+public interface PubSubReplyReader {
+  public PubSubReply read() throws IOException;
+  public void close() throws IOException;
+}
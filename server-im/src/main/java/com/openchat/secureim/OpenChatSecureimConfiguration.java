@@ -1,13 +1,22 @@
 package com.openchat.secureim;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.openchat.secureim.configuration.AccountsCacheConfiguration;
 import com.openchat.secureim.configuration.ApnConfiguration;
+import com.openchat.secureim.configuration.ApnFallbackConfiguration;
 import com.openchat.secureim.configuration.AttachmentsConfiguration;
+import com.openchat.secureim.configuration.AuthenticationConfiguration;
 import com.openchat.secureim.configuration.DirectoryConfiguration;
+import com.openchat.secureim.configuration.DispatchConfiguration;
 import com.openchat.secureim.configuration.FederationConfiguration;
 import com.openchat.secureim.configuration.GcmConfiguration;
+import com.openchat.secureim.configuration.LastSeenConfiguration;
 import com.openchat.secureim.configuration.MaxDeviceConfiguration;
 import com.openchat.secureim.configuration.MessageCacheConfiguration;
+import com.openchat.secureim.configuration.MessageDeliveryConfiguration;
+import com.openchat.secureim.configuration.MessagePartitionConfiguration;
+import com.openchat.secureim.configuration.PreKeysCacheConfiguration;
+import com.openchat.secureim.configuration.PresenceConfiguration;
 import com.openchat.secureim.configuration.ProfilesConfiguration;
 import com.openchat.secureim.configuration.PushConfiguration;
 import com.openchat.secureim.configuration.RateLimitsConfiguration;
@@ -97,6 +106,51 @@ public class OpenChatSecureimConfiguration extends Configuration {
   @JsonProperty
   private DataSourceFactory read_database;
 
+  @Valid
+  @NotNull
+  @JsonProperty
+  private AccountsCacheConfiguration accountsCache = new AccountsCacheConfiguration();
+
+  @Valid
+  @NotNull
+  @JsonProperty
+  private AuthenticationConfiguration authentication = new AuthenticationConfiguration();
+
+  @Valid
+  @NotNull
+  @JsonProperty
+  private LastSeenConfiguration lastSeen = new LastSeenConfiguration();
+
+  @Valid
+  @NotNull
+  @JsonProperty
+  private PresenceConfiguration presence = new PresenceConfiguration();
+
+  @Valid
+  @NotNull
+  @JsonProperty
+  private ApnFallbackConfiguration apnFallback = new ApnFallbackConfiguration();
+
+  @Valid
+  @NotNull
+  @JsonProperty
+  private MessagePartitionConfiguration messagePartitions = new MessagePartitionConfiguration();
+
+  @Valid
+  @NotNull
+  @JsonProperty
+  private PreKeysCacheConfiguration preKeysCache = new PreKeysCacheConfiguration();
+
+  @Valid
+  @NotNull
+  @JsonProperty
+  private MessageDeliveryConfiguration messageDelivery = new MessageDeliveryConfiguration();
+
+  @Valid
+  @NotNull
+  @JsonProperty
+  private DispatchConfiguration dispatch = new DispatchConfiguration();
+
   @Valid
   @NotNull
   @JsonProperty
@@ -163,6 +217,42 @@ public class OpenChatSecureimConfiguration extends Configuration {
     return pushScheduler;
   }
 
+  public AccountsCacheConfiguration getAccountsCacheConfiguration() {
+    return accountsCache;
+  }
+
+  public AuthenticationConfiguration getAuthenticationConfiguration() {
+    return authentication;
+  }
+
+  public LastSeenConfiguration getLastSeenConfiguration() {
+    return lastSeen;
+  }
+
+  public PresenceConfiguration getPresenceConfiguration() {
+    return presence;
+  }
+
+  public ApnFallbackConfiguration getApnFallbackConfiguration() {
+    return apnFallback;
+  }
+
+  public MessagePartitionConfiguration getMessagePartitionConfiguration() {
+    return messagePartitions;
+  }
+
+  public PreKeysCacheConfiguration getPreKeysCacheConfiguration() {
+    return preKeysCache;
+  }
+
+  public MessageDeliveryConfiguration getMessageDeliveryConfiguration() {
+    return messageDelivery;
+  }
+
+  public DispatchConfiguration getDispatchConfiguration() {
+    return dispatch;
+  }
+
   public DataSourceFactory getMessageStoreConfiguration() {
     return messageStore;
   }
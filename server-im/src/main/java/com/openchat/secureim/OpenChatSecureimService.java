@@ -1,5 +1,6 @@
 package com.openchat.secureim;
 
+import com.codahale.metrics.Gauge;
 import com.codahale.metrics.SharedMetricRegistries;
 import com.fasterxml.jackson.annotation.JsonAutoDetect;
 import com.fasterxml.jackson.annotation.PropertyAccessor;
@@ -16,6 +17,7 @@ import com.openchat.secureim.auth.AccountAuthenticator;
 import com.openchat.secureim.auth.DirectoryCredentialsGenerator;
 import com.openchat.secureim.auth.FederatedPeerAuthenticator;
 import com.openchat.secureim.auth.TurnTokenGenerator;
+import com.openchat.secureim.configuration.MessageCacheShardConfiguration;
 import com.openchat.secureim.controllers.AccountController;
 import com.openchat.secureim.controllers.AttachmentController;
 import com.openchat.secureim.controllers.DeviceController;
@@ -57,7 +59,10 @@ import com.openchat.secureim.storage.*;
 import com.openchat.secureim.util.Constants;
 import com.openchat.secureim.websocket.AuthenticatedConnectListener;
 import com.openchat.secureim.websocket.DeadLetterHandler;
+import com.openchat.secureim.websocket.KeepAliveRequestHandler;
+import com.openchat.secureim.websocket.PresenceManager;
 import com.openchat.secureim.websocket.ProvisioningConnectListener;
+import com.openchat.secureim.websocket.SendMessageRequestHandler;
 import com.openchat.secureim.websocket.WebSocketAccountAuthenticator;
 import com.openchat.secureim.workers.DeleteUserCommand;
 import com.openchat.secureim.workers.DirectoryCommand;
@@ -72,6 +77,14 @@ import javax.servlet.FilterRegistration;
 import javax.servlet.ServletRegistration;
 import java.security.Security;
 import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import static com.codahale.metrics.MetricRegistry.name;
 import io.dropwizard.Application;
@@ -106,6 +119,13 @@ public class OpenChatSecureimService extends Application<OpenChatSecureimConfigu
         return configuration.getMessageStoreConfiguration();
       }
     });
+
+    bootstrap.addBundle(new NameableMigrationsBundle<OpenChatSecureimConfiguration>("messagedbpartitions", "messagedb-partitions.xml") {
+      @Override
+      public DataSourceFactory getDataSourceFactory(OpenChatSecureimConfiguration configuration) {
+        return configuration.getMessageStoreConfiguration();
+      }
+    });
   }
 
   @Override
@@ -132,40 +152,103 @@ public class OpenChatSecureimService extends Application<OpenChatSecureimConfigu
     Keys            keys            = database.onDemand(Keys.class);
     Messages        messages        = messagedb.onDemand(Messages.class);
 
-    RedisClientFactory cacheClientFactory         = new RedisClientFactory(config.getCacheConfiguration().getUrl(), config.getCacheConfiguration().getReplicaUrls()                                                              );
-    RedisClientFactory directoryClientFactory     = new RedisClientFactory(config.getDirectoryConfiguration().getRedisConfiguration().getUrl(), config.getDirectoryConfiguration().getRedisConfiguration().getReplicaUrls()      );
-    RedisClientFactory messagesClientFactory      = new RedisClientFactory(config.getMessageCacheConfiguration().getRedisConfiguration().getUrl(), config.getMessageCacheConfiguration().getRedisConfiguration().getReplicaUrls());
-    RedisClientFactory pushSchedulerClientFactory = new RedisClientFactory(config.getPushScheduler().getUrl(), config.getPushScheduler().getReplicaUrls()                                                                        );
+    RedisClientFactory cacheClientFactory         = new RedisClientFactory("cache",         config.getCacheConfiguration()                           );
+    RedisClientFactory directoryClientFactory     = new RedisClientFactory("directory",     config.getDirectoryConfiguration().getRedisConfiguration());
+    RedisClientFactory pushSchedulerClientFactory = new RedisClientFactory("pushScheduler", config.getPushScheduler()                                );
 
     ReplicatedJedisPool cacheClient         = cacheClientFactory.getRedisClientPool();
     ReplicatedJedisPool directoryClient     = directoryClientFactory.getRedisClientPool();
-    ReplicatedJedisPool messagesClient      = messagesClientFactory.getRedisClientPool();
     ReplicatedJedisPool pushSchedulerClient = pushSchedulerClientFactory.getRedisClientPool();
 
-    DirectoryManager           directory                  = new DirectoryManager(directoryClient);
+    Map<String, ReplicatedJedisPool> messagesShards         = new LinkedHashMap<>();
+    Set<String>                      messagesDrainingShards = new HashSet<>();
+
+    for (MessageCacheShardConfiguration shard : config.getMessageCacheConfiguration().getShards()) {
+      messagesShards.put(shard.getName(), new RedisClientFactory("messages_" + shard.getName(), shard.getRedisConfiguration()).getRedisClientPool());
+
+      if (shard.isDraining()) {
+        messagesDrainingShards.add(shard.getName());
+      }
+    }
+
+    Optional<LocalAccountsCache> localAccountsCache = Optional.absent();
+
+    if (config.getAccountsCacheConfiguration().isEnabled()) {
+      localAccountsCache = Optional.of(new LocalAccountsCache(config.getAccountsCacheConfiguration().getMaxSizeBytes(),
+                                                              config.getAccountsCacheConfiguration().getTtlSeconds()));
+    }
+
+    Optional<PreKeysCache> preKeysCache = Optional.absent();
+
+    if (config.getPreKeysCacheConfiguration().isEnabled()) {
+      preKeysCache = Optional.of(new PreKeysCache(cacheClient, keys));
+    }
+
+    Optional<PresenceManager> presenceManager = Optional.absent();
+
+    if (config.getPresenceConfiguration().isEnabled()) {
+      presenceManager = Optional.of(new PresenceManager(cacheClient, TimeUnit.SECONDS.toMillis(config.getPresenceConfiguration().getTtlSeconds())));
+    }
+
+    Optional<DirectoryIndex> directoryIndex = Optional.absent();
+
+    if (config.getDirectoryConfiguration().getDirectoryIndexConfiguration().isEnabled()) {
+      directoryIndex = Optional.of(new DirectoryIndex(directoryClient,
+                                                      config.getDirectoryConfiguration().getDirectoryIndexConfiguration().getInitialCapacity(),
+                                                      config.getDirectoryConfiguration().getDirectoryIndexConfiguration().getReloadIntervalMinutes()));
+    }
+
+    DirectoryManager           directory                  = new DirectoryManager(directoryClient, directoryIndex);
     DirectoryQueue             directoryQueue             = new DirectoryQueue(config.getDirectoryConfiguration().getSqsConfiguration());
     PendingAccountsManager     pendingAccountsManager     = new PendingAccountsManager(pendingAccounts, cacheClient);
     PendingDevicesManager      pendingDevicesManager      = new PendingDevicesManager (pendingDevices, cacheClient );
-    AccountsManager            accountsManager            = new AccountsManager(accounts, directory, cacheClient);
+    AccountsManager            accountsManager            = new AccountsManager(accounts, directory, cacheClient, localAccountsCache, config.getAccountsCacheConfiguration().isBinaryRedisEntries());
+    KeysManager                keysManager                = new KeysManager(keys, preKeysCache);
     FederatedClientManager     federatedClientManager     = new FederatedClientManager(environment, config.getJerseyClientConfiguration(), config.getFederationConfiguration());
-    MessagesCache              messagesCache              = new MessagesCache(messagesClient, messages, accountsManager, config.getMessageCacheConfiguration().getPersistDelayMinutes());
+    MessagesCache              messagesCache              = new MessagesCache(messagesShards, messagesDrainingShards, messages, accountsManager,
+                                                                                  config.getMessageCacheConfiguration().getPersistDelayMinutes(),
+                                                                                  config.getMessageCacheConfiguration().isBatchPersist(),
+                                                                                  config.getMessageCacheConfiguration().getPersistBatchSize(),
+                                                                                  config.getMessageCacheConfiguration().getPersistWorkers());
     MessagesManager            messagesManager            = new MessagesManager(messages, messagesCache);
-    DeadLetterHandler          deadLetterHandler          = new DeadLetterHandler(messagesManager);
-    DispatchManager            dispatchManager            = new DispatchManager(cacheClientFactory, Optional.of(deadLetterHandler));
-    PubSubManager              pubSubManager              = new PubSubManager(cacheClient, dispatchManager);
+    DeadLetterHandler          deadLetterHandler          = new DeadLetterHandler(messagesManager,
+                                                                                    config.getDispatchConfiguration().getDeadLetterQueueSize(),
+                                                                                    config.getDispatchConfiguration().getDeadLetterBatchSize());
+    DispatchManager            dispatchManager            = new DispatchManager(cacheClientFactory, Optional.of(deadLetterHandler),
+                                                                                    config.getDispatchConfiguration().getConnections(),
+                                                                                    config.getDispatchConfiguration().getThreads(),
+                                                                                    config.getDispatchConfiguration().getQueueSize());
+    PubSubManager              pubSubManager              = new PubSubManager(cacheClient, dispatchManager, presenceManager,
+                                                                                  config.getPresenceConfiguration().isDeviceChannels(),
+                                                                                  Optional.of(deadLetterHandler));
     APNSender                  apnSender                  = new APNSender(accountsManager, config.getApnConfiguration());
-    GCMSender                  gcmSender                  = new GCMSender(accountsManager, config.getGcmConfiguration().getApiKey(), directoryQueue);
+    GCMSender                  gcmSender                  = new GCMSender(accountsManager, config.getGcmConfiguration(), directoryQueue);
     WebsocketSender            websocketSender            = new WebsocketSender(messagesManager, pubSubManager);
-    AccountAuthenticator       deviceAuthenticator        = new AccountAuthenticator(accountsManager                 );
     FederatedPeerAuthenticator federatedPeerAuthenticator = new FederatedPeerAuthenticator(config.getFederationConfiguration());
     RateLimiters               rateLimiters               = new RateLimiters(config.getLimitsConfiguration(), cacheClient);
 
-    ApnFallbackManager       apnFallbackManager  = new ApnFallbackManager(pushSchedulerClient, apnSender, accountsManager);
+    Optional<LastSeenTracker> lastSeenTracker = Optional.absent();
+
+    if (config.getLastSeenConfiguration().isWriteBehind()) {
+      lastSeenTracker = Optional.of(new LastSeenTracker(accountsManager,
+                                                        config.getLastSeenConfiguration().getBatchSize(),
+                                                        TimeUnit.SECONDS.toMillis(config.getLastSeenConfiguration().getFlushIntervalSeconds()),
+                                                        config.getLastSeenConfiguration().getMaxPending()));
+    }
+
+    AccountAuthenticator deviceAuthenticator = new AccountAuthenticator(accountsManager,
+                                                                        config.getAuthenticationConfiguration().isUpgradeCredentials(),
+                                                                        lastSeenTracker);
+
+    ApnFallbackManager       apnFallbackManager  = new ApnFallbackManager(pushSchedulerClient, apnSender, accountsManager, config.getApnFallbackConfiguration());
     TwilioSmsSender          twilioSmsSender     = new TwilioSmsSender(config.getTwilioConfiguration());
     SmsSender                smsSender           = new SmsSender(twilioSmsSender);
     UrlSigner                urlSigner           = new UrlSigner(config.getAttachmentsConfiguration());
-    PushSender               pushSender          = new PushSender(apnFallbackManager, gcmSender, apnSender, websocketSender, config.getPushConfiguration().getQueueSize());
-    ReceiptSender            receiptSender       = new ReceiptSender(accountsManager, pushSender, federatedClientManager);
+    PushSender               pushSender          = new PushSender(apnFallbackManager, gcmSender, apnSender, websocketSender, config.getPushConfiguration().getQueueSize(), config.getPushConfiguration().getCoalesceWindowMillis());
+    ReceiptSender            receiptSender       = new ReceiptSender(accountsManager, pushSender, federatedClientManager,
+                                                                     config.getPushConfiguration().getReceiptBatchWindowMillis(),
+                                                                     config.getPushConfiguration().getReceiptBatchSize(),
+                                                                     config.getPushConfiguration().getReceiptMaxPending());
     TurnTokenGenerator       turnTokenGenerator  = new TurnTokenGenerator(config.getTurnConfiguration());
 
     DirectoryCredentialsGenerator directoryCredentialsGenerator = new DirectoryCredentialsGenerator(config.getDirectoryConfiguration().getDirectoryClientConfiguration().getUserAuthenticationTokenSharedSecret(),
@@ -178,16 +261,50 @@ public class OpenChatSecureimService extends Application<OpenChatSecureimConfigu
 
     messagesCache.setPubSubManager(pubSubManager, pushSender);
 
+    if (localAccountsCache.isPresent()) {
+      localAccountsCache.get().setPubSubManager(pubSubManager);
+    }
+
+    if (directoryIndex.isPresent()) {
+      directoryIndex.get().setPubSubManager(pubSubManager);
+    }
+
     apnSender.setApnFallbackManager(apnFallbackManager);
     environment.lifecycle().manage(apnFallbackManager);
+    environment.lifecycle().manage(deadLetterHandler);
     environment.lifecycle().manage(pubSubManager);
+
+    if (localAccountsCache.isPresent()) {
+      environment.lifecycle().manage(localAccountsCache.get());
+    }
+
+    if (directoryIndex.isPresent()) {
+      environment.lifecycle().manage(directoryIndex.get());
+    }
+
+    if (lastSeenTracker.isPresent()) {
+      environment.lifecycle().manage(lastSeenTracker.get());
+    }
+
     environment.lifecycle().manage(pushSender);
+    environment.lifecycle().manage(receiptSender);
     environment.lifecycle().manage(messagesCache);
+
+    Optional<MessagePartitionManager> messagePartitionManager = Optional.absent();
+
+    if (config.getMessagePartitionConfiguration().isEnabled()) {
+      messagePartitionManager = Optional.of(new MessagePartitionManager(messagedb,
+                                                                        config.getMessagePartitionConfiguration().getPrecreateDays(),
+                                                                        config.getMessagePartitionConfiguration().getRetentionDays(),
+                                                                        config.getMessagePartitionConfiguration().getMaintenanceIntervalMinutes()));
+      environment.lifecycle().manage(messagePartitionManager.get());
+    }
+
     environment.lifecycle().manage(directoryReconciler);
 
     AttachmentController attachmentController = new AttachmentController(rateLimiters, federatedClientManager, urlSigner);
-    KeysController       keysController       = new KeysController(rateLimiters, keys, accountsManager, federatedClientManager);
-    MessageController    messageController    = new MessageController(rateLimiters, pushSender, receiptSender, accountsManager, messagesManager, federatedClientManager, apnFallbackManager);
+    KeysController       keysController       = new KeysController(rateLimiters, keysManager, accountsManager, federatedClientManager);
+    MessageController    messageController    = new MessageController(rateLimiters, pushSender, receiptSender, accountsManager, messagesManager, federatedClientManager, apnFallbackManager, messagePartitionManager);
     ProfileController    profileController    = new ProfileController(rateLimiters , accountsManager, config.getProfilesConfiguration());
 
     environment.jersey().register(new AuthDynamicFeature(new BasicCredentialAuthFilter.Builder<Account>()
@@ -214,14 +331,36 @@ public class OpenChatSecureimService extends Application<OpenChatSecureimConfigu
     ///
     WebSocketEnvironment webSocketEnvironment = new WebSocketEnvironment(environment, config.getWebSocketConfiguration(), 90000);
     webSocketEnvironment.setAuthenticator(new WebSocketAccountAuthenticator(deviceAuthenticator));
-    webSocketEnvironment.setConnectListener(new AuthenticatedConnectListener(pushSender, receiptSender, messagesManager, pubSubManager, apnFallbackManager));
-    webSocketEnvironment.jersey().register(new KeepAliveController(pubSubManager));
+    webSocketEnvironment.setConnectListener(new AuthenticatedConnectListener(pushSender, receiptSender, messagesManager, pubSubManager, apnFallbackManager,
+                                                                             config.getMessageDeliveryConfiguration().getMaxInFlight(),
+                                                                             config.getMessageDeliveryConfiguration().getDeleteBatchSize()));
+    KeepAliveController keepAliveController = new KeepAliveController(pubSubManager);
+
+    webSocketEnvironment.jersey().register(keepAliveController);
     webSocketEnvironment.jersey().register(messageController);
     webSocketEnvironment.jersey().register(profileController);
 
     WebSocketEnvironment provisioningEnvironment = new WebSocketEnvironment(environment, webSocketEnvironment.getRequestLog(), 60000);
     provisioningEnvironment.setConnectListener(new ProvisioningConnectListener(pubSubManager));
-    provisioningEnvironment.jersey().register(new KeepAliveController(pubSubManager));
+    provisioningEnvironment.jersey().register(keepAliveController);
+
+    ExecutorService webSocketRequestExecutor = environment.lifecycle().executorService("websocket-request-%d")
+                                                          .minThreads(config.getWebSocketConfiguration().getRequestThreads())
+                                                          .maxThreads(config.getWebSocketConfiguration().getRequestThreads())
+                                                          .workQueue(new ArrayBlockingQueue<>(config.getWebSocketConfiguration().getRequestQueueSize()))
+                                                          .rejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy())
+                                                          .build();
+
+    webSocketEnvironment.setRequestExecutor(webSocketRequestExecutor);
+    webSocketEnvironment.setMaxQueuedRequests(config.getWebSocketConfiguration().getConnectionRequestQueueSize());
+    provisioningEnvironment.setRequestExecutor(webSocketRequestExecutor);
+    provisioningEnvironment.setMaxQueuedRequests(config.getWebSocketConfiguration().getConnectionRequestQueueSize());
+
+    if (config.getWebSocketConfiguration().isFastPathEnabled()) {
+      webSocketEnvironment.router().register("GET", "/v1/keepalive", new KeepAliveRequestHandler(keepAliveController));
+      webSocketEnvironment.router().register("PUT", "/v1/messages/{destination}", new SendMessageRequestHandler(messageController, environment.getObjectMapper(), environment.getValidator()));
+      provisioningEnvironment.router().register("GET", "/v1/keepalive/provisioning", (context, request, parameters) -> Optional.of(keepAliveController.getProvisioningKeepAlive()));
+    }
 
     WebSocketResourceProviderFactory webSocketServlet    = new WebSocketResourceProviderFactory(webSocketEnvironment   );
     WebSocketResourceProviderFactory provisioningServlet = new WebSocketResourceProviderFactory(provisioningEnvironment);
@@ -250,6 +389,10 @@ public class OpenChatSecureimService extends Application<OpenChatSecureimConfigu
     environment.healthChecks().register("directory", new RedisHealthCheck(directoryClient));
     environment.healthChecks().register("cache", new RedisHealthCheck(cacheClient));
 
+    for (Map.Entry<String, ReplicatedJedisPool> shard : messagesShards.entrySet()) {
+      environment.healthChecks().register("messages_" + shard.getKey(), new RedisHealthCheck(shard.getValue()));
+    }
+
     environment.jersey().register(new IOExceptionMapper());
     environment.jersey().register(new RateLimitExceededExceptionMapper());
     environment.jersey().register(new InvalidWebsocketAddressExceptionMapper());
@@ -260,6 +403,7 @@ public class OpenChatSecureimService extends Application<OpenChatSecureimConfigu
     environment.metrics().register(name(NetworkSentGauge.class, "bytes_sent"), new NetworkSentGauge());
     environment.metrics().register(name(NetworkReceivedGauge.class, "bytes_received"), new NetworkReceivedGauge());
     environment.metrics().register(name(FileDescriptorGauge.class, "fd_count"), new FileDescriptorGauge());
+    environment.metrics().register(name(DispatchManager.class, "overflows"), (Gauge<Long>) dispatchManager::getOverflowCount);
   }
 
   public static void main(String[] args) throws Exception {
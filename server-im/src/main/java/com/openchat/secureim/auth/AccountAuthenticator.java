@@ -10,6 +10,7 @@ import com.openchat.dropwizard.simpleauth.Authenticator;
 import com.openchat.secureim.storage.Account;
 import com.openchat.secureim.storage.AccountsManager;
 import com.openchat.secureim.storage.Device;
+import com.openchat.secureim.storage.LastSeenTracker;
 import com.openchat.secureim.util.Constants;
 import com.openchat.secureim.util.Util;
 
@@ -22,13 +23,25 @@ public class AccountAuthenticator implements Authenticator<BasicCredentials, Acc
   private final MetricRegistry metricRegistry               = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
   private final Meter          authenticationFailedMeter    = metricRegistry.meter(name(getClass(), "authentication", "failed"   ));
   private final Meter          authenticationSucceededMeter = metricRegistry.meter(name(getClass(), "authentication", "succeeded"));
+  private final Meter          credentialsUpgradedMeter     = metricRegistry.meter(name(getClass(), "credentials", "upgraded"    ));
 
   private final Logger logger = LoggerFactory.getLogger(AccountAuthenticator.class);
 
-  private final AccountsManager accountsManager;
+  private final AccountsManager           accountsManager;
+  private final boolean                   upgradeCredentials;
+  private final Optional<LastSeenTracker> lastSeenTracker;
 
   public AccountAuthenticator(AccountsManager accountsManager) {
-    this.accountsManager = accountsManager;
+    this(accountsManager, false, Optional.<LastSeenTracker>absent());
+  }
+
+  public AccountAuthenticator(AccountsManager accountsManager,
+                              boolean upgradeCredentials,
+                              Optional<LastSeenTracker> lastSeenTracker)
+  {
+    this.accountsManager    = accountsManager;
+    this.upgradeCredentials = upgradeCredentials;
+    this.lastSeenTracker    = lastSeenTracker;
   }
 
   @Override
@@ -49,10 +62,21 @@ public class AccountAuthenticator implements Authenticator<BasicCredentials, Acc
         return Optional.absent();
       }
 
-      if (device.get().getAuthenticationCredentials().verify(basicCredentials.getPassword())) {
+      String                    password    = basicCredentials.getPassword();
+      AuthenticationCredentials credentials = device.get().getAuthenticationCredentials();
+
+      if (credentials.verify(password)) {
+        boolean upgraded = upgradeCredentials && credentials.getAlgorithm() != AuthenticationCredentials.Algorithm.CURRENT;
+
+        if (upgraded) {
+          credentials = new AuthenticationCredentials(password, AuthenticationCredentials.Algorithm.CURRENT);
+          device.get().setAuthenticationCredentials(credentials);
+          credentialsUpgradedMeter.mark();
+        }
+
         authenticationSucceededMeter.mark();
         account.get().setAuthenticatedDevice(device.get());
-        updateLastSeen(account.get(), device.get());
+        update(account.get(), device.get(), upgraded);
         return account;
       }
 
@@ -63,10 +87,17 @@ public class AccountAuthenticator implements Authenticator<BasicCredentials, Acc
     }
   }
 
-  private void updateLastSeen(Account account, Device device) {
-    if (device.getLastSeen() != Util.todayInMillis()) {
+  private void update(Account account, Device device, boolean credentialsUpgraded) {
+    boolean lastSeenChanged = device.getLastSeen() != Util.todayInMillis();
+
+    if (lastSeenChanged) {
       device.setLastSeen(Util.todayInMillis());
+    }
+
+    if (credentialsUpgraded || (lastSeenChanged && !lastSeenTracker.isPresent())) {
       accountsManager.update(account);
+    } else if (lastSeenChanged) {
+      lastSeenTracker.get().record(account.getNumber(), device.getId(), device.getLastSeen());
     }
   }
 
@@ -1,17 +1,91 @@
 package com.openchat.secureim.auth;
 
 import org.apache.commons.codec.binary.Hex;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
-import java.io.UnsupportedEncodingException;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 
+/**
+ * A device's salted, hashed authentication token.
+ *
+ * The stored hash is prefixed with the algorithm that produced it, apart from
+ * the original unprefixed SHA1, so credentials hashed with an older algorithm
+ * keep verifying and can be rehashed with {@link Algorithm#CURRENT} the next
+ * time the plaintext token is presented.
+ */
 public class AuthenticationCredentials {
 
-  private final Logger logger = LoggerFactory.getLogger(AuthenticationCredentials.class);
+  public enum Algorithm {
+
+    SHA1("") {
+      @Override
+      byte[] hash(String salt, String token) {
+        MessageDigest digest = sha1.get();
+        digest.reset();
+        digest.update(salt.getBytes(StandardCharsets.UTF_8));
+        return digest.digest(token.getBytes(StandardCharsets.UTF_8));
+      }
+    },
+
+    HMAC_SHA256("v2:") {
+      @Override
+      byte[] hash(String salt, String token) {
+        try {
+          Mac mac = hmacSha256.get();
+          mac.init(new SecretKeySpec(salt.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+          return mac.doFinal(token.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+          throw new AssertionError(e);
+        }
+      }
+    };
+
+    public static final Algorithm CURRENT = HMAC_SHA256;
+
+    private final String prefix;
+
+    Algorithm(String prefix) {
+      this.prefix = prefix;
+    }
+
+    abstract byte[] hash(String salt, String token);
+
+    static Algorithm forHash(String hashedAuthenticationToken) {
+      for (Algorithm algorithm : values()) {
+        if (!algorithm.prefix.isEmpty() && hashedAuthenticationToken.startsWith(algorithm.prefix)) {
+          return algorithm;
+        }
+      }
+
+      return SHA1;
+    }
+  }
+
+  private static final ThreadLocal<MessageDigest> sha1 = new ThreadLocal<MessageDigest>() {
+    @Override
+    protected MessageDigest initialValue() {
+      try {
+        return MessageDigest.getInstance("SHA1");
+      } catch (GeneralSecurityException e) {
+        throw new AssertionError(e);
+      }
+    }
+  };
+
+  private static final ThreadLocal<Mac> hmacSha256 = new ThreadLocal<Mac>() {
+    @Override
+    protected Mac initialValue() {
+      try {
+        return Mac.getInstance("HmacSHA256");
+      } catch (GeneralSecurityException e) {
+        throw new AssertionError(e);
+      }
+    }
+  };
 
   private final String hashedAuthenticationToken;
   private final String salt;
@@ -22,8 +96,12 @@ public class AuthenticationCredentials {
   }
 
   public AuthenticationCredentials(String authenticationToken) {
+    this(authenticationToken, Algorithm.SHA1);
+  }
+
+  public AuthenticationCredentials(String authenticationToken, Algorithm algorithm) {
     this.salt                      = Math.abs(new SecureRandom().nextInt()) + "";
-    this.hashedAuthenticationToken = getHashedValue(salt, authenticationToken);
+    this.hashedAuthenticationToken = algorithm.prefix + new String(Hex.encodeHex(algorithm.hash(salt, authenticationToken)));
   }
 
   public String getHashedAuthenticationToken() {
@@ -34,23 +112,41 @@ public class AuthenticationCredentials {
     return salt;
   }
 
-  public boolean verify(String authenticationToken) {
-    String theirValue = getHashedValue(salt, authenticationToken);
+  public Algorithm getAlgorithm() {
+    return Algorithm.forHash(hashedAuthenticationToken);
+  }
 
-    logger.debug("Comparing: " + theirValue + " , " + this.hashedAuthenticationToken);
+  public boolean verify(String authenticationToken) {
+    Algorithm algorithm  = getAlgorithm();
+    byte[]    theirValue = algorithm.hash(salt, authenticationToken);
 
-    return theirValue.equals(this.hashedAuthenticationToken);
+    return isEqualHex(hashedAuthenticationToken, algorithm.prefix.length(), theirValue);
   }
 
-  private static String getHashedValue(String salt, String token) {
-    Logger logger = LoggerFactory.getLogger(AuthenticationCredentials.class);
-    logger.debug("Getting hashed token: " + salt + " , " + token);
+  /**
+   * Compares the hex encoded suffix of {@code hex} starting at {@code offset}
+   * with {@code value} in constant time, without decoding the stored hash
+   * into a temporary array first.
+   */
+  private static boolean isEqualHex(String hex, int offset, byte[] value) {
+    if (hex.length() - offset != value.length * 2) {
+      return false;
+    }
+
+    int result = 0;
 
-    try {
-      return new String(Hex.encodeHex(MessageDigest.getInstance("SHA1").digest((salt + token).getBytes("UTF-8"))));
-    } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
-      throw new AssertionError(e);
+    for (int i=0;i<value.length;i++) {
+      int high = Character.digit(hex.charAt(offset + i * 2), 16);
+      int low  = Character.digit(hex.charAt(offset + i * 2 + 1), 16);
+
+      if (high < 0 || low < 0) {
+        return false;
+      }
+
+      result |= ((high << 4) | low) ^ (value[i] & 0xff);
     }
+
+    return result == 0;
   }
 
 }
@@ -0,0 +1,39 @@
+package com.openchat.secureim.configuration;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import javax.validation.constraints.Min;
+
+public class AccountsCacheConfiguration {
+
+  @JsonProperty
+  private boolean enabled = true;
+
+  @JsonProperty
+  @Min(1)
+  private long maxSizeBytes = 64 * 1024 * 1024;
+
+  @JsonProperty
+  @Min(1)
+  private int ttlSeconds = 60;
+
+  // Only once every server can decode binary entries.
+  @JsonProperty
+  private boolean binaryRedisEntries = false;
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  public long getMaxSizeBytes() {
+    return maxSizeBytes;
+  }
+
+  public int getTtlSeconds() {
+    return ttlSeconds;
+  }
+
+  public boolean isBinaryRedisEntries() {
+    return binaryRedisEntries;
+  }
+}
@@ -0,0 +1,48 @@
+package com.openchat.secureim.configuration;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import javax.validation.constraints.Min;
+
+public class ApnFallbackConfiguration {
+
+  @JsonProperty
+  @Min(1)
+  private int shards = 64;
+
+  @JsonProperty
+  @Min(1)
+  private long tickMillis = 100;
+
+  @JsonProperty
+  @Min(100)
+  private long refreshMillis = 5000;
+
+  @JsonProperty
+  @Min(1)
+  private int workers = 8;
+
+  @JsonProperty
+  @Min(1)
+  private int loadLimit = 10000;
+
+  public int getShards() {
+    return shards;
+  }
+
+  public long getTickMillis() {
+    return tickMillis;
+  }
+
+  public long getRefreshMillis() {
+    return refreshMillis;
+  }
+
+  public int getWorkers() {
+    return workers;
+  }
+
+  public int getLoadLimit() {
+    return loadLimit;
+  }
+}
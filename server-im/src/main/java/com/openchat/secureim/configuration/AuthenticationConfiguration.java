@@ -0,0 +1,18 @@
+package com.openchat.secureim.configuration;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+public class AuthenticationConfiguration {
+
+  /**
+   * Rehash credentials with the current algorithm on successful login.  Only
+   * enable once every server in the deployment can verify the current
+   * algorithm, since upgraded credentials can't be verified by older ones.
+   */
+  @JsonProperty
+  private boolean upgradeCredentials = false;
+
+  public boolean isUpgradeCredentials() {
+    return upgradeCredentials;
+  }
+}
@@ -27,6 +27,11 @@ public class DirectoryConfiguration {
   @Valid
   private DirectoryServerConfiguration server;
 
+  @JsonProperty
+  @NotNull
+  @Valid
+  private DirectoryIndexConfiguration index = new DirectoryIndexConfiguration();
+
   public RedisConfiguration getRedisConfiguration() {
     return redis;
   }
@@ -43,4 +48,8 @@ public class DirectoryConfiguration {
     return server;
   }
 
+  public DirectoryIndexConfiguration getDirectoryIndexConfiguration() {
+    return index;
+  }
+
 }
@@ -0,0 +1,31 @@
+package com.openchat.secureim.configuration;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import javax.validation.constraints.Min;
+
+public class DirectoryIndexConfiguration {
+
+  @JsonProperty
+  private boolean enabled = false;
+
+  @JsonProperty
+  @Min(16)
+  private int initialCapacity = 1024 * 1024;
+
+  @JsonProperty
+  @Min(1)
+  private int reloadIntervalMinutes = 60;
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  public int getInitialCapacity() {
+    return initialCapacity;
+  }
+
+  public int getReloadIntervalMinutes() {
+    return reloadIntervalMinutes;
+  }
+}
@@ -0,0 +1,48 @@
+package com.openchat.secureim.configuration;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import javax.validation.constraints.Min;
+
+public class DispatchConfiguration {
+
+  @JsonProperty
+  @Min(1)
+  private int connections = 1;
+
+  @JsonProperty
+  @Min(1)
+  private int threads = 16;
+
+  @JsonProperty
+  @Min(1)
+  private int queueSize = 1024;
+
+  @JsonProperty
+  @Min(1)
+  private int deadLetterQueueSize = 100000;
+
+  @JsonProperty
+  @Min(1)
+  private int deadLetterBatchSize = 1000;
+
+  public int getConnections() {
+    return connections;
+  }
+
+  public int getThreads() {
+    return threads;
+  }
+
+  public int getQueueSize() {
+    return queueSize;
+  }
+
+  public int getDeadLetterQueueSize() {
+    return deadLetterQueueSize;
+  }
+
+  public int getDeadLetterBatchSize() {
+    return deadLetterBatchSize;
+  }
+}
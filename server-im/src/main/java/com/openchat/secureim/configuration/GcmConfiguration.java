@@ -3,6 +3,8 @@ package com.openchat.secureim.configuration;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import org.hibernate.validator.constraints.NotEmpty;
 
+import javax.validation.constraints.Max;
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
 
 public class GcmConfiguration {
@@ -15,6 +17,19 @@ public class GcmConfiguration {
   @JsonProperty
   private String apiKey;
 
+  @JsonProperty
+  @Min(1)
+  @Max(1000)
+  private int multicastSize = 1;
+
+  @JsonProperty
+  @Min(0)
+  private long multicastDelayMillis = 10;
+
+  @JsonProperty
+  @Min(1)
+  private int maxConnectionsPerRoute = 10;
+
   public String getApiKey() {
     return apiKey;
   }
@@ -23,4 +38,16 @@ public class GcmConfiguration {
     return senderId;
   }
 
+  public int getMulticastSize() {
+    return multicastSize;
+  }
+
+  public long getMulticastDelayMillis() {
+    return multicastDelayMillis;
+  }
+
+  public int getMaxConnectionsPerRoute() {
+    return maxConnectionsPerRoute;
+  }
+
 }
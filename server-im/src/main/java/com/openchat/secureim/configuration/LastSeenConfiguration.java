@@ -0,0 +1,39 @@
+package com.openchat.secureim.configuration;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import javax.validation.constraints.Min;
+
+public class LastSeenConfiguration {
+
+  @JsonProperty
+  private boolean writeBehind = true;
+
+  @JsonProperty
+  @Min(1)
+  private int batchSize = 1000;
+
+  @JsonProperty
+  @Min(1)
+  private int flushIntervalSeconds = 10;
+
+  @JsonProperty
+  @Min(1)
+  private int maxPending = 1000000;
+
+  public boolean isWriteBehind() {
+    return writeBehind;
+  }
+
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  public int getFlushIntervalSeconds() {
+    return flushIntervalSeconds;
+  }
+
+  public int getMaxPending() {
+    return maxPending;
+  }
+}
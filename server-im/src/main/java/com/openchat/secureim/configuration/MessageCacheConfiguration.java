@@ -3,24 +3,68 @@ package com.openchat.secureim.configuration;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 import javax.validation.Valid;
+import javax.validation.constraints.Max;
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
 
 public class MessageCacheConfiguration {
 
   @JsonProperty
-  @NotNull
   @Valid
   private RedisConfiguration redis;
 
+  /**
+   * Spreads message queues over several redis masters by a consistent hash of
+   * the destination number.  If empty, everything goes to redis.
+   */
+  @JsonProperty
+  @NotNull
+  @Valid
+  private List<MessageCacheShardConfiguration> shards = new LinkedList<>();
+
   @JsonProperty
   private int persistDelayMinutes = 10;
 
+  @JsonProperty
+  private boolean batchPersist = false;
+
+  @JsonProperty
+  @Min(1)
+  @Max(1000)
+  private int persistBatchSize = 100;
+
+  @JsonProperty
+  @Min(1)
+  private int persistWorkers = 1;
+
   public RedisConfiguration getRedisConfiguration() {
     return redis;
   }
 
+  public List<MessageCacheShardConfiguration> getShards() {
+    if (!shards.isEmpty()) return shards;
+    if (redis == null)     throw new IllegalArgumentException("No message cache redis or shards configured!");
+
+    return Collections.singletonList(new MessageCacheShardConfiguration("default", redis));
+  }
+
   public int getPersistDelayMinutes() {
     return persistDelayMinutes;
   }
 
+  public boolean isBatchPersist() {
+    return batchPersist;
+  }
+
+  public int getPersistBatchSize() {
+    return persistBatchSize;
+  }
+
+  public int getPersistWorkers() {
+    return persistWorkers;
+  }
+
 }
@@ -0,0 +1,50 @@
+package com.openchat.secureim.configuration;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import org.hibernate.validator.constraints.NotEmpty;
+
+import javax.validation.Valid;
+import javax.validation.constraints.NotNull;
+
+public class MessageCacheShardConfiguration {
+
+  /**
+   * Identifies the shard on the hash ring, so it must stay the same for as
+   * long as the shard holds messages, even if its redis url changes.
+   */
+  @JsonProperty
+  @NotEmpty
+  private String name;
+
+  @JsonProperty
+  @NotNull
+  @Valid
+  private RedisConfiguration redis;
+
+  /**
+   * A draining shard takes no new messages and has everything it holds
+   * persisted straight away, without waiting for persistDelayMinutes.  Once
+   * its queues are empty it can be removed from the configuration.
+   */
+  @JsonProperty
+  private boolean draining = false;
+
+  public MessageCacheShardConfiguration() {}
+
+  public MessageCacheShardConfiguration(String name, RedisConfiguration redis) {
+    this.name  = name;
+    this.redis = redis;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public RedisConfiguration getRedisConfiguration() {
+    return redis;
+  }
+
+  public boolean isDraining() {
+    return draining;
+  }
+}
@@ -0,0 +1,24 @@
+package com.openchat.secureim.configuration;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import javax.validation.constraints.Min;
+
+public class MessageDeliveryConfiguration {
+
+  @JsonProperty
+  @Min(1)
+  private int maxInFlight = 100;
+
+  @JsonProperty
+  @Min(1)
+  private int deleteBatchSize = 50;
+
+  public int getMaxInFlight() {
+    return maxInFlight;
+  }
+
+  public int getDeleteBatchSize() {
+    return deleteBatchSize;
+  }
+}
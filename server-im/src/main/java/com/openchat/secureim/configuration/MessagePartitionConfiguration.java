@@ -0,0 +1,41 @@
+package com.openchat.secureim.configuration;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import javax.validation.constraints.Max;
+import javax.validation.constraints.Min;
+
+public class MessagePartitionConfiguration {
+
+  @JsonProperty
+  private boolean enabled = false;
+
+  @JsonProperty
+  @Min(1)
+  @Max(28) // must stay short of the cutover in messagedb-partitions.xml
+  private int precreateDays = 7;
+
+  @JsonProperty
+  @Min(1)
+  private int retentionDays = 90;
+
+  @JsonProperty
+  @Min(1)
+  private int maintenanceIntervalMinutes = 60;
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  public int getPrecreateDays() {
+    return precreateDays;
+  }
+
+  public int getRetentionDays() {
+    return retentionDays;
+  }
+
+  public int getMaintenanceIntervalMinutes() {
+    return maintenanceIntervalMinutes;
+  }
+}
@@ -0,0 +1,13 @@
+package com.openchat.secureim.configuration;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+public class PreKeysCacheConfiguration {
+
+  @JsonProperty
+  private boolean enabled = false;
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+}
@@ -0,0 +1,34 @@
+package com.openchat.secureim.configuration;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import javax.validation.constraints.Min;
+
+public class PresenceConfiguration {
+
+  @JsonProperty
+  private boolean enabled = false;
+
+  /**
+   * Keep subscribing a redis channel per connected device as well.  Leave on
+   * until every node routes through presence, then turn off.
+   */
+  @JsonProperty
+  private boolean deviceChannels = true;
+
+  @JsonProperty
+  @Min(1)
+  private int ttlSeconds = 120;
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  public boolean isDeviceChannels() {
+    return deviceChannels;
+  }
+
+  public int getTtlSeconds() {
+    return ttlSeconds;
+  }
+}
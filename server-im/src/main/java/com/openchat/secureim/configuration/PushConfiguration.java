@@ -11,7 +11,39 @@ public class PushConfiguration {
   @Min(0)
   private int queueSize = 200;
 
+  @JsonProperty
+  @Min(0)
+  private long coalesceWindowMillis = 1000;
+
+  @JsonProperty
+  @Min(0)
+  private long receiptBatchWindowMillis = 100;
+
+  @JsonProperty
+  @Min(1)
+  private int receiptBatchSize = 1000;
+
+  @JsonProperty
+  @Min(1)
+  private int receiptMaxPending = 10000;
+
   public int getQueueSize() {
     return queueSize;
   }
+
+  public long getCoalesceWindowMillis() {
+    return coalesceWindowMillis;
+  }
+
+  public long getReceiptBatchWindowMillis() {
+    return receiptBatchWindowMillis;
+  }
+
+  public int getReceiptBatchSize() {
+    return receiptBatchSize;
+  }
+
+  public int getReceiptMaxPending() {
+    return receiptMaxPending;
+  }
 }
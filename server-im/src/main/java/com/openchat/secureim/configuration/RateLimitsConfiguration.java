@@ -28,6 +28,9 @@ public class RateLimitsConfiguration {
   @JsonProperty
   private RateLimitConfiguration prekeys = new RateLimitConfiguration(3, 1.0 / 10.0);
 
+  @JsonProperty
+  private RateLimitConfiguration prekeysBatch = new RateLimitConfiguration(2048, 256);
+
   @JsonProperty
   private RateLimitConfiguration messages = new RateLimitConfiguration(60, 60);
 
@@ -43,6 +46,14 @@ public class RateLimitsConfiguration {
   @JsonProperty
   private RateLimitConfiguration profile = new RateLimitConfiguration(4320, 3);
 
+  // Until every server uses the hash buckets, see validate_rate_limit.lua.
+  @JsonProperty
+  private boolean mirrorLegacyBuckets = true;
+
+  public boolean isMirrorLegacyBuckets() {
+    return mirrorLegacyBuckets;
+  }
+
   public RateLimitConfiguration getAllocateDevice() {
     return allocateDevice;
   }
@@ -59,6 +70,10 @@ public class RateLimitsConfiguration {
     return prekeys;
   }
 
+  public RateLimitConfiguration getPreKeysBatch() {
+    return prekeysBatch;
+  }
+
   public RateLimitConfiguration getContactQueries() {
     return contactQueries;
   }
@@ -102,6 +117,12 @@ public class RateLimitsConfiguration {
     @JsonProperty
     private double leakRatePerMinute;
 
+    @JsonProperty
+    private int localPrefetch = 0;
+
+    @JsonProperty
+    private long localPrefetchTtlMillis = 1000;
+
     public RateLimitConfiguration(int bucketSize, double leakRatePerMinute) {
       this.bucketSize        = bucketSize;
       this.leakRatePerMinute = leakRatePerMinute;
@@ -116,5 +137,13 @@ public class RateLimitsConfiguration {
     public double getLeakRatePerMinute() {
       return leakRatePerMinute;
     }
+
+    public int getLocalPrefetch() {
+      return localPrefetch;
+    }
+
+    public long getLocalPrefetchTtlMillis() {
+      return localPrefetchTtlMillis;
+    }
   }
 }
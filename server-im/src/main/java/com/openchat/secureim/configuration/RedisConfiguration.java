@@ -18,6 +18,14 @@ public class RedisConfiguration {
   @NotNull
   private List<String> replicaUrls;
 
+  /**
+   * Send reads that are slower than the replica's 95th percentile to a second
+   * replica as well, and take whichever answers first.  Only applies to reads
+   * made through ReplicatedJedisPool.read().
+   */
+  @JsonProperty
+  private boolean hedgedReads = false;
+
   public String getUrl() {
     return url;
   }
@@ -25,4 +33,8 @@ public class RedisConfiguration {
   public List<String> getReplicaUrls() {
     return replicaUrls;
   }
+
+  public boolean isHedgedReads() {
+    return hedgedReads;
+  }
 }
@@ -39,6 +39,8 @@ public class KeepAliveController {
       if (!pubSubManager.hasLocalSubscription(address)) {
         logger.warn("***** No local subscription found for: " + address);
         context.getClient().close(1000, "OK");
+      } else {
+        pubSubManager.refresh(address);
       }
     }
 
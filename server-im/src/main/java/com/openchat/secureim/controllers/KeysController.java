@@ -2,9 +2,9 @@ package com.openchat.secureim.controllers;
 
 import com.codahale.metrics.annotation.Timed;
 import com.google.common.base.Optional;
-import org.skife.jdbi.v2.exceptions.UnableToExecuteStatementException;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import com.openchat.secureim.entities.PreKeyBatchRequest;
+import com.openchat.secureim.entities.PreKeyBatchRequestItem;
+import com.openchat.secureim.entities.PreKeyBatchResponse;
 import com.openchat.secureim.entities.PreKeyCount;
 import com.openchat.secureim.entities.PreKeyResponseItem;
 import com.openchat.secureim.entities.PreKeyResponse;
@@ -18,11 +18,14 @@ import com.openchat.secureim.storage.Account;
 import com.openchat.secureim.storage.AccountsManager;
 import com.openchat.secureim.storage.Device;
 import com.openchat.secureim.storage.KeyRecord;
-import com.openchat.secureim.storage.Keys;
+import com.openchat.secureim.storage.KeysManager;
+import com.openchat.secureim.storage.KeysManager.UnableToClaimKeyException;
+import com.openchat.secureim.util.Pair;
 
 import javax.validation.Valid;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.GET;
+import javax.ws.rs.POST;
 import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
@@ -31,22 +34,27 @@ import javax.ws.rs.QueryParam;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import io.dropwizard.auth.Auth;
 
 @Path("/v2/keys")
 public class KeysController {
 
-  private static final Logger logger = LoggerFactory.getLogger(KeysController.class);
-
   private final RateLimiters           rateLimiters;
-  private final Keys                   keys;
+  private final KeysManager            keys;
   private final AccountsManager        accounts;
   private final FederatedClientManager federatedClientManager;
 
-  public KeysController(RateLimiters rateLimiters, Keys keys, AccountsManager accounts,
+  public KeysController(RateLimiters rateLimiters, KeysManager keys, AccountsManager accounts,
                         FederatedClientManager federatedClientManager)
   {
     this.rateLimiters           = rateLimiters;
@@ -112,27 +120,9 @@ public class KeysController {
         rateLimiters.getPreKeysLimiter().validate(account.getNumber() +  "__" + number + "." + deviceId);
       }
 
-      Optional<List<KeyRecord>> targetKeys = getLocalKeys(target, deviceId);
-      List<PreKeyResponseItem>  devices    = new LinkedList<>();
-
-      for (Device device : target.getDevices()) {
-        if (device.isActive() && (deviceId.equals("*") || device.getId() == Long.parseLong(deviceId))) {
-          SignedPreKey signedPreKey = device.getSignedPreKey();
-          PreKey preKey       = null;
-
-          if (targetKeys.isPresent()) {
-            for (KeyRecord keyRecord : targetKeys.get()) {
-              if (!keyRecord.isLastResort() && keyRecord.getDeviceId() == device.getId()) {
-                preKey = new PreKey(keyRecord.getKeyId(), keyRecord.getPublicKey());
-              }
-            }
-          }
-
-          if (signedPreKey != null || preKey != null) {
-            devices.add(new PreKeyResponseItem(device.getId(), device.getRegistrationId(), signedPreKey, preKey));
-          }
-        }
-      }
+      List<Long>                deviceIds  = getSelectedDevices(target, deviceId);
+      Optional<List<KeyRecord>> targetKeys = getLocalKeys(target, deviceId, deviceIds);
+      List<PreKeyResponseItem>  devices    = getResponseItems(target, deviceIds, targetKeys.or(new LinkedList<KeyRecord>()));
 
       if (devices.isEmpty()) return Optional.absent();
       else                   return Optional.of(new PreKeyResponse(target.getIdentityKey(), devices));
@@ -141,6 +131,66 @@ public class KeysController {
     }
   }
 
+  @Timed
+  @POST
+  @Path("/batch")
+  @Consumes(MediaType.APPLICATION_JSON)
+  @Produces(MediaType.APPLICATION_JSON)
+  public PreKeyBatchResponse getBatchKeys(@Auth Account account, @Valid PreKeyBatchRequest request)
+      throws RateLimitExceededException
+  {
+    if (account.isRateLimited()) {
+      rateLimiters.getPreKeysBatchLimiter().validate(account.getNumber(), Math.max(1, request.getDevices().size()));
+    }
+
+    Map<String, Account>    targets  = new LinkedHashMap<>();
+    Map<String, Set<Long>>  selected = new HashMap<>();
+    Set<Pair<String, Long>> claims   = new LinkedHashSet<>();
+
+    for (PreKeyBatchRequestItem item : request.getDevices()) {
+      Account target;
+
+      try {
+        target = getAccount(item.getNumber(), item.getDeviceId());
+      } catch (NoSuchUserException e) {
+        continue;
+      }
+
+      if (!targets.containsKey(target.getNumber())) {
+        targets.put(target.getNumber(), target);
+        selected.put(target.getNumber(), new HashSet<Long>());
+      }
+
+      for (long deviceId : getSelectedDevices(target, item.getDeviceId())) {
+        selected.get(target.getNumber()).add(deviceId);
+        claims.add(new Pair<>(target.getNumber(), deviceId));
+      }
+    }
+
+    Map<String, List<KeyRecord>> claimed = new HashMap<>();
+
+    for (KeyRecord record : claimKeys(new LinkedList<>(claims))) {
+      if (!claimed.containsKey(record.getNumber())) {
+        claimed.put(record.getNumber(), new LinkedList<KeyRecord>());
+      }
+
+      claimed.get(record.getNumber()).add(record);
+    }
+
+    Map<String, PreKeyResponse> responses = new LinkedHashMap<>();
+
+    for (Account target : targets.values()) {
+      List<KeyRecord>          targetKeys = Optional.fromNullable(claimed.get(target.getNumber())).or(new LinkedList<KeyRecord>());
+      List<PreKeyResponseItem> devices    = getResponseItems(target, selected.get(target.getNumber()), targetKeys);
+
+      if (!devices.isEmpty()) {
+        responses.put(target.getNumber(), new PreKeyResponse(target.getIdentityKey(), devices));
+      }
+    }
+
+    return new PreKeyBatchResponse(responses);
+  }
+
   @Timed
   @PUT
   @Path("/signed")
@@ -163,30 +213,63 @@ public class KeysController {
     else                      return Optional.absent();
   }
 
-  private Optional<List<KeyRecord>> getLocalKeys(Account destination, String deviceIdSelector)
-      throws NoSuchUserException
-  {
-    try {
-      if (deviceIdSelector.equals("*")) {
-        return keys.get(destination.getNumber());
-      }
+  private List<PreKeyResponseItem> getResponseItems(Account target, Collection<Long> deviceIds, List<KeyRecord> targetKeys) {
+    List<PreKeyResponseItem> devices = new LinkedList<>();
 
-      long deviceId = Long.parseLong(deviceIdSelector);
+    for (Device device : target.getDevices()) {
+      if (deviceIds.contains(device.getId())) {
+        SignedPreKey signedPreKey = device.getSignedPreKey();
+        PreKey       preKey       = null;
+
+        for (KeyRecord keyRecord : targetKeys) {
+          if (!keyRecord.isLastResort() && keyRecord.getDeviceId() == device.getId()) {
+            preKey = new PreKey(keyRecord.getKeyId(), keyRecord.getPublicKey());
+          }
+        }
 
-      for (int i=0;i<20;i++) {
-        try {
-          return keys.get(destination.getNumber(), deviceId);
-        } catch (UnableToExecuteStatementException e) {
-          logger.info(e.getMessage());
+        if (signedPreKey != null || preKey != null) {
+          devices.add(new PreKeyResponseItem(device.getId(), device.getRegistrationId(), signedPreKey, preKey));
         }
       }
+    }
+
+    return devices;
+  }
 
+  private List<Long> getSelectedDevices(Account target, String deviceIdSelector) {
+    List<Long> deviceIds = new LinkedList<>();
+
+    for (Device device : target.getDevices()) {
+      if (device.isActive() && (deviceIdSelector.equals("*") || device.getId() == Long.parseLong(deviceIdSelector))) {
+        deviceIds.add(device.getId());
+      }
+    }
+
+    return deviceIds;
+  }
+
+  private Optional<List<KeyRecord>> getLocalKeys(Account destination, String deviceIdSelector, List<Long> deviceIds) {
+    try {
+      if (deviceIdSelector.equals("*")) {
+        return keys.take(destination.getNumber(), deviceIds);
+      }
+
+      return keys.take(destination.getNumber(), Long.parseLong(deviceIdSelector));
+    } catch (UnableToClaimKeyException e) {
       throw new WebApplicationException(Response.status(500).build());
     } catch (NumberFormatException e) {
       throw new WebApplicationException(Response.status(422).build());
     }
   }
 
+  private List<KeyRecord> claimKeys(List<Pair<String, Long>> devices) {
+    try {
+      return keys.take(devices);
+    } catch (UnableToClaimKeyException e) {
+      throw new WebApplicationException(Response.status(500).build());
+    }
+  }
+
   private Account getAccount(String number, String deviceSelector)
       throws NoSuchUserException
   {
@@ -6,11 +6,13 @@ import com.google.protobuf.ByteString;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import com.openchat.secureim.entities.IncomingMessage;
+import com.openchat.secureim.entities.IncomingMessageBatch;
 import com.openchat.secureim.entities.IncomingMessageList;
 import com.openchat.secureim.entities.MessageProtos.Envelope;
 import com.openchat.secureim.entities.MismatchedDevices;
 import com.openchat.secureim.entities.OutgoingMessageEntity;
 import com.openchat.secureim.entities.OutgoingMessageEntityList;
+import com.openchat.secureim.entities.SendMessageBatchResponse;
 import com.openchat.secureim.entities.SendMessageResponse;
 import com.openchat.secureim.entities.StaleDevices;
 import com.openchat.secureim.federation.FederatedClient;
@@ -18,6 +20,7 @@ import com.openchat.secureim.federation.FederatedClientManager;
 import com.openchat.secureim.federation.NoSuchPeerException;
 import com.openchat.secureim.limits.RateLimiters;
 import com.openchat.secureim.push.ApnFallbackManager;
+import com.openchat.secureim.push.DeviceMessage;
 import com.openchat.secureim.push.NotPushRegisteredException;
 import com.openchat.secureim.push.PushSender;
 import com.openchat.secureim.push.ReceiptSender;
@@ -26,6 +29,7 @@ import com.openchat.secureim.redis.RedisOperation;
 import com.openchat.secureim.storage.Account;
 import com.openchat.secureim.storage.AccountsManager;
 import com.openchat.secureim.storage.Device;
+import com.openchat.secureim.storage.MessagePartitionManager;
 import com.openchat.secureim.storage.MessagesManager;
 import com.openchat.secureim.util.Base64;
 import com.openchat.secureim.util.Util;
@@ -43,9 +47,12 @@ import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import java.io.IOException;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import io.dropwizard.auth.Auth;
@@ -63,6 +70,8 @@ public class MessageController {
   private final MessagesManager        messagesManager;
   private final ApnFallbackManager     apnFallbackManager;
 
+  private final Optional<MessagePartitionManager> partitionManager;
+
   public MessageController(RateLimiters rateLimiters,
                            PushSender pushSender,
                            ReceiptSender receiptSender,
@@ -70,6 +79,23 @@ public class MessageController {
                            MessagesManager messagesManager,
                            FederatedClientManager federatedClientManager,
                            ApnFallbackManager apnFallbackManager)
+  {
+    this(rateLimiters, pushSender, receiptSender, accountsManager, messagesManager, federatedClientManager,
+         apnFallbackManager, Optional.<MessagePartitionManager>absent());
+  }
+
+  /**
+   * @param partitionManager if present, messages whose timestamps fall outside
+   *                         the partitions it keeps are rejected.
+   */
+  public MessageController(RateLimiters rateLimiters,
+                           PushSender pushSender,
+                           ReceiptSender receiptSender,
+                           AccountsManager accountsManager,
+                           MessagesManager messagesManager,
+                           FederatedClientManager federatedClientManager,
+                           ApnFallbackManager apnFallbackManager,
+                           Optional<MessagePartitionManager> partitionManager)
   {
     this.rateLimiters           = rateLimiters;
     this.pushSender             = pushSender;
@@ -78,6 +104,7 @@ public class MessageController {
     this.messagesManager        = messagesManager;
     this.federatedClientManager = federatedClientManager;
     this.apnFallbackManager     = apnFallbackManager;
+    this.partitionManager       = partitionManager;
   }
 
   @Timed
@@ -94,6 +121,10 @@ public class MessageController {
       rateLimiters.getMessagesLimiter().validate(source.getNumber() + "__" + destinationName);
     }
 
+    if (!isTimestampInRange(messages.getTimestamp())) {
+      throw new WebApplicationException(Response.status(400).build());
+    }
+
     try {
       boolean isSyncMessage = source.getNumber().equals(destinationName);
 
@@ -119,6 +150,99 @@ public class MessageController {
     }
   }
 
+  @Timed
+  @PUT
+  @Path("/batch")
+  @Consumes(MediaType.APPLICATION_JSON)
+  @Produces(MediaType.APPLICATION_JSON)
+  public SendMessageBatchResponse sendMessages(@Auth Account source, @Valid IncomingMessageBatch batch)
+      throws IOException
+  {
+    SendMessageBatchResponse         response     = new SendMessageBatchResponse();
+    Map<String, IncomingMessageList> destinations = batch.getDestinations();
+    Map<String, String>              limiterKeys  = new HashMap<>();
+    List<String>                     local        = new LinkedList<>();
+    List<String>                     relayed      = new LinkedList<>();
+    List<DeviceMessage>              outgoing     = new LinkedList<>();
+    boolean                          needsSync    = false;
+
+    for (Map.Entry<String, IncomingMessageList> destination : destinations.entrySet()) {
+      if (!source.getNumber().equals(destination.getKey())) {
+        limiterKeys.put(source.getNumber() + "__" + destination.getKey(), destination.getKey());
+      }
+    }
+
+    for (String limited : rateLimiters.getMessagesLimiter().validate(limiterKeys.keySet())) {
+      response.addRateLimited(limiterKeys.get(limited));
+      destinations.remove(limiterKeys.get(limited));
+    }
+
+    Iterator<Map.Entry<String, IncomingMessageList>> iterator = destinations.entrySet().iterator();
+
+    while (iterator.hasNext()) {
+      Map.Entry<String, IncomingMessageList> destination = iterator.next();
+
+      if (!isTimestampInRange(destination.getValue().getTimestamp())) {
+        response.addInvalid(destination.getKey());
+        iterator.remove();
+      }
+    }
+
+    for (Map.Entry<String, IncomingMessageList> destination : destinations.entrySet()) {
+      if (Util.isEmpty(destination.getValue().getRelay())) local.add(destination.getKey());
+      else                                                 relayed.add(destination.getKey());
+    }
+
+    Map<String, Account> accounts = accountsManager.get(local);
+
+    for (String destinationName : local) {
+      IncomingMessageList messages      = destinations.get(destinationName);
+      boolean             isSyncMessage = source.getNumber().equals(destinationName);
+
+      try {
+        Account destination;
+
+        if (!isSyncMessage) destination = getDestinationAccount(accounts, destinationName);
+        else                destination = source;
+
+        validateCompleteDeviceList(destination, messages.getMessages(), isSyncMessage);
+        validateRegistrationIds(destination, messages.getMessages());
+
+        outgoing.addAll(getLocalMessages(source, destination, messages));
+        needsSync |= !isSyncMessage;
+      } catch (NoSuchUserException e) {
+        response.addUnknown(destinationName);
+      } catch (MismatchedDevicesException e) {
+        response.addMismatched(destinationName, new MismatchedDevices(e.getMissingDevices(), e.getExtraDevices()));
+      } catch (StaleDevicesException e) {
+        response.addStale(destinationName, new StaleDevices(e.getStaleDevices()));
+      }
+    }
+
+    pushSender.sendMessages(outgoing);
+
+    for (String destinationName : relayed) {
+      boolean isSyncMessage = source.getNumber().equals(destinationName);
+
+      try {
+        sendRelayMessage(source, destinationName, destinations.get(destinationName), isSyncMessage);
+        needsSync = true;
+      } catch (NoSuchUserException e) {
+        response.addUnknown(destinationName);
+      } catch (InvalidDestinationException e) {
+        response.addInvalid(destinationName);
+      } catch (IOException | WebApplicationException e) {
+        // Local messages have already gone out, so failing the whole batch
+        // here would have the client resend (and duplicate) them.
+        logger.warn("Relaying batch message to " + destinationName, e);
+        response.addFailed(destinationName);
+      }
+    }
+
+    response.setNeedsSync(needsSync && source.getActiveDeviceCount() > 1);
+    return response;
+  }
+
   @Timed
   @GET
   @Produces(MediaType.APPLICATION_JSON)
@@ -193,32 +317,61 @@ public class MessageController {
       throws NoSuchUserException
   {
     try {
-      Optional<byte[]> messageBody    = getMessageBody(incomingMessage);
-      Optional<byte[]> messageContent = getMessageContent(incomingMessage);
-      Envelope.Builder messageBuilder = Envelope.newBuilder();
+      pushSender.sendMessage(destinationAccount, destinationDevice, getEnvelope(source, timestamp, incomingMessage));
+    } catch (NotPushRegisteredException e) {
+      if (destinationDevice.isMaster()) throw new NoSuchUserException(e);
+      else                              logger.debug("Not registered", e);
+    }
+  }
 
-      messageBuilder.setType(Envelope.Type.valueOf(incomingMessage.getType()))
-                    .setSource(source.getNumber())
-                    .setTimestamp(timestamp == 0 ? System.currentTimeMillis() : timestamp)
-                    .setSourceDevice((int) source.getAuthenticatedDevice().get().getId());
+  private List<DeviceMessage> getLocalMessages(Account source, Account destination, IncomingMessageList messages)
+      throws NoSuchUserException
+  {
+    List<DeviceMessage> results = new LinkedList<>();
 
-      if (messageBody.isPresent()) {
-        messageBuilder.setLegacyMessage(ByteString.copyFrom(messageBody.get()));
-      }
+    for (IncomingMessage incomingMessage : messages.getMessages()) {
+      Optional<Device> destinationDevice = destination.getDevice(incomingMessage.getDestinationDeviceId());
 
-      if (messageContent.isPresent()) {
-        messageBuilder.setContent(ByteString.copyFrom(messageContent.get()));
+      if (!destinationDevice.isPresent()) {
+        continue;
       }
 
-      if (source.getRelay().isPresent()) {
-        messageBuilder.setRelay(source.getRelay().get());
+      if (PushSender.isDeliverable(destinationDevice.get())) {
+        results.add(new DeviceMessage(destination, destinationDevice.get(),
+                                      getEnvelope(source, messages.getTimestamp(), incomingMessage)));
+      } else if (destinationDevice.get().isMaster()) {
+        throw new NoSuchUserException(destination.getNumber());
+      } else {
+        logger.debug("Not registered: " + destination.getNumber() + "." + destinationDevice.get().getId());
       }
+    }
 
-      pushSender.sendMessage(destinationAccount, destinationDevice, messageBuilder.build());
-    } catch (NotPushRegisteredException e) {
-      if (destinationDevice.isMaster()) throw new NoSuchUserException(e);
-      else                              logger.debug("Not registered", e);
+    return results;
+  }
+
+  private Envelope getEnvelope(Account source, long timestamp, IncomingMessage incomingMessage) {
+    Optional<byte[]> messageBody    = getMessageBody(incomingMessage);
+    Optional<byte[]> messageContent = getMessageContent(incomingMessage);
+    Envelope.Builder messageBuilder = Envelope.newBuilder();
+
+    messageBuilder.setType(Envelope.Type.valueOf(incomingMessage.getType()))
+                  .setSource(source.getNumber())
+                  .setTimestamp(timestamp == 0 ? System.currentTimeMillis() : timestamp)
+                  .setSourceDevice((int) source.getAuthenticatedDevice().get().getId());
+
+    if (messageBody.isPresent()) {
+      messageBuilder.setLegacyMessage(ByteString.copyFrom(messageBody.get()));
     }
+
+    if (messageContent.isPresent()) {
+      messageBuilder.setContent(ByteString.copyFrom(messageContent.get()));
+    }
+
+    if (source.getRelay().isPresent()) {
+      messageBuilder.setRelay(source.getRelay().get());
+    }
+
+    return messageBuilder.build();
   }
 
   private void sendRelayMessage(Account source,
@@ -250,6 +403,18 @@ public class MessageController {
     return account.get();
   }
 
+  private Account getDestinationAccount(Map<String, Account> accounts, String destination)
+      throws NoSuchUserException
+  {
+    Account account = accounts.get(destination);
+
+    if (account == null || !account.isActive()) {
+      throw new NoSuchUserException(destination);
+    }
+
+    return account;
+  }
+
   private void validateRegistrationIds(Account account, List<IncomingMessage> messages)
       throws StaleDevicesException
   {
@@ -309,6 +474,10 @@ public class MessageController {
     }
   }
 
+  private boolean isTimestampInRange(long timestamp) {
+    return !partitionManager.isPresent() || partitionManager.get().isInRange(timestamp);
+  }
+
   private Optional<byte[]> getMessageBody(IncomingMessage message) {
     if (Util.isEmpty(message.getBody())) return Optional.absent();
 
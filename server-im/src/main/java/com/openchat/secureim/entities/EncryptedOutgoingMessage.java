@@ -26,7 +26,7 @@ public class EncryptedOutgoingMessage {
   private static final int    MAC_SIZE        = 10;
 
   private final byte[] serialized;
-  private final String serializedAndEncoded;
+  private       String serializedAndEncoded;
 
   public EncryptedOutgoingMessage(Envelope outgoingMessage, String signalingKey)
       throws CryptoEncodingException
@@ -35,11 +35,20 @@ public class EncryptedOutgoingMessage {
     SecretKeySpec cipherKey  = getCipherKey (signalingKey);
     SecretKeySpec macKey     = getMacKey(signalingKey);
 
-    this.serialized           = getCiphertext(plaintext, cipherKey, macKey);
-    this.serializedAndEncoded = Base64.encodeBytes(this.serialized);
+    this.serialized = getCiphertext(plaintext, cipherKey, macKey);
+  }
+
+  public EncryptedOutgoingMessage(Envelope outgoingMessage, OutgoingMessageCipher cipher)
+      throws CryptoEncodingException
+  {
+    this.serialized = cipher.encrypt(outgoingMessage);
   }
 
   public String toEncodedString() {
+    if (serializedAndEncoded == null) {
+      serializedAndEncoded = Base64.encodeBytes(serialized);
+    }
+
     return serializedAndEncoded;
   }
 
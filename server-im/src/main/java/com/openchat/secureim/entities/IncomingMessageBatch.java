@@ -0,0 +1,27 @@
+package com.openchat.secureim.entities;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import javax.validation.Valid;
+import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Size;
+import java.util.Map;
+
+public class IncomingMessageBatch {
+
+  @JsonProperty
+  @NotNull
+  @Valid
+  @Size(max = 1024)
+  private Map<String, IncomingMessageList> destinations;
+
+  public IncomingMessageBatch() {}
+
+  public IncomingMessageBatch(Map<String, IncomingMessageList> destinations) {
+    this.destinations = destinations;
+  }
+
+  public Map<String, IncomingMessageList> getDestinations() {
+    return destinations;
+  }
+}
@@ -0,0 +1,129 @@
+package com.openchat.secureim.entities;
+
+import com.google.protobuf.CodedOutputStream;
+import com.openchat.secureim.entities.MessageProtos.Envelope;
+import com.openchat.secureim.util.Base64;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+
+/**
+ * A device's signaling key, decoded once, for encrypting every envelope sent to
+ * that device.  The Cipher and Mac instances are per thread and re-keyed for each
+ * message, the plaintext is serialized into a per-thread buffer, and the
+ * ciphertext is written straight into the final message array.
+ */
+public class OutgoingMessageCipher {
+
+  private static final byte VERSION         = 0x01;
+  private static final int  CIPHER_KEY_SIZE = 32;
+  private static final int  MAC_KEY_SIZE    = 20;
+  private static final int  MAC_SIZE        = 10;
+  private static final int  IV_SIZE         = 16;
+  private static final int  HEADER_SIZE     = 1 + IV_SIZE;
+
+  private static final ThreadLocal<Cipher> ciphers = new ThreadLocal<Cipher>() {
+    @Override
+    protected Cipher initialValue() {
+      try {
+        return Cipher.getInstance("AES/CBC/PKCS5Padding");
+      } catch (GeneralSecurityException e) {
+        throw new AssertionError(e);
+      }
+    }
+  };
+
+  private static final ThreadLocal<Mac> macs = new ThreadLocal<Mac>() {
+    @Override
+    protected Mac initialValue() {
+      try {
+        return Mac.getInstance("HmacSHA256");
+      } catch (GeneralSecurityException e) {
+        throw new AssertionError(e);
+      }
+    }
+  };
+
+  private static final ThreadLocal<byte[][]> buffers = new ThreadLocal<byte[][]>() {
+    @Override
+    protected byte[][] initialValue() {
+      return new byte[][] {new byte[4096], new byte[32]};
+    }
+  };
+
+  private final String        signalingKey;
+  private final SecretKeySpec cipherKey;
+  private final SecretKeySpec macKey;
+
+  public OutgoingMessageCipher(String signalingKey) throws CryptoEncodingException {
+    try {
+      byte[] signalingKeyBytes = Base64.decode(signalingKey);
+
+      if (signalingKeyBytes.length < CIPHER_KEY_SIZE + MAC_KEY_SIZE)
+        throw new CryptoEncodingException("Signaling key too short!");
+
+      this.signalingKey = signalingKey;
+      this.cipherKey    = new SecretKeySpec(signalingKeyBytes, 0, CIPHER_KEY_SIZE, "AES");
+      this.macKey       = new SecretKeySpec(signalingKeyBytes, CIPHER_KEY_SIZE, MAC_KEY_SIZE, "HmacSHA256");
+    } catch (IOException e) {
+      throw new CryptoEncodingException(e);
+    }
+  }
+
+  public boolean isFor(String signalingKey) {
+    return this.signalingKey.equals(signalingKey);
+  }
+
+  /**
+   * @return VERSION || IV || AES-CBC(envelope) || truncated HMAC-SHA256 of everything before it.
+   */
+  public byte[] encrypt(Envelope envelope) throws CryptoEncodingException {
+    try {
+      Cipher cipher    = ciphers.get();
+      Mac    mac       = macs.get();
+      int    length    = envelope.getSerializedSize();
+      byte[] plaintext = getPlaintextBuffer(length);
+
+      CodedOutputStream codedOutput = CodedOutputStream.newInstance(plaintext, 0, length);
+      envelope.writeTo(codedOutput);
+      codedOutput.checkNoSpaceLeft();
+
+      cipher.init(Cipher.ENCRYPT_MODE, cipherKey);
+      mac.init(macKey);
+
+      byte[] output = new byte[HEADER_SIZE + cipher.getOutputSize(length) + MAC_SIZE];
+
+      output[0] = VERSION;
+      System.arraycopy(cipher.getIV(), 0, output, 1, IV_SIZE);
+
+      int ciphertextLength = cipher.doFinal(plaintext, 0, length, output, HEADER_SIZE);
+
+      byte[] digest = buffers.get()[1];
+
+      mac.update(output, 0, HEADER_SIZE + ciphertextLength);
+      mac.doFinal(digest, 0);
+
+      System.arraycopy(digest, 0, output, HEADER_SIZE + ciphertextLength, MAC_SIZE);
+
+      return output;
+    } catch (InvalidKeyException e) {
+      throw new CryptoEncodingException(e);
+    } catch (IOException | GeneralSecurityException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private byte[] getPlaintextBuffer(int size) {
+    byte[][] threadBuffers = buffers.get();
+
+    if (threadBuffers[0].length < size) {
+      threadBuffers[0] = new byte[Integer.highestOneBit(size) << 1];
+    }
+
+    return threadBuffers[0];
+  }
+}
@@ -0,0 +1,27 @@
+package com.openchat.secureim.entities;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import javax.validation.Valid;
+import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Size;
+import java.util.List;
+
+public class PreKeyBatchRequest {
+
+  @JsonProperty
+  @NotNull
+  @Valid
+  @Size(max = 1024)
+  private List<PreKeyBatchRequestItem> devices;
+
+  public PreKeyBatchRequest() {}
+
+  public PreKeyBatchRequest(List<PreKeyBatchRequestItem> devices) {
+    this.devices = devices;
+  }
+
+  public List<PreKeyBatchRequestItem> getDevices() {
+    return devices;
+  }
+}
@@ -0,0 +1,30 @@
+package com.openchat.secureim.entities;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import org.hibernate.validator.constraints.NotEmpty;
+
+public class PreKeyBatchRequestItem {
+
+  @JsonProperty
+  @NotEmpty
+  private String number;
+
+  @JsonProperty
+  @NotEmpty
+  private String deviceId;
+
+  public PreKeyBatchRequestItem() {}
+
+  public PreKeyBatchRequestItem(String number, String deviceId) {
+    this.number   = number;
+    this.deviceId = deviceId;
+  }
+
+  public String getNumber() {
+    return number;
+  }
+
+  public String getDeviceId() {
+    return deviceId;
+  }
+}
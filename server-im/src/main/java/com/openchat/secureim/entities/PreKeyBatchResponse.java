@@ -0,0 +1,23 @@
+package com.openchat.secureim.entities;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.Map;
+
+public class PreKeyBatchResponse {
+
+  @JsonProperty
+  private Map<String, PreKeyResponse> keys;
+
+  public PreKeyBatchResponse() {}
+
+  public PreKeyBatchResponse(Map<String, PreKeyResponse> keys) {
+    this.keys = keys;
+  }
+
+  @VisibleForTesting
+  public Map<String, PreKeyResponse> getKeys() {
+    return keys;
+  }
+}
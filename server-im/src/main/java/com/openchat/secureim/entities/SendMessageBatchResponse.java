@@ -0,0 +1,98 @@
+package com.openchat.secureim.entities;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+public class SendMessageBatchResponse {
+
+  @JsonProperty
+  private boolean needsSync;
+
+  @JsonProperty
+  private Map<String, MismatchedDevices> mismatched = new HashMap<>();
+
+  @JsonProperty
+  private Map<String, StaleDevices> stale = new HashMap<>();
+
+  @JsonProperty
+  private List<String> unknown = new LinkedList<>();
+
+  @JsonProperty
+  private List<String> invalid = new LinkedList<>();
+
+  @JsonProperty
+  private List<String> rateLimited = new LinkedList<>();
+
+  @JsonProperty
+  private List<String> failed = new LinkedList<>();
+
+  public SendMessageBatchResponse() {}
+
+  public void setNeedsSync(boolean needsSync) {
+    this.needsSync = needsSync;
+  }
+
+  public void addMismatched(String destination, MismatchedDevices devices) {
+    mismatched.put(destination, devices);
+  }
+
+  public void addStale(String destination, StaleDevices devices) {
+    stale.put(destination, devices);
+  }
+
+  public void addUnknown(String destination) {
+    unknown.add(destination);
+  }
+
+  public void addInvalid(String destination) {
+    invalid.add(destination);
+  }
+
+  public void addRateLimited(String destination) {
+    rateLimited.add(destination);
+  }
+
+  public void addFailed(String destination) {
+    failed.add(destination);
+  }
+
+  @VisibleForTesting
+  public boolean isNeedsSync() {
+    return needsSync;
+  }
+
+  @VisibleForTesting
+  public Map<String, MismatchedDevices> getMismatched() {
+    return mismatched;
+  }
+
+  @VisibleForTesting
+  public Map<String, StaleDevices> getStale() {
+    return stale;
+  }
+
+  @VisibleForTesting
+  public List<String> getUnknown() {
+    return unknown;
+  }
+
+  @VisibleForTesting
+  public List<String> getInvalid() {
+    return invalid;
+  }
+
+  @VisibleForTesting
+  public List<String> getRateLimited() {
+    return rateLimited;
+  }
+
+  @VisibleForTesting
+  public List<String> getFailed() {
+    return failed;
+  }
+}
@@ -0,0 +1,99 @@
+package com.openchat.secureim.limits;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.openchat.secureim.controllers.RateLimitExceededException;
+import com.openchat.secureim.redis.LuaScript;
+import com.openchat.secureim.redis.ReplicatedJedisPool;
+
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A rate limiter for very hot keys that takes up to prefetch extra units from the
+ * shared bucket and spends them locally, so most checks don't touch Redis at all.
+ *
+ * Units that aren't spent within prefetchTtlMillis are dropped rather than returned,
+ * so a node can under-use a bucket by at most prefetch units per TTL, never overdraw it.
+ */
+public class PrefetchingRateLimiter extends RateLimiter {
+
+  private final int                          prefetch;
+  private final Cache<String, AtomicInteger> prefetched;
+
+  public PrefetchingRateLimiter(ReplicatedJedisPool cacheClient, LuaScript validateScript, String name,
+                                int bucketSize, double leakRatePerMinute,
+                                int prefetch, long prefetchTtlMillis, boolean mirrorLegacyBucket)
+  {
+    super(cacheClient, validateScript, name, bucketSize, leakRatePerMinute, false, mirrorLegacyBucket);
+
+    this.prefetch   = prefetch;
+    this.prefetched = CacheBuilder.newBuilder()
+                                  .expireAfterWrite(prefetchTtlMillis, TimeUnit.MILLISECONDS)
+                                  .build();
+  }
+
+  @Override
+  public void validate(String key, int amount) throws RateLimitExceededException {
+    AtomicInteger available = prefetched.getIfPresent(key);
+
+    if (available != null && take(available, amount)) {
+      return;
+    }
+
+    int granted = acquire(key, amount, amount + prefetch);
+
+    if (granted == 0) {
+      markExceeded();
+      throw new RateLimitExceededException(key + " , " + amount);
+    }
+
+    if (granted > amount) {
+      AtomicInteger remaining = new AtomicInteger(granted - amount);
+      AtomicInteger existing  = prefetched.asMap().putIfAbsent(key, remaining);
+
+      if (existing != null) {
+        existing.addAndGet(granted - amount);
+      }
+    }
+  }
+
+  @Override
+  public void validate(String key) throws RateLimitExceededException {
+    validate(key, 1);
+  }
+
+  @Override
+  public Set<String> validate(Collection<String> keys) {
+    List<String> remaining = new LinkedList<>();
+
+    for (String key : keys) {
+      AtomicInteger available = prefetched.getIfPresent(key);
+
+      if (available == null || !take(available, 1)) {
+        remaining.add(key);
+      }
+    }
+
+    return super.validate(remaining);
+  }
+
+  @Override
+  public void clear(String key) {
+    prefetched.invalidate(key);
+    super.clear(key);
+  }
+
+  private boolean take(AtomicInteger available, int amount) {
+    while (true) {
+      int current = available.get();
+
+      if (current < amount)                                  return false;
+      if (available.compareAndSet(current, current - amount)) return true;
+    }
+  }
+}
@@ -3,58 +3,68 @@ package com.openchat.secureim.limits;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.SharedMetricRegistries;
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 import com.openchat.secureim.controllers.RateLimitExceededException;
+import com.openchat.secureim.redis.LuaScript;
 import com.openchat.secureim.redis.ReplicatedJedisPool;
 import com.openchat.secureim.util.Constants;
-import com.openchat.secureim.util.SystemMapper;
+import com.openchat.secureim.util.Pair;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 
 import static com.codahale.metrics.MetricRegistry.name;
 import redis.clients.jedis.Jedis;
 
 public class RateLimiter {
 
-  private final Logger       logger = LoggerFactory.getLogger(RateLimiter.class);
-  private final ObjectMapper mapper = SystemMapper.getMapper();
-
   private   final Meter               meter;
   protected final ReplicatedJedisPool cacheClient;
   protected final String              name;
+  private   final LuaScript           validateScript;
   private   final int                 bucketSize;
   private   final double              leakRatePerMillis;
   private   final boolean             reportLimits;
+  private   final boolean             mirrorLegacyBucket;
 
-  public RateLimiter(ReplicatedJedisPool cacheClient, String name,
+  public RateLimiter(ReplicatedJedisPool cacheClient, LuaScript validateScript, String name,
                      int bucketSize, double leakRatePerMinute)
   {
-    this(cacheClient, name, bucketSize, leakRatePerMinute, false);
+    this(cacheClient, validateScript, name, bucketSize, leakRatePerMinute, false, false);
   }
 
-  public RateLimiter(ReplicatedJedisPool cacheClient, String name,
+  /**
+   * @param mirrorLegacyBucket keep the JSON bucket that servers from before
+   *                           validate_rate_limit.lua use in step with this one,
+   *                           while any of them are still running.
+   */
+  public RateLimiter(ReplicatedJedisPool cacheClient, LuaScript validateScript, String name,
                      int bucketSize, double leakRatePerMinute,
-                     boolean reportLimits)
+                     boolean reportLimits, boolean mirrorLegacyBucket)
   {
     MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
 
-    this.meter             = metricRegistry.meter(name(getClass(), name, "exceeded"));
-    this.cacheClient       = cacheClient;
-    this.name              = name;
-    this.bucketSize        = bucketSize;
-    this.leakRatePerMillis = leakRatePerMinute / (60.0 * 1000.0);
-    this.reportLimits      = reportLimits;
+    this.meter              = metricRegistry.meter(name(getClass(), name, "exceeded"));
+    this.cacheClient        = cacheClient;
+    this.validateScript     = validateScript;
+    this.name               = name;
+    this.bucketSize         = bucketSize;
+    this.leakRatePerMillis  = leakRatePerMinute / (60.0 * 1000.0);
+    this.reportLimits       = reportLimits;
+    this.mirrorLegacyBucket = mirrorLegacyBucket;
   }
 
-  public void validate(String key, int amount) throws RateLimitExceededException {
-    LeakyBucket bucket = getBucket(key);
+  public static LuaScript createValidateScript(ReplicatedJedisPool cacheClient) throws IOException {
+    return LuaScript.fromResource(cacheClient, "lua/validate_rate_limit.lua");
+  }
 
-    if (bucket.add(amount)) {
-      setBucket(key, bucket);
-    } else {
+  public void validate(String key, int amount) throws RateLimitExceededException {
+    if (acquire(key, amount, amount) == 0) {
       meter.mark();
       throw new RateLimitExceededException(key + " , " + amount);
     }
@@ -64,36 +74,80 @@ public class RateLimiter {
     validate(key, 1);
   }
 
-  public void clear(String key) {
-    try (Jedis jedis = cacheClient.getWriteResource()) {
-      jedis.del(getBucketName(key));
+  /**
+   * Takes one unit for each key, with every bucket checked in a single pipelined
+   * round trip.
+   *
+   * @return the keys that were over their limit.
+   */
+  public Set<String> validate(Collection<String> keys) {
+    List<String>                           ordered     = new ArrayList<>(new LinkedHashSet<>(keys));
+    List<Pair<List<byte[]>, List<byte[]>>> invocations = new ArrayList<>(ordered.size());
+    Set<String>                            exceeded    = new HashSet<>();
+
+    if (ordered.isEmpty()) {
+      return exceeded;
+    }
+
+    for (String key : ordered) {
+      invocations.add(getInvocation(key, 1, 1));
+    }
+
+    List<Object> results = validateScript.executeBatch(invocations);
+
+    for (int i=0;i<results.size();i++) {
+      if ((Long)results.get(i) == 0) {
+        meter.mark();
+        exceeded.add(ordered.get(i));
+      }
     }
+
+    return exceeded;
   }
 
-  private void setBucket(String key, LeakyBucket bucket) {
+  public void clear(String key) {
     try (Jedis jedis = cacheClient.getWriteResource()) {
-      String serialized = bucket.serialize(mapper);
-      jedis.setex(getBucketName(key), (int) Math.ceil((bucketSize / leakRatePerMillis) / 1000), serialized);
-    } catch (JsonProcessingException e) {
-      throw new IllegalArgumentException(e);
+      jedis.del(getBucketName(key), getLegacyBucketName(key));
     }
   }
 
-  private LeakyBucket getBucket(String key) {
-    try (Jedis jedis = cacheClient.getReadResource()) {
-      String serialized = jedis.get(getBucketName(key));
+  protected void markExceeded() {
+    meter.mark();
+  }
 
-      if (serialized != null) {
-        return LeakyBucket.fromSerialized(mapper, serialized);
-      }
-    } catch (IOException e) {
-      logger.warn("Deserialization error", e);
-    }
+  /**
+   * Leaks the bucket and takes between minimum and maximum units from it in a single
+   * script invocation, so concurrent checks from different nodes can't overdraw it.
+   *
+   * @return the number of units taken, or 0 if fewer than minimum were available.
+   */
+  protected int acquire(String key, int minimum, int maximum) {
+    Pair<List<byte[]>, List<byte[]>> invocation = getInvocation(key, minimum, maximum);
+    return ((Long)validateScript.execute(invocation.first(), invocation.second())).intValue();
+  }
+
+  private Pair<List<byte[]>, List<byte[]>> getInvocation(String key, int minimum, int maximum) {
+    List<byte[]> keys = Arrays.asList(getBucketName(key).getBytes(), getLegacyBucketName(key).getBytes());
+    List<byte[]> args = Arrays.asList(String.valueOf(bucketSize).getBytes(),
+                                      String.valueOf(leakRatePerMillis).getBytes(),
+                                      String.valueOf(System.currentTimeMillis()).getBytes(),
+                                      String.valueOf(minimum).getBytes(),
+                                      String.valueOf(maximum).getBytes(),
+                                      String.valueOf(getBucketTtlSeconds()).getBytes(),
+                                      (mirrorLegacyBucket ? "1" : "0").getBytes());
+
+    return new Pair<>(keys, args);
+  }
 
-    return new LeakyBucket(bucketSize, leakRatePerMillis);
+  private int getBucketTtlSeconds() {
+    return (int) Math.ceil((bucketSize / leakRatePerMillis) / 1000);
   }
 
   private String getBucketName(String key) {
+    return "leaky_bucket_hash::" + name + "::" + key;
+  }
+
+  private String getLegacyBucketName(String key) {
     return "leaky_bucket::" + name + "::" + key;
   }
 }
@@ -2,8 +2,12 @@ package com.openchat.secureim.limits;
 
 
 import com.openchat.secureim.configuration.RateLimitsConfiguration;
+import com.openchat.secureim.configuration.RateLimitsConfiguration.RateLimitConfiguration;
+import com.openchat.secureim.redis.LuaScript;
 import com.openchat.secureim.redis.ReplicatedJedisPool;
 
+import java.io.IOException;
+
 public class RateLimiters {
 
   private final RateLimiter smsDestinationLimiter;
@@ -15,6 +19,7 @@ public class RateLimiters {
   private final RateLimiter attachmentLimiter;
   private final RateLimiter contactsLimiter;
   private final RateLimiter preKeysLimiter;
+  private final RateLimiter preKeysBatchLimiter;
   private final RateLimiter messagesLimiter;
 
   private final RateLimiter allocateDeviceLimiter;
@@ -24,58 +29,24 @@ public class RateLimiters {
 
   private final RateLimiter profileLimiter;
 
-  public RateLimiters(RateLimitsConfiguration config, ReplicatedJedisPool cacheClient) {
-    this.smsDestinationLimiter = new RateLimiter(cacheClient, "smsDestination",
-                                                 config.getSmsDestination().getBucketSize(),
-                                                 config.getSmsDestination().getLeakRatePerMinute());
-
-    this.voiceDestinationLimiter = new RateLimiter(cacheClient, "voxDestination",
-                                                   config.getVoiceDestination().getBucketSize(),
-                                                   config.getVoiceDestination().getLeakRatePerMinute());
-
-    this.voiceDestinationDailyLimiter = new RateLimiter(cacheClient, "voxDestinationDaily",
-                                                        config.getVoiceDestinationDaily().getBucketSize(),
-                                                        config.getVoiceDestinationDaily().getLeakRatePerMinute());
-
-    this.verifyLimiter = new RateLimiter(cacheClient, "verify",
-                                         config.getVerifyNumber().getBucketSize(),
-                                         config.getVerifyNumber().getLeakRatePerMinute());
-
-    this.pinLimiter = new LockingRateLimiter(cacheClient, "pin",
-                                             config.getVerifyPin().getBucketSize(),
-                                             config.getVerifyPin().getLeakRatePerMinute());
-
-    this.attachmentLimiter = new RateLimiter(cacheClient, "attachmentCreate",
-                                             config.getAttachments().getBucketSize(),
-                                             config.getAttachments().getLeakRatePerMinute());
-
-    this.contactsLimiter = new RateLimiter(cacheClient, "contactsQuery",
-                                           config.getContactQueries().getBucketSize(),
-                                           config.getContactQueries().getLeakRatePerMinute());
-
-    this.preKeysLimiter = new RateLimiter(cacheClient, "prekeys",
-                                          config.getPreKeys().getBucketSize(),
-                                          config.getPreKeys().getLeakRatePerMinute());
-
-    this.messagesLimiter = new RateLimiter(cacheClient, "messages",
-                                           config.getMessages().getBucketSize(),
-                                           config.getMessages().getLeakRatePerMinute());
-
-    this.allocateDeviceLimiter = new RateLimiter(cacheClient, "allocateDevice",
-                                                 config.getAllocateDevice().getBucketSize(),
-                                                 config.getAllocateDevice().getLeakRatePerMinute());
-
-    this.verifyDeviceLimiter = new RateLimiter(cacheClient, "verifyDevice",
-                                               config.getVerifyDevice().getBucketSize(),
-                                               config.getVerifyDevice().getLeakRatePerMinute());
-
-    this.turnLimiter = new RateLimiter(cacheClient, "turnAllocate",
-                                       config.getTurnAllocations().getBucketSize(),
-                                       config.getTurnAllocations().getLeakRatePerMinute());
-
-    this.profileLimiter = new RateLimiter(cacheClient, "profile",
-                                          config.getProfile().getBucketSize(),
-                                          config.getProfile().getLeakRatePerMinute());
+  public RateLimiters(RateLimitsConfiguration config, ReplicatedJedisPool cacheClient) throws IOException {
+    LuaScript validateScript = RateLimiter.createValidateScript(cacheClient);
+    boolean   mirror         = config.isMirrorLegacyBuckets();
+
+    this.smsDestinationLimiter        = createLimiter(cacheClient, validateScript, mirror, "smsDestination", config.getSmsDestination());
+    this.voiceDestinationLimiter      = createLimiter(cacheClient, validateScript, mirror, "voxDestination", config.getVoiceDestination());
+    this.voiceDestinationDailyLimiter = createLimiter(cacheClient, validateScript, mirror, "voxDestinationDaily", config.getVoiceDestinationDaily());
+    this.verifyLimiter                = createLimiter(cacheClient, validateScript, mirror, "verify", config.getVerifyNumber());
+    this.pinLimiter                   = createLimiter(cacheClient, validateScript, mirror, "pin", config.getVerifyPin());
+    this.attachmentLimiter            = createLimiter(cacheClient, validateScript, mirror, "attachmentCreate", config.getAttachments());
+    this.contactsLimiter              = createLimiter(cacheClient, validateScript, mirror, "contactsQuery", config.getContactQueries());
+    this.preKeysLimiter               = createLimiter(cacheClient, validateScript, mirror, "prekeys", config.getPreKeys());
+    this.preKeysBatchLimiter          = createLimiter(cacheClient, validateScript, mirror, "prekeysBatch", config.getPreKeysBatch());
+    this.messagesLimiter              = createLimiter(cacheClient, validateScript, mirror, "messages", config.getMessages());
+    this.allocateDeviceLimiter        = createLimiter(cacheClient, validateScript, mirror, "allocateDevice", config.getAllocateDevice());
+    this.verifyDeviceLimiter          = createLimiter(cacheClient, validateScript, mirror, "verifyDevice", config.getVerifyDevice());
+    this.turnLimiter                  = createLimiter(cacheClient, validateScript, mirror, "turnAllocate", config.getTurnAllocations());
+    this.profileLimiter               = createLimiter(cacheClient, validateScript, mirror, "profile", config.getProfile());
   }
 
   public RateLimiter getAllocateDeviceLimiter() {
@@ -94,6 +65,10 @@ public class RateLimiters {
     return preKeysLimiter;
   }
 
+  public RateLimiter getPreKeysBatchLimiter() {
+    return preKeysBatchLimiter;
+  }
+
   public RateLimiter getContactsLimiter() {
     return contactsLimiter;
   }
@@ -130,4 +105,17 @@ public class RateLimiters {
     return profileLimiter;
   }
 
+  private static RateLimiter createLimiter(ReplicatedJedisPool cacheClient, LuaScript validateScript, boolean mirror,
+                                           String name, RateLimitConfiguration config)
+  {
+    if (config.getLocalPrefetch() > 0) {
+      return new PrefetchingRateLimiter(cacheClient, validateScript, name,
+                                        config.getBucketSize(), config.getLeakRatePerMinute(),
+                                        config.getLocalPrefetch(), config.getLocalPrefetchTtlMillis(), mirror);
+    } else {
+      return new RateLimiter(cacheClient, validateScript, name,
+                             config.getBucketSize(), config.getLeakRatePerMinute(), false, mirror);
+    }
+  }
+
 }
@@ -4,13 +4,16 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import com.openchat.dispatch.io.RedisPubSubConnectionFactory;
 import com.openchat.dispatch.redis.PubSubConnection;
+import com.openchat.secureim.configuration.RedisConfiguration;
+import com.openchat.secureim.redis.ReplicaPool;
 import com.openchat.secureim.redis.ReplicatedJedisPool;
 import com.openchat.secureim.util.Util;
 
 import java.io.IOException;
-import java.net.Socket;
+import java.net.InetSocketAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.channels.SocketChannel;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -27,6 +30,14 @@ public class RedisClientFactory implements RedisPubSubConnectionFactory {
   private final ReplicatedJedisPool jedisPool;
 
   public RedisClientFactory(String url, List<String> replicaUrls) throws URISyntaxException {
+    this(new URI(url).getHost(), url, replicaUrls, false);
+  }
+
+  public RedisClientFactory(String name, RedisConfiguration configuration) throws URISyntaxException {
+    this(name, configuration.getUrl(), configuration.getReplicaUrls(), configuration.isHedgedReads());
+  }
+
+  public RedisClientFactory(String name, String url, List<String> replicaUrls, boolean hedgedReads) throws URISyntaxException {
     JedisPoolConfig poolConfig = new JedisPoolConfig();
     poolConfig.setTestOnBorrow(true);
 
@@ -41,13 +52,10 @@ public class RedisClientFactory implements RedisPubSubConnectionFactory {
     for (String replicaUrl : replicaUrls) {
       URI replicaURI = new URI(replicaUrl);
 
-      replicaPools.add(new JedisPool(poolConfig, replicaURI.getHost(), replicaURI.getPort(),
-                                     500, Protocol.DEFAULT_TIMEOUT, null,
-                                     Protocol.DEFAULT_DATABASE, null, false, null ,
-                                     null, null));
+      replicaPools.add(new ReplicaPool(name, poolConfig, replicaURI.getHost(), replicaURI.getPort()));
     }
 
-    this.jedisPool = new ReplicatedJedisPool(masterPool, replicaPools);
+    this.jedisPool = new ReplicatedJedisPool(masterPool, replicaPools, hedgedReads);
   }
 
   public ReplicatedJedisPool getRedisClientPool() {
@@ -58,8 +66,8 @@ public class RedisClientFactory implements RedisPubSubConnectionFactory {
   public PubSubConnection connect() {
     while (true) {
       try {
-        Socket socket = new Socket(host, port);
-        return new PubSubConnection(socket);
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+        return new PubSubConnection(channel);
       } catch (IOException e) {
         logger.warn("Error connecting", e);
         Util.sleep(200);
@@ -7,7 +7,8 @@ import com.codahale.metrics.SharedMetricRegistries;
 import com.google.common.base.Optional;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import com.openchat.secureim.redis.LuaScript;
+import com.openchat.secureim.configuration.ApnFallbackConfiguration;
+import com.openchat.secureim.redis.DelayedTaskScheduler;
 import com.openchat.secureim.redis.RedisException;
 import com.openchat.secureim.redis.ReplicatedJedisPool;
 import com.openchat.secureim.storage.Account;
@@ -15,26 +16,22 @@ import com.openchat.secureim.storage.AccountsManager;
 import com.openchat.secureim.storage.Device;
 import com.openchat.secureim.util.Constants;
 import com.openchat.secureim.util.Pair;
-import com.openchat.secureim.util.Util;
 
 import java.io.IOException;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.List;
-import java.util.concurrent.atomic.AtomicBoolean;
 
 import static com.codahale.metrics.MetricRegistry.name;
 import io.dropwizard.lifecycle.Managed;
-import redis.clients.jedis.Jedis;
 import redis.clients.jedis.exceptions.JedisException;
 
 @SuppressWarnings("Guava")
-public class ApnFallbackManager implements Managed, Runnable {
+public class ApnFallbackManager implements Managed, DelayedTaskScheduler.Handler {
 
   private static final Logger logger = LoggerFactory.getLogger(ApnFallbackManager.class);
 
   private static final String PENDING_NOTIFICATIONS_KEY = "PENDING_APN";
 
+  private static final long RETRY_INTERVAL_MILLIS = 15 * 1000;
+
   private static final MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
   private static final Meter          delivered      = metricRegistry.meter(name(ApnFallbackManager.class, "voip_delivered"));
   private static final Meter          sent           = metricRegistry.meter(name(ApnFallbackManager.class, "voip_sent"     ));
@@ -44,35 +41,30 @@ public class ApnFallbackManager implements Managed, Runnable {
     metricRegistry.register(name(ApnFallbackManager.class, "voip_ratio"), new VoipRatioGauge(delivered, sent));
   }
 
-  private final APNSender       apnSender;
-  private final AccountsManager accountsManager;
-
-  private final ReplicatedJedisPool jedisPool;
-  private final InsertOperation     insertOperation;
-  private final GetOperation        getOperation;
-  private final RemoveOperation     removeOperation;
-
-
-  private AtomicBoolean running = new AtomicBoolean(false);
-  private boolean finished;
+  private final APNSender            apnSender;
+  private final AccountsManager      accountsManager;
+  private final DelayedTaskScheduler scheduler;
 
   public ApnFallbackManager(ReplicatedJedisPool jedisPool,
                             APNSender apnSender,
-                            AccountsManager accountsManager)
+                            AccountsManager accountsManager,
+                            ApnFallbackConfiguration configuration)
       throws IOException
   {
     this.apnSender       = apnSender;
     this.accountsManager = accountsManager;
-    this.jedisPool       = jedisPool;
-    this.insertOperation = new InsertOperation(jedisPool);
-    this.getOperation    = new GetOperation(jedisPool);
-    this.removeOperation = new RemoveOperation(jedisPool);
+    this.scheduler       = new DelayedTaskScheduler(jedisPool, PENDING_NOTIFICATIONS_KEY, this,
+                                                    configuration.getShards(),
+                                                    configuration.getTickMillis(),
+                                                    configuration.getRefreshMillis(),
+                                                    configuration.getWorkers(),
+                                                    configuration.getLoadLimit());
   }
 
   public void schedule(Account account, Device device) throws RedisException {
     try {
       sent.mark();
-      insertOperation.insert(account, device, System.currentTimeMillis() + (15 * 1000), (15 * 1000));
+      scheduler.schedule(getEndpoint(account.getNumber(), device.getId()), RETRY_INTERVAL_MILLIS);
     } catch (JedisException e) {
       throw new RedisException(e);
     }
@@ -80,11 +72,7 @@ public class ApnFallbackManager implements Managed, Runnable {
 
   public boolean isScheduled(Account account, Device device) throws RedisException {
     try {
-      String endpoint = "apn_device::" + account.getNumber() + "::" + device.getId();
-
-      try (Jedis jedis = jedisPool.getReadResource()) {
-        return jedis.zscore(PENDING_NOTIFICATIONS_KEY, endpoint) != null;
-      }
+      return scheduler.isScheduled(getEndpoint(account.getNumber(), device.getId()));
     } catch (JedisException e) {
       throw new RedisException(e);
     }
@@ -92,7 +80,7 @@ public class ApnFallbackManager implements Managed, Runnable {
 
   public void cancel(Account account, Device device) throws RedisException {
     try {
-      if (removeOperation.remove(account, device)) {
+      if (scheduler.cancel(getEndpoint(account.getNumber(), device.getId()))) {
         delivered.mark();
       }
     } catch (JedisException e) {
@@ -101,150 +89,69 @@ public class ApnFallbackManager implements Managed, Runnable {
   }
 
   @Override
-  public synchronized void start() {
-    running.set(true);
-    new Thread(this).start();
+  public void start() throws Exception {
+    scheduler.start();
   }
 
   @Override
-  public synchronized void stop() {
-    running.set(false);
-    while (!finished) Util.wait(this);
+  public void stop() throws Exception {
+    scheduler.stop();
   }
 
   @Override
-  public void run() {
-    while (running.get()) {
-      try {
-        List<byte[]> pendingNotifications = getOperation.getPending(100);
-
-        for (byte[] pendingNotification : pendingNotifications) {
-          String                       numberAndDevice = new String(pendingNotification);
-          Optional<Pair<String, Long>> separated       = getSeparated(numberAndDevice);
+  public Optional<Long> onTaskDue(String endpoint) {
+    Optional<Pair<String, Long>> separated = getSeparated(endpoint);
 
-          if (!separated.isPresent()) {
-            removeOperation.remove(numberAndDevice);
-            continue;
-          }
-
-          Optional<Account> account = accountsManager.get(separated.get().first());
+    if (!separated.isPresent()) {
+      return Optional.absent();
+    }
 
-          if (!account.isPresent()) {
-            removeOperation.remove(numberAndDevice);
-            continue;
-          }
+    Optional<Account> account = accountsManager.get(separated.get().first());
 
-          Optional<Device> device = account.get().getDevice(separated.get().second());
+    if (!account.isPresent()) {
+      return Optional.absent();
+    }
 
-          if (!device.isPresent()) {
-            removeOperation.remove(numberAndDevice);
-            continue;
-          }
+    Optional<Device> device = account.get().getDevice(separated.get().second());
 
-          String apnId = device.get().getVoipApnId();
+    if (!device.isPresent()) {
+      return Optional.absent();
+    }
 
-          if (apnId == null) {
-            removeOperation.remove(account.get(), device.get());
-            continue;
-          }
+    String apnId = device.get().getVoipApnId();
 
-          apnSender.sendMessage(new ApnMessage(apnId, separated.get().first(), separated.get().second(), true));
-          retry.mark();
-        }
+    if (apnId == null) {
+      return Optional.absent();
+    }
 
-      } catch (Exception e) {
-        logger.warn("Exception while operating", e);
-      }
+    apnSender.sendMessage(new ApnMessage(apnId, separated.get().first(), separated.get().second(), true));
+    retry.mark();
 
-      Util.sleep(1000);
-    }
+    return Optional.of(RETRY_INTERVAL_MILLIS);
+  }
 
-    synchronized (ApnFallbackManager.this) {
-      finished = true;
-      notifyAll();
-    }
+  private String getEndpoint(String number, long deviceId) {
+    return "apn_device::" + number + "::" + deviceId;
   }
 
   private Optional<Pair<String, Long>> getSeparated(String encoded) {
     try {
       if (encoded == null) return Optional.absent();
 
-      String[] parts = encoded.split(":");
+      String[] parts = encoded.split("::");
 
-      if (parts.length != 2) {
+      if (parts.length != 3) {
         logger.warn("Got strange encoded number: " + encoded);
         return Optional.absent();
       }
 
-      return Optional.of(new Pair<>(parts[0], Long.parseLong(parts[1])));
+      return Optional.of(new Pair<>(parts[1], Long.parseLong(parts[2])));
     } catch (NumberFormatException e) {
       logger.warn("Badly formatted: " + encoded, e);
       return Optional.absent();
     }
   }
 
-  private static class RemoveOperation {
-
-    private final LuaScript luaScript;
-
-    RemoveOperation(ReplicatedJedisPool jedisPool) throws IOException {
-      this.luaScript = LuaScript.fromResource(jedisPool, "lua/apn/remove.lua");
-    }
-
-    boolean remove(Account account, Device device) {
-      String endpoint = "apn_device::" + account.getNumber() + "::" + device.getId();
-      return remove(endpoint);
-    }
-
-    boolean remove(String endpoint) {
-      if (!PENDING_NOTIFICATIONS_KEY.equals(endpoint)) {
-        List<byte[]> keys = Arrays.asList(PENDING_NOTIFICATIONS_KEY.getBytes(), endpoint.getBytes());
-        List<byte[]> args = Collections.emptyList();
-
-        return ((long)luaScript.execute(keys, args)) > 0;
-      }
-
-      return false;
-    }
-
-  }
-
-  private static class GetOperation {
-
-    private final LuaScript luaScript;
-
-    GetOperation(ReplicatedJedisPool jedisPool) throws IOException {
-      this.luaScript = LuaScript.fromResource(jedisPool, "lua/apn/get.lua");
-    }
-
-    @SuppressWarnings("SameParameterValue")
-    List<byte[]> getPending(int limit) {
-      List<byte[]> keys = Arrays.asList(PENDING_NOTIFICATIONS_KEY.getBytes());
-      List<byte[]> args = Arrays.asList(String.valueOf(System.currentTimeMillis()).getBytes(), String.valueOf(limit).getBytes());
-
-      return (List<byte[]>) luaScript.execute(keys, args);
-    }
-  }
-
-  private static class InsertOperation {
-
-    private final LuaScript luaScript;
-
-    InsertOperation(ReplicatedJedisPool jedisPool) throws IOException {
-      this.luaScript = LuaScript.fromResource(jedisPool, "lua/apn/insert.lua");
-    }
-
-    public void insert(Account account, Device device, long timestamp, long interval) {
-      String endpoint = "apn_device::" + account.getNumber() + "::" + device.getId();
-
-      List<byte[]> keys = Arrays.asList(PENDING_NOTIFICATIONS_KEY.getBytes(), endpoint.getBytes());
-      List<byte[]> args = Arrays.asList(String.valueOf(timestamp).getBytes(), String.valueOf(interval).getBytes(),
-                                        account.getNumber().getBytes(), String.valueOf(device.getId()).getBytes());
-
-      luaScript.execute(keys, args);
-    }
-  }
-
   private static class VoipRatioGauge extends RatioGauge {
 
     private final Meter success;
@@ -0,0 +1,31 @@
+package com.openchat.secureim.push;
+
+import com.openchat.secureim.storage.Account;
+import com.openchat.secureim.storage.Device;
+
+import static com.openchat.secureim.entities.MessageProtos.Envelope;
+
+public class DeviceMessage {
+
+  private final Account  account;
+  private final Device   device;
+  private final Envelope envelope;
+
+  public DeviceMessage(Account account, Device device, Envelope envelope) {
+    this.account  = account;
+    this.device   = device;
+    this.envelope = envelope;
+  }
+
+  public Account getAccount() {
+    return account;
+  }
+
+  public Device getDevice() {
+    return device;
+  }
+
+  public Envelope getEnvelope() {
+    return envelope;
+  }
+}
@@ -13,6 +13,7 @@ import org.slf4j.LoggerFactory;
 import com.openchat.messaging.server.Message;
 import com.openchat.messaging.server.Result;
 import com.openchat.messaging.server.Sender;
+import com.openchat.secureim.configuration.GcmConfiguration;
 import com.openchat.secureim.sqs.DirectoryQueue;
 import com.openchat.secureim.storage.Account;
 import com.openchat.secureim.storage.AccountsManager;
@@ -50,9 +51,14 @@ public class GCMSender implements Managed {
   private final DirectoryQueue    directoryQueue;
   private       ExecutorService   executor;
 
-  public GCMSender(AccountsManager accountsManager, String signalKey, DirectoryQueue directoryQueue) {
+  public GCMSender(AccountsManager accountsManager, GcmConfiguration configuration, DirectoryQueue directoryQueue) {
     this.accountsManager = accountsManager;
-    this.signalSender    = new Sender(signalKey, 50);
+    this.signalSender    = Sender.newBuilder(configuration.getApiKey())
+                                 .withRetryCount(50)
+                                 .withMaxConnections(Math.max(100, configuration.getMaxConnectionsPerRoute()),
+                                                     configuration.getMaxConnectionsPerRoute())
+                                 .withBatching(configuration.getMulticastSize(), configuration.getMulticastDelayMillis())
+                                 .build();
     this.directoryQueue  = directoryQueue;
   }
 
@@ -0,0 +1,122 @@
+package com.openchat.secureim.push;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.openchat.secureim.util.Constants;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Collapses the "you have mail" notifications for a device into at most one
+ * push per window.
+ *
+ * The first notification for a device is sent immediately and opens a window.
+ * Notifications that arrive while the window is open are dropped, except that
+ * when the window closes one more push is sent (and a new window opened) if
+ * any were dropped, so a message that lands after the device has already
+ * fetched its queue still gets a push.
+ */
+public class NotificationCoalescer {
+
+  private static final Logger logger = LoggerFactory.getLogger(NotificationCoalescer.class);
+
+  private static final MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
+  private static final Meter          sentMeter      = metricRegistry.meter(name(NotificationCoalescer.class, "sent"     ));
+  private static final Meter          coalescedMeter = metricRegistry.meter(name(NotificationCoalescer.class, "coalesced"));
+
+  private final ConcurrentHashMap<String, Window> windows = new ConcurrentHashMap<>();
+
+  private final ScheduledExecutorService scheduler;
+  private final Executor                 executor;
+  private final long                     windowMillis;
+
+  public NotificationCoalescer(Executor executor, long windowMillis) {
+    this.scheduler    = Executors.newSingleThreadScheduledExecutor();
+    this.executor     = executor;
+    this.windowMillis = windowMillis;
+  }
+
+  public void notify(String number, long deviceId, Runnable notification) {
+    String key = number + "." + deviceId;
+
+    while (true) {
+      Window window = windows.get(key);
+
+      if (window == null) {
+        window = new Window();
+
+        if (windows.putIfAbsent(key, window) == null) {
+          send(notification);
+          schedule(key, window);
+          return;
+        }
+
+        continue;
+      }
+
+      synchronized (window) {
+        if (!window.closed) {
+          window.trailing = notification;
+          coalescedMeter.mark();
+          return;
+        }
+      }
+
+      windows.remove(key, window);
+    }
+  }
+
+  public void shutdown() {
+    scheduler.shutdownNow();
+  }
+
+  private void schedule(final String key, final Window window) {
+    try {
+      scheduler.schedule(() -> close(key, window), windowMillis, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      logger.warn("Coalescer shut down, closing window", e);
+      close(key, window);
+    }
+  }
+
+  private void close(String key, Window window) {
+    Runnable trailing;
+
+    synchronized (window) {
+      trailing        = window.trailing;
+      window.trailing = null;
+      window.closed   = trailing == null;
+    }
+
+    if (trailing == null) {
+      windows.remove(key, window);
+    } else {
+      executor.execute(() -> send(trailing));
+      schedule(key, window);
+    }
+  }
+
+  private void send(Runnable notification) {
+    try {
+      notification.run();
+      sentMeter.mark();
+    } catch (Exception e) {
+      logger.warn("Notification failed", e);
+    }
+  }
+
+  private static class Window {
+    private Runnable trailing;
+    private boolean  closed;
+  }
+}
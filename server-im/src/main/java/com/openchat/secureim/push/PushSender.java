@@ -1,6 +1,8 @@
 package com.openchat.secureim.push;
 
 import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.SharedMetricRegistries;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -8,10 +10,12 @@ import com.openchat.secureim.push.WebsocketSender.DeliveryStatus;
 import com.openchat.secureim.redis.RedisOperation;
 import com.openchat.secureim.storage.Account;
 import com.openchat.secureim.storage.Device;
-import com.openchat.secureim.util.BlockingThreadPoolExecutor;
 import com.openchat.secureim.util.Constants;
 import com.openchat.secureim.util.Util;
 
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 import static com.codahale.metrics.MetricRegistry.name;
@@ -23,33 +27,47 @@ public class PushSender implements Managed {
   @SuppressWarnings("unused")
   private final Logger logger = LoggerFactory.getLogger(PushSender.class);
 
-  private final ApnFallbackManager         apnFallbackManager;
-  private final GCMSender                  gcmSender;
-  private final APNSender                  apnSender;
-  private final WebsocketSender            webSocketSender;
-  private final BlockingThreadPoolExecutor executor;
-  private final int                        queueSize;
+  private static final MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
+  private static final Meter          inlineMeter    = metricRegistry.meter(name(PushSender.class, "send_queue_full_inline"));
+
+  private final ApnFallbackManager    apnFallbackManager;
+  private final GCMSender             gcmSender;
+  private final APNSender             apnSender;
+  private final WebsocketSender       webSocketSender;
+  private final ThreadPoolExecutor    executor;
+  private final NotificationCoalescer coalescer;
+  private final int                   queueSize;
+  private final long                  coalesceWindowMillis;
 
   public PushSender(ApnFallbackManager apnFallbackManager,
                     GCMSender gcmSender, APNSender apnSender,
-                    WebsocketSender websocketSender, int queueSize)
+                    WebsocketSender websocketSender, int queueSize,
+                    long coalesceWindowMillis)
   {
-    this.apnFallbackManager = apnFallbackManager;
-    this.gcmSender          = gcmSender;
-    this.apnSender          = apnSender;
-    this.webSocketSender    = websocketSender;
-    this.queueSize          = queueSize;
-    this.executor           = new BlockingThreadPoolExecutor(50, queueSize);
-
-    SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME)
-                          .register(name(PushSender.class, "send_queue_depth"),
-                                    (Gauge<Integer>) executor::getSize);
+    this.apnFallbackManager   = apnFallbackManager;
+    this.gcmSender            = gcmSender;
+    this.apnSender            = apnSender;
+    this.webSocketSender      = websocketSender;
+    this.queueSize            = queueSize;
+    this.coalesceWindowMillis = coalesceWindowMillis;
+    this.executor             = new ThreadPoolExecutor(50, 50, 1, TimeUnit.SECONDS,
+                                                       new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)),
+                                                       (task, pool) -> {
+                                                         // Never park a request thread; the envelope still has
+                                                         // to be delivered or stored, so do it inline instead.
+                                                         inlineMeter.mark();
+                                                         task.run();
+                                                       });
+    this.coalescer            = new NotificationCoalescer(executor, coalesceWindowMillis);
+
+    metricRegistry.register(name(PushSender.class, "send_queue_depth"),
+                            (Gauge<Integer>) () -> executor.getQueue().size());
   }
 
   public void sendMessage(final Account account, final Device device, final Envelope message)
       throws NotPushRegisteredException
   {
-    if (device.getGcmId() == null && device.getApnId() == null && !device.getFetchesMessages()) {
+    if (!isDeliverable(device)) {
       throw new NotPushRegisteredException("No delivery possible!");
     }
 
@@ -60,6 +78,27 @@ public class PushSender implements Managed {
     }
   }
 
+  /**
+   * Sends many messages at once, with their websocket deliveries and cache inserts
+   * batched into a few redis round trips, then notifies each offline device the
+   * same way {@link #sendMessage} would.  Every device must be deliverable.
+   */
+  public void sendMessages(final List<DeviceMessage> messages) {
+    if (messages.isEmpty()) {
+      return;
+    }
+
+    if (queueSize > 0) {
+      executor.execute(() -> sendSynchronousMessages(messages));
+    } else {
+      sendSynchronousMessages(messages);
+    }
+  }
+
+  public static boolean isDeliverable(Device device) {
+    return device.getGcmId() != null || device.getApnId() != null || device.getFetchesMessages();
+  }
+
   public void sendQueuedNotification(Account account, Device device)
       throws NotPushRegisteredException
   {
@@ -79,11 +118,31 @@ public class PushSender implements Managed {
     else                                  throw new AssertionError();
   }
 
+  private void sendSynchronousMessages(List<DeviceMessage> messages) {
+    List<DeliveryStatus> deliveryStatuses = webSocketSender.sendMessages(messages);
+
+    for (int i=0;i<messages.size();i++) {
+      final Account  account = messages.get(i).getAccount();
+      final Device   device  = messages.get(i).getDevice();
+      final Envelope message = messages.get(i).getEnvelope();
+
+      if (deliveryStatuses.get(i).isDelivered()) {
+        continue;
+      }
+
+      if (device.getGcmId() != null) {
+        coalesce(account, device, () -> sendGcmNotification(account, device));
+      } else if (device.getApnId() != null && message.getType() != Envelope.Type.RECEIPT) {
+        coalesce(account, device, () -> sendApnNotification(account, device, false));
+      }
+    }
+  }
+
   private void sendGcmMessage(Account account, Device device, Envelope message) {
     DeliveryStatus deliveryStatus = webSocketSender.sendMessage(account, device, message, WebsocketSender.Type.GCM);
 
     if (!deliveryStatus.isDelivered()) {
-      sendGcmNotification(account, device);
+      coalesce(account, device, () -> sendGcmNotification(account, device));
     }
   }
 
@@ -98,7 +157,7 @@ public class PushSender implements Managed {
     DeliveryStatus deliveryStatus = webSocketSender.sendMessage(account, device, outgoingMessage, WebsocketSender.Type.APN);
 
     if (!deliveryStatus.isDelivered() && outgoingMessage.getType() != Envelope.Type.RECEIPT) {
-      sendApnNotification(account, device, false);
+      coalesce(account, device, () -> sendApnNotification(account, device, false));
     }
   }
 
@@ -119,6 +178,11 @@ public class PushSender implements Managed {
     apnSender.sendMessage(apnMessage);
   }
 
+  private void coalesce(Account account, Device device, Runnable notification) {
+    if (coalesceWindowMillis > 0) coalescer.notify(account.getNumber(), device.getId(), notification);
+    else                          notification.run();
+  }
+
   private void sendWebSocketMessage(Account account, Device device, Envelope outgoingMessage)
   {
     webSocketSender.sendMessage(account, device, outgoingMessage, WebsocketSender.Type.WEB);
@@ -132,6 +196,7 @@ public class PushSender implements Managed {
 
   @Override
   public void stop() throws Exception {
+    coalescer.shutdown();
     executor.shutdown();
     executor.awaitTermination(5, TimeUnit.MINUTES);
 
@@ -0,0 +1,209 @@
+package com.openchat.secureim.push;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.google.common.base.Optional;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.openchat.secureim.entities.MessageProtos.Envelope;
+import com.openchat.secureim.storage.Account;
+import com.openchat.secureim.storage.AccountsManager;
+import com.openchat.secureim.storage.Device;
+import com.openchat.secureim.util.Constants;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Buffers delivery receipts for a short window and sends them in batches.
+ *
+ * Within a window, receipts from one device to the same original sender are
+ * grouped together (duplicates dropped), every sender's account is looked up
+ * with a single batched read, and all resulting envelopes go out through
+ * {@link PushSender#sendMessages}, so a device draining a large backlog costs
+ * a handful of lookups and redis round trips rather than several per message.
+ *
+ * A window is flushed early once a full batch is waiting.  At most maxPending
+ * receipts are buffered; beyond that {@link #add} refuses them, and the caller
+ * sends them directly instead.
+ */
+public class ReceiptAggregator {
+
+  private static final Logger logger = LoggerFactory.getLogger(ReceiptAggregator.class);
+
+  private static final MetricRegistry metricRegistry        = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
+  private static final Histogram      batchSizeHistogram    = metricRegistry.histogram(name(ReceiptAggregator.class, "batch_size"        ));
+  private static final Histogram      batchSendersHistogram = metricRegistry.histogram(name(ReceiptAggregator.class, "batch_senders"     ));
+  private static final Histogram      groupSizeHistogram    = metricRegistry.histogram(name(ReceiptAggregator.class, "receipts_per_group"));
+  private static final Meter          unknownSenderMeter    = metricRegistry.meter(name(ReceiptAggregator.class, "unknown_sender"));
+  private static final Meter          fullMeter             = metricRegistry.meter(name(ReceiptAggregator.class, "buffer_full"));
+
+  private final AccountsManager          accountsManager;
+  private final PushSender               pushSender;
+  private final long                     windowMillis;
+  private final int                      batchSize;
+  private final int                      maxPending;
+  private final ScheduledExecutorService scheduler;
+
+  private List<Receipt> pending        = new ArrayList<>();
+  private boolean       flushScheduled = false;
+
+  public ReceiptAggregator(AccountsManager accountsManager, PushSender pushSender, long windowMillis,
+                           int batchSize, int maxPending)
+  {
+    this.accountsManager = accountsManager;
+    this.pushSender      = pushSender;
+    this.windowMillis    = windowMillis;
+    this.batchSize       = batchSize;
+    this.maxPending      = maxPending;
+    this.scheduler       = Executors.newSingleThreadScheduledExecutor();
+  }
+
+  /**
+   * @return false if the buffer is full and the receipt wasn't taken.
+   */
+  public boolean add(String source, long sourceDevice, Optional<String> relay, String destination, long timestamp) {
+    boolean flushNow;
+
+    synchronized (this) {
+      if (pending.size() >= maxPending) {
+        fullMeter.mark();
+        return false;
+      }
+
+      pending.add(new Receipt(source, sourceDevice, relay, destination, timestamp));
+
+      flushNow = pending.size() >= batchSize && !flushScheduled;
+      if (flushNow) flushScheduled = true;
+    }
+
+    if (flushNow) {
+      try {
+        scheduler.execute(this::flush);
+      } catch (RejectedExecutionException e) {
+        // Shutting down; whatever is pending is flushed by stop().
+      }
+    }
+
+    return true;
+  }
+
+  public void start() {
+    scheduler.scheduleWithFixedDelay(this::flush, windowMillis, windowMillis, TimeUnit.MILLISECONDS);
+  }
+
+  public void stop() throws InterruptedException {
+    scheduler.shutdown();
+    scheduler.awaitTermination(1, TimeUnit.MINUTES);
+    flush();
+  }
+
+  private void flush() {
+    try {
+      List<Receipt> receipts;
+
+      synchronized (this) {
+        if (pending.isEmpty()) return;
+
+        receipts       = pending;
+        pending        = new ArrayList<>();
+        flushScheduled = false;
+      }
+
+      batchSizeHistogram.update(receipts.size());
+
+      Map<String, Map<String, Group>> groups = new LinkedHashMap<>();
+
+      for (Receipt receipt : receipts) {
+        groups.computeIfAbsent(receipt.destination, destination -> new LinkedHashMap<>())
+              .computeIfAbsent(receipt.source + "." + receipt.sourceDevice, key -> new Group(receipt))
+              .timestamps.add(receipt.timestamp);
+      }
+
+      batchSendersHistogram.update(groups.size());
+
+      Map<String, Account> senders  = accountsManager.get(groups.keySet());
+      List<DeviceMessage>  messages = new ArrayList<>(receipts.size());
+
+      for (Map.Entry<String, Map<String, Group>> destination : groups.entrySet()) {
+        Account sender = senders.get(destination.getKey());
+
+        if (sender == null) {
+          unknownSenderMeter.mark();
+          continue;
+        }
+
+        for (Group group : destination.getValue().values()) {
+          groupSizeHistogram.update(group.timestamps.size());
+
+          for (long timestamp : group.timestamps) {
+            Envelope envelope = getEnvelope(group.first, timestamp);
+
+            for (Device device : sender.getDevices()) {
+              if (PushSender.isDeliverable(device)) {
+                messages.add(new DeviceMessage(sender, device, envelope));
+              }
+            }
+          }
+        }
+      }
+
+      for (int i=0;i<messages.size();i+=batchSize) {
+        pushSender.sendMessages(messages.subList(i, Math.min(messages.size(), i + batchSize)));
+      }
+    } catch (Throwable t) {
+      logger.warn("Failed to send receipt batch", t);
+    }
+  }
+
+  private Envelope getEnvelope(Receipt receipt, long timestamp) {
+    Envelope.Builder envelope = Envelope.newBuilder()
+                                        .setSource(receipt.source)
+                                        .setSourceDevice((int)receipt.sourceDevice)
+                                        .setTimestamp(timestamp)
+                                        .setType(Envelope.Type.RECEIPT);
+
+    if (receipt.relay.isPresent()) {
+      envelope.setRelay(receipt.relay.get());
+    }
+
+    return envelope.build();
+  }
+
+  private static class Group {
+    private final Receipt   first;
+    private final Set<Long> timestamps = new LinkedHashSet<>();
+
+    private Group(Receipt first) {
+      this.first = first;
+    }
+  }
+
+  private static class Receipt {
+    private final String           source;
+    private final long             sourceDevice;
+    private final Optional<String> relay;
+    private final String           destination;
+    private final long             timestamp;
+
+    private Receipt(String source, long sourceDevice, Optional<String> relay, String destination, long timestamp) {
+      this.source       = source;
+      this.sourceDevice = sourceDevice;
+      this.relay        = relay;
+      this.destination  = destination;
+      this.timestamp    = timestamp;
+    }
+  }
+}
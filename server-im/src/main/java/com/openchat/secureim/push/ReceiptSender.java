@@ -12,19 +12,44 @@ import com.openchat.secureim.storage.Device;
 import java.io.IOException;
 import java.util.Set;
 
-public class ReceiptSender {
+import io.dropwizard.lifecycle.Managed;
 
-  private final PushSender             pushSender;
-  private final FederatedClientManager federatedClientManager;
-  private final AccountsManager        accountManager;
+public class ReceiptSender implements Managed {
+
+  private final PushSender                  pushSender;
+  private final FederatedClientManager      federatedClientManager;
+  private final AccountsManager             accountManager;
+  private final Optional<ReceiptAggregator> aggregator;
 
   public ReceiptSender(AccountsManager        accountManager,
                        PushSender             pushSender,
                        FederatedClientManager federatedClientManager)
+  {
+    this(accountManager, pushSender, federatedClientManager, 0, 0, 0);
+  }
+
+  /**
+   * @param batchWindowMillis how long to buffer direct receipts so they can be
+   *                          sent in batches, or 0 to send each immediately.
+   * @param maxPending        the most receipts to buffer; beyond that they're
+   *                          sent immediately.
+   */
+  public ReceiptSender(AccountsManager        accountManager,
+                       PushSender             pushSender,
+                       FederatedClientManager federatedClientManager,
+                       long                   batchWindowMillis,
+                       int                    batchSize,
+                       int                    maxPending)
   {
     this.federatedClientManager = federatedClientManager;
     this.accountManager         = accountManager;
     this.pushSender             = pushSender;
+
+    if (batchWindowMillis > 0) {
+      this.aggregator = Optional.of(new ReceiptAggregator(accountManager, pushSender, batchWindowMillis, batchSize, maxPending));
+    } else {
+      this.aggregator = Optional.absent();
+    }
   }
 
   public void sendReceipt(Account source, String destination,
@@ -38,11 +63,28 @@ public class ReceiptSender {
 
     if (relay.isPresent() && !relay.get().isEmpty()) {
       sendRelayedReceipt(source, destination, messageId, relay.get());
-    } else {
+    } else if (!aggregator.isPresent() ||
+               !aggregator.get().add(source.getNumber(), source.getAuthenticatedDevice().get().getId(),
+                                     source.getRelay(), destination, messageId))
+    {
       sendDirectReceipt(source, destination, messageId);
     }
   }
 
+  @Override
+  public void start() throws Exception {
+    if (aggregator.isPresent()) {
+      aggregator.get().start();
+    }
+  }
+
+  @Override
+  public void stop() throws Exception {
+    if (aggregator.isPresent()) {
+      aggregator.get().stop();
+    }
+  }
+
   private void sendRelayedReceipt(Account source, String destination, long messageId, String relay)
       throws NoSuchUserException, IOException
   {
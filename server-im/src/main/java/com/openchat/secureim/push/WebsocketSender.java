@@ -9,11 +9,17 @@ import org.slf4j.LoggerFactory;
 import com.openchat.secureim.storage.Account;
 import com.openchat.secureim.storage.Device;
 import com.openchat.secureim.storage.MessagesManager;
+import com.openchat.secureim.storage.PubSubAddress;
 import com.openchat.secureim.storage.PubSubManager;
 import com.openchat.secureim.util.Constants;
+import com.openchat.secureim.util.Pair;
 import com.openchat.secureim.websocket.ProvisioningAddress;
 import com.openchat.secureim.websocket.WebsocketAddress;
 
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
 import static com.codahale.metrics.MetricRegistry.name;
 import static com.openchat.secureim.entities.MessageProtos.Envelope;
 import static com.openchat.secureim.storage.PubSubProtos.PubSubMessage;
@@ -60,21 +66,66 @@ public class WebsocketSender {
                                                   .build();
 
     if (pubSubManager.publish(address, pubSubMessage)) {
-      if      (channel == Type.APN) apnOnlineMeter.mark();
-      else if (channel == Type.GCM) gcmOnlineMeter.mark();
-      else                          websocketOnlineMeter.mark();
-
+      markDelivery(channel, true);
       return new DeliveryStatus(true);
     } else {
-      if      (channel == Type.APN) apnOfflineMeter.mark();
-      else if (channel == Type.GCM) gcmOfflineMeter.mark();
-      else                          websocketOfflineMeter.mark();
-
+      markDelivery(channel, false);
       queueMessage(account, device, message);
       return new DeliveryStatus(false);
     }
   }
 
+  /**
+   * Delivers many messages with a fixed number of redis round trips: one pipeline
+   * publishing them all to any connected devices, one pipelined insert of the
+   * rest into the message cache, and one pipeline telling their devices to check
+   * it.
+   *
+   * @return the delivery status of each message, in the same order.
+   */
+  public List<DeliveryStatus> sendMessages(List<DeviceMessage> messages) {
+    List<Pair<PubSubAddress, PubSubMessage>> deliveries = new ArrayList<>(messages.size());
+
+    for (DeviceMessage message : messages) {
+      deliveries.add(new Pair<PubSubAddress, PubSubMessage>(new WebsocketAddress(message.getAccount().getNumber(), message.getDevice().getId()),
+                                                            PubSubMessage.newBuilder()
+                                                                         .setType(PubSubMessage.Type.DELIVER)
+                                                                         .setContent(message.getEnvelope().toByteString())
+                                                                         .build()));
+    }
+
+    List<Boolean>                            delivered = pubSubManager.publish(deliveries);
+    List<DeliveryStatus>                     results   = new ArrayList<>(messages.size());
+    List<Pair<WebsocketAddress, Envelope>>   queued    = new LinkedList<>();
+    List<Pair<PubSubAddress, PubSubMessage>> queries   = new LinkedList<>();
+
+    for (int i=0;i<messages.size();i++) {
+      DeviceMessage    message = messages.get(i);
+      WebsocketAddress address = new WebsocketAddress(message.getAccount().getNumber(), message.getDevice().getId());
+
+      markDelivery(getType(message.getDevice()), delivered.get(i));
+      results.add(new DeliveryStatus(delivered.get(i)));
+
+      if (!delivered.get(i)) {
+        websocketRequeueMeter.mark();
+        queued.add(new Pair<>(address, message.getEnvelope()));
+        queries.add(new Pair<PubSubAddress, PubSubMessage>(address, PubSubMessage.newBuilder()
+                                                                                 .setType(PubSubMessage.Type.QUERY_DB)
+                                                                                 .build()));
+      }
+    }
+
+    if (!queued.isEmpty()) {
+      for (Pair<WebsocketAddress, Envelope> failed : messagesManager.insert(queued)) {
+        messagesManager.insert(failed.first().getNumber(), failed.first().getDeviceId(), failed.second());
+      }
+
+      pubSubManager.publish(queries);
+    }
+
+    return results;
+  }
+
   public void queueMessage(Account account, Device device, Envelope message) {
     websocketRequeueMeter.mark();
 
@@ -101,6 +152,24 @@ public class WebsocketSender {
     }
   }
 
+  private void markDelivery(Type channel, boolean online) {
+    if (online) {
+      if      (channel == Type.APN) apnOnlineMeter.mark();
+      else if (channel == Type.GCM) gcmOnlineMeter.mark();
+      else                          websocketOnlineMeter.mark();
+    } else {
+      if      (channel == Type.APN) apnOfflineMeter.mark();
+      else if (channel == Type.GCM) gcmOfflineMeter.mark();
+      else                          websocketOfflineMeter.mark();
+    }
+  }
+
+  private static Type getType(Device device) {
+    if      (device.getGcmId() != null) return Type.GCM;
+    else if (device.getApnId() != null) return Type.APN;
+    else                                return Type.WEB;
+  }
+
   static class DeliveryStatus {
 
     private final boolean delivered;
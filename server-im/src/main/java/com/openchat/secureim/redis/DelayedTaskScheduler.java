@@ -0,0 +1,306 @@
+package com.openchat.secureim.redis;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.google.common.base.Optional;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.openchat.secureim.util.Constants;
+import com.openchat.secureim.util.TimingWheel;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import io.dropwizard.lifecycle.Managed;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Tuple;
+import redis.clients.jedis.params.sortedset.ZAddParams;
+
+/**
+ * Runs named tasks after a delay, durably.
+ *
+ * Every task lives in one of a fixed number of Redis sorted sets, picked by the
+ * hash of its name and scored by its due time, so scheduling and cancelling are
+ * single Redis commands from any node.  Each node leases an even share of those
+ * shards, and every refresh interval it loads the tasks coming due within the next
+ * two intervals from its shards into an in-memory {@link TimingWheel}, which fires
+ * them on time without polling.  A shard whose owner dies is picked up by another
+ * node once the lease expires.
+ *
+ * Before a due task runs, its score is checked again, so tasks that were
+ * cancelled or rescheduled from another node after being loaded are skipped.
+ */
+public class DelayedTaskScheduler implements Managed {
+
+  private static final Logger logger = LoggerFactory.getLogger(DelayedTaskScheduler.class);
+
+  public interface Handler {
+    /**
+     * @return how long until the task should run again, or absent if it's done.
+     */
+    Optional<Long> onTaskDue(String task) throws Exception;
+  }
+
+  private final String              name;
+  private final String              owner = UUID.randomUUID().toString();
+  private final ReplicatedJedisPool jedisPool;
+  private final Handler             handler;
+  private final int                 shards;
+  private final long                tickMillis;
+  private final long                refreshMillis;
+  private final int                 workers;
+  private final int                 loadLimit;
+
+  private final LuaScript acquireLease;
+  private final LuaScript releaseLease;
+
+  private final Set<Integer> owned    = Collections.newSetFromMap(new ConcurrentHashMap<>());
+  private final Set<String>  inFlight = Collections.newSetFromMap(new ConcurrentHashMap<>());
+  private final AtomicLong   backlog  = new AtomicLong();
+
+  private final Histogram lagHistogram;
+
+  private TimingWheel<String>      wheel;
+  private ScheduledExecutorService timer;
+  private ExecutorService          executor;
+
+  public DelayedTaskScheduler(ReplicatedJedisPool jedisPool, String name, Handler handler,
+                              int shards, long tickMillis, long refreshMillis, int workers, int loadLimit)
+      throws IOException
+  {
+    this.jedisPool     = jedisPool;
+    this.name          = name;
+    this.handler       = handler;
+    this.shards        = shards;
+    this.tickMillis    = tickMillis;
+    this.refreshMillis = refreshMillis;
+    this.workers       = workers;
+    this.loadLimit     = loadLimit;
+    this.acquireLease  = LuaScript.fromResource(jedisPool, "lua/acquire_lease.lua");
+    this.releaseLease  = LuaScript.fromResource(jedisPool, "lua/release_lease.lua");
+
+    MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
+
+    this.lagHistogram = metricRegistry.histogram(name(DelayedTaskScheduler.class, name, "lag_ms"));
+
+    metricRegistry.register(name(DelayedTaskScheduler.class, name, "backlog"),      (Gauge<Long>) backlog::get);
+    metricRegistry.register(name(DelayedTaskScheduler.class, name, "owned_shards"), (Gauge<Integer>) owned::size);
+    metricRegistry.register(name(DelayedTaskScheduler.class, name, "wheel_size"),   new Gauge<Integer>() {
+      @Override
+      public Integer getValue() {
+        return wheel == null ? 0 : wheel.size();
+      }
+    });
+  }
+
+  public void schedule(String task, long delayMillis) {
+    long due   = System.currentTimeMillis() + delayMillis;
+    int  shard = getShard(task);
+
+    try (Jedis jedis = jedisPool.getWriteResource()) {
+      jedis.zadd(getShardKey(shard), due, task.getBytes());
+    }
+
+    if (owned.contains(shard) && due <= System.currentTimeMillis() + 2 * refreshMillis) {
+      wheel.schedule(task, due);
+    }
+  }
+
+  public boolean cancel(String task) {
+    if (wheel != null) {
+      wheel.cancel(task);
+    }
+
+    try (Jedis jedis = jedisPool.getWriteResource()) {
+      return jedis.zrem(getShardKey(getShard(task)), task.getBytes()) > 0;
+    }
+  }
+
+  public boolean isScheduled(String task) {
+    try (Jedis jedis = jedisPool.getReadResource()) {
+      return jedis.zscore(getShardKey(getShard(task)), task.getBytes()) != null;
+    }
+  }
+
+  @Override
+  public void start() throws Exception {
+    wheel    = new TimingWheel<>(tickMillis, System.currentTimeMillis());
+    timer    = Executors.newScheduledThreadPool(2);
+    executor = Executors.newFixedThreadPool(workers);
+
+    timer.scheduleAtFixedRate(this::tick, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    timer.scheduleWithFixedDelay(this::refresh, 0, refreshMillis, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public void stop() throws Exception {
+    timer.shutdownNow();
+    executor.shutdown();
+    executor.awaitTermination(1, TimeUnit.MINUTES);
+
+    for (int shard : owned) {
+      releaseLease.execute(Collections.singletonList(getLeaseKey(shard)), Collections.singletonList(owner.getBytes()));
+    }
+
+    owned.clear();
+
+    try (Jedis jedis = jedisPool.getWriteResource()) {
+      jedis.zrem(getNodesKey(), owner);
+    }
+  }
+
+  private void tick() {
+    try {
+      for (final String task : wheel.advance(System.currentTimeMillis())) {
+        if (inFlight.add(task)) {
+          executor.execute(() -> {
+            try {
+              run(task);
+            } finally {
+              inFlight.remove(task);
+            }
+          });
+        }
+      }
+    } catch (Exception e) {
+      logger.warn("Timing wheel tick failed", e);
+    }
+  }
+
+  private void run(String task) {
+    int    shard = getShard(task);
+    byte[] key   = getShardKey(shard);
+
+    if (!owned.contains(shard)) {
+      return;
+    }
+
+    try {
+      Double score;
+
+      try (Jedis jedis = jedisPool.getWriteResource()) {
+        score = jedis.zscore(key, task.getBytes());
+      }
+
+      long now = System.currentTimeMillis();
+
+      if (score == null) return;
+
+      if (score.longValue() > now) {
+        if (owned.contains(shard)) wheel.schedule(task, score.longValue());
+        return;
+      }
+
+      lagHistogram.update(now - score.longValue());
+
+      Optional<Long> next = handler.onTaskDue(task);
+
+      try (Jedis jedis = jedisPool.getWriteResource()) {
+        if (next.isPresent()) jedis.zadd(key, System.currentTimeMillis() + next.get(), task.getBytes(), ZAddParams.zAddParams().xx());
+        else                  jedis.zrem(key, task.getBytes());
+      }
+    } catch (Exception e) {
+      logger.warn("Delayed task failed: " + task, e);
+    }
+  }
+
+  private void refresh() {
+    try {
+      rebalance();
+
+      long now     = System.currentTimeMillis();
+      long horizon = now + 2 * refreshMillis;
+      long overdue = 0;
+
+      for (int shard : owned) {
+        try (Jedis jedis = jedisPool.getReadResource()) {
+          byte[]     key   = getShardKey(shard);
+          Set<Tuple> tasks = jedis.zrangeByScoreWithScores(key, Double.NEGATIVE_INFINITY, horizon, 0, loadLimit);
+
+          for (Tuple task : tasks) {
+            if (!inFlight.contains(task.getElement())) {
+              wheel.schedule(task.getElement(), (long)task.getScore());
+            }
+          }
+
+          overdue += jedis.zcount(key, Double.NEGATIVE_INFINITY, now);
+        }
+      }
+
+      backlog.set(overdue);
+    } catch (Exception e) {
+      logger.warn("Delayed task refresh failed", e);
+    }
+  }
+
+  /**
+   * Renews this node's leases, then takes or gives up shards until it holds
+   * its share of them, based on how many nodes have checked in recently.
+   */
+  private void rebalance() {
+    long now = System.currentTimeMillis();
+    int  nodes;
+
+    try (Jedis jedis = jedisPool.getWriteResource()) {
+      jedis.zadd(getNodesKey(), now, owner);
+      jedis.zremrangeByScore(getNodesKey(), Double.NEGATIVE_INFINITY, now - 3 * refreshMillis);
+      nodes = jedis.zcard(getNodesKey()).intValue();
+    }
+
+    int          share   = (shards + Math.max(1, nodes) - 1) / Math.max(1, nodes);
+    List<byte[]> ttl     = Arrays.asList(owner.getBytes(), String.valueOf(3 * refreshMillis).getBytes());
+    Set<Integer> renewed = new HashSet<>();
+
+    for (int shard : owned) {
+      if (renewed.size() < share && ((Long)acquireLease.execute(Collections.singletonList(getLeaseKey(shard)), ttl)) == 1) {
+        renewed.add(shard);
+      } else {
+        releaseLease.execute(Collections.singletonList(getLeaseKey(shard)), Collections.singletonList(owner.getBytes()));
+      }
+    }
+
+    int offset = ThreadLocalRandom.current().nextInt(shards);
+
+    for (int i=0;i<shards && renewed.size() < share;i++) {
+      int shard = (offset + i) % shards;
+
+      if (!renewed.contains(shard) && ((Long)acquireLease.execute(Collections.singletonList(getLeaseKey(shard)), ttl)) == 1) {
+        renewed.add(shard);
+      }
+    }
+
+    owned.retainAll(renewed);
+    owned.addAll(renewed);
+  }
+
+  private int getShard(String task) {
+    return (task.hashCode() & Integer.MAX_VALUE) % shards;
+  }
+
+  private byte[] getShardKey(int shard) {
+    return (name + "::" + shard).getBytes();
+  }
+
+  private byte[] getLeaseKey(int shard) {
+    return (name + "_lease::" + shard).getBytes();
+  }
+
+  private String getNodesKey() {
+    return name + "_nodes";
+  }
+}
@@ -3,10 +3,15 @@ package com.openchat.secureim.redis;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
+import com.openchat.secureim.util.Pair;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
 import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.exceptions.JedisException;
 
 public class LuaScript {
 
@@ -48,6 +53,83 @@ public class LuaScript {
     }
   }
 
+  /**
+   * Runs the script once per (keys, args) invocation, pipelined over a single
+   * connection, and returns the results in the same order.  Invocations that
+   * failed because the script was flushed from the server are run again once
+   * it's reloaded.
+   */
+  public List<Object> executeBatch(List<Pair<List<byte[]>, List<byte[]>>> invocations) {
+    List<Object> results = executeEach(invocations);
+
+    for (Object result : results) {
+      if (result instanceof JedisException) {
+        throw (JedisException)result;
+      }
+    }
+
+    return results;
+  }
+
+  /**
+   * Like executeBatch, but an invocation that's known not to have been applied
+   * leaves its JedisException in its place in the results instead of failing
+   * the batch, so that it alone can be retried.  If no connection can be had,
+   * none of them ran and every result is that exception.
+   *
+   * @throws JedisException if the connection failed part way through, when
+   *                        any of the invocations may or may not have run.
+   */
+  public List<Object> executeEach(List<Pair<List<byte[]>, List<byte[]>>> invocations) {
+    Jedis jedis;
+
+    try {
+      jedis = jedisPool.getWriteResource();
+    } catch (JedisException e) {
+      return new ArrayList<Object>(Collections.nCopies(invocations.size(), e));
+    }
+
+    try {
+      List<Object> results  = pipeline(jedis, invocations);
+      boolean      reloaded = false;
+
+      for (int i=0;i<results.size();i++) {
+        if (isMissingScript(results.get(i))) {
+          if (!reloaded) {
+            storeScript(jedisPool, script);
+            reloaded = true;
+          }
+
+          try {
+            results.set(i, jedis.evalsha(sha, invocations.get(i).first(), invocations.get(i).second()));
+          } catch (JedisDataException e) {
+            results.set(i, e);
+          }
+        }
+      }
+
+      return results;
+    } finally {
+      jedis.close();
+    }
+  }
+
+  private List<Object> pipeline(Jedis jedis, List<Pair<List<byte[]>, List<byte[]>>> invocations) {
+    Pipeline pipeline = jedis.pipelined();
+
+    for (Pair<List<byte[]>, List<byte[]>> invocation : invocations) {
+      pipeline.evalsha(sha, invocation.first(), invocation.second());
+    }
+
+    return new ArrayList<>(pipeline.syncAndReturnAll());
+  }
+
+  private boolean isMissingScript(Object result) {
+    return result instanceof JedisDataException &&
+           ((JedisDataException)result).getMessage() != null &&
+           ((JedisDataException)result).getMessage().startsWith("NOSCRIPT");
+  }
+
   private String storeScript(ReplicatedJedisPool jedisPool, String script) {
     try (Jedis jedis = jedisPool.getWriteResource()) {
       return jedis.scriptLoad(script);
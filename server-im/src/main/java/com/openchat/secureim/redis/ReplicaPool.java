@@ -0,0 +1,205 @@
+package com.openchat.secureim.redis;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.codahale.metrics.Timer;
+import com.openchat.secureim.util.Constants;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.Protocol;
+import redis.clients.jedis.exceptions.JedisException;
+
+/**
+ * A connection pool for one read replica that keeps track of how well the
+ * replica is doing, measured from when a connection is handed out until it's
+ * returned (or returned broken).
+ *
+ * Latency and error rate are kept as exponentially weighted moving averages.
+ * Latency decays back towards zero while a replica is idle, so one that was
+ * slow gets tried again once it's had time to recover.  After enough
+ * consecutive failures, or a high enough error rate, the replica is ejected
+ * for a while; once that's up, a single probe request is let through, which
+ * either brings it back or ejects it again.
+ */
+public class ReplicaPool extends JedisPool {
+
+  private static final MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
+
+  private static final double ALPHA                  = 0.1;
+  private static final long   DECAY_NANOS            = TimeUnit.SECONDS.toNanos(10);
+  private static final int    MAX_CONSECUTIVE_ERRORS = 5;
+  private static final double MAX_ERROR_RATE         = 0.5;
+  private static final long   EJECT_MILLIS           = 5000;
+  private static final long   HEDGE_REFRESH_NANOS    = TimeUnit.SECONDS.toNanos(1);
+  private static final long   MIN_HEDGE_NANOS        = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private final String           name;
+  private final Map<Jedis, Long> leases   = new ConcurrentHashMap<>();
+  private final AtomicInteger    inFlight = new AtomicInteger();
+  private final AtomicBoolean    probing  = new AtomicBoolean();
+
+  private final Timer latencyTimer;
+  private final Meter errorMeter;
+  private final Meter ejectedMeter;
+
+  private double latencyNanos;
+  private long   latencyUpdated;
+  private double errorRate;
+  private int    consecutiveErrors;
+
+  private volatile long ejectedUntil;
+  private volatile long hedgeDelayNanos   = MIN_HEDGE_NANOS;
+  private volatile long hedgeDelayUpdated = 0;
+
+  public ReplicaPool(String poolName, JedisPoolConfig poolConfig, String host, int port) {
+    super(poolConfig, host, port, 500, Protocol.DEFAULT_TIMEOUT, null,
+          Protocol.DEFAULT_DATABASE, null, false, null, null, null);
+
+    this.name         = host + "_" + port;
+    this.latencyTimer = metricRegistry.timer(name(ReplicatedJedisPool.class, poolName, name, "latency"));
+    this.errorMeter   = metricRegistry.meter(name(ReplicatedJedisPool.class, poolName, name, "errors"));
+    this.ejectedMeter = metricRegistry.meter(name(ReplicatedJedisPool.class, poolName, name, "ejected"));
+
+    register(name(ReplicatedJedisPool.class, poolName, name, "ewma_latency_us"),
+             (Gauge<Long>) () -> TimeUnit.NANOSECONDS.toMicros((long)getLatencyNanos()));
+    register(name(ReplicatedJedisPool.class, poolName, name, "available"),
+             (Gauge<Integer>) () -> isEjected() ? 0 : 1);
+  }
+
+  @Override
+  public Jedis getResource() {
+    try {
+      Jedis jedis = super.getResource();
+
+      leases.put(jedis, System.nanoTime());
+      inFlight.incrementAndGet();
+
+      return jedis;
+    } catch (JedisException e) {
+      onFailure();
+      throw e;
+    }
+  }
+
+  @Override
+  public void returnResource(Jedis jedis) {
+    Long leased = jedis == null ? null : leases.remove(jedis);
+
+    if (leased != null) {
+      inFlight.decrementAndGet();
+      onSuccess(System.nanoTime() - leased);
+    }
+
+    super.returnResource(jedis);
+  }
+
+  @Override
+  public void returnBrokenResource(Jedis jedis) {
+    Long leased = jedis == null ? null : leases.remove(jedis);
+
+    if (leased != null) {
+      inFlight.decrementAndGet();
+      onFailure();
+    }
+
+    super.returnBrokenResource(jedis);
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * @return true from when the replica is ejected until a probe succeeds.
+   */
+  public boolean isEjected() {
+    return ejectedUntil != 0;
+  }
+
+  /**
+   * @return true if the replica is ejected but due a probe, and the caller has
+   *         been chosen to send it.
+   */
+  public boolean tryProbe() {
+    return ejectedUntil != 0 && System.currentTimeMillis() >= ejectedUntil && probing.compareAndSet(false, true);
+  }
+
+  /**
+   * @return a cost for sending the next request here: the decayed latency
+   *         average, scaled by how many requests are already outstanding.
+   */
+  public double getScore() {
+    return (getLatencyNanos() + 1) * (inFlight.get() + 1);
+  }
+
+  /**
+   * @return how long to wait on this replica before hedging a read to another
+   *         one: its recent 95th percentile latency, recomputed once a second.
+   */
+  public long getHedgeDelayNanos() {
+    long now = System.nanoTime();
+
+    if (now - hedgeDelayUpdated > HEDGE_REFRESH_NANOS) {
+      hedgeDelayNanos   = Math.max(MIN_HEDGE_NANOS, (long)latencyTimer.getSnapshot().get95thPercentile());
+      hedgeDelayUpdated = now;
+    }
+
+    return hedgeDelayNanos;
+  }
+
+  private static void register(String name, Gauge<?> gauge) {
+    // A pool for the same replica may be built more than once in a process;
+    // the gauges follow the newest one.
+    metricRegistry.remove(name);
+    metricRegistry.register(name, gauge);
+  }
+
+  private synchronized double getLatencyNanos() {
+    long elapsed = System.nanoTime() - latencyUpdated;
+    return latencyNanos * Math.exp(-(double)elapsed / DECAY_NANOS);
+  }
+
+  private void onSuccess(long latency) {
+    latencyTimer.update(latency, TimeUnit.NANOSECONDS);
+
+    synchronized (this) {
+      latencyNanos      = getLatencyNanos() * (1 - ALPHA) + latency * ALPHA;
+      latencyUpdated    = System.nanoTime();
+      errorRate         = errorRate * (1 - ALPHA);
+      consecutiveErrors = 0;
+    }
+
+    if (probing.compareAndSet(true, false)) {
+      ejectedUntil = 0;
+    }
+  }
+
+  private void onFailure() {
+    errorMeter.mark();
+
+    boolean eject;
+
+    synchronized (this) {
+      errorRate = errorRate * (1 - ALPHA) + ALPHA;
+      consecutiveErrors++;
+
+      eject = consecutiveErrors >= MAX_CONSECUTIVE_ERRORS || errorRate >= MAX_ERROR_RATE;
+    }
+
+    if (probing.compareAndSet(true, false) || (eject && !isEjected())) {
+      ejectedMeter.mark();
+      ejectedUntil = System.currentTimeMillis() + EJECT_MILLIS;
+    }
+  }
+}
@@ -1,31 +1,94 @@
 package com.openchat.secureim.redis;
 
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import com.openchat.secureim.util.Constants;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import static com.codahale.metrics.MetricRegistry.name;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Protocol;
 import redis.clients.jedis.exceptions.JedisException;
 
+/**
+ * A redis master for writes and a set of replicas for reads.
+ *
+ * If the replicas are {@link ReplicaPool}s, reads go to the better of two
+ * randomly chosen replicas that haven't been ejected, scored by their recent
+ * latency and outstanding requests.  Otherwise they're spread round-robin.
+ *
+ * With hedged reads on, {@link #read} also sends the command to a second
+ * replica if the first hasn't answered within its 95th percentile latency,
+ * and returns whichever answers first.  Hedged reads run on a bounded pool
+ * sized to the replicas' connection pools; when it's saturated the read runs
+ * directly on the caller's thread and isn't hedged, and a hedged read never
+ * waits longer than a replica's socket timeout.
+ */
 public class ReplicatedJedisPool {
 
+  private static final MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
+  private static final Meter          hedgeMeter     = metricRegistry.meter(name(ReplicatedJedisPool.class, "hedged_reads"));
+  private static final Meter          rejectedMeter  = metricRegistry.meter(name(ReplicatedJedisPool.class, "hedged_reads_rejected"));
+
+  private static final int  HEDGE_THREADS_PER_REPLICA = 8;
+  private static final long READ_TIMEOUT_NANOS        = TimeUnit.MILLISECONDS.toNanos(Protocol.DEFAULT_TIMEOUT);
+
   private final Logger        logger       = LoggerFactory.getLogger(ReplicatedJedisPool.class);
   private final AtomicInteger replicaIndex = new AtomicInteger(0);
 
-  private final JedisPool   master;
-  private final JedisPool[] replicas;
+  private final JedisPool         master;
+  private final JedisPool[]       replicas;
+  private final List<ReplicaPool> tracked;
+  private final ExecutorService   hedgeExecutor;
 
   public ReplicatedJedisPool(JedisPool master, List<JedisPool> replicas) {
+    this(master, replicas, false);
+  }
+
+  public ReplicatedJedisPool(JedisPool master, List<JedisPool> replicas, boolean hedgedReads) {
     if (replicas.size() < 1) throw new IllegalArgumentException("There must be at least one replica");
 
     this.master   = master;
     this.replicas = new JedisPool[replicas.size()];
+    this.tracked  = new ArrayList<>(replicas.size());
 
     for (int i=0;i<this.replicas.length;i++) {
       this.replicas[i] = replicas.get(i);
+
+      if (replicas.get(i) instanceof ReplicaPool) {
+        this.tracked.add((ReplicaPool)replicas.get(i));
+      }
+    }
+
+    if (tracked.size() != this.replicas.length) {
+      tracked.clear();
+    }
+
+    if (hedgedReads && tracked.size() > 1) {
+      this.hedgeExecutor = new ThreadPoolExecutor(0, tracked.size() * HEDGE_THREADS_PER_REPLICA,
+                                                  60, TimeUnit.SECONDS, new SynchronousQueue<>(),
+                                                  new ThreadFactoryBuilder().setDaemon(true)
+                                                                            .setNameFormat("redis-read-%d")
+                                                                            .build());
+    } else {
+      this.hedgeExecutor = null;
     }
   }
 
@@ -38,6 +101,16 @@ public class ReplicatedJedisPool {
   }
 
   public Jedis getReadResource() {
+    JedisPool preferred = select(null);
+
+    if (preferred != null) {
+      try {
+        return preferred.getResource();
+      } catch (JedisException e) {
+        logger.error("Failure obtaining read replica pool", e);
+      }
+    }
+
     int failureCount = 0;
 
     while (failureCount < replicas.length) {
@@ -53,4 +126,121 @@ public class ReplicatedJedisPool {
     throw new JedisException("All read replica pools failed!");
   }
 
+  /**
+   * Runs a read-only operation against a replica, hedging it to a second
+   * replica if the first is slow and hedged reads are on.  The operation may
+   * run twice, so it must not write anything.
+   */
+  public <T> T read(ReadOperation<T> operation) {
+    if (hedgeExecutor == null) {
+      try (Jedis jedis = getReadResource()) {
+        return operation.run(jedis);
+      }
+    }
+
+    ReplicaPool first = select(null);
+
+    if (first == null) {
+      try (Jedis jedis = getReadResource()) {
+        return operation.run(jedis);
+      }
+    }
+
+    CompletableFuture<T> result  = new CompletableFuture<>();
+    AtomicInteger        pending = new AtomicInteger(1);
+
+    if (!submit(first, operation, result, pending)) {
+      try (Jedis jedis = first.getResource()) {
+        return operation.run(jedis);
+      }
+    }
+
+    try {
+      try {
+        return result.get(first.getHedgeDelayNanos(), TimeUnit.NANOSECONDS);
+      } catch (TimeoutException e) {
+        ReplicaPool second = select(first);
+
+        if (second != null) {
+          pending.incrementAndGet();
+
+          if (submit(second, operation, result, pending)) {
+            hedgeMeter.mark();
+          } else if (pending.decrementAndGet() == 0) {
+            result.completeExceptionally(new JedisException("Hedged read rejected"));
+          }
+        }
+
+        return result.get(READ_TIMEOUT_NANOS, TimeUnit.NANOSECONDS);
+      }
+    } catch (TimeoutException e) {
+      throw new JedisException("Hedged read timed out", e);
+    } catch (ExecutionException e) {
+      logger.warn("Hedged read failed, retrying", e.getCause());
+
+      try (Jedis jedis = getReadResource()) {
+        return operation.run(jedis);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new JedisException(e);
+    }
+  }
+
+  /**
+   * @return false if the hedge pool is saturated and the operation wasn't
+   * submitted.
+   */
+  private <T> boolean submit(ReplicaPool replica, ReadOperation<T> operation, CompletableFuture<T> result, AtomicInteger pending) {
+    try {
+      hedgeExecutor.execute(() -> {
+        try (Jedis jedis = replica.getResource()) {
+          result.complete(operation.run(jedis));
+        } catch (Exception e) {
+          if (pending.decrementAndGet() == 0) {
+            result.completeExceptionally(e);
+          }
+        }
+      });
+
+      return true;
+    } catch (RejectedExecutionException e) {
+      rejectedMeter.mark();
+      return false;
+    }
+  }
+
+  private ReplicaPool select(ReplicaPool exclude) {
+    if (tracked.isEmpty()) {
+      return null;
+    }
+
+    List<ReplicaPool> available = new ArrayList<>(tracked.size());
+
+    for (ReplicaPool replica : tracked) {
+      if (replica == exclude)   continue;
+      if (replica.tryProbe())   return replica;
+      if (!replica.isEjected()) available.add(replica);
+    }
+
+    if (available.isEmpty())   return null;
+    if (available.size() == 1) return available.get(0);
+
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    int               a      = random.nextInt(available.size());
+    int               b      = random.nextInt(available.size() - 1);
+
+    if (b >= a) b++;
+
+    ReplicaPool first  = available.get(a);
+    ReplicaPool second = available.get(b);
+
+    return first.getScore() <= second.getScore() ? first : second;
+  }
+
+  @FunctionalInterface
+  public interface ReadOperation<T> {
+    T run(Jedis jedis);
+  }
+
 }
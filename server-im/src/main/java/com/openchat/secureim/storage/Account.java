@@ -46,6 +46,19 @@ public class Account {
     this.devices = devices;
   }
 
+  Account(Account account) {
+    this.number       = account.number;
+    this.identityKey  = account.identityKey;
+    this.name         = account.name;
+    this.avatar       = account.avatar;
+    this.avatarDigest = account.avatarDigest;
+    this.pin          = account.pin;
+
+    for (Device device : account.devices) {
+      this.devices.add(new Device(device));
+    }
+  }
+
   public Optional<Device> getAuthenticatedDevice() {
     return Optional.fromNullable(authenticatedDevice);
   }
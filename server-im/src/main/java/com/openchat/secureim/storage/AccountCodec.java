@@ -0,0 +1,216 @@
+package com.openchat.secureim.storage;
+
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.openchat.secureim.auth.AuthenticationCredentials;
+import com.openchat.secureim.entities.SignedPreKey;
+import com.openchat.secureim.util.SystemMapper;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compact binary encoding of an {@link Account} for the Redis account cache.
+ *
+ * The first byte is the format version.  Entries written by older servers are
+ * JSON, which always starts with '{', so those are still decoded through
+ * {@link SystemMapper} until they are rewritten.
+ *
+ * Older servers can't read the binary form, so entries are only written that
+ * way once writeBinary is set, after every server can read them.  Until then
+ * they're written as JSON, as before.
+ */
+public class AccountCodec {
+
+  public static final byte VERSION = 1;
+
+  private static final int FLAG_FETCHES_MESSAGES = 1;
+  private static final int FLAG_VOICE            = 1 << 1;
+  private static final int FLAG_VIDEO            = 1 << 2;
+  private static final int FLAG_SIGNED_PRE_KEY   = 1 << 3;
+
+  private final ObjectMapper mapper = SystemMapper.getMapper();
+  private final boolean      writeBinary;
+
+  public AccountCodec(boolean writeBinary) {
+    this.writeBinary = writeBinary;
+  }
+
+  public byte[] encode(Account account) {
+    if (!writeBinary) {
+      try {
+        return mapper.writeValueAsBytes(account);
+      } catch (JsonProcessingException e) {
+        throw new IllegalArgumentException(e);
+      }
+    }
+
+    try {
+      ByteArrayOutputStream baos   = new ByteArrayOutputStream(256 + 256 * account.getDevices().size());
+      DataOutputStream      output = new DataOutputStream(baos);
+
+      output.writeByte(VERSION);
+      writeString(output, account.getNumber());
+      writeString(output, account.getIdentityKey());
+      writeString(output, account.getName());
+      writeString(output, account.getAvatar());
+      writeString(output, account.getAvatarDigest());
+      writeString(output, account.getPin().orNull());
+
+      writeVarint(output, account.getDevices().size());
+
+      for (Device device : account.getDevices()) {
+        writeDevice(output, device);
+      }
+
+      output.flush();
+      return baos.toByteArray();
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  public Account decode(byte[] data) throws IOException {
+    if (data.length == 0) {
+      throw new IOException("Empty account entry");
+    }
+
+    if (data[0] == '{') {
+      return mapper.readValue(data, Account.class);
+    }
+
+    if (data[0] != VERSION) {
+      throw new IOException("Unknown account encoding: " + data[0]);
+    }
+
+    DataInputStream input   = new DataInputStream(new ByteArrayInputStream(data, 1, data.length - 1));
+    Account         account = new Account();
+
+    account.setNumber(readString(input));
+    account.setIdentityKey(readString(input));
+    account.setName(readString(input));
+    account.setAvatar(readString(input));
+    account.setAvatarDigest(readString(input));
+    account.setPin(readString(input));
+
+    int deviceCount = readVarint(input);
+
+    for (int i=0;i<deviceCount;i++) {
+      account.addDevice(readDevice(input));
+    }
+
+    return account;
+  }
+
+  private void writeDevice(DataOutputStream output, Device device) throws IOException {
+    AuthenticationCredentials credentials  = device.getAuthenticationCredentials();
+    SignedPreKey              signedPreKey = device.getSignedPreKey();
+
+    int flags = 0;
+
+    if (device.getFetchesMessages()) flags |= FLAG_FETCHES_MESSAGES;
+    if (device.isVoiceSupported())   flags |= FLAG_VOICE;
+    if (device.isVideoSupported())   flags |= FLAG_VIDEO;
+    if (signedPreKey != null)        flags |= FLAG_SIGNED_PRE_KEY;
+
+    writeVarint(output, (int)device.getId());
+    output.writeByte(flags);
+    writeString(output, device.getName());
+    writeString(output, credentials.getHashedAuthenticationToken());
+    writeString(output, credentials.getSalt());
+    writeString(output, device.getSignalingKey());
+    writeString(output, device.getGcmId());
+    writeString(output, device.getApnId());
+    writeString(output, device.getVoipApnId());
+    writeString(output, device.getUserAgent());
+    output.writeInt(device.getRegistrationId());
+    output.writeLong(device.getPushTimestamp());
+    output.writeLong(device.getLastSeen());
+    output.writeLong(device.getCreated());
+
+    if (signedPreKey != null) {
+      output.writeLong(signedPreKey.getKeyId());
+      writeString(output, signedPreKey.getPublicKey());
+      writeString(output, signedPreKey.getSignature());
+    }
+  }
+
+  private Device readDevice(DataInputStream input) throws IOException {
+    long   id             = readVarint(input);
+    int    flags          = input.readUnsignedByte();
+    String name           = readString(input);
+    String authToken      = readString(input);
+    String salt           = readString(input);
+    String signalingKey   = readString(input);
+    String gcmId          = readString(input);
+    String apnId          = readString(input);
+    String voipApnId      = readString(input);
+    String userAgent      = readString(input);
+    int    registrationId = input.readInt();
+    long   pushTimestamp  = input.readLong();
+    long   lastSeen       = input.readLong();
+    long   created        = input.readLong();
+
+    SignedPreKey signedPreKey = null;
+
+    if ((flags & FLAG_SIGNED_PRE_KEY) != 0) {
+      signedPreKey = new SignedPreKey(input.readLong(), readString(input), readString(input));
+    }
+
+    Device device = new Device(id, name, authToken, salt, signalingKey, gcmId, apnId, voipApnId,
+                               (flags & FLAG_FETCHES_MESSAGES) != 0, registrationId, signedPreKey,
+                               lastSeen, created, (flags & FLAG_VOICE) != 0, (flags & FLAG_VIDEO) != 0,
+                               userAgent);
+    device.setPushTimestamp(pushTimestamp);
+
+    return device;
+  }
+
+  private static void writeString(DataOutputStream output, String value) throws IOException {
+    if (value == null) {
+      writeVarint(output, 0);
+    } else {
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      writeVarint(output, bytes.length + 1);
+      output.write(bytes);
+    }
+  }
+
+  private static String readString(DataInputStream input) throws IOException {
+    int length = readVarint(input);
+
+    if (length == 0) return null;
+
+    byte[] bytes = new byte[length - 1];
+    input.readFully(bytes);
+
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static void writeVarint(DataOutputStream output, int value) throws IOException {
+    while ((value & ~0x7F) != 0) {
+      output.writeByte((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+
+    output.writeByte(value);
+  }
+
+  private static int readVarint(DataInputStream input) throws IOException {
+    int value = 0;
+
+    for (int shift=0;shift<32;shift+=7) {
+      int b = input.readUnsignedByte();
+      value |= (b & 0x7F) << shift;
+
+      if ((b & 0x80) == 0) return value;
+    }
+
+    throw new IOException("Malformed varint");
+  }
+}
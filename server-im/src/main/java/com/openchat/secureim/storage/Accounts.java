@@ -10,6 +10,7 @@ import org.skife.jdbi.v2.sqlobject.Binder;
 import org.skife.jdbi.v2.sqlobject.BinderFactory;
 import org.skife.jdbi.v2.sqlobject.BindingAnnotation;
 import org.skife.jdbi.v2.sqlobject.GetGeneratedKeys;
+import org.skife.jdbi.v2.sqlobject.SqlBatch;
 import org.skife.jdbi.v2.sqlobject.SqlQuery;
 import org.skife.jdbi.v2.sqlobject.SqlUpdate;
 import org.skife.jdbi.v2.sqlobject.Transaction;
@@ -42,9 +43,41 @@ public abstract class Accounts {
   @SqlUpdate("DELETE FROM accounts WHERE " + NUMBER + " = :number")
   abstract int removeAccount(@Bind("number") String number);
 
-  @SqlUpdate("UPDATE accounts SET " + DATA + " = CAST(:data AS json) WHERE " + NUMBER + " = :number")
+  /**
+   * Replaces the account, except that a device's lastSeen is never moved back:
+   * if the row already has a later lastSeen for a device, written behind by
+   * {@link #updateLastSeen}, that value is kept.
+   */
+  @SqlUpdate("UPDATE accounts SET " + DATA + " = CAST(jsonb_set(CAST(:data AS jsonb), '{devices}', COALESCE(" +
+             "(SELECT jsonb_agg(CASE WHEN COALESCE(CAST(current.device->>'lastSeen' AS bigint), 0) > COALESCE(CAST(updated.device->>'lastSeen' AS bigint), 0) " +
+             "                       THEN jsonb_set(updated.device, '{lastSeen}', current.device->'lastSeen') " +
+             "                       ELSE updated.device END ORDER BY position) " +
+             " FROM jsonb_array_elements(CAST(:data AS jsonb)->'devices') WITH ORDINALITY AS updated(device, position) " +
+             " LEFT JOIN jsonb_array_elements(CAST(accounts." + DATA + " AS jsonb)->'devices') AS current(device) " +
+             " ON current.device->>'id' = updated.device->>'id'), '[]')) AS json) " +
+             "WHERE " + NUMBER + " = :number")
   abstract void update(@AccountBinder Account account);
 
+  /**
+   * Sets one device's lastSeen in place, without rewriting the rest of the
+   * account.  Rows where the device is missing or already has an equal or
+   * later lastSeen are left untouched.
+   *
+   * @return the number of rows changed by each (number, deviceId, lastSeen).
+   */
+  @SqlBatch("UPDATE accounts SET " + DATA + " = CAST(jsonb_set(CAST(" + DATA + " AS jsonb), '{devices}', " +
+            "(SELECT jsonb_agg(CASE WHEN CAST(device->>'id' AS bigint) = :deviceId " +
+            "                       THEN jsonb_set(device, '{lastSeen}', to_jsonb(CAST(:lastSeen AS bigint))) " +
+            "                       ELSE device END ORDER BY position) " +
+            " FROM jsonb_array_elements(CAST(" + DATA + " AS jsonb)->'devices') WITH ORDINALITY AS devices(device, position))) AS json) " +
+            "WHERE " + NUMBER + " = :number " +
+            "AND EXISTS (SELECT 1 FROM json_array_elements(" + DATA + "->'devices') device " +
+            "            WHERE CAST(device->>'id' AS bigint) = :deviceId " +
+            "            AND COALESCE(CAST(device->>'lastSeen' AS bigint), 0) < :lastSeen)")
+  abstract int[] updateLastSeen(@Bind("number") List<String> numbers,
+                                @Bind("deviceId") List<Long> deviceIds,
+                                @Bind("lastSeen") List<Long> lastSeens);
+
   @Mapper(AccountMapper.class)
   @SqlQuery("SELECT * FROM accounts WHERE " + NUMBER + " = :number")
   abstract Account get(@Bind("number") String number);
@@ -1,21 +1,26 @@
 package com.openchat.secureim.storage;
 
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Optional;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import com.openchat.secureim.entities.ClientContact;
 import com.openchat.secureim.redis.ReplicatedJedisPool;
-import com.openchat.secureim.util.SystemMapper;
 import com.openchat.secureim.util.Util;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.util.SafeEncoder;
 
 public class AccountsManager {
 
@@ -24,13 +29,27 @@ public class AccountsManager {
   private final Accounts            accounts;
   private final ReplicatedJedisPool cacheClient;
   private final DirectoryManager    directory;
-  private final ObjectMapper        mapper;
+  private final AccountCodec        codec;
+
+  private final Optional<LocalAccountsCache> localCache;
 
   public AccountsManager(Accounts accounts, DirectoryManager directory, ReplicatedJedisPool cacheClient) {
+    this(accounts, directory, cacheClient, Optional.<LocalAccountsCache>absent(), false);
+  }
+
+  /**
+   * @param binaryCacheEntries whether to write redis entries with the binary
+   *                           codec, which older servers can't read.  See
+   *                           {@link AccountCodec}.
+   */
+  public AccountsManager(Accounts accounts, DirectoryManager directory, ReplicatedJedisPool cacheClient,
+                         Optional<LocalAccountsCache> localCache, boolean binaryCacheEntries)
+  {
     this.accounts    = accounts;
     this.directory   = directory;
     this.cacheClient = cacheClient;
-    this.mapper      = SystemMapper.getMapper();
+    this.localCache  = localCache;
+    this.codec       = new AccountCodec(binaryCacheEntries);
   }
 
   public long getCount() {
@@ -48,6 +67,7 @@ public class AccountsManager {
   public boolean create(Account account) {
     boolean freshUser = accounts.create(account);
     memcacheSet(account.getNumber(), account);
+    localCacheInvalidate(account.getNumber());
     updateDirectory(account);
 
     return freshUser;
@@ -56,11 +76,55 @@ public class AccountsManager {
   public void update(Account account) {
     memcacheSet(account.getNumber(), account);
     accounts.update(account);
+    localCacheInvalidate(account.getNumber());
     updateDirectory(account);
   }
 
+  /**
+   * Writes a batch of device lastSeen updates straight to the database, then
+   * drops the redis and local copies of each account that changed, along with
+   * the local copies on other nodes, so the next read picks up the new value.
+   *
+   * A full {@link #update} made from an account loaded before this keeps the
+   * later lastSeen in the database, but the redis copy it writes carries the
+   * older value until the account is next written or expires.
+   *
+   * @return the number of accounts changed.
+   */
+  public int updateLastSeen(List<String> numbers, List<Long> deviceIds, List<Long> lastSeens) {
+    int[]       updated = accounts.updateLastSeen(numbers, deviceIds, lastSeens);
+    int         count   = 0;
+    Set<String> changed = new LinkedHashSet<>();
+
+    try (Jedis jedis = cacheClient.getWriteResource()) {
+      Pipeline pipeline = jedis.pipelined();
+
+      for (int i=0;i<updated.length;i++) {
+        if (updated[i] > 0) {
+          pipeline.del(getKey(numbers.get(i)));
+          changed.add(numbers.get(i));
+          count++;
+        }
+      }
+
+      pipeline.sync();
+    }
+
+    localCacheInvalidate(changed);
+
+    return count;
+  }
+
   public Optional<Account> get(String number) {
-    Optional<Account> account = memcacheGet(number);
+    Optional<Account> account = localCacheGet(number);
+
+    if (account.isPresent()) {
+      return account;
+    }
+
+    long generation = localCacheGeneration(number);
+
+    account = memcacheGet(number);
 
     if (!account.isPresent()) {
       account = Optional.fromNullable(accounts.get(number));
@@ -70,9 +134,62 @@ public class AccountsManager {
       }
     }
 
+    if (account.isPresent()) {
+      localCacheSet(account.get(), generation);
+    }
+
     return account;
   }
 
+  /**
+   * Looks up many accounts at once: whatever isn't in the local cache is fetched
+   * from redis with a single MGET, and only what's missing from both is read from
+   * the database.
+   *
+   * @return the accounts that exist, keyed by number.
+   */
+  public Map<String, Account> get(Collection<String> numbers) {
+    Map<String, Account> results     = new HashMap<>();
+    List<String>         missing     = new ArrayList<>();
+    Map<String, Long>    generations = new HashMap<>();
+
+    for (String number : new LinkedHashSet<>(numbers)) {
+      Optional<Account> account = localCacheGet(number);
+
+      if (account.isPresent()) {
+        results.put(number, account.get());
+      } else {
+        missing.add(number);
+        generations.put(number, localCacheGeneration(number));
+      }
+    }
+
+    if (missing.isEmpty()) {
+      return results;
+    }
+
+    Map<String, Account> cached = memcacheGet(missing);
+
+    for (String number : missing) {
+      Account account = cached.get(number);
+
+      if (account == null) {
+        account = accounts.get(number);
+
+        if (account != null) {
+          memcacheSet(number, account);
+        }
+      }
+
+      if (account != null) {
+        localCacheSet(account, generations.get(number));
+        results.put(number, account);
+      }
+    }
+
+    return results;
+  }
+
   public boolean isRelayListed(String number) {
     byte[]                  token   = Util.getContactToken(number);
     Optional<ClientContact> contact = directory.get(token);
@@ -90,23 +207,49 @@ public class AccountsManager {
     }
   }
 
-  private String getKey(String number) {
-    return Account.class.getSimpleName() + Account.MEMCACHE_VERION + number;
+  private byte[] getKey(String number) {
+    return SafeEncoder.encode(Account.class.getSimpleName() + Account.MEMCACHE_VERION + number);
+  }
+
+  private Optional<Account> localCacheGet(String number) {
+    if (localCache.isPresent()) return localCache.get().get(number);
+    else                        return Optional.absent();
+  }
+
+  private long localCacheGeneration(String number) {
+    if (localCache.isPresent()) return localCache.get().getGeneration(number);
+    else                        return 0;
+  }
+
+  private void localCacheSet(Account account, long generation) {
+    if (localCache.isPresent()) {
+      localCache.get().set(account, generation);
+    }
+  }
+
+  private void localCacheInvalidate(String number) {
+    if (localCache.isPresent()) {
+      localCache.get().invalidate(number);
+    }
+  }
+
+  private void localCacheInvalidate(Collection<String> numbers) {
+    if (localCache.isPresent() && !numbers.isEmpty()) {
+      localCache.get().invalidate(numbers);
+    }
   }
 
   private void memcacheSet(String number, Account account) {
     try (Jedis jedis = cacheClient.getWriteResource()) {
-      jedis.set(getKey(number), mapper.writeValueAsString(account));
-    } catch (JsonProcessingException e) {
-      throw new IllegalArgumentException(e);
+      jedis.set(getKey(number), codec.encode(account));
     }
   }
 
   private Optional<Account> memcacheGet(String number) {
-    try (Jedis jedis = cacheClient.getReadResource()) {
-      String json = jedis.get(getKey(number));
+    try {
+      byte[] data = cacheClient.read(jedis -> jedis.get(getKey(number)));
 
-      if (json != null) return Optional.of(mapper.readValue(json, Account.class));
+      if (data != null) return Optional.of(codec.decode(data));
       else              return Optional.absent();
     } catch (IOException e) {
       logger.warn("AccountsManager", "Deserialization error", e);
@@ -114,4 +257,27 @@ public class AccountsManager {
     }
   }
 
+  private Map<String, Account> memcacheGet(List<String> numbers) {
+    Map<String, Account> results = new HashMap<>();
+    byte[][]             keys    = new byte[numbers.size()][];
+
+    for (int i=0;i<keys.length;i++) {
+      keys[i] = getKey(numbers.get(i));
+    }
+
+    List<byte[]> values = cacheClient.read(jedis -> jedis.mget(keys));
+
+    for (int i=0;i<values.size();i++) {
+      if (values.get(i) != null) {
+        try {
+          results.put(numbers.get(i), codec.decode(values.get(i)));
+        } catch (IOException e) {
+          logger.warn("AccountsManager", "Deserialization error", e);
+        }
+      }
+    }
+
+    return results;
+  }
+
 }
@@ -90,6 +90,26 @@ public class Device {
     this.userAgent       = userAgent;
   }
 
+  Device(Device device) {
+    this.id              = device.id;
+    this.name            = device.name;
+    this.authToken       = device.authToken;
+    this.salt            = device.salt;
+    this.signalingKey    = device.signalingKey;
+    this.gcmId           = device.gcmId;
+    this.apnId           = device.apnId;
+    this.voipApnId       = device.voipApnId;
+    this.pushTimestamp   = device.pushTimestamp;
+    this.fetchesMessages = device.fetchesMessages;
+    this.registrationId  = device.registrationId;
+    this.signedPreKey    = device.signedPreKey;
+    this.lastSeen        = device.lastSeen;
+    this.created         = device.created;
+    this.voice           = device.voice;
+    this.video           = device.video;
+    this.userAgent       = device.userAgent;
+  }
+
   public String getApnId() {
     return apnId;
   }
@@ -226,6 +246,10 @@ public class Device {
     return pushTimestamp;
   }
 
+  void setPushTimestamp(long pushTimestamp) {
+    this.pushTimestamp = pushTimestamp;
+  }
+
   public void setUserAgent(String userAgent) {
     this.userAgent = userAgent;
   }
@@ -0,0 +1,634 @@
+package com.openchat.secureim.storage;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.codahale.metrics.Timer;
+import com.google.common.base.Optional;
+import com.google.common.collect.Lists;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.openchat.dispatch.DispatchChannel;
+import com.openchat.secureim.entities.ClientContact;
+import com.openchat.secureim.redis.ReplicatedJedisPool;
+import com.openchat.secureim.storage.PubSubProtos.PubSubMessage;
+import com.openchat.secureim.util.Constants;
+import com.openchat.secureim.util.Pair;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import io.dropwizard.lifecycle.Managed;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+
+/**
+ * An in-process copy of the directory, so contact intersections don't need a
+ * round trip to Redis per token.
+ *
+ * Contact tokens are always {@link com.openchat.secureim.util.Util#getContactToken}'s
+ * ten bytes, so each entry is stored in two primitive arrays of an open-addressed
+ * table: the first eight bytes in a long, and the last two bytes in an int whose
+ * upper bits also hold the voice and video flags and an index into a small table
+ * of relay names.  That's twelve bytes per slot, with no per-entry objects.
+ *
+ * The index is loaded from the directory hash at startup and kept current through
+ * a change channel that every node publishes to as it updates the directory, once
+ * the update has reached Redis.  Batch updates are packed several to a message.  The
+ * channel is lossy across reconnects, so the index is also reloaded periodically
+ * and whenever the channel is resubscribed.  The index reports itself unloaded
+ * from the moment the channel drops until a reload begun after it's back has
+ * completed, and until then callers should fall back to Redis.
+ */
+public class DirectoryIndex implements Managed, DispatchChannel {
+
+  private static final Logger logger = LoggerFactory.getLogger(DirectoryIndex.class);
+
+  private static final MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
+  private static final Timer          lookupTimer    = metricRegistry.timer(name(DirectoryIndex.class, "lookup"));
+  private static final Timer          reloadTimer    = metricRegistry.timer(name(DirectoryIndex.class, "reload"));
+  private static final Meter          changeMeter    = metricRegistry.meter(name(DirectoryIndex.class, "change"));
+
+  private static final PubSubAddress CHANGE_ADDRESS = new PubSubAddress() {
+    @Override
+    public String serialize() {
+      return "DIRECTORY_CHANGE";
+    }
+  };
+
+  static final int TOKEN_LENGTH = 10;
+
+  private static final int OCCUPIED    = 1 << 16;
+  private static final int VOICE       = 1 << 17;
+  private static final int VIDEO       = 1 << 18;
+  private static final int RELAY_SHIFT = 19;
+  private static final int MAX_RELAYS  = (1 << (32 - RELAY_SHIFT)) - 1;
+
+  private static final byte CHANGE_REMOVE = 0;
+  private static final byte CHANGE_ADD    = 1;
+  private static final byte CHANGE_BATCH  = 2;
+
+  private static final int CHANGES_PER_MESSAGE = 1000;
+
+  private static final int SCAN_COUNT = 1000;
+
+  private final ReadWriteLock         lock       = new ReentrantReadWriteLock();
+  private final List<String>          relays     = new CopyOnWriteArrayList<>();
+  private final Map<String, Integer>  relayIndex = new ConcurrentHashMap<>();
+
+  private final ReplicatedJedisPool directoryClient;
+  private final int                 initialCapacity;
+  private final int                 reloadIntervalMinutes;
+
+  private Table        table;
+  private List<byte[]> pendingChanges;
+
+  private final AtomicInteger connectionEpoch = new AtomicInteger();
+
+  private volatile boolean loaded;
+  private volatile boolean subscribed;
+  private volatile long    lastLoadTime;
+
+  private PubSubManager            pubSubManager;
+  private ScheduledExecutorService reloadExecutor;
+
+  public DirectoryIndex(ReplicatedJedisPool directoryClient, int initialCapacity, int reloadIntervalMinutes) {
+    this.directoryClient       = directoryClient;
+    this.initialCapacity       = initialCapacity;
+    this.reloadIntervalMinutes = reloadIntervalMinutes;
+    this.table                 = new Table(initialCapacity);
+
+    relays.add(null);
+
+    metricRegistry.register(name(DirectoryIndex.class, "size"), (Gauge<Integer>) this::size);
+    metricRegistry.register(name(DirectoryIndex.class, "staleness_ms"), new Gauge<Long>() {
+      @Override
+      public Long getValue() {
+        return loaded ? System.currentTimeMillis() - lastLoadTime : -1;
+      }
+    });
+  }
+
+  public void setPubSubManager(PubSubManager pubSubManager) {
+    this.pubSubManager = pubSubManager;
+  }
+
+  public boolean isLoaded() {
+    return loaded;
+  }
+
+  public int size() {
+    lock.readLock().lock();
+
+    try {
+      return table.size;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  public Optional<ClientContact> get(byte[] token) {
+    if (token.length != TOKEN_LENGTH) {
+      return Optional.absent();
+    }
+
+    lock.readLock().lock();
+
+    try {
+      return Optional.fromNullable(getLocked(token));
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  public List<ClientContact> get(List<byte[]> tokens) {
+    List<ClientContact> results = new LinkedList<>();
+    Timer.Context       timer   = lookupTimer.time();
+
+    lock.readLock().lock();
+
+    try {
+      for (byte[] token : tokens) {
+        if (token.length == TOKEN_LENGTH) {
+          ClientContact contact = getLocked(token);
+          if (contact != null) results.add(contact);
+        }
+      }
+    } finally {
+      lock.readLock().unlock();
+      timer.stop();
+    }
+
+    return results;
+  }
+
+  public void add(ClientContact contact) {
+    byte[] change = getAddChange(contact);
+
+    if (change != null) {
+      applyAndPublish(Collections.singletonList(change));
+    }
+  }
+
+  public void remove(byte[] token) {
+    byte[] change = getRemoveChange(token);
+
+    if (change != null) {
+      applyAndPublish(Collections.singletonList(change));
+    }
+  }
+
+  /**
+   * @return the change that adds this contact, or null if the index is loaded
+   *         and already has it exactly.
+   */
+  byte[] getAddChange(ClientContact contact) {
+    if (contact.getToken().length != TOKEN_LENGTH) {
+      return null;
+    }
+
+    if (loaded) {
+      Optional<ClientContact> existing = get(contact.getToken());
+
+      if (existing.isPresent()                             &&
+          existing.get().isVoice() == contact.isVoice()    &&
+          existing.get().isVideo() == contact.isVideo()    &&
+          Objects.equals(existing.get().getRelay(), contact.getRelay()))
+      {
+        return null;
+      }
+    }
+
+    byte[] relay  = contact.getRelay() == null ? new byte[0] : contact.getRelay().getBytes();
+    byte[] change = new byte[2 + TOKEN_LENGTH + relay.length];
+
+    change[0] = CHANGE_ADD;
+    System.arraycopy(contact.getToken(), 0, change, 1, TOKEN_LENGTH);
+    change[1 + TOKEN_LENGTH] = (byte)((contact.isVoice() ? 1 : 0) | (contact.isVideo() ? 2 : 0));
+    System.arraycopy(relay, 0, change, 2 + TOKEN_LENGTH, relay.length);
+
+    return change;
+  }
+
+  /**
+   * @return the change that removes this token, or null if the index is loaded
+   *         and doesn't have it.
+   */
+  byte[] getRemoveChange(byte[] token) {
+    if (token.length != TOKEN_LENGTH || (loaded && !get(token).isPresent())) {
+      return null;
+    }
+
+    byte[] change = new byte[1 + TOKEN_LENGTH];
+
+    change[0] = CHANGE_REMOVE;
+    System.arraycopy(token, 0, change, 1, TOKEN_LENGTH);
+
+    return change;
+  }
+
+  /**
+   * Applies changes that have already been written to the directory hash, and
+   * sends them to every other node.  More than one change is packed into as
+   * few messages as possible, published in one pipeline, so that a batch
+   * update costs each node a handful of messages rather than one per token.
+   */
+  void applyAndPublish(List<byte[]> changes) {
+    if (changes.isEmpty()) {
+      return;
+    }
+
+    apply(changes);
+
+    if (pubSubManager == null) {
+      return;
+    }
+
+    List<Pair<PubSubAddress, PubSubMessage>> messages = new LinkedList<>();
+
+    if (changes.size() == 1) {
+      messages.add(new Pair<>(CHANGE_ADDRESS, PubSubMessage.newBuilder()
+                                                           .setContent(ByteString.copyFrom(changes.get(0)))
+                                                           .build()));
+    } else {
+      for (List<byte[]> chunk : Lists.partition(changes, CHANGES_PER_MESSAGE)) {
+        messages.add(new Pair<>(CHANGE_ADDRESS, PubSubMessage.newBuilder()
+                                                             .setContent(ByteString.copyFrom(pack(chunk)))
+                                                             .build()));
+      }
+    }
+
+    pubSubManager.publish(messages);
+  }
+
+  @Override
+  public void start() throws Exception {
+    reloadExecutor = Executors.newSingleThreadScheduledExecutor();
+    reloadExecutor.scheduleWithFixedDelay(this::reloadSafely, reloadIntervalMinutes, reloadIntervalMinutes, TimeUnit.MINUTES);
+
+    pubSubManager.addDisconnectListener(CHANGE_ADDRESS, this::onDisconnected);
+    pubSubManager.subscribe(CHANGE_ADDRESS, this);
+  }
+
+  @Override
+  public void stop() throws Exception {
+    pubSubManager.unsubscribe(CHANGE_ADDRESS, this);
+    pubSubManager.removeDisconnectListener(CHANGE_ADDRESS);
+    reloadExecutor.shutdownNow();
+  }
+
+  @Override
+  public void onDispatchMessage(String channel, byte[] message) {
+    try {
+      byte[] content = PubSubMessage.parseFrom(message).getContent().toByteArray();
+
+      if (content.length > 0 && content[0] == CHANGE_BATCH) apply(unpack(content));
+      else                                                  apply(Collections.singletonList(content));
+
+      changeMeter.mark();
+    } catch (InvalidProtocolBufferException e) {
+      logger.warn("Bad directory change message", e);
+    }
+  }
+
+  @Override
+  public void onDispatchSubscribed(String channel) {
+    logger.info("Subscribed to directory changes, reloading index");
+    subscribed = true;
+    reloadExecutor.execute(this::reloadSafely);
+  }
+
+  @Override
+  public void onDispatchUnsubscribed(String channel) {
+    logger.warn("***** DIRECTORY CHANGE CHANNEL UNSUBSCRIBED *****");
+    markStale();
+  }
+
+  private void onDisconnected() {
+    logger.warn("Directory change channel disconnected, falling back until reloaded");
+    markStale();
+  }
+
+  private void markStale() {
+    subscribed = false;
+    connectionEpoch.incrementAndGet();
+    loaded = false;
+  }
+
+  private void apply(List<byte[]> changes) {
+    lock.writeLock().lock();
+
+    try {
+      for (byte[] change : changes) {
+        if (change.length < 1 + TOKEN_LENGTH) {
+          logger.warn("Short directory change: " + change.length);
+          continue;
+        }
+
+        if (pendingChanges != null) {
+          pendingChanges.add(change);
+        }
+
+        apply(table, change);
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * CHANGE_BATCH, then each change preceded by its two byte length.
+   */
+  private static byte[] pack(List<byte[]> changes) {
+    ByteArrayOutputStream packed = new ByteArrayOutputStream();
+
+    packed.write(CHANGE_BATCH);
+
+    for (byte[] change : changes) {
+      packed.write(change.length >>> 8);
+      packed.write(change.length);
+      packed.write(change, 0, change.length);
+    }
+
+    return packed.toByteArray();
+  }
+
+  private static List<byte[]> unpack(byte[] packed) {
+    List<byte[]> changes = new LinkedList<>();
+
+    for (int offset = 1; offset + 2 <= packed.length;) {
+      int length = ((packed[offset] & 0xff) << 8) | (packed[offset + 1] & 0xff);
+
+      offset += 2;
+
+      if (offset + length > packed.length) {
+        logger.warn("Truncated directory change batch");
+        break;
+      }
+
+      changes.add(Arrays.copyOfRange(packed, offset, offset + length));
+      offset += length;
+    }
+
+    return changes;
+  }
+
+  private void apply(Table target, byte[] change) {
+    long prefix = getPrefix(change, 1);
+    int  suffix = getSuffix(change, 1);
+
+    if (change[0] == CHANGE_ADD && change.length >= 2 + TOKEN_LENGTH) {
+      String relay = change.length > 2 + TOKEN_LENGTH ? new String(change, 2 + TOKEN_LENGTH, change.length - 2 - TOKEN_LENGTH) : null;
+      target.put(prefix, suffix | getFlags((change[1 + TOKEN_LENGTH] & 1) != 0, (change[1 + TOKEN_LENGTH] & 2) != 0, relay));
+    } else {
+      target.remove(prefix, suffix);
+    }
+  }
+
+  private void reloadSafely() {
+    try {
+      reload();
+    } catch (Exception e) {
+      logger.warn("Directory index reload failed", e);
+    }
+  }
+
+  private void reload() throws IOException {
+    Timer.Context timer = reloadTimer.time();
+    Table         fresh = new Table(Math.max(initialCapacity, size()));
+    int           epoch = connectionEpoch.get();
+
+    lock.writeLock().lock();
+
+    try {
+      pendingChanges = new LinkedList<>();
+    } finally {
+      lock.writeLock().unlock();
+    }
+
+    try (Jedis jedis = directoryClient.getReadResource()) {
+      ScanParams scanParams = new ScanParams().count(SCAN_COUNT);
+      byte[]     cursor     = ScanParams.SCAN_POINTER_START_BINARY;
+
+      do {
+        ScanResult<Map.Entry<byte[], byte[]>> result = jedis.hscan(DirectoryManager.DIRECTORY_KEY, cursor, scanParams);
+
+        for (Map.Entry<byte[], byte[]> entry : result.getResult()) {
+          if (entry.getKey().length != TOKEN_LENGTH) continue;
+
+          ClientContact contact = DirectoryManager.toClientContact(entry.getKey(), entry.getValue());
+          fresh.put(getPrefix(entry.getKey(), 0),
+                    getSuffix(entry.getKey(), 0) | getFlags(contact.isVoice(), contact.isVideo(), contact.getRelay()));
+        }
+
+        cursor = result.getCursorAsBytes();
+      } while (!Arrays.equals(cursor, ScanParams.SCAN_POINTER_START_BINARY));
+
+      lock.writeLock().lock();
+
+      try {
+        for (byte[] change : pendingChanges) {
+          apply(fresh, change);
+        }
+
+        table        = fresh;
+        loaded       = subscribed && epoch == connectionEpoch.get();
+        lastLoadTime = System.currentTimeMillis();
+      } finally {
+        lock.writeLock().unlock();
+      }
+
+      logger.info("Loaded directory index with " + fresh.size + " entries");
+    } finally {
+      lock.writeLock().lock();
+
+      try {
+        pendingChanges = null;
+      } finally {
+        lock.writeLock().unlock();
+      }
+
+      timer.stop();
+    }
+  }
+
+  private ClientContact getLocked(byte[] token) {
+    int entry = table.get(getPrefix(token, 0), getSuffix(token, 0));
+
+    if (entry == 0) {
+      return null;
+    }
+
+    return new ClientContact(token, relays.get(entry >>> RELAY_SHIFT), (entry & VOICE) != 0, (entry & VIDEO) != 0);
+  }
+
+  private int getFlags(boolean voice, boolean video, String relay) {
+    int flags = OCCUPIED;
+
+    if (voice) flags |= VOICE;
+    if (video) flags |= VIDEO;
+
+    if (relay != null) {
+      flags |= getRelayIndex(relay) << RELAY_SHIFT;
+    }
+
+    return flags;
+  }
+
+  private int getRelayIndex(String relay) {
+    Integer index = relayIndex.get(relay);
+
+    if (index != null) {
+      return index;
+    }
+
+    synchronized (relays) {
+      index = relayIndex.get(relay);
+
+      if (index == null) {
+        if (relays.size() > MAX_RELAYS) {
+          throw new IllegalStateException("Too many directory relays: " + relays.size());
+        }
+
+        index = relays.size();
+        relays.add(relay);
+        relayIndex.put(relay, index);
+      }
+
+      return index;
+    }
+  }
+
+  private static long getPrefix(byte[] token, int offset) {
+    long prefix = 0;
+
+    for (int i=0;i<8;i++) {
+      prefix = (prefix << 8) | (token[offset + i] & 0xff);
+    }
+
+    return prefix;
+  }
+
+  private static int getSuffix(byte[] token, int offset) {
+    return ((token[offset + 8] & 0xff) << 8) | (token[offset + 9] & 0xff);
+  }
+
+  /**
+   * Linear probing, with backward-shift deletion so removals don't leave
+   * tombstones.  Tokens are already uniformly distributed hash output, so
+   * the prefix's own bits pick the home slot.
+   */
+  private static class Table {
+
+    private long[] prefixes;
+    private int[]  entries;
+    private int    mask;
+    private int    size;
+
+    Table(int capacity) {
+      allocate(Integer.highestOneBit(Math.max(16, capacity * 4 / 3) * 2 - 1));
+    }
+
+    int get(long prefix, int suffix) {
+      for (int slot = home(prefix);; slot = (slot + 1) & mask) {
+        int entry = entries[slot];
+
+        if (entry == 0)                                              return 0;
+        if (prefixes[slot] == prefix && (entry & 0xffff) == suffix) return entry;
+      }
+    }
+
+    void put(long prefix, int entry) {
+      if ((size + 1) * 4 > entries.length * 3) {
+        resize();
+      }
+
+      for (int slot = home(prefix);; slot = (slot + 1) & mask) {
+        if (entries[slot] == 0) {
+          prefixes[slot] = prefix;
+          entries[slot]  = entry;
+          size++;
+          return;
+        }
+
+        if (prefixes[slot] == prefix && (entries[slot] & 0xffff) == (entry & 0xffff)) {
+          entries[slot] = entry;
+          return;
+        }
+      }
+    }
+
+    void remove(long prefix, int suffix) {
+      int slot = home(prefix);
+
+      while (true) {
+        if (entries[slot] == 0) return;
+        if (prefixes[slot] == prefix && (entries[slot] & 0xffff) == suffix) break;
+
+        slot = (slot + 1) & mask;
+      }
+
+      int hole = slot;
+
+      for (int next = (hole + 1) & mask; entries[next] != 0; next = (next + 1) & mask) {
+        int nextHome = home(prefixes[next]);
+
+        boolean inPlace = hole <= next ? (hole < nextHome && nextHome <= next)
+                                       : (hole < nextHome || nextHome <= next);
+
+        if (!inPlace) {
+          prefixes[hole] = prefixes[next];
+          entries[hole]  = entries[next];
+          hole           = next;
+        }
+      }
+
+      prefixes[hole] = 0;
+      entries[hole]  = 0;
+      size--;
+    }
+
+    private void resize() {
+      long[] oldPrefixes = prefixes;
+      int[]  oldEntries  = entries;
+
+      allocate(entries.length * 2);
+
+      for (int i=0;i<oldEntries.length;i++) {
+        if (oldEntries[i] != 0) {
+          put(oldPrefixes[i], oldEntries[i]);
+        }
+      }
+    }
+
+    private void allocate(int capacity) {
+      this.prefixes = new long[capacity];
+      this.entries  = new int[capacity];
+      this.mask     = capacity - 1;
+      this.size     = 0;
+    }
+
+    private int home(long prefix) {
+      return (int)(prefix ^ (prefix >>> 32)) & mask;
+    }
+  }
+}
@@ -14,6 +14,7 @@ import com.openchat.secureim.util.Pair;
 import com.openchat.secureim.util.Util;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -25,15 +26,26 @@ public class DirectoryManager {
 
   private final Logger logger = LoggerFactory.getLogger(DirectoryManager.class);
 
-  private static final byte[] DIRECTORY_KEY = {'d', 'i', 'r', 'e', 'c', 't', 'o', 'r', 'y'};
+  static final byte[] DIRECTORY_KEY = {'d', 'i', 'r', 'e', 'c', 't', 'o', 'r', 'y'};
 
-  private final ObjectMapper objectMapper;
-  private final ReplicatedJedisPool redisPool;
+  private static final int MAX_PENDING_CHANGES = 10000;
+
+  private static final ObjectMapper objectMapper = new ObjectMapper();
+
+  static {
+    objectMapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+  }
+
+  private final ReplicatedJedisPool      redisPool;
+  private final Optional<DirectoryIndex> index;
 
   public DirectoryManager(ReplicatedJedisPool redisPool) {
-    this.redisPool    = redisPool;
-    this.objectMapper = new ObjectMapper();
-    this.objectMapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    this(redisPool, Optional.<DirectoryIndex>absent());
+  }
+
+  public DirectoryManager(ReplicatedJedisPool redisPool, Optional<DirectoryIndex> index) {
+    this.redisPool = redisPool;
+    this.index     = index;
   }
 
   public void remove(String number) {
@@ -48,11 +60,15 @@ public class DirectoryManager {
     try (Jedis jedis = redisPool.getWriteResource()) {
       jedis.hdel(DIRECTORY_KEY, token);
     }
+
+    if (index.isPresent()) index.get().remove(token);
   }
 
   public void remove(BatchOperationHandle handle, byte[] token) {
     Pipeline pipeline = handle.pipeline;
     pipeline.hdel(DIRECTORY_KEY, token);
+
+    if (index.isPresent()) addChange(handle, index.get().getRemoveChange(token));
   }
 
   public void add(ClientContact contact) {
@@ -63,6 +79,8 @@ public class DirectoryManager {
     } catch (JsonProcessingException e) {
       logger.warn("JSON Serialization", e);
     }
+
+    if (index.isPresent()) index.get().add(contact);
   }
 
   public void add(BatchOperationHandle handle, ClientContact contact) {
@@ -74,14 +92,20 @@ public class DirectoryManager {
     } catch (JsonProcessingException e) {
       logger.warn("JSON Serialization", e);
     }
+
+    if (index.isPresent()) addChange(handle, index.get().getAddChange(contact));
   }
 
   public PendingClientContact get(BatchOperationHandle handle, byte[] token) {
     Pipeline pipeline = handle.pipeline;
-    return new PendingClientContact(objectMapper, token, pipeline.hget(DIRECTORY_KEY, token));
+    return new PendingClientContact(token, pipeline.hget(DIRECTORY_KEY, token));
   }
 
   public Optional<ClientContact> get(byte[] token) {
+    if (index.isPresent() && index.get().isLoaded()) {
+      return index.get().get(token);
+    }
+
     try (Jedis jedis = redisPool.getWriteResource()) {
       byte[] result = jedis.hget(DIRECTORY_KEY, token);
 
@@ -89,8 +113,7 @@ public class DirectoryManager {
         return Optional.absent();
       }
 
-      TokenValue tokenValue = objectMapper.readValue(result, TokenValue.class);
-      return Optional.of(new ClientContact(token, tokenValue.relay, tokenValue.voice, tokenValue.video));
+      return Optional.of(toClientContact(token, result));
     } catch (IOException e) {
       logger.warn("JSON Error", e);
       return Optional.absent();
@@ -98,6 +121,10 @@ public class DirectoryManager {
   }
 
   public List<ClientContact> get(List<byte[]> tokens) {
+    if (index.isPresent() && index.get().isLoaded()) {
+      return index.get().get(tokens);
+    }
+
     try (Jedis jedis = redisPool.getWriteResource()) {
       Pipeline               pipeline = jedis.pipelined();
       List<Response<byte[]>> futures  = new LinkedList<>();
@@ -116,10 +143,7 @@ public class DirectoryManager {
       for (Pair<byte[], Response<byte[]>> pair : lists) {
         try {
           if (pair.second().get() != null) {
-            TokenValue    tokenValue    = objectMapper.readValue(pair.second().get(), TokenValue.class);
-            ClientContact clientContact = new ClientContact(pair.first(), tokenValue.relay, tokenValue.voice, tokenValue.video);
-
-            results.add(clientContact);
+            results.add(toClientContact(pair.first(), pair.second().get()));
           }
         } catch (IOException e) {
           logger.warn("Deserialization Problem: ", e);
@@ -136,11 +160,40 @@ public class DirectoryManager {
   }
 
   public void stopBatchOperation(BatchOperationHandle handle) {
-    Pipeline pipeline = handle.pipeline;
-    Jedis    jedis    = handle.jedis;
+    try {
+      publishChanges(handle);
+    } finally {
+      redisPool.returnWriteResource(handle.jedis);
+    }
+  }
 
-    pipeline.sync();
-    redisPool.returnWriteResource(jedis);
+  private void addChange(BatchOperationHandle handle, byte[] change) {
+    if (change != null) {
+      handle.changes.add(change);
+
+      if (handle.changes.size() >= MAX_PENDING_CHANGES) {
+        publishChanges(handle);
+      }
+    }
+  }
+
+  /**
+   * Index changes are only sent once the pipeline has synced, so other nodes
+   * never index a contact that didn't make it to Redis.
+   */
+  private void publishChanges(BatchOperationHandle handle) {
+    handle.pipeline.sync();
+
+    if (index.isPresent() && !handle.changes.isEmpty()) {
+      index.get().applyAndPublish(handle.changes);
+    }
+
+    handle.changes.clear();
+  }
+
+  static ClientContact toClientContact(byte[] token, byte[] value) throws IOException {
+    TokenValue tokenValue = objectMapper.readValue(value, TokenValue.class);
+    return new ClientContact(token, tokenValue.relay, tokenValue.voice, tokenValue.video);
   }
 
   public static class BatchOperationHandle {
@@ -148,6 +201,8 @@ public class DirectoryManager {
     public final Pipeline pipeline;
     public final Jedis    jedis;
 
+    private final List<byte[]> changes = new ArrayList<>();
+
     public BatchOperationHandle(Jedis jedis, Pipeline pipeline) {
       this.pipeline = pipeline;
       this.jedis    = jedis;
@@ -175,14 +230,12 @@ public class DirectoryManager {
   }
 
   public static class PendingClientContact {
-    private final ObjectMapper     objectMapper;
     private final byte[]           token;
     private final Response<byte[]> response;
 
-    PendingClientContact(ObjectMapper objectMapper, byte[] token, Response<byte[]> response) {
-      this.objectMapper = objectMapper;
-      this.token        = token;
-      this.response     = response;
+    PendingClientContact(byte[] token, Response<byte[]> response) {
+      this.token    = token;
+      this.response = response;
     }
 
     public Optional<ClientContact> get() throws IOException {
@@ -192,8 +245,7 @@ public class DirectoryManager {
         return Optional.absent();
       }
 
-      TokenValue tokenValue = objectMapper.readValue(result, TokenValue.class);
-      return Optional.of(new ClientContact(token, tokenValue.relay, tokenValue.voice, tokenValue.video));
+      return Optional.of(toClientContact(token, result));
     }
 
   }
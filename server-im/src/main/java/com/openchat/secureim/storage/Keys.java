@@ -34,6 +34,9 @@ public abstract class Keys {
   @SqlUpdate("DELETE FROM keys WHERE id = :id")
   abstract void removeKey(@Bind("id") long id);
 
+  @SqlBatch("DELETE FROM keys WHERE number = :number AND device_id = :device_id AND key_id = :key_id")
+  abstract void removeKeys(@PreKeyBinder List<KeyRecord> preKeys);
+
   @SqlBatch("INSERT INTO keys (number, device_id, key_id, public_key, last_resort) VALUES " +
             "(:number, :device_id, :key_id, :public_key, :last_resort)")
   abstract void append(@PreKeyBinder List<KeyRecord> preKeys);
@@ -42,6 +45,10 @@ public abstract class Keys {
   @Mapper(PreKeyMapper.class)
   abstract KeyRecord retrieveFirst(@Bind("number") String number, @Bind("device_id") long deviceId);
 
+  @SqlQuery("SELECT * FROM keys WHERE number = :number AND device_id = :device_id AND last_resort = 0 ORDER BY key_id ASC")
+  @Mapper(PreKeyMapper.class)
+  abstract List<KeyRecord> retrieveAll(@Bind("number") String number, @Bind("device_id") long deviceId);
+
   @SqlQuery("SELECT DISTINCT ON (number, device_id) * FROM keys WHERE number = :number ORDER BY number, device_id, key_id ASC")
   @Mapper(PreKeyMapper.class)
   abstract List<KeyRecord> retrieveFirst(@Bind("number") String number);
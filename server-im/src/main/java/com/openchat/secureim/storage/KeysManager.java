@@ -0,0 +1,106 @@
+package com.openchat.secureim.storage;
+
+import com.google.common.base.Optional;
+import org.skife.jdbi.v2.exceptions.UnableToExecuteStatementException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.openchat.secureim.entities.PreKey;
+import com.openchat.secureim.util.Pair;
+
+import java.util.LinkedList;
+import java.util.List;
+
+public class KeysManager {
+
+  private static final Logger logger = LoggerFactory.getLogger(KeysManager.class);
+
+  private static final int MAX_RETRIES = 20;
+
+  private final Keys                   keys;
+  private final Optional<PreKeysCache> cache;
+
+  public KeysManager(Keys keys) {
+    this(keys, Optional.<PreKeysCache>absent());
+  }
+
+  public KeysManager(Keys keys, Optional<PreKeysCache> cache) {
+    this.keys  = keys;
+    this.cache = cache;
+  }
+
+  public void store(String number, long deviceId, List<PreKey> preKeys) {
+    if (cache.isPresent()) cache.get().store(number, deviceId, preKeys);
+    else                   keys.store(number, deviceId, preKeys);
+  }
+
+  public int getCount(String number, long deviceId) {
+    if (cache.isPresent()) return cache.get().getCount(number, deviceId);
+    else                   return keys.getCount(number, deviceId);
+  }
+
+  public Optional<List<KeyRecord>> take(String number, long deviceId) {
+    if (cache.isPresent()) {
+      return nonEmpty(cache.get().take(singleDevice(number, deviceId)));
+    }
+
+    for (int i=0;i<MAX_RETRIES;i++) {
+      try {
+        return keys.get(number, deviceId);
+      } catch (UnableToExecuteStatementException e) {
+        logger.info(e.getMessage());
+      }
+    }
+
+    throw new UnableToClaimKeyException("Exceeded retries claiming key for " + number + "." + deviceId);
+  }
+
+  public Optional<List<KeyRecord>> take(String number, List<Long> deviceIds) {
+    if (cache.isPresent()) {
+      List<Pair<String, Long>> devices = new LinkedList<>();
+
+      for (long deviceId : deviceIds) {
+        devices.add(new Pair<>(number, deviceId));
+      }
+
+      return nonEmpty(cache.get().take(devices));
+    }
+
+    return keys.get(number);
+  }
+
+  public List<KeyRecord> take(List<Pair<String, Long>> devices) {
+    if (cache.isPresent()) {
+      return cache.get().take(devices);
+    }
+
+    List<KeyRecord> results = new LinkedList<>();
+
+    for (Pair<String, Long> device : devices) {
+      Optional<List<KeyRecord>> records = take(device.first(), device.second());
+
+      if (records.isPresent()) {
+        results.addAll(records.get());
+      }
+    }
+
+    return results;
+  }
+
+  private List<Pair<String, Long>> singleDevice(String number, long deviceId) {
+    List<Pair<String, Long>> devices = new LinkedList<>();
+    devices.add(new Pair<>(number, deviceId));
+
+    return devices;
+  }
+
+  private Optional<List<KeyRecord>> nonEmpty(List<KeyRecord> records) {
+    if (records.isEmpty()) return Optional.absent();
+    else                   return Optional.of(records);
+  }
+
+  public static class UnableToClaimKeyException extends RuntimeException {
+    public UnableToClaimKeyException(String message) {
+      super(message);
+    }
+  }
+}
@@ -0,0 +1,203 @@
+package com.openchat.secureim.storage;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.codahale.metrics.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.openchat.secureim.util.Constants;
+import com.openchat.secureim.util.Util;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import io.dropwizard.lifecycle.Managed;
+
+/**
+ * Collects device lastSeen updates in memory and writes them behind in
+ * batches, so the first request of the day from every active device doesn't
+ * each rewrite a whole account.
+ *
+ * Repeated updates for the same device before a flush collapse into one.  If
+ * the backlog reaches its limit, further updates are dropped until the next
+ * flush makes room; lastSeen only has day granularity, so the device will be
+ * recorded again the next time its account is loaded fresh.
+ */
+public class LastSeenTracker implements Managed {
+
+  private static final Logger logger = LoggerFactory.getLogger(LastSeenTracker.class);
+
+  private static final MetricRegistry metricRegistry     = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
+  private static final Timer          flushTimer         = metricRegistry.timer(name(LastSeenTracker.class, "flush"));
+  private static final Histogram      flushSizeHistogram = metricRegistry.histogram(name(LastSeenTracker.class, "flush_size"));
+  private static final Histogram      lagHistogram       = metricRegistry.histogram(name(LastSeenTracker.class, "lag_ms"));
+  private static final Meter          writtenMeter       = metricRegistry.meter(name(LastSeenTracker.class, "written"));
+  private static final Meter          droppedMeter       = metricRegistry.meter(name(LastSeenTracker.class, "dropped"));
+
+  private final ConcurrentHashMap<String, Update> pending = new ConcurrentHashMap<>();
+
+  private final AccountsManager accountsManager;
+  private final int             batchSize;
+  private final long            flushIntervalMillis;
+  private final int             maxPending;
+
+  private volatile Flusher flusher;
+
+  public LastSeenTracker(AccountsManager accountsManager, int batchSize, long flushIntervalMillis, int maxPending) {
+    this.accountsManager     = accountsManager;
+    this.batchSize           = batchSize;
+    this.flushIntervalMillis = flushIntervalMillis;
+    this.maxPending          = maxPending;
+
+    metricRegistry.register(name(LastSeenTracker.class, "pending"), (Gauge<Integer>) pending::size);
+  }
+
+  public void record(String number, long deviceId, long lastSeen) {
+    String key = number + "." + deviceId;
+
+    if (pending.size() >= maxPending && !pending.containsKey(key)) {
+      droppedMeter.mark();
+      return;
+    }
+
+    pending.merge(key, new Update(number, deviceId, lastSeen, System.currentTimeMillis()),
+                  (existing, update) -> existing.lastSeen >= update.lastSeen ? existing : update);
+
+    Flusher flusher = this.flusher;
+
+    if (flusher != null && pending.size() >= batchSize) {
+      flusher.wake();
+    }
+  }
+
+  @Override
+  public void start() throws Exception {
+    this.flusher = new Flusher();
+    this.flusher.start();
+  }
+
+  @Override
+  public void stop() throws Exception {
+    flusher.shutdown();
+    flush();
+  }
+
+  private boolean flush() {
+    while (!pending.isEmpty()) {
+      List<Update>     batch = new ArrayList<>(batchSize);
+      Iterator<String> keys  = pending.keySet().iterator();
+
+      while (keys.hasNext() && batch.size() < batchSize) {
+        Update update = pending.remove(keys.next());
+        if (update != null) batch.add(update);
+      }
+
+      try {
+        write(batch);
+      } catch (RuntimeException e) {
+        logger.warn("Failed to write lastSeen batch", e);
+
+        for (Update update : batch) {
+          pending.putIfAbsent(update.number + "." + update.deviceId, update);
+        }
+
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  private void write(List<Update> batch) {
+    List<String> numbers   = new ArrayList<>(batch.size());
+    List<Long>   deviceIds = new ArrayList<>(batch.size());
+    List<Long>   lastSeens = new ArrayList<>(batch.size());
+    long         now       = System.currentTimeMillis();
+
+    for (Update update : batch) {
+      numbers.add(update.number);
+      deviceIds.add(update.deviceId);
+      lastSeens.add(update.lastSeen);
+      lagHistogram.update(now - update.recorded);
+    }
+
+    try (Timer.Context timer = flushTimer.time()) {
+      writtenMeter.mark(accountsManager.updateLastSeen(numbers, deviceIds, lastSeens));
+      flushSizeHistogram.update(batch.size());
+    }
+  }
+
+  private class Flusher extends Thread {
+
+    private final AtomicBoolean running = new AtomicBoolean(true);
+
+    private boolean finished = false;
+
+    Flusher() {
+      super(LastSeenTracker.class.getSimpleName() + "-Flusher");
+    }
+
+    @Override
+    public void run() {
+      boolean flushed = true;
+
+      while (running.get()) {
+        try {
+          if (flushed) awaitBatch();
+          else         Util.sleep(flushIntervalMillis);
+
+          flushed = flush();
+        } catch (Throwable t) {
+          logger.error("Exception while flushing lastSeen: ", t);
+        }
+      }
+
+      synchronized (this) {
+        finished = true;
+        notifyAll();
+      }
+    }
+
+    private synchronized void awaitBatch() {
+      long deadline = System.currentTimeMillis() + flushIntervalMillis;
+      long remaining;
+
+      while (running.get() && pending.size() < batchSize &&
+             (remaining = deadline - System.currentTimeMillis()) > 0)
+      {
+        Util.wait(this, remaining);
+      }
+    }
+
+    synchronized void wake() {
+      notifyAll();
+    }
+
+    synchronized void shutdown() {
+      running.set(false);
+      notifyAll();
+      while (!finished) Util.wait(this);
+    }
+  }
+
+  private static class Update {
+    private final String number;
+    private final long   deviceId;
+    private final long   lastSeen;
+    private final long   recorded;
+
+    private Update(String number, long deviceId, long lastSeen, long recorded) {
+      this.number   = number;
+      this.deviceId = deviceId;
+      this.lastSeen = lastSeen;
+      this.recorded = recorded;
+    }
+  }
+}
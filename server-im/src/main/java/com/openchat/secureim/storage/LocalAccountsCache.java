@@ -0,0 +1,206 @@
+package com.openchat.secureim.storage;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.openchat.dispatch.DispatchChannel;
+import com.openchat.secureim.storage.PubSubProtos.PubSubMessage;
+import com.openchat.secureim.util.Constants;
+import com.openchat.secureim.util.Pair;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import io.dropwizard.lifecycle.Managed;
+
+/**
+ * An in-process cache of accounts in front of redis, kept coherent across
+ * nodes by publishing an invalidation whenever an account changes.
+ *
+ * A miss that's filled from redis or the database can race with an
+ * invalidation for the same account, and would otherwise put back a value
+ * that's already stale.  So every invalidation bumps a generation for the
+ * account (striped, so the counters stay bounded), and a fill only lands if
+ * the generation it read before the miss is still current.
+ */
+public class LocalAccountsCache implements Managed, DispatchChannel {
+
+  private static final Logger logger = LoggerFactory.getLogger(LocalAccountsCache.class);
+
+  private static final MetricRegistry metricRegistry    = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
+  private static final Meter          hitMeter          = metricRegistry.meter(name(LocalAccountsCache.class, "hit"         ));
+  private static final Meter          missMeter         = metricRegistry.meter(name(LocalAccountsCache.class, "miss"        ));
+  private static final Meter          evictionMeter     = metricRegistry.meter(name(LocalAccountsCache.class, "eviction"    ));
+  private static final Meter          invalidationMeter = metricRegistry.meter(name(LocalAccountsCache.class, "invalidation"));
+
+  private static final int ACCOUNT_WEIGHT     = 512;
+  private static final int DEVICE_WEIGHT      = 1024;
+  private static final int GENERATION_STRIPES = 4096;
+
+  private static final PubSubAddress INVALIDATION_ADDRESS = new PubSubAddress() {
+    @Override
+    public String serialize() {
+      return "ACCOUNT_INVALIDATION";
+    }
+  };
+
+  private final Cache<String, Account> cache;
+  private final AtomicLongArray        generations = new AtomicLongArray(GENERATION_STRIPES);
+
+  private PubSubManager pubSubManager;
+
+  public LocalAccountsCache(long maxSizeBytes, int ttlSeconds) {
+    this.cache = CacheBuilder.newBuilder()
+                             .maximumWeight(maxSizeBytes)
+                             .weigher(new Weigher<String, Account>() {
+                               @Override
+                               public int weigh(String number, Account account) {
+                                 return ACCOUNT_WEIGHT + account.getDevices().size() * DEVICE_WEIGHT;
+                               }
+                             })
+                             .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                             .removalListener(new RemovalListener<String, Account>() {
+                               @Override
+                               public void onRemoval(RemovalNotification<String, Account> notification) {
+                                 if (notification.wasEvicted()) evictionMeter.mark();
+                               }
+                             })
+                             .build();
+  }
+
+  public void setPubSubManager(PubSubManager pubSubManager) {
+    this.pubSubManager = pubSubManager;
+  }
+
+  public Optional<Account> get(String number) {
+    Account account = cache.getIfPresent(number);
+
+    if (account != null) {
+      hitMeter.mark();
+      return Optional.of(new Account(account));
+    }
+
+    missMeter.mark();
+    return Optional.absent();
+  }
+
+  /**
+   * @return the account's current generation, to be read before a miss is
+   * filled from elsewhere and passed back to {@link #set}.
+   */
+  public long getGeneration(String number) {
+    return generations.get(getStripe(number));
+  }
+
+  public void set(Account account, long generation) {
+    String number = account.getNumber();
+
+    if (getGeneration(number) != generation) {
+      return;
+    }
+
+    cache.put(number, new Account(account));
+
+    if (getGeneration(number) != generation) {
+      cache.invalidate(number);
+    }
+  }
+
+  public void invalidate(String number) {
+    invalidateLocal(number);
+
+    if (pubSubManager != null) {
+      pubSubManager.publish(INVALIDATION_ADDRESS, PubSubMessage.newBuilder()
+                                                               .setContent(ByteString.copyFromUtf8(number))
+                                                               .build());
+    }
+  }
+
+  /**
+   * Invalidates many accounts at once, publishing every invalidation in a
+   * single pipeline.
+   */
+  public void invalidate(Collection<String> numbers) {
+    List<Pair<PubSubAddress, PubSubMessage>> messages = new ArrayList<>(numbers.size());
+
+    for (String number : numbers) {
+      invalidateLocal(number);
+      messages.add(new Pair<>(INVALIDATION_ADDRESS, PubSubMessage.newBuilder()
+                                                                 .setContent(ByteString.copyFromUtf8(number))
+                                                                 .build()));
+    }
+
+    if (pubSubManager != null && !messages.isEmpty()) {
+      pubSubManager.publish(messages);
+    }
+  }
+
+  @Override
+  public void start() throws Exception {
+    pubSubManager.addDisconnectListener(INVALIDATION_ADDRESS, this::invalidateAll);
+    pubSubManager.subscribe(INVALIDATION_ADDRESS, this);
+  }
+
+  @Override
+  public void stop() throws Exception {
+    pubSubManager.unsubscribe(INVALIDATION_ADDRESS, this);
+    pubSubManager.removeDisconnectListener(INVALIDATION_ADDRESS);
+  }
+
+  @Override
+  public void onDispatchMessage(String channel, byte[] message) {
+    try {
+      String number = PubSubMessage.parseFrom(message).getContent().toStringUtf8();
+
+      invalidateLocal(number);
+      invalidationMeter.mark();
+    } catch (InvalidProtocolBufferException e) {
+      logger.warn("Bad invalidation message", e);
+    }
+  }
+
+  @Override
+  public void onDispatchSubscribed(String channel) {
+    logger.info("Subscribed to account invalidations");
+
+    // Anything filled while the channel was down may have missed its invalidation.
+    invalidateAll();
+  }
+
+  @Override
+  public void onDispatchUnsubscribed(String channel) {
+    logger.warn("***** ACCOUNT INVALIDATION CHANNEL UNSUBSCRIBED *****");
+    invalidateAll();
+  }
+
+  private void invalidateAll() {
+    for (int i=0;i<GENERATION_STRIPES;i++) {
+      generations.incrementAndGet(i);
+    }
+
+    cache.invalidateAll();
+  }
+
+  private void invalidateLocal(String number) {
+    generations.incrementAndGet(getStripe(number));
+    cache.invalidate(number);
+  }
+
+  private int getStripe(String number) {
+    return (number.hashCode() & Integer.MAX_VALUE) % GENERATION_STRIPES;
+  }
+}
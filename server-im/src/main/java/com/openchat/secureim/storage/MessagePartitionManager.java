@@ -0,0 +1,211 @@
+package com.openchat.secureim.storage;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Handle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.openchat.secureim.util.Constants;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import io.dropwizard.lifecycle.Managed;
+
+/**
+ * Keeps a messages table that's range partitioned by timestamp (see
+ * messagedb-partitions.xml) supplied with one partition per UTC day, created
+ * a few days ahead, and expires old messages by dropping whole partitions
+ * instead of deleting rows.
+ *
+ * Messages whose timestamps fall past the last partition land in the default
+ * partition.  When the partition covering them is created they're moved into
+ * it before it's attached, in the same transaction.
+ *
+ * Does nothing if the messages table isn't partitioned.
+ */
+public class MessagePartitionManager implements Managed {
+
+  private static final Logger logger = LoggerFactory.getLogger(MessagePartitionManager.class);
+
+  private static final MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
+  private static final Meter          createdMeter   = metricRegistry.meter(name(MessagePartitionManager.class, "created"));
+  private static final Meter          droppedMeter   = metricRegistry.meter(name(MessagePartitionManager.class, "dropped"));
+
+  private static final String  TABLE             = "messages";
+  private static final String  DEFAULT_PARTITION = "messages_default";
+  private static final long    DAY_MILLIS        = TimeUnit.DAYS.toMillis(1);
+  private static final Pattern RANGE_BOUND       = Pattern.compile("FOR VALUES FROM \\((.+)\\) TO \\((.+)\\)");
+
+  private final DBI           dbi;
+  private final int           precreateDays;
+  private final int           retentionDays;
+  private final long          intervalMinutes;
+  private final AtomicInteger partitions = new AtomicInteger();
+
+  private ScheduledExecutorService executor;
+
+  public MessagePartitionManager(DBI dbi, int precreateDays, int retentionDays, long intervalMinutes) {
+    this.dbi             = dbi;
+    this.precreateDays   = precreateDays;
+    this.retentionDays   = retentionDays;
+    this.intervalMinutes = intervalMinutes;
+
+    metricRegistry.register(name(MessagePartitionManager.class, "partitions"), (Gauge<Integer>) partitions::get);
+  }
+
+  @Override
+  public void start() {
+    executor = Executors.newSingleThreadScheduledExecutor();
+    executor.scheduleWithFixedDelay(() -> {
+      try {
+        maintain();
+      } catch (Exception e) {
+        logger.warn("Message partition maintenance failed", e);
+      }
+    }, 0, intervalMinutes, TimeUnit.MINUTES);
+  }
+
+  @Override
+  public void stop() throws InterruptedException {
+    executor.shutdown();
+    executor.awaitTermination(1, TimeUnit.MINUTES);
+  }
+
+  /**
+   * Whether a message with this client-supplied timestamp belongs in a
+   * partition that's kept: no older than the retention window, and no later
+   * than the partitions created ahead.  Anything else would be expired
+   * straight away or pile up in the default partition.
+   */
+  public boolean isInRange(long timestamp) {
+    long now   = System.currentTimeMillis();
+    long today = now - (now % DAY_MILLIS);
+
+    return timestamp >= now - TimeUnit.DAYS.toMillis(retentionDays) &&
+           timestamp <  today + (precreateDays + 1) * DAY_MILLIS;
+  }
+
+  public boolean isPartitioned() {
+    try (Handle handle = dbi.open()) {
+      return !handle.createQuery("SELECT 1 FROM pg_partitioned_table WHERE partrelid = to_regclass('" + TABLE + "')")
+                    .list()
+                    .isEmpty();
+    }
+  }
+
+  /**
+   * Creates any missing partitions up to precreateDays from now, then drops
+   * every partition whose messages are all older than retentionDays.
+   *
+   * @return false if the messages table isn't partitioned.
+   */
+  public synchronized boolean maintain() {
+    if (!isPartitioned()) {
+      return false;
+    }
+
+    long now    = System.currentTimeMillis();
+    long today  = now - (now % DAY_MILLIS);
+    long cutoff = now - TimeUnit.DAYS.toMillis(retentionDays);
+
+    List<Partition> existing = getPartitions();
+    long            next     = existing.isEmpty() ? today : cutoff - (cutoff % DAY_MILLIS);
+
+    for (Partition partition : existing) {
+      next = Math.max(next, partition.upperBound);
+    }
+
+    for (long start = next; start <= today + precreateDays * DAY_MILLIS; start += DAY_MILLIS) {
+      createPartition(start, start + DAY_MILLIS);
+    }
+
+    for (Partition partition : existing) {
+      if (partition.upperBound <= cutoff) {
+        dropPartition(partition.name);
+      }
+    }
+
+    partitions.set(getPartitions().size());
+    return true;
+  }
+
+  private List<Partition> getPartitions() {
+    List<Partition> results = new LinkedList<>();
+
+    try (Handle handle = dbi.open()) {
+      List<Map<String, Object>> rows = handle.createQuery("SELECT c.relname AS name, pg_get_expr(c.relpartbound, c.oid) AS bound " +
+                                                          "FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid " +
+                                                          "WHERE i.inhparent = to_regclass('" + TABLE + "')")
+                                             .list();
+
+      for (Map<String, Object> row : rows) {
+        Matcher matcher = RANGE_BOUND.matcher((String)row.get("bound"));
+
+        if (matcher.matches() && !matcher.group(2).equals("MAXVALUE")) {
+          results.add(new Partition((String)row.get("name"), Long.parseLong(matcher.group(2).replace("'", ""))));
+        }
+      }
+    }
+
+    return results;
+  }
+
+  private void createPartition(final long start, final long end) {
+    final String name = getPartitionName(start);
+
+    dbi.inTransaction((handle, status) -> {
+      handle.execute("CREATE TABLE " + name + " (LIKE " + TABLE + " INCLUDING DEFAULTS)");
+      handle.execute("WITH moved AS (DELETE FROM " + DEFAULT_PARTITION + " WHERE timestamp >= " + start + " AND timestamp < " + end + " RETURNING *) " +
+                     "INSERT INTO " + name + " SELECT * FROM moved");
+      handle.execute("ALTER TABLE " + name + " ADD CONSTRAINT " + name + "_bound CHECK (timestamp >= " + start + " AND timestamp < " + end + ")");
+      handle.execute("ALTER TABLE " + TABLE + " ATTACH PARTITION " + name + " FOR VALUES FROM (" + start + ") TO (" + end + ")");
+      return null;
+    });
+
+    createdMeter.mark();
+    logger.info("Created message partition " + name);
+  }
+
+  private void dropPartition(final String name) {
+    dbi.inTransaction((handle, status) -> {
+      handle.execute("ALTER TABLE " + TABLE + " DETACH PARTITION " + name);
+      handle.execute("DROP TABLE " + name);
+      return null;
+    });
+
+    droppedMeter.mark();
+    logger.info("Dropped message partition " + name);
+  }
+
+  private static String getPartitionName(long start) {
+    SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd");
+    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+    return TABLE + "_" + format.format(new Date(start));
+  }
+
+  private static class Partition {
+    private final String name;
+    private final long   upperBound;
+
+    private Partition(String name, long upperBound) {
+      this.name       = name;
+      this.upperBound = upperBound;
+    }
+  }
+}
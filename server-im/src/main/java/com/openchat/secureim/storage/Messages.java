@@ -6,6 +6,7 @@ import org.skife.jdbi.v2.sqlobject.Bind;
 import org.skife.jdbi.v2.sqlobject.Binder;
 import org.skife.jdbi.v2.sqlobject.BinderFactory;
 import org.skife.jdbi.v2.sqlobject.BindingAnnotation;
+import org.skife.jdbi.v2.sqlobject.SqlBatch;
 import org.skife.jdbi.v2.sqlobject.SqlQuery;
 import org.skife.jdbi.v2.sqlobject.SqlUpdate;
 import org.skife.jdbi.v2.sqlobject.customizers.Mapper;
@@ -43,21 +44,38 @@ public abstract class Messages {
                      @Bind("destination") String destination,
                      @Bind("destination_device") long destinationDevice);
 
+  @SqlBatch("INSERT INTO messages (" + TYPE + ", " + RELAY + ", " + TIMESTAMP + ", " + SOURCE + ", " + SOURCE_DEVICE + ", " + DESTINATION + ", " + DESTINATION_DEVICE + ", " + MESSAGE + ", " + CONTENT + ") " +
+            "VALUES (:type, :relay, :timestamp, :source, :source_device, :destination, :destination_device, :message, :content)")
+  abstract void store(@MessageBinder List<Envelope> messages,
+                      @Bind("destination") String destination,
+                      @Bind("destination_device") long destinationDevice);
+
   @Mapper(MessageMapper.class)
   @SqlQuery("SELECT * FROM messages WHERE " + DESTINATION + " = :destination AND " + DESTINATION_DEVICE + " = :destination_device ORDER BY " + TIMESTAMP + " ASC LIMIT " + RESULT_SET_CHUNK_SIZE)
   abstract List<OutgoingMessageEntity> load(@Bind("destination")        String destination,
                                             @Bind("destination_device") long destinationDevice);
 
   @Mapper(MessageMapper.class)
-  @SqlQuery("DELETE FROM messages WHERE " + ID + " IN (SELECT " + ID + " FROM messages WHERE " + DESTINATION + " = :destination AND " + DESTINATION_DEVICE + " = :destination_device AND " + SOURCE + " = :source AND " + TIMESTAMP + " = :timestamp ORDER BY " + ID + " LIMIT 1) RETURNING *")
+  @SqlQuery("SELECT * FROM messages WHERE " + DESTINATION + " = :destination AND " + DESTINATION_DEVICE + " = :destination_device AND " + TIMESTAMP + " >= :timestamp AND (" + TIMESTAMP + ", " + ID + ") > (:timestamp, :id) ORDER BY " + TIMESTAMP + " ASC, " + ID + " ASC LIMIT :limit")
+  abstract List<OutgoingMessageEntity> loadAfter(@Bind("destination")        String destination,
+                                                 @Bind("destination_device") long destinationDevice,
+                                                 @Bind("timestamp")          long afterTimestamp,
+                                                 @Bind("id")                 long afterId,
+                                                 @Bind("limit")              int limit);
+
+  @Mapper(MessageMapper.class)
+  @SqlQuery("DELETE FROM messages WHERE " + TIMESTAMP + " = :timestamp AND " + ID + " IN (SELECT " + ID + " FROM messages WHERE " + DESTINATION + " = :destination AND " + DESTINATION_DEVICE + " = :destination_device AND " + SOURCE + " = :source AND " + TIMESTAMP + " = :timestamp ORDER BY " + ID + " LIMIT 1) RETURNING *")
   abstract OutgoingMessageEntity remove(@Bind("destination")        String destination,
                                         @Bind("destination_device") long destinationDevice,
                                         @Bind("source")             String source,
                                         @Bind("timestamp")          long timestamp);
 
   @Mapper(MessageMapper.class)
-  @SqlUpdate("DELETE FROM messages WHERE " + ID + " = :id AND " + DESTINATION + " = :destination")
-  abstract void remove(@Bind("destination") String destination, @Bind("id") long id);
+  @SqlUpdate("DELETE FROM messages WHERE " + ID + " = :id AND " + DESTINATION + " = :destination AND " + TIMESTAMP + " = :timestamp")
+  abstract void remove(@Bind("destination") String destination, @Bind("id") long id, @Bind("timestamp") long timestamp);
+
+  @SqlBatch("DELETE FROM messages WHERE " + ID + " = :id AND " + DESTINATION + " = :destination AND " + TIMESTAMP + " = :timestamp")
+  abstract void remove(@Bind("destination") String destination, @Bind("id") List<Long> ids, @Bind("timestamp") List<Long> timestamps);
 
   @SqlUpdate("DELETE FROM messages WHERE " + DESTINATION + " = :destination")
   abstract void clear(@Bind("destination") String destination);
@@ -65,8 +83,8 @@ public abstract class Messages {
   @SqlUpdate("DELETE FROM messages WHERE " + DESTINATION + " = :destination AND " + DESTINATION_DEVICE + " = :destination_device")
   abstract void clear(@Bind("destination") String destination, @Bind("destination_device") long destinationDevice);
 
-  @SqlUpdate("DELETE FROM messages WHERE " + TIMESTAMP + " < :timestamp")
-  public abstract void removeOld(@Bind("timestamp") long timestamp);
+  @SqlUpdate("DELETE FROM messages WHERE " + TIMESTAMP + " < :timestamp AND " + ID + " IN (SELECT " + ID + " FROM messages WHERE " + TIMESTAMP + " < :timestamp LIMIT :limit)")
+  public abstract int removeOld(@Bind("timestamp") long timestamp, @Bind("limit") int limit);
 
   @SqlUpdate("VACUUM messages")
   public abstract void vacuum();
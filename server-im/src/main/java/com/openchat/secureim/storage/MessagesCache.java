@@ -1,6 +1,7 @@
 package com.openchat.secureim.storage;
 
 import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.SharedMetricRegistries;
 import com.codahale.metrics.Timer;
@@ -14,64 +15,171 @@ import com.openchat.secureim.push.NotPushRegisteredException;
 import com.openchat.secureim.push.PushSender;
 import com.openchat.secureim.redis.LuaScript;
 import com.openchat.secureim.redis.ReplicatedJedisPool;
+import com.openchat.secureim.util.ConsistentHashRing;
 import com.openchat.secureim.util.Constants;
 import com.openchat.secureim.util.Pair;
 import com.openchat.secureim.util.Util;
 import com.openchat.secureim.websocket.WebsocketAddress;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
 
 import static com.codahale.metrics.MetricRegistry.name;
 import io.dropwizard.lifecycle.Managed;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
 import redis.clients.jedis.Tuple;
+import redis.clients.jedis.exceptions.JedisException;
 import redis.clients.util.SafeEncoder;
 
+/**
+ * Queues messages for offline devices in redis until they're fetched, or
+ * persisted to the database after delayMinutes.
+ *
+ * Queues can be spread over several redis masters ("shards"), placed by a
+ * consistent hash of the destination number, so that each shard has its own
+ * queue index and its own persisters.  Reads only go to the shard that owns
+ * the destination, so when shards are added, a queue whose destination now
+ * hashes elsewhere is treated as draining: each shard periodically sweeps its
+ * index for queues it no longer owns and persists them straight away, so they
+ * reach the client through the database within a sweep interval rather than
+ * after delayMinutes.  A shard that's being removed is marked draining: it
+ * takes no new messages, and everything on it is persisted straight away.
+ */
 public class MessagesCache implements Managed {
 
   private static final Logger         logger         = LoggerFactory.getLogger(MessagesCache.class);
 
   private static final MetricRegistry metricRegistry    = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
   private static final Timer          insertTimer       = metricRegistry.timer(name(MessagesCache.class, "insert"      ));
+  private static final Timer          insertBatchTimer  = metricRegistry.timer(name(MessagesCache.class, "insertBatch" ));
   private static final Timer          removeByIdTimer   = metricRegistry.timer(name(MessagesCache.class, "removeById"  ));
   private static final Timer          removeByNameTimer = metricRegistry.timer(name(MessagesCache.class, "removeByName"));
   private static final Timer          getTimer          = metricRegistry.timer(name(MessagesCache.class, "get"         ));
   private static final Timer          clearAccountTimer = metricRegistry.timer(name(MessagesCache.class, "clearAccount"));
   private static final Timer          clearDeviceTimer  = metricRegistry.timer(name(MessagesCache.class, "clearDevice" ));
+  private static final Meter          inDoubtMeter      = metricRegistry.meter(name(MessagesCache.class, "insertBatchInDoubt"));
+
+  private static final int RING_POINTS_PER_SHARD = 128;
+
+  private final Map<String, Shard>        shards = new LinkedHashMap<>();
+  private final ConsistentHashRing<Shard> ring   = new ConsistentHashRing<>(RING_POINTS_PER_SHARD);
+  private final Messages                  database;
+  private final AccountsManager           accountsManager;
+  private final int                       delayMinutes;
+  private final boolean                   batchPersist;
+  private final int                       persistBatchSize;
+  private final int                       persistWorkers;
+
+  private PubSubManager          pubSubManager;
+  private PushSender             pushSender;
+  private List<MessagePersister> messagePersisters;
+
+  public MessagesCache(ReplicatedJedisPool jedisPool, Messages database, AccountsManager accountsManager,
+                       int delayMinutes, boolean batchPersist, int persistBatchSize, int persistWorkers)
+  {
+    this(Collections.singletonMap("default", jedisPool), Collections.<String>emptySet(),
+         database, accountsManager, delayMinutes, batchPersist, persistBatchSize, persistWorkers);
+  }
+
+  public MessagesCache(Map<String, ReplicatedJedisPool> shards, Set<String> draining,
+                       Messages database, AccountsManager accountsManager,
+                       int delayMinutes, boolean batchPersist, int persistBatchSize, int persistWorkers)
+  {
+    for (Map.Entry<String, ReplicatedJedisPool> entry : shards.entrySet()) {
+      Shard shard = new Shard(entry.getKey(), entry.getValue(), draining.contains(entry.getKey()));
 
-  private final ReplicatedJedisPool jedisPool;
-  private final Messages            database;
-  private final AccountsManager     accountsManager;
-  private final int                 delayMinutes;
+      this.shards.put(shard.getName(), shard);
 
-  private InsertOperation  insertOperation;
-  private RemoveOperation  removeOperation;
-  private GetOperation     getOperation;
+      if (!shard.isDraining()) {
+        this.ring.add(shard.getName(), shard);
+      }
+    }
 
-  private PubSubManager    pubSubManager;
-  private PushSender       pushSender;
-  private MessagePersister messagePersister;
+    if (this.ring.isEmpty()) {
+      throw new IllegalArgumentException("No message cache shards to take new messages!");
+    }
 
-  public MessagesCache(ReplicatedJedisPool jedisPool, Messages database, AccountsManager accountsManager, int delayMinutes) {
-    this.jedisPool       = jedisPool;
-    this.database        = database;
-    this.accountsManager = accountsManager;
-    this.delayMinutes    = delayMinutes;
+    this.database         = database;
+    this.accountsManager  = accountsManager;
+    this.delayMinutes     = delayMinutes;
+    this.batchPersist     = batchPersist;
+    this.persistBatchSize = persistBatchSize;
+    this.persistWorkers   = persistWorkers;
   }
 
   public void insert(String destination, long destinationDevice, Envelope message) {
     Timer.Context timer = insertTimer.time();
 
     try {
-      insertOperation.insert(destination, destinationDevice, System.currentTimeMillis(), message);
+      Shard shard = getShard(destination);
+      shard.getInsertOperation().insert(destination, destinationDevice, System.currentTimeMillis(), message);
+      shard.getInsertMeter().mark();
+    } finally {
+      timer.stop();
+    }
+  }
+
+  /**
+   * Inserts a batch of messages, pipelined per shard.  The batch isn't atomic,
+   * so rather than failing the whole of it, the messages that weren't stored
+   * are returned to be retried on their own.  If a shard's connection fails
+   * part way through, its messages may or may not have been stored; they're
+   * left out, since retrying them could deliver duplicates.
+   *
+   * @return the messages that weren't stored.
+   */
+  public List<Pair<WebsocketAddress, Envelope>> insert(List<Pair<WebsocketAddress, Envelope>> messages) {
+    Timer.Context timer = insertBatchTimer.time();
+
+    try {
+      Map<Shard, List<Pair<WebsocketAddress, Envelope>>> byShard   = new HashMap<>();
+      List<Pair<WebsocketAddress, Envelope>>             failed    = new LinkedList<>();
+      long                                               timestamp = System.currentTimeMillis();
+
+      for (Pair<WebsocketAddress, Envelope> message : messages) {
+        Shard shard = getShard(message.first().getNumber());
+
+        if (!byShard.containsKey(shard)) {
+          byShard.put(shard, new LinkedList<Pair<WebsocketAddress, Envelope>>());
+        }
+
+        byShard.get(shard).add(message);
+      }
+
+      for (Map.Entry<Shard, List<Pair<WebsocketAddress, Envelope>>> entry : byShard.entrySet()) {
+        List<Pair<WebsocketAddress, Envelope>> shardMessages = entry.getValue();
+
+        try {
+          List<Object> results = entry.getKey().getInsertOperation().insert(shardMessages, timestamp);
+          int          stored  = 0;
+
+          for (int i=0;i<results.size();i++) {
+            if (results.get(i) instanceof Exception) failed.add(shardMessages.get(i));
+            else                                     stored++;
+          }
+
+          entry.getKey().getInsertMeter().mark(stored);
+        } catch (JedisException e) {
+          inDoubtMeter.mark(shardMessages.size());
+          logger.warn("Batch insert of " + shardMessages.size() + " messages to shard " + entry.getKey().getName() + " failed part way", e);
+        }
+      }
+
+      return failed;
     } finally {
       timer.stop();
     }
@@ -81,7 +189,17 @@ public class MessagesCache implements Managed {
     Timer.Context timer = removeByIdTimer.time();
 
     try {
-      removeOperation.remove(destination, destinationDevice, id);
+      getShard(destination).getRemoveOperation().remove(destination, destinationDevice, id);
+    } finally {
+      timer.stop();
+    }
+  }
+
+  public void remove(String destination, long destinationDevice, List<Long> ids) {
+    Timer.Context timer = removeByIdTimer.time();
+
+    try {
+      getShard(destination).getRemoveOperation().remove(destination, destinationDevice, ids);
     } finally {
       timer.stop();
     }
@@ -91,7 +209,7 @@ public class MessagesCache implements Managed {
     Timer.Context timer = removeByNameTimer.time();
 
     try {
-      byte[] serialized = removeOperation.remove(destination, destinationDevice, sender, timestamp);
+      byte[] serialized = getShard(destination).getRemoveOperation().remove(destination, destinationDevice, sender, timestamp);
 
       if (serialized != null) {
         Envelope envelope = Envelope.parseFrom(serialized);
@@ -110,26 +228,40 @@ public class MessagesCache implements Managed {
     Timer.Context timer = getTimer.time();
 
     try {
-      List<OutgoingMessageEntity> results = new LinkedList<>();
-      Key                         key     = new Key(destination, destinationDevice);
-      List<Pair<byte[], Double>>  items   = getOperation.getItems(key.getUserMessageQueue(), key.getUserMessageQueuePersistInProgress(), limit);
+      Key key = new Key(destination, destinationDevice);
+      return toEntities(getShard(destination).getGetOperation().getItems(key.getUserMessageQueue(), key.getUserMessageQueuePersistInProgress(), limit));
+    } finally {
+      timer.stop();
+    }
+  }
 
-      for (Pair<byte[], Double> item : items) {
-        try {
-          long     id      = item.second().longValue();
-          Envelope message = Envelope.parseFrom(item.first());
-          results.add(constructEntityFromEnvelope(id, message));
-        } catch (InvalidProtocolBufferException e) {
-          logger.warn("Failed to parse envelope", e);
-        }
-      }
+  public List<OutgoingMessageEntity> getAfter(String destination, long destinationDevice, long afterId, int limit) {
+    Timer.Context timer = getTimer.time();
 
-      return results;
+    try {
+      Key key = new Key(destination, destinationDevice);
+      return toEntities(getShard(destination).getGetOperation().getItemsAfter(key.getUserMessageQueue(), key.getUserMessageQueuePersistInProgress(), afterId, limit));
     } finally {
       timer.stop();
     }
   }
 
+  private List<OutgoingMessageEntity> toEntities(List<Pair<byte[], Double>> items) {
+    List<OutgoingMessageEntity> results = new LinkedList<>();
+
+    for (Pair<byte[], Double> item : items) {
+      try {
+        long     id      = item.second().longValue();
+        Envelope message = Envelope.parseFrom(item.first());
+        results.add(constructEntityFromEnvelope(id, message));
+      } catch (InvalidProtocolBufferException e) {
+        logger.warn("Failed to parse envelope", e);
+      }
+    }
+
+    return results;
+  }
+
   public void clear(String destination) {
     Timer.Context timer = clearAccountTimer.time();
 
@@ -146,7 +278,11 @@ public class MessagesCache implements Managed {
     Timer.Context timer = clearDeviceTimer.time();
 
     try {
-      removeOperation.clear(destination, deviceId);
+      // Clear every shard, not just the current one, so that a queue left behind
+      // by a reshard can't be persisted back after the account was cleared.
+      for (Shard shard : shards.values()) {
+        shard.getRemoveOperation().clear(destination, deviceId);
+      }
     } finally {
       timer.stop();
     }
@@ -159,18 +295,34 @@ public class MessagesCache implements Managed {
 
   @Override
   public void start() throws Exception {
-    this.insertOperation  = new InsertOperation(jedisPool);
-    this.removeOperation  = new RemoveOperation(jedisPool);
-    this.getOperation     = new GetOperation(jedisPool);
-    this.messagePersister = new MessagePersister(jedisPool, database, pubSubManager, pushSender, accountsManager, delayMinutes, TimeUnit.MINUTES);
-
-    this.messagePersister.start();
+    this.messagePersisters = new LinkedList<>();
+
+    for (Shard shard : shards.values()) {
+      shard.start();
+
+      for (int i=0;i<persistWorkers;i++) {
+        boolean          sweepUnowned     = i == 0 && !shard.isDraining() && shards.size() > 1;
+        MessagePersister messagePersister = new MessagePersister(shard, database, pubSubManager, pushSender, accountsManager,
+                                                                 shard.isDraining() ? 0 : delayMinutes, TimeUnit.MINUTES,
+                                                                 batchPersist, persistBatchSize, i,
+                                                                 sweepUnowned ? this::getShard : null);
+        messagePersister.start();
+        messagePersisters.add(messagePersister);
+      }
+    }
   }
 
   @Override
   public void stop() throws Exception {
-    messagePersister.shutdown();
-    logger.info("Message persister shut down...");
+    for (MessagePersister messagePersister : messagePersisters) {
+      messagePersister.shutdown();
+    }
+
+    logger.info("Message persisters shut down...");
+  }
+
+  private Shard getShard(String destination) {
+    return ring.get(destination);
   }
 
   private OutgoingMessageEntity constructEntityFromEnvelope(long id, Envelope envelope) {
@@ -184,6 +336,72 @@ public class MessagesCache implements Managed {
                                      envelope.hasContent() ? envelope.getContent().toByteArray() : null);
   }
 
+  private static class Shard {
+
+    private final String              name;
+    private final ReplicatedJedisPool jedisPool;
+    private final boolean             draining;
+
+    private final Meter     insertMeter;
+    private final Meter     persistedMeter;
+    private final Histogram queueCountHistogram;
+
+    private InsertOperation insertOperation;
+    private RemoveOperation removeOperation;
+    private GetOperation    getOperation;
+
+    Shard(String name, ReplicatedJedisPool jedisPool, boolean draining) {
+      this.name                = name;
+      this.jedisPool           = jedisPool;
+      this.draining            = draining;
+      this.insertMeter         = metricRegistry.meter(name(MessagesCache.class, "shard", name, "insert"));
+      this.persistedMeter      = metricRegistry.meter(name(MessagesCache.class, "shard", name, "persistedMessages"));
+      this.queueCountHistogram = metricRegistry.histogram(name(MessagesCache.class, "shard", name, "persistQueueCount"));
+    }
+
+    void start() throws IOException {
+      this.insertOperation = new InsertOperation(jedisPool);
+      this.removeOperation = new RemoveOperation(jedisPool);
+      this.getOperation    = new GetOperation(jedisPool);
+    }
+
+    String getName() {
+      return name;
+    }
+
+    ReplicatedJedisPool getJedisPool() {
+      return jedisPool;
+    }
+
+    boolean isDraining() {
+      return draining;
+    }
+
+    Meter getInsertMeter() {
+      return insertMeter;
+    }
+
+    Meter getPersistedMeter() {
+      return persistedMeter;
+    }
+
+    Histogram getQueueCountHistogram() {
+      return queueCountHistogram;
+    }
+
+    InsertOperation getInsertOperation() {
+      return insertOperation;
+    }
+
+    RemoveOperation getRemoveOperation() {
+      return removeOperation;
+    }
+
+    GetOperation getGetOperation() {
+      return getOperation;
+    }
+  }
+
   private static class Key {
 
     private final byte[] userMessageQueue;
@@ -248,26 +466,45 @@ public class MessagesCache implements Managed {
     }
 
     public void insert(String destination, long destinationDevice, long timestamp, Envelope message) {
+      Pair<List<byte[]>, List<byte[]>> invocation = getInvocation(destination, destinationDevice, timestamp, message);
+      insert.execute(invocation.first(), invocation.second());
+    }
+
+    public List<Object> insert(List<Pair<WebsocketAddress, Envelope>> messages, long timestamp) {
+      List<Pair<List<byte[]>, List<byte[]>>> invocations = new ArrayList<>(messages.size());
+
+      for (Pair<WebsocketAddress, Envelope> message : messages) {
+        invocations.add(getInvocation(message.first().getNumber(), message.first().getDeviceId(), timestamp, message.second()));
+      }
+
+      return insert.executeEach(invocations);
+    }
+
+    private Pair<List<byte[]>, List<byte[]>> getInvocation(String destination, long destinationDevice, long timestamp, Envelope message) {
       Key    key    = new Key(destination, destinationDevice);
       String sender = message.getSource() + "::" + message.getTimestamp();
 
       List<byte[]> keys = Arrays.asList(key.getUserMessageQueue(), key.getUserMessageQueueMetadata(), Key.getUserMessageQueueIndex());
       List<byte[]> args = Arrays.asList(message.toByteArray(), String.valueOf(timestamp).getBytes(), sender.getBytes());
 
-      insert.execute(keys, args);
+      return new Pair<>(keys, args);
     }
   }
 
   private static class RemoveOperation {
 
     private final LuaScript removeById;
+    private final LuaScript removeByIds;
     private final LuaScript removeBySender;
     private final LuaScript removeQueue;
+    private final LuaScript removeByRange;
 
     RemoveOperation(ReplicatedJedisPool jedisPool) throws IOException {
       this.removeById     = LuaScript.fromResource(jedisPool, "lua/remove_item_by_id.lua"    );
+      this.removeByIds    = LuaScript.fromResource(jedisPool, "lua/remove_items_by_id.lua"   );
       this.removeBySender = LuaScript.fromResource(jedisPool, "lua/remove_item_by_sender.lua");
       this.removeQueue    = LuaScript.fromResource(jedisPool, "lua/remove_queue.lua"         );
+      this.removeByRange  = LuaScript.fromResource(jedisPool, "lua/remove_items_by_range.lua");
     }
 
     public void remove(String destination, long destinationDevice, long id) {
@@ -279,6 +516,27 @@ public class MessagesCache implements Managed {
       this.removeById.execute(keys, args);
     }
 
+    public void remove(String destination, long destinationDevice, List<Long> ids) {
+      Key          key  = new Key(destination, destinationDevice);
+      List<byte[]> keys = Arrays.asList(key.getUserMessageQueue(), key.getUserMessageQueueMetadata(), Key.getUserMessageQueueIndex());
+      List<byte[]> args = new LinkedList<>();
+
+      for (long id : ids) {
+        args.add(String.valueOf(id).getBytes());
+      }
+
+      this.removeByIds.execute(keys, args);
+    }
+
+    public void remove(String destination, long destinationDevice, long minId, long maxId) {
+      Key key = new Key(destination, destinationDevice);
+
+      List<byte[]> keys = Arrays.asList(key.getUserMessageQueue(), key.getUserMessageQueueMetadata(), Key.getUserMessageQueueIndex());
+      List<byte[]> args = Arrays.asList(String.valueOf(minId).getBytes(), String.valueOf(maxId).getBytes());
+
+      this.removeByRange.execute(keys, args);
+    }
+
     public byte[] remove(String destination, long destinationDevice, String sender, long timestamp) {
       Key    key       = new Key(destination, destinationDevice);
       String senderKey = sender + "::" + timestamp;
@@ -303,10 +561,12 @@ public class MessagesCache implements Managed {
 
     private final LuaScript getQueues;
     private final LuaScript getItems;
+    private final LuaScript getItemsAfter;
 
     GetOperation(ReplicatedJedisPool jedisPool) throws IOException {
-      this.getQueues = LuaScript.fromResource(jedisPool, "lua/get_queues_to_persist.lua");
-      this.getItems  = LuaScript.fromResource(jedisPool, "lua/get_items.lua");
+      this.getQueues     = LuaScript.fromResource(jedisPool, "lua/get_queues_to_persist.lua");
+      this.getItems      = LuaScript.fromResource(jedisPool, "lua/get_items.lua");
+      this.getItemsAfter = LuaScript.fromResource(jedisPool, "lua/get_items_after.lua");
     }
 
     List<byte[]> getQueues(byte[] queue, long maxTimeMillis, int limit) {
@@ -320,7 +580,18 @@ public class MessagesCache implements Managed {
       List<byte[]> keys = Arrays.asList(queue, lock);
       List<byte[]> args = Collections.singletonList(String.valueOf(limit).getBytes());
 
-      Iterator<byte[]>           results = ((List<byte[]>) getItems.execute(keys, args)).iterator();
+      return toItems((List<byte[]>) getItems.execute(keys, args));
+    }
+
+    List<Pair<byte[], Double>> getItemsAfter(byte[] queue, byte[] lock, long afterId, int limit) {
+      List<byte[]> keys = Arrays.asList(queue, lock);
+      List<byte[]> args = Arrays.asList(String.valueOf(afterId).getBytes(), String.valueOf(limit).getBytes());
+
+      return toItems((List<byte[]>) getItemsAfter.execute(keys, args));
+    }
+
+    private List<Pair<byte[], Double>> toItems(List<byte[]> replies) {
+      Iterator<byte[]>           results = replies.iterator();
       List<Pair<byte[], Double>> items   = new LinkedList<>();
 
       while (results.hasNext()) {
@@ -340,15 +611,23 @@ public class MessagesCache implements Managed {
     private static final Timer          notifyTimer         = metricRegistry.timer(name(MessagesCache.class, "notifyUser"  ));
     private static final Histogram      queueSizeHistogram  = metricRegistry.histogram(name(MessagesCache.class, "persistQueueSize" ));
     private static final Histogram      queueCountHistogram = metricRegistry.histogram(name(MessagesCache.class, "persistQueueCount"));
+    private static final Timer          persistBatchTimer   = metricRegistry.timer(name(MessagesCache.class, "persistBatch"));
+    private static final Meter          persistedMeter      = metricRegistry.meter(name(MessagesCache.class, "persistedMessages"));
+    private static final Meter          unownedMeter        = metricRegistry.meter(name(MessagesCache.class, "persistUnownedQueue"));
 
-    private static final int CHUNK_SIZE = 100;
+    private static final int  CHUNK_SIZE            = 100;
+    private static final int  SWEEP_SCAN_COUNT      = 1000;
+    private static final long SWEEP_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
 
     private final AtomicBoolean running = new AtomicBoolean(true);
 
+    private final Shard               shard;
     private final ReplicatedJedisPool jedisPool;
     private final Messages            database;
     private final long                delayTime;
     private final TimeUnit            delayTimeUnit;
+    private final boolean             batched;
+    private final int                 batchSize;
 
     private final PubSubManager   pubSubManager;
     private final PushSender      pushSender;
@@ -357,19 +636,28 @@ public class MessagesCache implements Managed {
     private final GetOperation    getOperation;
     private final RemoveOperation removeOperation;
 
-    private boolean finished = false;
-
-    MessagePersister(ReplicatedJedisPool jedisPool,
-                     Messages            database,
-                     PubSubManager       pubSubManager,
-                     PushSender          pushSender,
-                     AccountsManager     accountsManager,
-                     long                delayTime,
-                     TimeUnit            delayTimeUnit)
+    // Set on one worker per shard, to sweep for queues the shard no longer owns.
+    private final Function<String, Shard> owner;
+
+    private boolean finished  = false;
+    private long    lastSweep = 0;
+
+    MessagePersister(Shard                   shard,
+                     Messages                database,
+                     PubSubManager           pubSubManager,
+                     PushSender              pushSender,
+                     AccountsManager         accountsManager,
+                     long                    delayTime,
+                     TimeUnit                delayTimeUnit,
+                     boolean                 batched,
+                     int                     batchSize,
+                     int                     workerId,
+                     Function<String, Shard> owner)
         throws IOException
     {
-      super(MessagePersister.class.getSimpleName());
-      this.jedisPool = jedisPool;
+      super(MessagePersister.class.getSimpleName() + "-" + shard.getName() + "-" + workerId);
+      this.shard     = shard;
+      this.jedisPool = shard.getJedisPool();
       this.database  = database;
 
       this.pubSubManager   = pubSubManager;
@@ -378,8 +666,11 @@ public class MessagesCache implements Managed {
 
       this.delayTime       = delayTime;
       this.delayTimeUnit   = delayTimeUnit;
-      this.getOperation    = new GetOperation(jedisPool);
-      this.removeOperation = new RemoveOperation(jedisPool);
+      this.batched         = batched;
+      this.batchSize       = batchSize;
+      this.getOperation    = shard.getGetOperation();
+      this.removeOperation = shard.getRemoveOperation();
+      this.owner           = owner;
     }
 
     @Override
@@ -388,12 +679,15 @@ public class MessagesCache implements Managed {
         try {
           List<byte[]> queuesToPersist = getQueuesToPersist(getOperation);
           queueCountHistogram.update(queuesToPersist.size());
+          shard.getQueueCountHistogram().update(queuesToPersist.size());
 
           for (byte[] queue : queuesToPersist) {
-            Key key = Key.fromUserMessageQueue(queue);
+            persistAndNotify(Key.fromUserMessageQueue(queue));
+          }
 
-            persistQueue(jedisPool, key);
-            notifyClients(accountsManager, pubSubManager, pushSender, key);
+          if (owner != null && System.currentTimeMillis() - lastSweep >= SWEEP_INTERVAL_MILLIS) {
+            persistUnownedQueues();
+            lastSweep = System.currentTimeMillis();
           }
 
           if (queuesToPersist.isEmpty()) {
@@ -415,6 +709,58 @@ public class MessagesCache implements Managed {
       while (!finished) Util.wait(this);
     }
 
+    private void persistAndNotify(Key key) throws IOException {
+      if (batched) persistQueueBatched(jedisPool, key);
+      else         persistQueue(jedisPool, key);
+
+      notifyClients(accountsManager, pubSubManager, pushSender, key);
+    }
+
+    /**
+     * Persists every queue in this shard's index whose destination is now owned
+     * by another shard, since reads no longer look here for it.  Each queue is
+     * claimed by removing it from the index first, the same way
+     * get_queues_to_persist.lua does, so the delayed persisters can't take it
+     * at the same time.
+     */
+    private void persistUnownedQueues() throws IOException {
+      ScanParams params = new ScanParams().count(SWEEP_SCAN_COUNT);
+      byte[]     cursor = ScanParams.SCAN_POINTER_START_BINARY;
+
+      do {
+        List<Key> unowned = new LinkedList<>();
+
+        try (Jedis jedis = jedisPool.getWriteResource()) {
+          ScanResult<Tuple> result = jedis.zscan(Key.getUserMessageQueueIndex(), cursor, params);
+
+          for (Tuple queue : result.getResult()) {
+            Key key = Key.fromUserMessageQueue(queue.getBinaryElement());
+
+            if (owner.apply(key.getAddress()) != shard &&
+                jedis.zrem(Key.getUserMessageQueueIndex(), queue.getBinaryElement()) > 0)
+            {
+              unowned.add(key);
+            }
+          }
+
+          cursor = result.getCursorAsBytes();
+        }
+
+        for (Key key : unowned) {
+          try {
+            persistAndNotify(key);
+            unownedMeter.mark();
+          } catch (IOException | RuntimeException e) {
+            try (Jedis jedis = jedisPool.getWriteResource()) {
+              jedis.zadd(Key.getUserMessageQueueIndex(), System.currentTimeMillis(), key.getUserMessageQueue());
+            }
+
+            throw e;
+          }
+        }
+      } while (running.get() && !Arrays.equals(cursor, ScanParams.SCAN_POINTER_START_BINARY));
+    }
+
     private void persistQueue(ReplicatedJedisPool jedisPool, Key key) throws IOException {
       Timer.Context timer = persistQueueTimer.time();
 
@@ -429,6 +775,8 @@ public class MessagesCache implements Managed {
           for (Tuple message : messages) {
             persistMessage(key, (long)message.getScore(), message.getBinaryElement());
             messagesPersistedCount++;
+            persistedMeter.mark();
+            shard.getPersistedMeter().mark();
           }
 
           if (messages.size() < CHUNK_SIZE) {
@@ -442,6 +790,66 @@ public class MessagesCache implements Managed {
       }
     }
 
+    private void persistQueueBatched(ReplicatedJedisPool jedisPool, Key key) {
+      Timer.Context timer = persistQueueTimer.time();
+
+      int messagesPersistedCount = 0;
+
+      try (Jedis jedis = jedisPool.getWriteResource()) {
+        while (true) {
+          jedis.setex(key.getUserMessageQueuePersistInProgress(), 30, "1".getBytes());
+
+          Set<Tuple> messages = jedis.zrangeWithScores(key.getUserMessageQueue(), 0, batchSize - 1);
+
+          if (!messages.isEmpty()) {
+            messagesPersistedCount += persistBatch(key, messages);
+          }
+
+          if (messages.size() < batchSize) {
+            jedis.del(key.getUserMessageQueuePersistInProgress());
+            return;
+          }
+        }
+      } finally {
+        timer.stop();
+        queueSizeHistogram.update(messagesPersistedCount);
+      }
+    }
+
+    private int persistBatch(Key key, Set<Tuple> messages) {
+      Timer.Context  timer     = persistBatchTimer.time();
+      List<Envelope> envelopes = new LinkedList<>();
+      long           minId     = Long.MAX_VALUE;
+      long           maxId     = Long.MIN_VALUE;
+
+      try {
+        for (Tuple message : messages) {
+          long id = (long)message.getScore();
+
+          minId = Math.min(minId, id);
+          maxId = Math.max(maxId, id);
+
+          try {
+            envelopes.add(Envelope.parseFrom(message.getBinaryElement()));
+          } catch (InvalidProtocolBufferException e) {
+            logger.error("Error parsing envelope", e);
+          }
+        }
+
+        if (!envelopes.isEmpty()) {
+          database.store(envelopes, key.getAddress(), key.getDeviceId());
+        }
+
+        removeOperation.remove(key.getAddress(), key.getDeviceId(), minId, maxId);
+        persistedMeter.mark(messages.size());
+        shard.getPersistedMeter().mark(messages.size());
+
+        return messages.size();
+      } finally {
+        timer.stop();
+      }
+    }
+
     private void persistMessage(Key key, long score, byte[] message) {
       try {
         Envelope envelope = Envelope.parseFrom(message);
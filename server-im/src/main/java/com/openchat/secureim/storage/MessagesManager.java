@@ -9,7 +9,10 @@ import com.openchat.secureim.entities.MessageProtos.Envelope;
 import com.openchat.secureim.entities.OutgoingMessageEntity;
 import com.openchat.secureim.entities.OutgoingMessageEntityList;
 import com.openchat.secureim.util.Constants;
+import com.openchat.secureim.util.Pair;
+import com.openchat.secureim.websocket.WebsocketAddress;
 
+import java.util.LinkedList;
 import java.util.List;
 
 import static com.codahale.metrics.MetricRegistry.name;
@@ -34,6 +37,17 @@ public class MessagesManager {
     messagesCache.insert(destination, destinationDevice, message);
   }
 
+  /**
+   * @return the messages that weren't stored, see MessagesCache.insert(List).
+   */
+  public List<Pair<WebsocketAddress, Envelope>> insert(List<Pair<WebsocketAddress, Envelope>> messages) {
+    if (messages.isEmpty()) {
+      return messages;
+    }
+
+    return messagesCache.insert(messages);
+  }
+
   public OutgoingMessageEntityList getMessagesForDevice(String destination, long destinationDevice) {
     List<OutgoingMessageEntity> messages = this.messages.load(destination, destinationDevice);
 
@@ -44,6 +58,37 @@ public class MessagesManager {
     return new OutgoingMessageEntityList(messages, messages.size() >= Messages.RESULT_SET_CHUNK_SIZE);
   }
 
+  public OutgoingMessageEntityList getMessagesForDevice(String destination, long destinationDevice,
+                                                        StoredMessageCursor cursor, int limit)
+  {
+    List<OutgoingMessageEntity> messages = new LinkedList<>();
+
+    if (!cursor.isDatabaseDrained()) {
+      messages.addAll(this.messages.loadAfter(destination, destinationDevice, cursor.getLastTimestamp(), cursor.getLastId(), limit));
+
+      if (!messages.isEmpty()) {
+        OutgoingMessageEntity last = messages.get(messages.size() - 1);
+        cursor.advanceDatabase(last.getTimestamp(), last.getId());
+      }
+
+      if (messages.size() < limit) {
+        cursor.setDatabaseDrained();
+      }
+    }
+
+    if (messages.size() < limit) {
+      List<OutgoingMessageEntity> cached = this.messagesCache.getAfter(destination, destinationDevice, cursor.getLastCachedId(), limit - messages.size());
+
+      if (!cached.isEmpty()) {
+        cursor.advanceCache(cached.get(cached.size() - 1).getId());
+      }
+
+      messages.addAll(cached);
+    }
+
+    return new OutgoingMessageEntityList(messages, messages.size() >= limit);
+  }
+
   public void clear(String destination) {
     this.messagesCache.clear(destination);
     this.messages.clear(destination);
@@ -68,12 +113,24 @@ public class MessagesManager {
     return removed;
   }
 
-  public void delete(String destination, long deviceId, long id, boolean cached) {
+  public void delete(String destination, long deviceId, List<Long> cachedIds, List<Long> databaseIds, List<Long> databaseTimestamps) {
+    if (!cachedIds.isEmpty()) {
+      this.messagesCache.remove(destination, deviceId, cachedIds);
+      cacheHitByIdMeter.mark(cachedIds.size());
+    }
+
+    if (!databaseIds.isEmpty()) {
+      this.messages.remove(destination, databaseIds, databaseTimestamps);
+      cacheMissByIdMeter.mark(databaseIds.size());
+    }
+  }
+
+  public void delete(String destination, long deviceId, long id, long timestamp, boolean cached) {
     if (cached) {
       this.messagesCache.remove(destination, deviceId, id);
       cacheHitByIdMeter.mark();
     } else {
-      this.messages.remove(destination, id);
+      this.messages.remove(destination, id, timestamp);
       cacheMissByIdMeter.mark();
     }
   }
@@ -0,0 +1,155 @@
+package com.openchat.secureim.storage;
+
+import com.openchat.secureim.entities.PreKey;
+import com.openchat.secureim.redis.LuaScript;
+import com.openchat.secureim.redis.ReplicatedJedisPool;
+import com.openchat.secureim.util.Pair;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+import redis.clients.jedis.Jedis;
+
+/**
+ * Keeps each device's one-time prekeys in a Redis list so a key can be claimed
+ * with a single atomic LPOP, without a serializable Postgres transaction.
+ *
+ * A device's list is loaded from Postgres the first time it's touched, marked
+ * by a separate "loaded" key, so an exhausted (and therefore deleted) list is
+ * never mistaken for one that hasn't been loaded yet.  The marker or the list
+ * can be lost (eviction, failover) at any time and the list reloaded, so
+ * Postgres is written before a claim returns: uploads before they reach Redis,
+ * and claimed keys deleted, in one batch, before they're handed out.  A reload
+ * can then never bring back a key that's already been issued.
+ */
+public class PreKeysCache {
+
+  private final ReplicatedJedisPool jedisPool;
+  private final Keys                keys;
+
+  private final LuaScript store;
+  private final LuaScript load;
+  private final LuaScript take;
+
+  public PreKeysCache(ReplicatedJedisPool jedisPool, Keys keys) throws IOException {
+    this.jedisPool = jedisPool;
+    this.keys      = keys;
+    this.store     = LuaScript.fromResource(jedisPool, "lua/store_prekeys.lua");
+    this.load      = LuaScript.fromResource(jedisPool, "lua/load_prekeys.lua");
+    this.take      = LuaScript.fromResource(jedisPool, "lua/take_prekeys.lua");
+  }
+
+  public void store(String number, long deviceId, List<PreKey> preKeys) {
+    List<byte[]> serialized = new LinkedList<>();
+
+    for (PreKey preKey : preKeys) {
+      serialized.add(serialize(preKey.getKeyId(), preKey.getPublicKey()));
+    }
+
+    keys.store(number, deviceId, preKeys);
+    store.execute(Arrays.asList(getQueueKey(number, deviceId), getLoadedKey(number, deviceId)), serialized);
+  }
+
+  public int getCount(String number, long deviceId) {
+    loadIfAbsent(number, deviceId);
+
+    try (Jedis jedis = jedisPool.getReadResource()) {
+      return jedis.llen(getQueueKey(number, deviceId)).intValue();
+    }
+  }
+
+  public List<KeyRecord> take(List<Pair<String, Long>> devices) {
+    List<KeyRecord> results = claim(devices);
+
+    if (!results.isEmpty()) {
+      keys.removeKeys(results);
+    }
+
+    return results;
+  }
+
+  @SuppressWarnings("unchecked")
+  private List<KeyRecord> claim(List<Pair<String, Long>> devices) {
+    List<KeyRecord> results = new LinkedList<>();
+
+    if (devices.isEmpty()) {
+      return results;
+    }
+
+    List<byte[]> queues = new LinkedList<>();
+
+    for (Pair<String, Long> device : devices) {
+      queues.add(getQueueKey(device.first(), device.second()));
+      queues.add(getLoadedKey(device.first(), device.second()));
+    }
+
+    List<Object>             claimed   = (List<Object>)take.execute(queues, new LinkedList<byte[]>());
+    List<Pair<String, Long>> notLoaded = new LinkedList<>();
+
+    int index = 0;
+
+    for (Pair<String, Long> device : devices) {
+      Object result = claimed.get(index++);
+
+      if (result instanceof byte[]) {
+        byte[] preKey = (byte[])result;
+
+        if (preKey.length > 0) {
+          results.add(toKeyRecord(device.first(), device.second(), preKey));
+        }
+      } else {
+        notLoaded.add(device);
+      }
+    }
+
+    if (!notLoaded.isEmpty()) {
+      for (Pair<String, Long> device : notLoaded) {
+        loadIfAbsent(device.first(), device.second());
+      }
+
+      results.addAll(claim(notLoaded));
+    }
+
+    return results;
+  }
+
+  private KeyRecord toKeyRecord(String number, long deviceId, byte[] serialized) {
+    String value     = new String(serialized);
+    int    separator = value.indexOf(':');
+
+    long   keyId     = Long.parseLong(value.substring(0, separator));
+    String publicKey = value.substring(separator + 1);
+
+    return new KeyRecord(0, number, deviceId, keyId, publicKey, false);
+  }
+
+  private void loadIfAbsent(String number, long deviceId) {
+    try (Jedis jedis = jedisPool.getWriteResource()) {
+      if (jedis.exists(getLoadedKey(number, deviceId))) {
+        return;
+      }
+    }
+
+    List<byte[]> serialized = new LinkedList<>();
+
+    for (KeyRecord record : keys.retrieveAll(number, deviceId)) {
+      serialized.add(serialize(record.getKeyId(), record.getPublicKey()));
+    }
+
+    load.execute(Arrays.asList(getQueueKey(number, deviceId), getLoadedKey(number, deviceId)), serialized);
+  }
+
+  private byte[] serialize(long keyId, String publicKey) {
+    return (keyId + ":" + publicKey).getBytes();
+  }
+
+  private byte[] getQueueKey(String number, long deviceId) {
+    return ("prekeys::" + number + "::" + deviceId).getBytes();
+  }
+
+  private byte[] getLoadedKey(String number, long deviceId) {
+    return ("prekeys_loaded::" + number + "::" + deviceId).getBytes();
+  }
+}
@@ -1,29 +1,76 @@
 package com.openchat.secureim.storage;
 
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.google.common.base.Optional;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import com.openchat.dispatch.DispatchChannel;
 import com.openchat.dispatch.DispatchManager;
 import com.openchat.secureim.redis.ReplicatedJedisPool;
+import com.openchat.secureim.util.Constants;
+import com.openchat.secureim.util.Pair;
+import com.openchat.secureim.websocket.PresenceManager;
+import com.openchat.secureim.websocket.WebsocketAddress;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static com.codahale.metrics.MetricRegistry.name;
 import io.dropwizard.lifecycle.Managed;
 import static com.openchat.secureim.storage.PubSubProtos.PubSubMessage;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
 
+/**
+ * Publishes messages to, and manages subscriptions for, named channels.
+ *
+ * Without a {@link PresenceManager}, every websocket has its own redis
+ * channel.  With one, each node subscribes a single channel of its own, and a
+ * message for a connected device is sent to the node holding its websocket
+ * (or handed straight to it, if that's this node).  Per-device channels can be
+ * kept alongside, so that nodes that don't route this way yet still reach
+ * each other's devices; once they all do, turn them off.
+ */
 public class PubSubManager implements Managed {
 
   private static final String KEEPALIVE_CHANNEL = "KEEPALIVE";
+  private static final String NODE_PREFIX       = "node::";
+
+  private static final MetricRegistry metricRegistry  = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
+  private static final Meter          localMeter      = metricRegistry.meter(name(PubSubManager.class, "routed_local"      ));
+  private static final Meter          nodeMeter       = metricRegistry.meter(name(PubSubManager.class, "routed_node"       ));
+  private static final Meter          channelMeter    = metricRegistry.meter(name(PubSubManager.class, "routed_channel"    ));
+  private static final Meter          deadLetterMeter = metricRegistry.meter(name(PubSubManager.class, "routed_dead_letter"));
 
   private final Logger logger = LoggerFactory.getLogger(PubSubManager.class);
 
-  private final DispatchManager     dispatchManager;
-  private final ReplicatedJedisPool jedisPool;
+  private final DispatchManager           dispatchManager;
+  private final ReplicatedJedisPool       jedisPool;
+  private final Optional<PresenceManager> presenceManager;
+  private final boolean                   deviceChannels;
+  private final Optional<DispatchChannel> deadLetterChannel;
 
   private boolean subscribed = false;
 
   public PubSubManager(ReplicatedJedisPool jedisPool, DispatchManager dispatchManager) {
-    this.dispatchManager = dispatchManager;
-    this.jedisPool       = jedisPool;
+    this(jedisPool, dispatchManager, Optional.<PresenceManager>absent(), true, Optional.<DispatchChannel>absent());
+  }
+
+  public PubSubManager(ReplicatedJedisPool jedisPool, DispatchManager dispatchManager,
+                       Optional<PresenceManager> presenceManager, boolean deviceChannels,
+                       Optional<DispatchChannel> deadLetterChannel)
+  {
+    this.dispatchManager   = dispatchManager;
+    this.jedisPool         = jedisPool;
+    this.presenceManager   = presenceManager;
+    this.deviceChannels    = deviceChannels || !presenceManager.isPresent();
+    this.deadLetterChannel = deadLetterChannel;
   }
 
   @Override
@@ -33,6 +80,10 @@ public class PubSubManager implements Managed {
     KeepaliveDispatchChannel keepaliveDispatchChannel = new KeepaliveDispatchChannel();
     this.dispatchManager.subscribe(KEEPALIVE_CHANNEL, keepaliveDispatchChannel);
 
+    if (presenceManager.isPresent()) {
+      this.dispatchManager.subscribe(getNodeChannel(presenceManager.get().getNodeId()), new NodeDispatchChannel());
+    }
+
     synchronized (this) {
       while (!subscribed) wait(0);
     }
@@ -46,11 +97,45 @@ public class PubSubManager implements Managed {
   }
 
   public void subscribe(PubSubAddress address, DispatchChannel channel) {
-    dispatchManager.subscribe(address.serialize(), channel);
+    if (isRouted(address) && !deviceChannels) dispatchManager.subscribeLocal(address.serialize(), channel);
+    else                                      dispatchManager.subscribe(address.serialize(), channel);
+
+    if (isRouted(address)) {
+      presenceManager.get().register((WebsocketAddress)address);
+    }
+  }
+
+  /**
+   * @see DispatchManager#addDisconnectListener
+   */
+  public void addDisconnectListener(PubSubAddress address, Runnable listener) {
+    dispatchManager.addDisconnectListener(address.serialize(), listener);
+  }
+
+  public void removeDisconnectListener(PubSubAddress address) {
+    dispatchManager.removeDisconnectListener(address.serialize());
   }
 
   public void unsubscribe(PubSubAddress address, DispatchChannel dispatchChannel) {
-    dispatchManager.unsubscribe(address.serialize(), dispatchChannel);
+    boolean removed;
+
+    if (isRouted(address) && !deviceChannels) removed = dispatchManager.unsubscribeLocal(address.serialize(), dispatchChannel);
+    else                                      removed = dispatchManager.unsubscribe(address.serialize(), dispatchChannel);
+
+    if (removed && isRouted(address)) {
+      presenceManager.get().unregister((WebsocketAddress)address);
+    }
+  }
+
+  /**
+   * Extends this node's claim on a connected device, so messages keep being
+   * routed here.  Called on every keepalive.  A claim another node has taken
+   * since, because the device reconnected there, is left alone.
+   */
+  public void refresh(PubSubAddress address) {
+    if (isRouted(address) && hasLocalSubscription(address)) {
+      presenceManager.get().refresh((WebsocketAddress)address);
+    }
   }
 
   public boolean hasLocalSubscription(PubSubAddress address) {
@@ -58,9 +143,128 @@ public class PubSubManager implements Managed {
   }
 
   public boolean publish(PubSubAddress address, PubSubMessage message) {
+    if (isRouted(address)) {
+      return publish(Collections.singletonList(new Pair<>(address, message))).get(0);
+    }
+
     return publish(address.serialize().getBytes(), message);
   }
 
+  /**
+   * Publishes every message, pipelined over a single connection.
+   *
+   * @return whether each message had a subscriber, in the same order.
+   */
+  public List<Boolean> publish(List<Pair<PubSubAddress, PubSubMessage>> messages) {
+    if (presenceManager.isPresent()) {
+      return route(messages);
+    }
+
+    List<Response<Long>> responses = new ArrayList<>(messages.size());
+    List<Boolean>        results   = new ArrayList<>(messages.size());
+
+    try (Jedis jedis = jedisPool.getWriteResource()) {
+      Pipeline pipeline = jedis.pipelined();
+
+      for (Pair<PubSubAddress, PubSubMessage> message : messages) {
+        responses.add(pipeline.publish(message.first().serialize().getBytes(), message.second().toByteArray()));
+      }
+
+      pipeline.sync();
+    }
+
+    for (Response<Long> response : responses) {
+      results.add(response.get() > 0);
+    }
+
+    return results;
+  }
+
+  /**
+   * Sends each message to wherever its device is connected: straight to the
+   * local subscriber if that's here, to the owning node's channel if it's
+   * elsewhere, or otherwise to the per-device channel (when those are still
+   * in use).  Presence lookups and publishes are each one pipeline.
+   */
+  private List<Boolean> route(List<Pair<PubSubAddress, PubSubMessage>> messages) {
+    List<Optional<String>> nodes     = getNodes(messages);
+    List<Response<Long>>   responses = new ArrayList<>(Collections.<Response<Long>>nCopies(messages.size(), null));
+    List<Boolean>          results   = new ArrayList<>(Collections.nCopies(messages.size(), false));
+    String                 nodeId    = presenceManager.get().getNodeId();
+
+    try (Jedis jedis = jedisPool.getWriteResource()) {
+      Pipeline pipeline = jedis.pipelined();
+
+      for (int i=0;i<messages.size();i++) {
+        PubSubAddress    address = messages.get(i).first();
+        byte[]           content = messages.get(i).second().toByteArray();
+        Optional<String> node    = nodes.get(i);
+
+        if (node.isPresent() && node.get().equals(nodeId) && dispatchManager.dispatchLocal(address.serialize(), content)) {
+          localMeter.mark();
+          results.set(i, true);
+        } else if (node.isPresent() && !node.get().equals(nodeId)) {
+          nodeMeter.mark();
+          responses.set(i, pipeline.publish(getNodeChannel(node.get()).getBytes(), encode(address.serialize(), content)));
+        } else if (deviceChannels || !isRouted(address)) {
+          channelMeter.mark();
+          responses.set(i, pipeline.publish(address.serialize().getBytes(), content));
+        }
+      }
+
+      pipeline.sync();
+    }
+
+    for (int i=0;i<responses.size();i++) {
+      if (responses.get(i) != null) {
+        results.set(i, responses.get(i).get() > 0);
+      }
+    }
+
+    return results;
+  }
+
+  private List<Optional<String>> getNodes(List<Pair<PubSubAddress, PubSubMessage>> messages) {
+    List<WebsocketAddress> addresses = new ArrayList<>(messages.size());
+
+    for (Pair<PubSubAddress, PubSubMessage> message : messages) {
+      if (isRouted(message.first())) {
+        addresses.add((WebsocketAddress)message.first());
+      }
+    }
+
+    List<Optional<String>> found   = addresses.isEmpty() ? Collections.<Optional<String>>emptyList()
+                                                         : presenceManager.get().getNodes(addresses);
+    List<Optional<String>> results = new ArrayList<>(messages.size());
+    int                    index   = 0;
+
+    for (Pair<PubSubAddress, PubSubMessage> message : messages) {
+      if (isRouted(message.first())) results.add(found.get(index++));
+      else                           results.add(Optional.<String>absent());
+    }
+
+    return results;
+  }
+
+  private boolean isRouted(PubSubAddress address) {
+    return presenceManager.isPresent() && address instanceof WebsocketAddress;
+  }
+
+  private static String getNodeChannel(String nodeId) {
+    return NODE_PREFIX + nodeId;
+  }
+
+  private static byte[] encode(String name, byte[] content) {
+    byte[]     encodedName = name.getBytes(StandardCharsets.UTF_8);
+    ByteBuffer buffer      = ByteBuffer.allocate(4 + encodedName.length + content.length);
+
+    buffer.putInt(encodedName.length);
+    buffer.put(encodedName);
+    buffer.put(content);
+
+    return buffer.array();
+  }
+
   private boolean publish(byte[] channel, PubSubMessage message) {
     try (Jedis jedis = jedisPool.getWriteResource()) {
       long result = jedis.publish(channel, message.toByteArray());
@@ -96,6 +300,44 @@ public class PubSubManager implements Managed {
     }
   }
 
+  private class NodeDispatchChannel implements DispatchChannel {
+
+    @Override
+    public void onDispatchMessage(String channel, byte[] message) {
+      try {
+        ByteBuffer buffer = ByteBuffer.wrap(message);
+        byte[]     name   = new byte[buffer.getInt()];
+        buffer.get(name);
+
+        byte[] content = new byte[buffer.remaining()];
+        buffer.get(content);
+
+        String address = new String(name, StandardCharsets.UTF_8);
+
+        if (!dispatchManager.dispatchLocal(address, content)) {
+          // The device disconnected after the sender looked it up.
+          deadLetterMeter.mark();
+
+          if (deadLetterChannel.isPresent()) {
+            deadLetterChannel.get().onDispatchMessage(address, content);
+          }
+        }
+      } catch (RuntimeException e) {
+        logger.warn("Bad node message on " + channel, e);
+      }
+    }
+
+    @Override
+    public void onDispatchSubscribed(String channel) {
+      logger.info("Subscribed to node channel " + channel);
+    }
+
+    @Override
+    public void onDispatchUnsubscribed(String channel) {
+      logger.warn("***** NODE CHANNEL UNSUBSCRIBED *****");
+    }
+  }
+
   private class KeepaliveSender extends Thread {
     @Override
     public void run() {
@@ -0,0 +1,42 @@
+package com.openchat.secureim.storage;
+
+/**
+ * Position of a stored message stream for one device.  Postgres is read first,
+ * by keyset on (timestamp, id), then the Redis queue by message id.
+ */
+public class StoredMessageCursor {
+
+  private long    lastTimestamp = Long.MIN_VALUE;
+  private long    lastId        = Long.MIN_VALUE;
+  private long    lastCachedId  = -1;
+  private boolean databaseDrained;
+
+  long getLastTimestamp() {
+    return lastTimestamp;
+  }
+
+  long getLastId() {
+    return lastId;
+  }
+
+  long getLastCachedId() {
+    return lastCachedId;
+  }
+
+  boolean isDatabaseDrained() {
+    return databaseDrained;
+  }
+
+  void advanceDatabase(long timestamp, long id) {
+    this.lastTimestamp = timestamp;
+    this.lastId        = id;
+  }
+
+  void setDatabaseDrained() {
+    this.databaseDrained = true;
+  }
+
+  void advanceCache(long id) {
+    this.lastCachedId = id;
+  }
+}
@@ -0,0 +1,53 @@
+package com.openchat.secureim.util;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Maps keys onto named nodes so that adding or removing a node only moves the
+ * keys that land on (or leave) that node.  Each node is placed on the ring at
+ * a number of points hashed from its name, so placement depends only on the
+ * set of names and not the order they're added in.
+ */
+public class ConsistentHashRing<T> {
+
+  private static final HashFunction hash = Hashing.murmur3_32();
+
+  private final NavigableMap<Integer, T> ring = new TreeMap<>();
+  private final int                      pointsPerNode;
+
+  public ConsistentHashRing(int pointsPerNode) {
+    this.pointsPerNode = pointsPerNode;
+  }
+
+  public void add(String name, T node) {
+    for (int i=0;i<pointsPerNode;i++) {
+      ring.put(hash(name + "#" + i), node);
+    }
+  }
+
+  public T get(String key) {
+    if (ring.isEmpty()) {
+      throw new IllegalStateException("No nodes in ring!");
+    }
+
+    Map.Entry<Integer, T> entry = ring.ceilingEntry(hash(key));
+
+    if (entry == null) entry = ring.firstEntry();
+
+    return entry.getValue();
+  }
+
+  public boolean isEmpty() {
+    return ring.isEmpty();
+  }
+
+  private static int hash(String value) {
+    return hash.hashString(value, StandardCharsets.UTF_8).asInt();
+  }
+}
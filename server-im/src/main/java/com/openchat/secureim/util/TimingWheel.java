@@ -0,0 +1,135 @@
+package com.openchat.secureim.util;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A hierarchical timing wheel: four levels of 64 slots, where a slot at level n
+ * spans 64^n ticks.  An item is filed at the lowest level whose range covers its
+ * deadline, and is cascaded down a level each time the wheel reaches its slot,
+ * so scheduling, cancelling and expiring are all constant time no matter how
+ * many items are pending.  Deadlines beyond 64^4 ticks wait in an overflow map
+ * that's refiled every time the top level wraps.
+ */
+public class TimingWheel<T> {
+
+  private static final int BITS   = 6;
+  private static final int SLOTS  = 1 << BITS;
+  private static final int MASK   = SLOTS - 1;
+  private static final int LEVELS = 4;
+
+  private static final int OVERFLOW = -1;
+
+  private final long tickMillis;
+
+  private final Map<T, Long>[][] slots;
+  private final Map<T, Long>     overflow  = new HashMap<>();
+  private final Map<T, Integer>  locations = new HashMap<>();
+
+  private long currentTick;
+
+  @SuppressWarnings("unchecked")
+  public TimingWheel(long tickMillis, long nowMillis) {
+    this.tickMillis  = tickMillis;
+    this.currentTick = nowMillis / tickMillis;
+    this.slots       = new Map[LEVELS][SLOTS];
+
+    for (int level=0;level<LEVELS;level++) {
+      for (int slot=0;slot<SLOTS;slot++) {
+        slots[level][slot] = new HashMap<>();
+      }
+    }
+  }
+
+  /**
+   * Schedules item to expire at deadlineMillis, replacing any earlier schedule.
+   * Deadlines in the past expire on the next tick.
+   */
+  public synchronized void schedule(T item, long deadlineMillis) {
+    cancel(item);
+    place(item, Math.max(currentTick + 1, (deadlineMillis + tickMillis - 1) / tickMillis));
+  }
+
+  public synchronized boolean cancel(T item) {
+    Integer location = locations.remove(item);
+
+    if      (location == null)     return false;
+    else if (location == OVERFLOW) overflow.remove(item);
+    else                           slots[location / SLOTS][location % SLOTS].remove(item);
+
+    return true;
+  }
+
+  public synchronized boolean contains(T item) {
+    return locations.containsKey(item);
+  }
+
+  public synchronized int size() {
+    return locations.size();
+  }
+
+  /**
+   * Moves the wheel forward to nowMillis.
+   *
+   * @return the items whose deadlines have passed, ordered by tick.
+   */
+  public synchronized List<T> advance(long nowMillis) {
+    List<T> expired = new LinkedList<>();
+    long    target  = nowMillis / tickMillis;
+
+    while (currentTick < target) {
+      currentTick++;
+
+      for (int level=LEVELS-1;level>0;level--) {
+        if ((currentTick & ((1L << (BITS * level)) - 1)) == 0) {
+          cascade(slots[level][(int)((currentTick >>> (BITS * level)) & MASK)]);
+        }
+      }
+
+      if ((currentTick & ((1L << (BITS * LEVELS)) - 1)) == 0) {
+        cascade(overflow);
+      }
+
+      Map<T, Long> due = slots[0][(int)(currentTick & MASK)];
+
+      for (T item : due.keySet()) {
+        locations.remove(item);
+        expired.add(item);
+      }
+
+      due.clear();
+    }
+
+    return expired;
+  }
+
+  private void cascade(Map<T, Long> slot) {
+    if (slot.isEmpty()) return;
+
+    Map<T, Long> items = new HashMap<>(slot);
+    slot.clear();
+
+    for (Map.Entry<T, Long> item : items.entrySet()) {
+      place(item.getKey(), item.getValue());
+    }
+  }
+
+  private void place(T item, long deadlineTick) {
+    long delta = deadlineTick - currentTick;
+
+    for (int level=0;level<LEVELS;level++) {
+      if (delta < (1L << (BITS * (level + 1)))) {
+        int slot = (int)((deadlineTick >>> (BITS * level)) & MASK);
+
+        slots[level][slot].put(item, deadlineTick);
+        locations.put(item, level * SLOTS + slot);
+        return;
+      }
+    }
+
+    overflow.put(item, deadlineTick);
+    locations.put(item, OVERFLOW);
+  }
+}
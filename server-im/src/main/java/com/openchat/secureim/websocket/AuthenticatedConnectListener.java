@@ -34,18 +34,24 @@ public class AuthenticatedConnectListener implements WebSocketConnectListener {
   private final MessagesManager    messagesManager;
   private final PubSubManager      pubSubManager;
   private final ApnFallbackManager apnFallbackManager;
+  private final int                maxInFlight;
+  private final int                deleteBatchSize;
 
   public AuthenticatedConnectListener(PushSender pushSender,
                                       ReceiptSender receiptSender,
                                       MessagesManager messagesManager,
                                       PubSubManager pubSubManager,
-                                      ApnFallbackManager apnFallbackManager)
+                                      ApnFallbackManager apnFallbackManager,
+                                      int maxInFlight,
+                                      int deleteBatchSize)
   {
     this.pushSender         = pushSender;
     this.receiptSender      = receiptSender;
     this.messagesManager    = messagesManager;
     this.pubSubManager      = pubSubManager;
     this.apnFallbackManager = apnFallbackManager;
+    this.maxInFlight        = maxInFlight;
+    this.deleteBatchSize    = deleteBatchSize;
   }
 
   @Override
@@ -57,7 +63,8 @@ public class AuthenticatedConnectListener implements WebSocketConnectListener {
     final WebsocketAddress        address        = new WebsocketAddress(account.getNumber(), device.getId());
     final WebSocketConnection     connection     = new WebSocketConnection(pushSender, receiptSender,
                                                                            messagesManager, account, device,
-                                                                           context.getClient(), connectionId);
+                                                                           context.getClient(), connectionId,
+                                                                           maxInFlight, deleteBatchSize);
     final PubSubMessage           connectMessage = PubSubMessage.newBuilder().setType(PubSubMessage.Type.CONNECTED)
                                                                 .setContent(ByteString.copyFrom(connectionId.getBytes()))
                                                                 .build();
@@ -70,6 +77,7 @@ public class AuthenticatedConnectListener implements WebSocketConnectListener {
       @Override
       public void onWebSocketClose(WebSocketSessionContext context, int statusCode, String reason) {
         pubSubManager.unsubscribe(address, connection);
+        connection.onConnectionClosed();
         timer.stop();
       }
     });
@@ -1,5 +1,11 @@
 package com.openchat.secureim.websocket;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.codahale.metrics.Timer;
 import com.google.protobuf.InvalidProtocolBufferException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -7,35 +13,96 @@ import com.openchat.dispatch.DispatchChannel;
 import com.openchat.secureim.entities.MessageProtos.Envelope;
 import com.openchat.secureim.storage.MessagesManager;
 import com.openchat.secureim.storage.PubSubProtos.PubSubMessage;
+import com.openchat.secureim.util.Constants;
+import com.openchat.secureim.util.Pair;
+import com.openchat.secureim.util.Util;
 
-public class DeadLetterHandler implements DispatchChannel {
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
-  private final Logger logger = LoggerFactory.getLogger(DeadLetterHandler.class);
+import static com.codahale.metrics.MetricRegistry.name;
+import io.dropwizard.lifecycle.Managed;
 
-  private final MessagesManager messagesManager;
+/**
+ * Stores messages that were published to a device that's no longer
+ * subscribed, so they're picked up the next time it connects.
+ *
+ * Dead letters arrive in floods (every device of a restarting node at once),
+ * so they're buffered in a bounded queue and written to the message cache in
+ * pipelined batches by a single flusher.  If the queue is full, the message
+ * is stored inline instead.  Batches aren't atomic, so only the messages
+ * that failed to store are retried, with backoff; retrying the whole batch
+ * would duplicate the ones that made it.  Rather than a log line per message, a summary is
+ * logged at most once per interval.
+ */
+public class DeadLetterHandler implements DispatchChannel, Managed {
+
+  private static final Logger logger = LoggerFactory.getLogger(DeadLetterHandler.class);
+
+  private static final MetricRegistry metricRegistry     = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
+  private static final Meter          deadLetterMeter    = metricRegistry.meter(name(DeadLetterHandler.class, "dead_letters"));
+  private static final Meter          inlineMeter        = metricRegistry.meter(name(DeadLetterHandler.class, "queue_full_inline"));
+  private static final Timer          flushTimer         = metricRegistry.timer(name(DeadLetterHandler.class, "flush"));
+  private static final Histogram      flushSizeHistogram = metricRegistry.histogram(name(DeadLetterHandler.class, "flush_size"));
+  private static final Meter          retryMeter         = metricRegistry.meter(name(DeadLetterHandler.class, "flush_retry"));
+  private static final Meter          droppedMeter       = metricRegistry.meter(name(DeadLetterHandler.class, "dropped"));
+
+  private static final long LOG_INTERVAL_MILLIS  = TimeUnit.SECONDS.toMillis(10);
+  private static final int  MAX_FLUSH_ATTEMPTS   = 3;
+  private static final long RETRY_BACKOFF_MILLIS = 100;
+
+  private final MessagesManager                                messagesManager;
+  private final BlockingQueue<Pair<WebsocketAddress, Envelope>> queue;
+  private final int                                            batchSize;
+
+  private final AtomicLong handled = new AtomicLong();
+  private final AtomicLong invalid = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong lastLog = new AtomicLong(System.currentTimeMillis());
+
+  private volatile Flusher flusher;
 
   public DeadLetterHandler(MessagesManager messagesManager) {
+    this(messagesManager, 100000, 1000);
+  }
+
+  public DeadLetterHandler(MessagesManager messagesManager, int queueSize, int batchSize) {
     this.messagesManager = messagesManager;
+    this.queue           = new ArrayBlockingQueue<>(queueSize);
+    this.batchSize       = batchSize;
+
+    metricRegistry.register(name(DeadLetterHandler.class, "queue_depth"), (Gauge<Integer>) queue::size);
   }
 
   @Override
   public void onDispatchMessage(String channel, byte[] data) {
     try {
-      logger.info("Handling dead letter to: " + channel);
-
       WebsocketAddress address       = new WebsocketAddress(channel);
       PubSubMessage    pubSubMessage = PubSubMessage.parseFrom(data);
 
       switch (pubSubMessage.getType().getNumber()) {
         case PubSubMessage.Type.DELIVER_VALUE:
-          Envelope message = Envelope.parseFrom(pubSubMessage.getContent());
-          messagesManager.insert(address.getNumber(), address.getDeviceId(), message);
+          Pair<WebsocketAddress, Envelope> message = new Pair<>(address, Envelope.parseFrom(pubSubMessage.getContent()));
+
+          deadLetterMeter.mark();
+          handled.incrementAndGet();
+
+          if (flusher == null || !queue.offer(message)) {
+            inlineMeter.mark();
+            messagesManager.insert(address.getNumber(), address.getDeviceId(), message.second());
+          } else if (flusher == null) {
+            // Stopped while we were queueing, possibly after its final drain.
+            drain();
+          }
           break;
       }
-    } catch (InvalidProtocolBufferException e) {
-      logger.warn("Bad pubsub message", e);
-    } catch (InvalidWebsocketAddressException e) {
-      logger.warn("Invalid websocket address", e);
+    } catch (InvalidProtocolBufferException | InvalidWebsocketAddressException e) {
+      invalid.incrementAndGet();
     }
   }
 
@@ -48,4 +115,112 @@ public class DeadLetterHandler implements DispatchChannel {
   public void onDispatchUnsubscribed(String channel) {
     logger.warn("DeadLetterHandler unsubscribe notice! " + channel);
   }
+
+  @Override
+  public void start() throws Exception {
+    this.flusher = new Flusher();
+    this.flusher.start();
+  }
+
+  @Override
+  public void stop() throws Exception {
+    Flusher stopping = flusher;
+
+    flusher = null;
+    stopping.shutdown();
+
+    drain();
+  }
+
+  private void drain() {
+    List<Pair<WebsocketAddress, Envelope>> batch = new ArrayList<>(batchSize);
+
+    while (queue.drainTo(batch, batchSize) > 0) {
+      store(batch);
+      batch.clear();
+    }
+  }
+
+  private void store(List<Pair<WebsocketAddress, Envelope>> batch) {
+    List<Pair<WebsocketAddress, Envelope>> pending = batch;
+
+    flushSizeHistogram.update(batch.size());
+
+    for (int attempt=1;;attempt++) {
+      try (Timer.Context timer = flushTimer.time()) {
+        pending = messagesManager.insert(pending);
+      }
+
+      if (pending.isEmpty()) {
+        return;
+      }
+
+      if (attempt >= MAX_FLUSH_ATTEMPTS) {
+        logger.warn("Failed to store " + pending.size() + " of " + batch.size() + " dead letters");
+        droppedMeter.mark(pending.size());
+        dropped.addAndGet(pending.size());
+        return;
+      }
+
+      retryMeter.mark();
+      Util.sleep(RETRY_BACKOFF_MILLIS << (attempt - 1));
+    }
+  }
+
+  private void logSummary() {
+    long now  = System.currentTimeMillis();
+    long last = lastLog.get();
+
+    if (now - last >= LOG_INTERVAL_MILLIS && lastLog.compareAndSet(last, now)) {
+      long handledCount = handled.getAndSet(0);
+      long invalidCount = invalid.getAndSet(0);
+      long droppedCount = dropped.getAndSet(0);
+
+      if (handledCount > 0 || invalidCount > 0 || droppedCount > 0) {
+        logger.info("Handled " + handledCount + " dead letters (" + invalidCount + " invalid, " + droppedCount + " dropped) " +
+                    "in the last " + TimeUnit.MILLISECONDS.toSeconds(now - last) + "s, " + queue.size() + " queued");
+      }
+    }
+  }
+
+  private class Flusher extends Thread {
+
+    private final AtomicBoolean running = new AtomicBoolean(true);
+
+    private boolean finished = false;
+
+    Flusher() {
+      super(DeadLetterHandler.class.getSimpleName() + "-Flusher");
+    }
+
+    @Override
+    public void run() {
+      while (running.get()) {
+        try {
+          Pair<WebsocketAddress, Envelope> first = queue.poll(1, TimeUnit.SECONDS);
+
+          if (first != null) {
+            List<Pair<WebsocketAddress, Envelope>> batch = new ArrayList<>(batchSize);
+            batch.add(first);
+            queue.drainTo(batch, batchSize - 1);
+            store(batch);
+          }
+
+          logSummary();
+        } catch (Throwable t) {
+          logger.error("Exception while storing dead letters: ", t);
+        }
+      }
+
+      synchronized (this) {
+        finished = true;
+        notifyAll();
+      }
+    }
+
+    synchronized void shutdown() {
+      running.set(false);
+      while (!finished) Util.wait(this);
+    }
+  }
 }
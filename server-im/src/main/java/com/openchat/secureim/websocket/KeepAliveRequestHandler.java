@@ -0,0 +1,47 @@
+package com.openchat.secureim.websocket;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.codahale.metrics.Timer;
+import com.google.common.base.Optional;
+import com.openchat.secureim.controllers.KeepAliveController;
+import com.openchat.secureim.storage.Account;
+import com.openchat.secureim.util.Constants;
+import com.openchat.websocket.messages.WebSocketRequestMessage;
+import com.openchat.websocket.routing.WebSocketRequestHandler;
+import com.openchat.websocket.session.WebSocketSessionContext;
+
+import javax.ws.rs.core.Response;
+import java.util.Map;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Serves GET /v1/keepalive straight from the websocket session, reporting to
+ * the same timer as the Jersey resource.
+ */
+public class KeepAliveRequestHandler implements WebSocketRequestHandler {
+
+  private static final MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
+  private static final Timer          keepAliveTimer = metricRegistry.timer(name(KeepAliveController.class, "getKeepAlive"));
+
+  private final KeepAliveController keepAliveController;
+
+  public KeepAliveRequestHandler(KeepAliveController keepAliveController) {
+    this.keepAliveController = keepAliveController;
+  }
+
+  @Override
+  public Optional<Response> handle(WebSocketSessionContext context,
+                                   WebSocketRequestMessage request,
+                                   Map<String, String>     pathParameters)
+  {
+    if (!(context.getAuthenticated() instanceof Account)) {
+      return Optional.absent();
+    }
+
+    try (Timer.Context timer = keepAliveTimer.time()) {
+      return Optional.of(keepAliveController.getKeepAlive(context.getAuthenticated(Account.class), context));
+    }
+  }
+}
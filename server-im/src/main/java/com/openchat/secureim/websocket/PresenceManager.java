@@ -0,0 +1,140 @@
+package com.openchat.secureim.websocket;
+
+import com.google.common.base.Optional;
+import com.openchat.secureim.redis.LuaScript;
+import com.openchat.secureim.redis.ReplicatedJedisPool;
+
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+
+/**
+ * Records which node each connected device's websocket is held by, so that
+ * messages can be sent to that node directly rather than through a redis
+ * channel per device.
+ *
+ * Each number has a hash of device id to "node:expiry".  An entry is good
+ * until its expiry, which the owning node pushes forward on every keepalive,
+ * and the hash as a whole expires once no device has refreshed it for a TTL.
+ *
+ * Only a new connection overwrites another node's claim.  A keepalive only
+ * extends a claim this node already holds, or one that's absent or expired,
+ * so a stale connection on the old node can't take the device back after it
+ * has reconnected elsewhere.
+ */
+public class PresenceManager {
+
+  private static final String PRESENCE_PREFIX = "presence::";
+
+  private final ReplicatedJedisPool jedisPool;
+  private final LuaScript           refreshScript;
+  private final LuaScript           removeScript;
+  private final String              nodeId;
+  private final long                ttlMillis;
+
+  public PresenceManager(ReplicatedJedisPool jedisPool, long ttlMillis) throws IOException {
+    this.jedisPool     = jedisPool;
+    this.refreshScript = LuaScript.fromResource(jedisPool, "lua/refresh_presence.lua");
+    this.removeScript  = LuaScript.fromResource(jedisPool, "lua/remove_presence.lua");
+    this.nodeId        = Long.toHexString(new SecureRandom().nextLong());
+    this.ttlMillis     = ttlMillis;
+  }
+
+  public String getNodeId() {
+    return nodeId;
+  }
+
+  /**
+   * Claims the device for this node, replacing any other node's claim.  Only
+   * for a newly connected device.
+   */
+  public void register(WebsocketAddress address) {
+    try (Jedis jedis = jedisPool.getWriteResource()) {
+      Pipeline pipeline = jedis.pipelined();
+      pipeline.hset(getKey(address), getField(address), nodeId + ":" + (System.currentTimeMillis() + ttlMillis));
+      pipeline.pexpire(getKey(address), ttlMillis);
+      pipeline.sync();
+    }
+  }
+
+  /**
+   * Extends this node's claim on the device, or takes it if no other node holds
+   * a live one.
+   *
+   * @return false if another node holds the device.
+   */
+  public boolean refresh(WebsocketAddress address) {
+    Object result = refreshScript.execute(Arrays.asList(getKey(address).getBytes()),
+                                          Arrays.asList(getField(address).getBytes(),
+                                                        (nodeId + ":").getBytes(),
+                                                        String.valueOf(System.currentTimeMillis()).getBytes(),
+                                                        String.valueOf(ttlMillis).getBytes()));
+
+    return ((Long)result) == 1;
+  }
+
+  /**
+   * Drops the device's entry, unless another node has claimed it since.
+   */
+  public void unregister(WebsocketAddress address) {
+    removeScript.execute(Arrays.asList(getKey(address).getBytes()),
+                         Arrays.asList(getField(address).getBytes(), (nodeId + ":").getBytes()));
+  }
+
+  /**
+   * @return the node each device is currently connected to, if any, in the
+   *         same order.
+   */
+  public List<Optional<String>> getNodes(List<WebsocketAddress> addresses) {
+    List<Response<String>> responses = new ArrayList<>(addresses.size());
+    List<Optional<String>> results   = new ArrayList<>(addresses.size());
+
+    try (Jedis jedis = jedisPool.getWriteResource()) {
+      Pipeline pipeline = jedis.pipelined();
+
+      for (WebsocketAddress address : addresses) {
+        responses.add(pipeline.hget(getKey(address), getField(address)));
+      }
+
+      pipeline.sync();
+    }
+
+    for (Response<String> response : responses) {
+      results.add(getNode(response.get()));
+    }
+
+    return results;
+  }
+
+  private Optional<String> getNode(String entry) {
+    if (entry == null) {
+      return Optional.absent();
+    }
+
+    int separator = entry.lastIndexOf(':');
+
+    try {
+      if (separator <= 0 || Long.parseLong(entry.substring(separator + 1)) < System.currentTimeMillis()) {
+        return Optional.absent();
+      }
+    } catch (NumberFormatException e) {
+      return Optional.absent();
+    }
+
+    return Optional.of(entry.substring(0, separator));
+  }
+
+  private String getKey(WebsocketAddress address) {
+    return PRESENCE_PREFIX + address.getNumber();
+  }
+
+  private String getField(WebsocketAddress address) {
+    return String.valueOf(address.getDeviceId());
+  }
+}
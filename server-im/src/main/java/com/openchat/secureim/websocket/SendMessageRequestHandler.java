@@ -0,0 +1,92 @@
+package com.openchat.secureim.websocket;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.codahale.metrics.Timer;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Optional;
+import com.openchat.secureim.controllers.MessageController;
+import com.openchat.secureim.controllers.RateLimitExceededException;
+import com.openchat.secureim.entities.IncomingMessageList;
+import com.openchat.secureim.mappers.IOExceptionMapper;
+import com.openchat.secureim.mappers.RateLimitExceededExceptionMapper;
+import com.openchat.secureim.storage.Account;
+import com.openchat.secureim.util.Constants;
+import com.openchat.websocket.messages.WebSocketRequestMessage;
+import com.openchat.websocket.routing.WebSocketRequestHandler;
+import com.openchat.websocket.session.WebSocketSessionContext;
+
+import javax.validation.Validator;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.io.IOException;
+import java.util.Map;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Serves PUT /v1/messages/{destination} by decoding the JSON body and calling
+ * {@link MessageController} directly.  Anything it can't take at face value --
+ * a missing or non-JSON body, or one that fails to parse or validate -- goes
+ * to Jersey instead.  Exceptions from the send itself are turned into
+ * responses by the same mappers Jersey is configured with, so a rate limit is
+ * still a 413 and an {@link IOException} from the cache or push path is still
+ * a 503 rather than the 500 an unmapped exception would produce.
+ */
+public class SendMessageRequestHandler implements WebSocketRequestHandler {
+
+  private static final MetricRegistry metricRegistry   = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
+  private static final Timer          sendMessageTimer = metricRegistry.timer(name(MessageController.class, "sendMessage"));
+
+  private final RateLimitExceededExceptionMapper rateLimitExceededMapper = new RateLimitExceededExceptionMapper();
+  private final IOExceptionMapper                ioExceptionMapper       = new IOExceptionMapper();
+
+  private final MessageController messageController;
+  private final ObjectMapper      objectMapper;
+  private final Validator         validator;
+
+  public SendMessageRequestHandler(MessageController messageController, ObjectMapper objectMapper, Validator validator) {
+    this.messageController = messageController;
+    this.objectMapper      = objectMapper;
+    this.validator         = validator;
+  }
+
+  @Override
+  public Optional<Response> handle(WebSocketSessionContext context,
+                                   WebSocketRequestMessage request,
+                                   Map<String, String>     pathParameters)
+      throws IOException
+  {
+    String contentType = request.getHeaders().get("content-type");
+
+    if (!(context.getAuthenticated() instanceof Account) || !request.getBody().isPresent() ||
+        contentType == null || !contentType.toLowerCase().startsWith(MediaType.APPLICATION_JSON))
+    {
+      return Optional.absent();
+    }
+
+    IncomingMessageList messages;
+
+    try {
+      messages = objectMapper.readValue(request.getBody().get(), IncomingMessageList.class);
+    } catch (IOException e) {
+      return Optional.absent();
+    }
+
+    if (messages == null || !validator.validate(messages).isEmpty()) {
+      return Optional.absent();
+    }
+
+    try (Timer.Context timer = sendMessageTimer.time()) {
+      return Optional.of(Response.ok(messageController.sendMessage(context.getAuthenticated(Account.class),
+                                                                   pathParameters.get("destination"),
+                                                                   messages))
+                                 .type(MediaType.APPLICATION_JSON_TYPE)
+                                 .build());
+    } catch (RateLimitExceededException e) {
+      return Optional.of(rateLimitExceededMapper.toResponse(e));
+    } catch (IOException e) {
+      return Optional.of(ioExceptionMapper.toResponse(e));
+    }
+  }
+}
@@ -1,8 +1,10 @@
 package com.openchat.secureim.websocket;
 
 import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.SharedMetricRegistries;
+import com.codahale.metrics.Timer;
 import com.google.common.base.Optional;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
@@ -16,6 +18,7 @@ import com.openchat.secureim.controllers.MessageController;
 import com.openchat.secureim.controllers.NoSuchUserException;
 import com.openchat.secureim.entities.CryptoEncodingException;
 import com.openchat.secureim.entities.EncryptedOutgoingMessage;
+import com.openchat.secureim.entities.OutgoingMessageCipher;
 import com.openchat.secureim.entities.OutgoingMessageEntity;
 import com.openchat.secureim.entities.OutgoingMessageEntityList;
 import com.openchat.secureim.push.NotPushRegisteredException;
@@ -25,6 +28,7 @@ import com.openchat.secureim.push.TransientPushFailureException;
 import com.openchat.secureim.storage.Account;
 import com.openchat.secureim.storage.Device;
 import com.openchat.secureim.storage.MessagesManager;
+import com.openchat.secureim.storage.StoredMessageCursor;
 import com.openchat.secureim.util.Constants;
 import com.openchat.websocket.WebSocketClient;
 import com.openchat.websocket.messages.WebSocketResponseMessage;
@@ -33,7 +37,8 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.ws.rs.WebApplicationException;
 import java.io.IOException;
-import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 
 import static com.codahale.metrics.MetricRegistry.name;
 import static com.openchat.secureim.entities.MessageProtos.Envelope;
@@ -43,6 +48,9 @@ public class WebSocketConnection implements DispatchChannel {
 
   private static final MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
   public  static final Histogram      messageTime    = metricRegistry.histogram(name(MessageController.class, "message_delivery_duration"));
+  private static final Histogram      windowSize     = metricRegistry.histogram(name(WebSocketConnection.class, "in_flight_window"));
+  private static final Timer          ackTimer       = metricRegistry.timer(name(WebSocketConnection.class, "ack_latency"));
+  private static final Meter          spillMeter     = metricRegistry.meter(name(WebSocketConnection.class, "window_full_requeue"));
 
   private static final Logger logger = LoggerFactory.getLogger(WebSocketConnection.class);
 
@@ -54,6 +62,22 @@ public class WebSocketConnection implements DispatchChannel {
   private final Device           device;
   private final WebSocketClient  client;
   private final String           connectionId;
+  private final int              maxInFlight;
+  private final int              deleteBatchSize;
+
+  private volatile OutgoingMessageCipher cipher;
+
+  private StoredMessageCursor storedMessageCursor;
+  private boolean             storedMessagesStreaming;
+  private boolean             storedMessagesFetching;
+  private boolean             storedMessagesMore;
+  private boolean             storedMessagesRequery;
+  private int                 storedInFlight;
+  private int                 inFlight;
+
+  private List<Long> pendingCachedDeletes      = new LinkedList<>();
+  private List<Long> pendingDatabaseDeletes    = new LinkedList<>();
+  private List<Long> pendingDatabaseTimestamps = new LinkedList<>();
 
   public WebSocketConnection(PushSender pushSender,
                              ReceiptSender receiptSender,
@@ -61,7 +85,9 @@ public class WebSocketConnection implements DispatchChannel {
                              Account account,
                              Device device,
                              WebSocketClient client,
-                             String connectionId)
+                             String connectionId,
+                             int maxInFlight,
+                             int deleteBatchSize)
   {
     this.pushSender      = pushSender;
     this.receiptSender   = receiptSender;
@@ -70,6 +96,8 @@ public class WebSocketConnection implements DispatchChannel {
     this.device          = device;
     this.client          = client;
     this.connectionId    = connectionId;
+    this.maxInFlight     = maxInFlight;
+    this.deleteBatchSize = deleteBatchSize;
   }
 
   @Override
@@ -82,7 +110,7 @@ public class WebSocketConnection implements DispatchChannel {
           processStoredMessages();
           break;
         case PubSubMessage.Type.DELIVER_VALUE:
-          sendMessage(Envelope.parseFrom(pubSubMessage.getContent()), Optional.absent(), false);
+          deliverMessage(Envelope.parseFrom(pubSubMessage.getContent()));
           break;
         case PubSubMessage.Type.CONNECTED_VALUE:
           if (pubSubMessage.hasContent() && !new String(pubSubMessage.getContent().toByteArray()).equals(connectionId)) {
@@ -106,12 +134,46 @@ public class WebSocketConnection implements DispatchChannel {
     processStoredMessages();
   }
 
-  private void sendMessage(final Envelope                    message,
-                           final Optional<StoredMessageInfo> storedMessageInfo,
-                           final boolean                     requery)
-  {
+  public void onConnectionClosed() {
+    flushPendingDeletes();
+  }
+
+  private void deliverMessage(Envelope message) {
+    boolean reserved;
+
+    synchronized (this) {
+      reserved = inFlight < maxInFlight;
+
+      if (reserved) {
+        inFlight++;
+        windowSize.update(inFlight);
+      }
+    }
+
+    if (reserved) {
+      sendMessage(message, Optional.absent());
+    } else {
+      spillMeter.mark();
+      pushSender.getWebSocketSender().queueMessage(account, device, message);
+    }
+  }
+
+  private OutgoingMessageCipher getCipher() throws CryptoEncodingException {
+    OutgoingMessageCipher cipher       = this.cipher;
+    String                signalingKey = device.getSignalingKey();
+
+    if (cipher == null || !cipher.isFor(signalingKey)) {
+      this.cipher = cipher = new OutgoingMessageCipher(signalingKey);
+    }
+
+    return cipher;
+  }
+
+  private void sendMessage(final Envelope message, final Optional<StoredMessageInfo> storedMessageInfo) {
+    final Timer.Context ackTime = ackTimer.time();
+
     try {
-      EncryptedOutgoingMessage                   encryptedMessage = new EncryptedOutgoingMessage(message, device.getSignalingKey());
+      EncryptedOutgoingMessage                   encryptedMessage = new EncryptedOutgoingMessage(message, getCipher());
       Optional<byte[]>                           body             = Optional.fromNullable(encryptedMessage.toByteArray());
       ListenableFuture<WebSocketResponseMessage> response         = client.sendRequest("PUT", "/api/v1/message", null, body);
 
@@ -124,18 +186,25 @@ public class WebSocketConnection implements DispatchChannel {
             messageTime.update(System.currentTimeMillis() - message.getTimestamp());
           }
 
+          ackTime.stop();
+
           if (isSuccessResponse(response)) {
-            if (storedMessageInfo.isPresent()) messagesManager.delete(account.getNumber(), device.getId(), storedMessageInfo.get().id, storedMessageInfo.get().cached);
+            if (storedMessageInfo.isPresent()) deleteStoredMessage(storedMessageInfo.get());
             if (!isReceipt)                    sendDeliveryReceiptFor(message);
-            if (requery)                       processStoredMessages();
           } else if (!isSuccessResponse(response) && !storedMessageInfo.isPresent()) {
             requeueMessage(message);
           }
+
+          onMessageComplete(storedMessageInfo.isPresent());
         }
 
         @Override
         public void onFailure(@Nonnull Throwable throwable) {
+          ackTime.stop();
+
           if (!storedMessageInfo.isPresent()) requeueMessage(message);
+
+          onMessageComplete(storedMessageInfo.isPresent());
         }
 
         private boolean isSuccessResponse(WebSocketResponseMessage response) {
@@ -144,6 +213,7 @@ public class WebSocketConnection implements DispatchChannel {
       });
     } catch (CryptoEncodingException e) {
       logger.warn("Bad signaling key", e);
+      onMessageComplete(storedMessageInfo.isPresent());
     }
   }
 
@@ -172,44 +242,166 @@ public class WebSocketConnection implements DispatchChannel {
   }
 
   private void processStoredMessages() {
-    OutgoingMessageEntityList       messages = messagesManager.getMessagesForDevice(account.getNumber(), device.getId());
-    Iterator<OutgoingMessageEntity> iterator = messages.getMessages().iterator();
-
-    while (iterator.hasNext()) {
-      OutgoingMessageEntity message = iterator.next();
-      Envelope.Builder      builder = Envelope.newBuilder()
-                                              .setType(Envelope.Type.valueOf(message.getType()))
-                                              .setSourceDevice(message.getSourceDevice())
-                                              .setSource(message.getSource())
-                                              .setTimestamp(message.getTimestamp());
-
-      if (message.getMessage() != null) {
-        builder.setLegacyMessage(ByteString.copyFrom(message.getMessage()));
+    synchronized (this) {
+      if (storedMessagesStreaming) {
+        storedMessagesRequery = true;
+        return;
       }
 
-      if (message.getContent() != null) {
-        builder.setContent(ByteString.copyFrom(message.getContent()));
+      storedMessageCursor     = new StoredMessageCursor();
+      storedMessagesStreaming = true;
+      storedMessagesMore      = true;
+    }
+
+    streamStoredMessages();
+  }
+
+  private void streamStoredMessages() {
+    while (true) {
+      int limit;
+
+      synchronized (this) {
+        if (storedMessagesFetching || !storedMessagesMore || inFlight > maxInFlight / 2) {
+          break;
+        }
+
+        limit                  = maxInFlight - inFlight;
+        storedMessagesFetching = true;
       }
 
-      if (message.getRelay() != null && !message.getRelay().isEmpty()) {
-        builder.setRelay(message.getRelay());
+      OutgoingMessageEntityList messages;
+
+      try {
+        messages = messagesManager.getMessagesForDevice(account.getNumber(), device.getId(), storedMessageCursor, limit);
+      } catch (RuntimeException e) {
+        synchronized (this) {
+          storedMessagesFetching = false;
+          storedMessagesMore     = false;
+        }
+
+        logger.warn("Failed to read stored messages", e);
+        break;
+      }
+
+      synchronized (this) {
+        storedMessagesFetching = false;
+        storedMessagesMore     = messages.hasMore();
+        storedInFlight        += messages.getMessages().size();
+        inFlight              += messages.getMessages().size();
+        windowSize.update(inFlight);
       }
 
-      sendMessage(builder.build(), Optional.of(new StoredMessageInfo(message.getId(), message.isCached())), !iterator.hasNext() && messages.hasMore());
+      for (OutgoingMessageEntity message : messages.getMessages()) {
+        sendMessage(toEnvelope(message), Optional.of(new StoredMessageInfo(message.getId(), message.getTimestamp(), message.isCached())));
+      }
     }
 
-    if (!messages.hasMore()) {
-      client.sendRequest("PUT", "/api/v1/queue/empty", null, Optional.<byte[]>absent());
+    checkStoredMessagesComplete();
+  }
+
+  private void onMessageComplete(boolean stored) {
+    synchronized (this) {
+      inFlight--;
+      if (stored) storedInFlight--;
+    }
+
+    streamStoredMessages();
+  }
+
+  private void deleteStoredMessage(StoredMessageInfo storedMessageInfo) {
+    boolean flush;
+
+    synchronized (this) {
+      if (storedMessageInfo.cached) {
+        pendingCachedDeletes.add(storedMessageInfo.id);
+      } else {
+        pendingDatabaseDeletes.add(storedMessageInfo.id);
+        pendingDatabaseTimestamps.add(storedMessageInfo.timestamp);
+      }
+
+      flush = pendingCachedDeletes.size() + pendingDatabaseDeletes.size() >= deleteBatchSize;
     }
+
+    if (flush) {
+      flushPendingDeletes();
+    }
+  }
+
+  private void flushPendingDeletes() {
+    List<Long> cachedIds;
+    List<Long> databaseIds;
+    List<Long> databaseTimestamps;
+
+    synchronized (this) {
+      if (pendingCachedDeletes.isEmpty() && pendingDatabaseDeletes.isEmpty()) {
+        return;
+      }
+
+      cachedIds                 = pendingCachedDeletes;
+      databaseIds               = pendingDatabaseDeletes;
+      databaseTimestamps        = pendingDatabaseTimestamps;
+      pendingCachedDeletes      = new LinkedList<>();
+      pendingDatabaseDeletes    = new LinkedList<>();
+      pendingDatabaseTimestamps = new LinkedList<>();
+    }
+
+    try {
+      messagesManager.delete(account.getNumber(), device.getId(), cachedIds, databaseIds, databaseTimestamps);
+    } catch (RuntimeException e) {
+      logger.warn("Failed to delete acknowledged messages", e);
+    }
+  }
+
+  private void checkStoredMessagesComplete() {
+    boolean requery;
+
+    synchronized (this) {
+      if (!storedMessagesStreaming || storedMessagesFetching || storedMessagesMore || storedInFlight > 0) {
+        return;
+      }
+
+      requery                 = storedMessagesRequery;
+      storedMessagesStreaming = false;
+      storedMessagesRequery   = false;
+    }
+
+    flushPendingDeletes();
+
+    if (requery) processStoredMessages();
+    else         client.sendRequest("PUT", "/api/v1/queue/empty", null, Optional.<byte[]>absent());
+  }
+
+  private Envelope toEnvelope(OutgoingMessageEntity message) {
+    Envelope.Builder builder = Envelope.newBuilder()
+                                       .setType(Envelope.Type.valueOf(message.getType()))
+                                       .setSourceDevice(message.getSourceDevice())
+                                       .setSource(message.getSource())
+                                       .setTimestamp(message.getTimestamp());
+
+    if (message.getMessage() != null) {
+      builder.setLegacyMessage(ByteString.copyFrom(message.getMessage()));
+    }
+
+    if (message.getContent() != null) {
+      builder.setContent(ByteString.copyFrom(message.getContent()));
+    }
+
+    if (message.getRelay() != null && !message.getRelay().isEmpty()) {
+      builder.setRelay(message.getRelay());
+    }
+
+    return builder.build();
   }
 
   private static class StoredMessageInfo {
     private final long    id;
+    private final long    timestamp;
     private final boolean cached;
 
-    private StoredMessageInfo(long id, boolean cached) {
-      this.id     = id;
-      this.cached = cached;
+    private StoredMessageInfo(long id, long timestamp, boolean cached) {
+      this.id        = id;
+      this.timestamp = timestamp;
+      this.cached    = cached;
     }
   }
 }
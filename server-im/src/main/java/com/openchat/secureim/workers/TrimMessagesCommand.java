@@ -5,6 +5,8 @@ import org.skife.jdbi.v2.DBI;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import com.openchat.secureim.OpenChatSecureimConfiguration;
+import com.openchat.secureim.configuration.MessagePartitionConfiguration;
+import com.openchat.secureim.storage.MessagePartitionManager;
 import com.openchat.secureim.storage.Messages;
 
 import java.util.concurrent.TimeUnit;
@@ -20,6 +22,8 @@ import io.dropwizard.setup.Bootstrap;
 public class TrimMessagesCommand extends ConfiguredCommand<OpenChatSecureimConfiguration> {
   private final Logger logger = LoggerFactory.getLogger(TrimMessagesCommand.class);
 
+  private static final int BATCH_SIZE = 10000;
+
   public TrimMessagesCommand() {
     super("trim", "Trim Messages Database");
   }
@@ -38,11 +42,30 @@ public class TrimMessagesCommand extends ConfiguredCommand<OpenChatSecureimConfi
     messageDbi.registerContainerFactory(new ImmutableSetContainerFactory());
     messageDbi.registerContainerFactory(new OptionalContainerFactory());
 
+    MessagePartitionConfiguration partitionConfig  = config.getMessagePartitionConfiguration();
+    MessagePartitionManager       partitionManager = new MessagePartitionManager(messageDbi,
+                                                                                 partitionConfig.getPrecreateDays(),
+                                                                                 partitionConfig.getRetentionDays(),
+                                                                                 partitionConfig.getMaintenanceIntervalMinutes());
+
     Messages messages  = messageDbi.onDemand(Messages.class);
-    long     timestamp = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(90);
+    long     timestamp = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(partitionConfig.getRetentionDays());
+
+    if (partitionManager.maintain()) {
+      logger.info("Dropped expired message partitions");
+    }
 
     logger.info("Trimming old messages: " + timestamp + "...");
-    messages.removeOld(timestamp);
+
+    long removed = 0;
+    int  batch;
+
+    do {
+      batch    = messages.removeOld(timestamp, BATCH_SIZE);
+      removed += batch;
+    } while (batch >= BATCH_SIZE);
+
+    logger.info("Trimmed " + removed + " messages");
 
     Thread.sleep(3000);
     System.exit(0);
@@ -1,6 +1,8 @@
 package com.openchat.websocket;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.SettableFuture;
 import org.eclipse.jetty.server.RequestLog;
 import org.eclipse.jetty.websocket.api.RemoteEndpoint;
@@ -13,6 +15,7 @@ import com.openchat.websocket.messages.WebSocketMessage;
 import com.openchat.websocket.messages.WebSocketMessageFactory;
 import com.openchat.websocket.messages.WebSocketRequestMessage;
 import com.openchat.websocket.messages.WebSocketResponseMessage;
+import com.openchat.websocket.routing.WebSocketRouter;
 import com.openchat.websocket.servlet.LoggableRequest;
 import com.openchat.websocket.servlet.LoggableResponse;
 import com.openchat.websocket.servlet.NullServletResponse;
@@ -20,11 +23,13 @@ import com.openchat.websocket.servlet.WebSocketServletRequest;
 import com.openchat.websocket.servlet.WebSocketServletResponse;
 import com.openchat.websocket.session.WebSocketSessionContext;
 import com.openchat.websocket.setup.WebSocketConnectListener;
+import com.openchat.websocket.util.SerialExecutor;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Response;
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -33,6 +38,8 @@ import java.util.List;
 import java.util.Map;
 import com.google.common.base.Optional;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 
 @SuppressWarnings("OptionalUsedAsFieldOrParameterType")
@@ -48,6 +55,9 @@ public class WebSocketResourceProvider implements WebSocketListener {
   private final HttpServlet                        servlet;
   private final RequestLog                         requestLog;
   private final long                               idleTimeoutMillis;
+  private final WebSocketRouter                    router;
+  private final ObjectMapper                       objectMapper;
+  private final Executor                           requestExecutor;
 
   private Session                 session;
   private RemoteEndpoint          remoteEndpoint;
@@ -58,7 +68,11 @@ public class WebSocketResourceProvider implements WebSocketListener {
                                    Object                             authenticated,
                                    WebSocketMessageFactory            messageFactory,
                                    Optional<WebSocketConnectListener> connectListener,
-                                   long                               idleTimeoutMillis)
+                                   long                               idleTimeoutMillis,
+                                   WebSocketRouter                    router,
+                                   ObjectMapper                       objectMapper,
+                                   Optional<Executor>                 requestExecutor,
+                                   int                                maxQueuedRequests)
   {
     this.servlet           = servlet;
     this.requestLog        = requestLog;
@@ -66,6 +80,11 @@ public class WebSocketResourceProvider implements WebSocketListener {
     this.messageFactory    = messageFactory;
     this.connectListener   = connectListener;
     this.idleTimeoutMillis = idleTimeoutMillis;
+    this.router            = router;
+    this.objectMapper      = objectMapper;
+
+    if (requestExecutor.isPresent()) this.requestExecutor = new SerialExecutor(requestExecutor.get(), maxQueuedRequests);
+    else                             this.requestExecutor = MoreExecutors.directExecutor();
   }
 
   @Override
@@ -129,7 +148,45 @@ public class WebSocketResourceProvider implements WebSocketListener {
     logger.debug("onWebSocketText!");
   }
 
-  private void handleRequest(WebSocketRequestMessage requestMessage) {
+  private void handleRequest(final WebSocketRequestMessage requestMessage) {
+    try {
+      requestExecutor.execute(() -> {
+        if (!handleRoutedRequest(requestMessage)) {
+          handleServletRequest(requestMessage);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      logger.debug("Request queue full", e);
+      sendErrorResponse(requestMessage, Response.status(503).build());
+    }
+  }
+
+  private boolean handleRoutedRequest(WebSocketRequestMessage requestMessage) {
+    Optional<WebSocketRouter.Match> match = router.match(requestMessage.getVerb(), requestMessage.getPath());
+
+    if (!match.isPresent()) {
+      return false;
+    }
+
+    try {
+      Optional<Response> response = match.get().getHandler().handle(context, requestMessage, match.get().getParameters());
+
+      if (!response.isPresent()) {
+        return false;
+      }
+
+      sendResponse(requestMessage, response.get());
+    } catch (WebApplicationException e) {
+      sendResponse(requestMessage, e.getResponse());
+    } catch (Exception e) {
+      logger.warn("Handler Error: " + requestMessage.getVerb() + " " + requestMessage.getPath(), e);
+      sendErrorResponse(requestMessage, Response.status(500).build());
+    }
+
+    return true;
+  }
+
+  private void handleServletRequest(WebSocketRequestMessage requestMessage) {
     try {
       HttpServletRequest  servletRequest  = createRequest(requestMessage, context);
       HttpServletResponse servletResponse = createResponse(requestMessage);
@@ -169,6 +226,36 @@ public class WebSocketResourceProvider implements WebSocketListener {
     }
   }
 
+  private void sendResponse(WebSocketRequestMessage requestMessage, Response response) {
+    if (!requestMessage.hasRequestId()) {
+      return;
+    }
+
+    Optional<byte[]> body;
+
+    try {
+      Object entity = response.getEntity();
+
+      if      (entity == null)           body = Optional.absent();
+      else if (entity instanceof byte[]) body = Optional.of((byte[])entity);
+      else                               body = Optional.of(objectMapper.writeValueAsBytes(entity));
+    } catch (IOException e) {
+      logger.warn("Entity serialization", e);
+      sendErrorResponse(requestMessage, Response.status(500).build());
+      return;
+    }
+
+    String reason = response.getStatusInfo().getReasonPhrase();
+
+    WebSocketMessage message = messageFactory.createResponse(requestMessage.getRequestId(),
+                                                             response.getStatus(),
+                                                             reason == null ? "" : reason,
+                                                             new LinkedList<>(),
+                                                             body);
+
+    remoteEndpoint.sendBytesByFuture(ByteBuffer.wrap(message.toByteArray()));
+  }
+
   private void sendErrorResponse(WebSocketRequestMessage requestMessage, Response error) {
     if (requestMessage.hasRequestId()) {
       List<String> headers = new LinkedList<>();
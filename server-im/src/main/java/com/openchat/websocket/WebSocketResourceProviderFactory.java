@@ -83,7 +83,11 @@ public class WebSocketResourceProviderFactory extends WebSocketServlet implement
                                            authenticated,
                                            this.environment.getMessageFactory(),
                                            Optional.fromNullable(this.environment.getConnectListener()),
-                                           this.environment.getIdleTimeoutMillis());
+                                           this.environment.getIdleTimeoutMillis(),
+                                           this.environment.router(),
+                                           this.environment.getObjectMapper(),
+                                           Optional.fromNullable(this.environment.getRequestExecutor()),
+                                           this.environment.getMaxQueuedRequests());
     } catch (AuthenticationException | IOException e) {
       logger.warn("Authentication failure", e);
       return null;
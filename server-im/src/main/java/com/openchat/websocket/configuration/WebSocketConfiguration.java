@@ -3,6 +3,7 @@ package com.openchat.websocket.configuration;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 import javax.validation.Valid;
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
 
 import io.dropwizard.request.logging.LogbackAccessRequestLogFactory;
@@ -15,7 +16,38 @@ public class WebSocketConfiguration {
   @JsonProperty
   private RequestLogFactory requestLog = new LogbackAccessRequestLogFactory();
 
+  @JsonProperty
+  @Min(1)
+  private int requestThreads = 32;
+
+  @JsonProperty
+  @Min(1)
+  private int requestQueueSize = 10000;
+
+  @JsonProperty
+  @Min(1)
+  private int connectionRequestQueueSize = 100;
+
+  @JsonProperty
+  private boolean fastPathEnabled = true;
+
   public RequestLogFactory getRequestLog() {
     return requestLog;
   }
+
+  public int getRequestThreads() {
+    return requestThreads;
+  }
+
+  public int getRequestQueueSize() {
+    return requestQueueSize;
+  }
+
+  public int getConnectionRequestQueueSize() {
+    return connectionRequestQueueSize;
+  }
+
+  public boolean isFastPathEnabled() {
+    return fastPathEnabled;
+  }
 }
@@ -0,0 +1,23 @@
+package com.openchat.websocket.routing;
+
+import com.google.common.base.Optional;
+import com.openchat.websocket.messages.WebSocketRequestMessage;
+import com.openchat.websocket.session.WebSocketSessionContext;
+
+import javax.ws.rs.core.Response;
+import java.util.Map;
+
+public interface WebSocketRequestHandler {
+
+  /**
+   * Handles a request directly, without going through Jersey.
+   *
+   * @return the response, or absent to hand the request to Jersey instead,
+   *         e.g. for input it doesn't want to validate itself.
+   */
+  public Optional<Response> handle(WebSocketSessionContext context,
+                                   WebSocketRequestMessage request,
+                                   Map<String, String>     pathParameters)
+      throws Exception;
+
+}
@@ -0,0 +1,105 @@
+package com.openchat.websocket.routing;
+
+import com.google.common.base.Optional;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Maps a verb and path to a handler that serves the request directly.
+ * Templates are literal segments plus whole-segment {name} parameters.
+ * Paths with a query string or percent-encoding never match, so they
+ * always go to Jersey.
+ */
+public class WebSocketRouter {
+
+  private final Map<String, List<Route>> routes = new ConcurrentHashMap<>();
+
+  public void register(String verb, String template, WebSocketRequestHandler handler) {
+    routes.computeIfAbsent(verb, v -> new CopyOnWriteArrayList<>())
+          .add(new Route(template, handler));
+  }
+
+  public Optional<Match> match(String verb, String path) {
+    List<Route> verbRoutes = routes.get(verb);
+
+    if (verbRoutes == null || path == null || path.indexOf('?') != -1 || path.indexOf('%') != -1) {
+      return Optional.absent();
+    }
+
+    String[] segments = split(path);
+
+    for (Route route : verbRoutes) {
+      Optional<Map<String, String>> parameters = route.match(segments);
+
+      if (parameters.isPresent()) {
+        return Optional.of(new Match(route.handler, parameters.get()));
+      }
+    }
+
+    return Optional.absent();
+  }
+
+  private static String[] split(String path) {
+    int start = path.startsWith("/") ? 1 : 0;
+    int end   = path.endsWith("/") && path.length() > start ? path.length() - 1 : path.length();
+
+    if (start >= end) return new String[0];
+    else              return path.substring(start, end).split("/", -1);
+  }
+
+  public static class Match {
+    private final WebSocketRequestHandler handler;
+    private final Map<String, String>     parameters;
+
+    private Match(WebSocketRequestHandler handler, Map<String, String> parameters) {
+      this.handler    = handler;
+      this.parameters = parameters;
+    }
+
+    public WebSocketRequestHandler getHandler() {
+      return handler;
+    }
+
+    public Map<String, String> getParameters() {
+      return parameters;
+    }
+  }
+
+  private static class Route {
+    private final String[]                segments;
+    private final WebSocketRequestHandler handler;
+
+    private Route(String template, WebSocketRequestHandler handler) {
+      this.segments = split(template);
+      this.handler  = handler;
+    }
+
+    private Optional<Map<String, String>> match(String[] path) {
+      if (path.length != segments.length) {
+        return Optional.absent();
+      }
+
+      Map<String, String> parameters = null;
+
+      for (int i=0;i<segments.length;i++) {
+        String segment = segments[i];
+
+        if (segment.startsWith("{") && segment.endsWith("}")) {
+          if (path[i].isEmpty()) return Optional.absent();
+          if (parameters == null) parameters = new HashMap<>();
+
+          parameters.put(segment.substring(1, segment.length() - 1), path[i]);
+        } else if (!segment.equals(path[i])) {
+          return Optional.absent();
+        }
+      }
+
+      return Optional.of(parameters == null ? Collections.<String, String>emptyMap() : parameters);
+    }
+  }
+}
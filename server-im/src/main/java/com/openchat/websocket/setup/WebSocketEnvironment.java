@@ -7,9 +7,11 @@ import com.openchat.websocket.auth.WebSocketAuthenticator;
 import com.openchat.websocket.configuration.WebSocketConfiguration;
 import com.openchat.websocket.messages.WebSocketMessageFactory;
 import com.openchat.websocket.messages.protobuf.ProtobufWebSocketMessageFactory;
+import com.openchat.websocket.routing.WebSocketRouter;
 
 import javax.servlet.http.HttpServlet;
 import javax.validation.Validator;
+import java.util.concurrent.Executor;
 
 import io.dropwizard.jersey.DropwizardResourceConfig;
 import io.dropwizard.jersey.setup.JerseyContainerHolder;
@@ -20,6 +22,7 @@ public class WebSocketEnvironment {
 
   private final JerseyContainerHolder jerseyServletContainer;
   private final JerseyEnvironment     jerseyEnvironment;
+  private final WebSocketRouter       router;
   private final ObjectMapper          objectMapper;
   private final Validator             validator;
   private final RequestLog            requestLog;
@@ -28,6 +31,8 @@ public class WebSocketEnvironment {
   private WebSocketAuthenticator   authenticator;
   private WebSocketMessageFactory  messageFactory;
   private WebSocketConnectListener connectListener;
+  private Executor                 requestExecutor;
+  private int                      maxQueuedRequests = 100;
 
   public WebSocketEnvironment(Environment environment, WebSocketConfiguration configuration) {
     this(environment, configuration, 60000);
@@ -45,6 +50,7 @@ public class WebSocketEnvironment {
     this.requestLog             = requestLog;
     this.jerseyServletContainer = new JerseyContainerHolder(new ServletContainer(jerseyConfig)  );
     this.jerseyEnvironment      = new JerseyEnvironment(jerseyServletContainer, jerseyConfig);
+    this.router                 = new WebSocketRouter();
     this.messageFactory         = new ProtobufWebSocketMessageFactory();
     this.idleTimeoutMillis      = idleTimeoutMillis;
   }
@@ -53,6 +59,10 @@ public class WebSocketEnvironment {
     return jerseyEnvironment;
   }
 
+  public WebSocketRouter router() {
+    return router;
+  }
+
   public WebSocketAuthenticator getAuthenticator() {
     return authenticator;
   }
@@ -96,4 +106,28 @@ public class WebSocketEnvironment {
   public void setConnectListener(WebSocketConnectListener connectListener) {
     this.connectListener = connectListener;
   }
+
+  public Executor getRequestExecutor() {
+    return requestExecutor;
+  }
+
+  /**
+   * Requests are handled on this executor, in order per connection, instead of
+   * on the Jetty thread that read them.
+   */
+  public void setRequestExecutor(Executor requestExecutor) {
+    this.requestExecutor = requestExecutor;
+  }
+
+  public int getMaxQueuedRequests() {
+    return maxQueuedRequests;
+  }
+
+  /**
+   * The most requests a single connection may have waiting on the request
+   * executor.  Further requests are answered with a 503 until it catches up.
+   */
+  public void setMaxQueuedRequests(int maxQueuedRequests) {
+    this.maxQueuedRequests = maxQueuedRequests;
+  }
 }
@@ -0,0 +1,80 @@
+package com.openchat.websocket.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs tasks on a shared executor one at a time, in the order they were
+ * submitted, so work for a single connection keeps its order without
+ * tying up a thread per connection.
+ *
+ * At most maxQueued tasks may be waiting; beyond that {@link #execute} throws
+ * {@link RejectedExecutionException}, so a client can't queue unbounded work
+ * by submitting faster than it's handled.
+ */
+public class SerialExecutor implements Executor {
+
+  private static final Logger logger = LoggerFactory.getLogger(SerialExecutor.class);
+
+  private final Queue<Runnable> tasks = new ArrayDeque<>();
+  private final Executor        executor;
+  private final int             maxQueued;
+
+  private boolean running;
+
+  public SerialExecutor(Executor executor, int maxQueued) {
+    this.executor  = executor;
+    this.maxQueued = maxQueued;
+  }
+
+  @Override
+  public void execute(Runnable task) {
+    synchronized (tasks) {
+      if (tasks.size() >= maxQueued) {
+        throw new RejectedExecutionException("Too many queued tasks: " + tasks.size());
+      }
+
+      tasks.add(task);
+
+      if (running) return;
+      else         running = true;
+    }
+
+    try {
+      executor.execute(this::drain);
+    } catch (RejectedExecutionException e) {
+      synchronized (tasks) {
+        tasks.clear();
+        running = false;
+      }
+
+      throw e;
+    }
+  }
+
+  private void drain() {
+    while (true) {
+      Runnable task;
+
+      synchronized (tasks) {
+        task = tasks.poll();
+
+        if (task == null) {
+          running = false;
+          return;
+        }
+      }
+
+      try {
+        task.run();
+      } catch (Exception e) {
+        logger.warn("Task failed", e);
+      }
+    }
+  }
+}
@@ -0,0 +1,14 @@
+local leaseKey  = KEYS[1]
+local owner     = ARGV[1]
+local ttlMillis = tonumber(ARGV[2])
+
+if redis.call("GET", leaseKey) == owner then
+    redis.call("PEXPIRE", leaseKey, ttlMillis)
+    return 1
+end
+
+if redis.call("SET", leaseKey, owner, "NX", "PX", ttlMillis) then
+    return 1
+end
+
+return 0
@@ -0,0 +1,12 @@
+local queue   = KEYS[1]
+local lock    = KEYS[2]
+local afterId = ARGV[1]
+local limit   = ARGV[2]
+
+local locked = redis.call("GET", lock)
+
+if locked then
+    return {}
+end
+
+return redis.call("ZRANGEBYSCORE", queue, "(" .. afterId, "+inf", "WITHSCORES", "LIMIT", 0, limit)
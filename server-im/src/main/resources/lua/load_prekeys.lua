@@ -0,0 +1,16 @@
+local queueKey  = KEYS[1]
+local loadedKey = KEYS[2]
+
+if redis.call("EXISTS", loadedKey) == 1 then
+    return 0
+end
+
+redis.call("DEL", queueKey)
+
+for i = 1, #ARGV do
+    redis.call("RPUSH", queueKey, ARGV[i])
+end
+
+redis.call("SET", loadedKey, "1")
+
+return 1
@@ -0,0 +1,20 @@
+local presenceKey       = KEYS[1]
+local device            = ARGV[1]
+local owner             = ARGV[2]
+local currentTimeMillis = tonumber(ARGV[3])
+local ttlMillis         = tonumber(ARGV[4])
+
+local current = redis.call("HGET", presenceKey, device)
+
+if current and string.sub(current, 1, string.len(owner)) ~= owner then
+    local expires = tonumber(string.match(current, ":(%d+)$"))
+
+    if expires and expires >= currentTimeMillis then
+        return 0
+    end
+end
+
+redis.call("HSET", presenceKey, device, owner .. (currentTimeMillis + ttlMillis))
+redis.call("PEXPIRE", presenceKey, ttlMillis)
+
+return 1
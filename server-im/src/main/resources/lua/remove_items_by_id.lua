@@ -0,0 +1,23 @@
+local queueKey           = KEYS[1]
+local queueMetadataKey   = KEYS[2]
+local queueTotalIndexKey = KEYS[3]
+
+local removedCount = 0
+
+for i = 1, #ARGV do
+    local id          = ARGV[i]
+    local senderIndex = redis.call("HGET", queueMetadataKey, id)
+
+    if senderIndex then
+        redis.call("HDEL", queueMetadataKey, senderIndex)
+        redis.call("HDEL", queueMetadataKey, id)
+    end
+
+    removedCount = removedCount + redis.call("ZREMRANGEBYSCORE", queueKey, id, id)
+end
+
+if (redis.call("ZCARD", queueKey) == 0) then
+    redis.call("ZREM", queueTotalIndexKey, queueKey)
+end
+
+return removedCount
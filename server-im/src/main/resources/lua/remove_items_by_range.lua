@@ -0,0 +1,25 @@
+local queueKey           = KEYS[1]
+local queueMetadataKey   = KEYS[2]
+local queueTotalIndexKey = KEYS[3]
+local minId              = ARGV[1]
+local maxId              = ARGV[2]
+
+local items = redis.call("ZRANGEBYSCORE", queueKey, minId, maxId, "WITHSCORES")
+
+for i = 2, #items, 2 do
+    local id          = items[i]
+    local senderIndex = redis.call("HGET", queueMetadataKey, id)
+
+    if senderIndex then
+        redis.call("HDEL", queueMetadataKey, senderIndex)
+        redis.call("HDEL", queueMetadataKey, id)
+    end
+end
+
+local removedCount = redis.call("ZREMRANGEBYSCORE", queueKey, minId, maxId)
+
+if (redis.call("ZCARD", queueKey) == 0) then
+    redis.call("ZREM", queueTotalIndexKey, queueKey)
+end
+
+return removedCount
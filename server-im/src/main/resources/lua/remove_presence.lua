@@ -0,0 +1,11 @@
+local presenceKey = KEYS[1]
+local device      = ARGV[1]
+local owner       = ARGV[2]
+
+local current = redis.call("HGET", presenceKey, device)
+
+if current and string.sub(current, 1, string.len(owner)) == owner then
+    return redis.call("HDEL", presenceKey, device)
+end
+
+return 0
@@ -0,0 +1,12 @@
+local queueKey  = KEYS[1]
+local loadedKey = KEYS[2]
+
+redis.call("DEL", queueKey)
+
+for i = 1, #ARGV do
+    redis.call("RPUSH", queueKey, ARGV[i])
+end
+
+redis.call("SET", loadedKey, "1")
+
+return #ARGV
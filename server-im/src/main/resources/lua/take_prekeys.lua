@@ -0,0 +1,21 @@
+-- KEYS are (queueKey, loadedKey) pairs, one pair per device.
+-- Returns one entry per device: the claimed key, "" if the device
+-- has no keys left, or -1 if its keys have not been loaded yet.
+
+local results = {}
+
+for i = 1, #KEYS, 2 do
+    if redis.call("EXISTS", KEYS[i + 1]) == 1 then
+        local preKey = redis.call("LPOP", KEYS[i])
+
+        if preKey then
+            results[#results + 1] = preKey
+        else
+            results[#results + 1] = ""
+        end
+    else
+        results[#results + 1] = -1
+    end
+end
+
+return results
@@ -0,0 +1,60 @@
+local bucketKey         = KEYS[1]
+local legacyKey         = KEYS[2]
+local bucketSize        = tonumber(ARGV[1])
+local leakRatePerMillis = tonumber(ARGV[2])
+local currentTimeMillis = tonumber(ARGV[3])
+local minimum           = tonumber(ARGV[4])
+local maximum           = tonumber(ARGV[5])
+local ttlSeconds        = tonumber(ARGV[6])
+local mirrorLegacy      = ARGV[7] == "1"
+
+local state          = redis.call("HMGET", bucketKey, "spaceRemaining", "lastUpdateTimeMillis")
+local spaceRemaining = tonumber(state[1])
+local lastUpdate     = tonumber(state[2])
+
+-- Buckets used to be JSON strings under legacyKey.  A missing bucket starts
+-- from the legacy one, and while servers that only know the legacy bucket are
+-- still running (mirrorLegacy) it's kept in step both ways: a legacy bucket
+-- written since this one was wins, and this one is copied back to it.
+if spaceRemaining == nil or mirrorLegacy then
+    local legacy = redis.call("GET", legacyKey)
+
+    if legacy then
+        local bucket = cjson.decode(legacy)
+
+        if spaceRemaining == nil or bucket.lastUpdateTimeMillis > lastUpdate then
+            spaceRemaining = bucket.spaceRemaining
+            lastUpdate     = bucket.lastUpdateTimeMillis
+        end
+    end
+end
+
+spaceRemaining = spaceRemaining or bucketSize
+lastUpdate     = lastUpdate or currentTimeMillis
+
+local elapsedTime = math.max(0, currentTimeMillis - lastUpdate)
+
+-- spaceRemaining is kept fractional, so a slow leak still accrues across
+-- calls that are denied before a whole unit has leaked.
+spaceRemaining = math.min(bucketSize, spaceRemaining + (elapsedTime * leakRatePerMillis))
+
+local granted = 0
+
+if spaceRemaining >= minimum then
+    granted        = math.min(math.floor(spaceRemaining), maximum)
+    spaceRemaining = spaceRemaining - granted
+end
+
+redis.call("HMSET", bucketKey, "spaceRemaining", spaceRemaining, "lastUpdateTimeMillis", currentTimeMillis)
+redis.call("EXPIRE", bucketKey, ttlSeconds)
+
+if mirrorLegacy then
+    redis.call("SETEX", legacyKey, ttlSeconds, cjson.encode({
+        bucketSize           = bucketSize,
+        leakRatePerMillis    = leakRatePerMillis,
+        spaceRemaining       = math.floor(spaceRemaining),
+        lastUpdateTimeMillis = currentTimeMillis
+    }))
+end
+
+return granted